@@ -0,0 +1,143 @@
+package benchmark;
+
+import common.BatchRouter;
+import common.ConnectionPool;
+import common.KeyHash;
+import common.KeyTransferService;
+import common.KeyValueStore;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.Range;
+import common.RingSnapshot;
+import common.ServerEngine;
+import common.TokenKeyValueStore;
+import nameservers.NameServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keys per second against batch size for MGET and MINSERT + MDELETE, on a ring of four local name servers.
+ * The client splits each batch by owner with a BatchRouter, as the bootstrap node does, so a batch costs one
+ * parallel round of requests instead of one routed round trip per key. Batch size 1 is the per-key baseline.
+ * Keys are drawn from 1024 names, so large batches repeat keys; every key is still a separate store operation.
+ * Each node has VNODES virtual node tokens; the sub-batches a 10,000-key batch is split into are counted
+ * and must be one per owning node, not one per virtual node.
+ * Usage: java benchmark.BatchBenchmark [secondsPerSize] [engine]
+ */
+public class BatchBenchmark {
+    private static final int BASE_PORT = 9950;
+    private static final int NODES = 4;
+    private static final int VNODES = 16;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000, 10_000, 100_000};
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        ServerEngine engine = (args.length > 1) ? ServerEngine.valueOf(args[1].toUpperCase()) : ServerEngine.THREADED;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        RingSnapshot ring = startRing(engine);
+        CountingPool pool = new CountingPool();
+        BatchRouter client = new BatchRouter(new TokenKeyValueStore(), pool, 0, 0, token -> false, ring::ownerOf);
+
+        pool.sent.reset();
+        client.execute(randomBatch(NameServerFunctions.MGET, 10_000));
+        console.printf("%d nodes with %d virtual nodes each: %d sub-batches for a 10,000-key batch%n",
+                NODES, VNODES, pool.sent.sum());
+        if (pool.sent.sum() > NODES) throw new IllegalStateException("More than one sub-batch per owning node");
+
+        console.printf("%-8s %10s %16s %22s%n", "engine", "batch", "MGET keys/sec", "MINSERT+MDELETE keys/sec");
+        run(client, 1000, 1);                                       // Warm up
+        for (int batchSize : BATCH_SIZES) {
+            console.printf("%-8s %10d %16.0f %22.0f%n", engine, batchSize,
+                    run(client, batchSize, seconds, NameServerFunctions.MGET),
+                    run(client, batchSize, seconds, NameServerFunctions.MINSERT, NameServerFunctions.MDELETE));
+        }
+
+        long start = System.nanoTime();
+        int total = 1_000_000;
+        for (int sent = 0; sent < total; sent += 10_000)
+            client.execute(randomBatch(NameServerFunctions.MINSERT, 10_000));
+        console.printf("%,d MINSERT keys in batches of 10,000: %.2f s%n", total, (System.nanoTime() - start) / 1e9);
+        System.exit(0);
+    }
+
+    private static void run(BatchRouter client, int batchSize, int seconds) {
+        run(client, batchSize, seconds, NameServerFunctions.MGET);
+        run(client, batchSize, seconds, NameServerFunctions.MINSERT, NameServerFunctions.MDELETE);
+    }
+
+    // Sequential batches for the given time; returns keys per second over all functions run
+    private static double run(BatchRouter client, int batchSize, int seconds, NameServerFunctions... functions) {
+        long keys = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            Message batch = randomBatch(functions[0], batchSize);
+            for (NameServerFunctions function : functions) {
+                Message request = Message.batch(function, 0, 0, batch.getBatchKeys(),
+                        function == NameServerFunctions.MINSERT ? batch.getBatchValues() : null);
+                Message reply = client.execute(request);
+                if (reply.getValueString() != null) throw new IllegalStateException(reply.getValueString());
+                keys += batchSize;
+            }
+        }
+        return keys / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static Message randomBatch(NameServerFunctions function, int size) {
+        String[] keys = new String[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            int key = ThreadLocalRandom.current().nextInt(1024);
+            keys[i] = "key" + key;
+            values[i] = "value" + key;
+        }
+        return Message.batch(function, 0, 0, keys, values);
+    }
+
+    // Counts the sub-batches a router sends
+    private static final class CountingPool extends ConnectionPool {
+        final LongAdder sent = new LongAdder();
+
+        @Override
+        public CompletableFuture<Message> requestAsync(NodeInfo node, Message request) {
+            sent.increment();
+            return super.requestAsync(node, request);
+        }
+    }
+
+    /**
+     * Name servers given a hand-made ring snapshot with VNODES tokens each, the first of them evenly spaced;
+     * the last node's first token is the top token so the ranges cover the whole ring.
+     */
+    private static RingSnapshot startRing(ServerEngine engine) throws InterruptedException {
+        NodeInfo[] entries = new NodeInfo[NODES * VNODES];
+        NameServer[] servers = new NameServer[NODES];
+        long spacing = Long.divideUnsigned(Range.MAX_TOKEN, NODES);
+        for (int i = 0; i < NODES; i++) {
+            long id = (i == NODES - 1) ? Range.MAX_TOKEN : spacing * (i + 1);
+            long[] tokens = KeyHash.vnodeTokens(id, VNODES);
+            for (int v = 0; v < VNODES; v++) entries[i * VNODES + v] = new NodeInfo(tokens[v], "127.0.0.1", BASE_PORT + i);
+            KeyValueStore keyValueStore = new TokenKeyValueStore();
+            servers[i] = new NameServer(id, VNODES, BASE_PORT + i, "127.0.0.1", 0, keyValueStore,
+                    new KeyTransferService(keyValueStore), new ConnectionPool(), engine);
+        }
+        RingSnapshot ring = new RingSnapshot(1, entries);
+        for (int i = 0; i < servers.length; i++) {
+            servers[i].installRing(ring);
+            Thread server = new Thread(servers[i]::startServer);
+            server.setDaemon(true);
+            server.start();
+        }
+        for (int i = 0; i < NODES; i++)
+            BenchmarkRing.awaitListening(BASE_PORT + i);
+        return ring;
+    }
+}
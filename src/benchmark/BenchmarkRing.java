@@ -0,0 +1,111 @@
+package benchmark;
+
+import bootstrap.BootstrapServer;
+import bootstrap.bootstrapUtil.RingManager;
+import common.BatchRouter;
+import common.ConnectionPool;
+import common.KeyTransferService;
+import common.KeyValueStore;
+import common.NodeInfo;
+import common.PlacementStrategy;
+import common.Range;
+import common.ReadCache;
+import common.Replicator;
+import common.RingSnapshot;
+import common.ServerEngine;
+import nameservers.NameServer;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A local ring for the benchmarks: a bootstrap node and n name servers on the THREADED engine, at evenly spread
+ * tokens and on the ports after the bootstrap's, registered with the bootstrap by hand as joins would register
+ * them. Node i serves stores[i], node 0 being the bootstrap. Node 1 is the entry node the benchmarks send their
+ * requests to, and the only one given a read cache if there is one.
+ */
+final class BenchmarkRing {
+    private final int bootstrapPort;
+    private final RingManager ringManager;
+    private final NameServer[] servers;
+
+    private BenchmarkRing(int bootstrapPort, RingManager ringManager, NameServer[] servers) {
+        this.bootstrapPort = bootstrapPort;
+        this.ringManager = ringManager;
+        this.servers = servers;
+    }
+
+    static BenchmarkRing start(int bootstrapPort, KeyValueStore[] stores, int replicas) throws InterruptedException {
+        return start(bootstrapPort, stores, replicas, null);
+    }
+
+    static BenchmarkRing start(int bootstrapPort, KeyValueStore[] stores, int replicas, ReadCache entryCache)
+            throws InterruptedException {
+        int n = stores.length - 1;
+        RingManager ringManager = new RingManager(bootstrapPort, new long[] {0}, PlacementStrategy.RING, 0, replicas);
+        NodeInfo[] nodes = new NodeInfo[n + 1];
+        long spacing = Long.divideUnsigned(Range.MAX_TOKEN, n + 1);
+        for (int i = 1; i <= n; i++) {
+            nodes[i] = new NodeInfo(spacing * i, "127.0.0.1", bootstrapPort + i);
+            ringManager.addNode(nodes[i], new long[] {nodes[i].getId()});
+        }
+
+        ConnectionPool bootstrapPool = new ConnectionPool();
+        Replicator replicator = new Replicator(stores[0], bootstrapPool, 0, bootstrapPort);
+        BatchRouter batchRouter = new BatchRouter(stores[0], bootstrapPool, 0, bootstrapPort,
+                token -> ringManager.ownsToken(0, token), token -> null);
+        BootstrapServer bootstrap = new BootstrapServer(bootstrapPort, stores[0], ringManager,
+                new KeyTransferService(stores[0]), ServerEngine.THREADED, batchRouter, bootstrapPool, replicator);
+        startDaemon(bootstrap::start);
+        awaitListening(bootstrapPort);
+
+        NameServer[] servers = new NameServer[n + 1];
+        for (int i = 1; i <= n; i++) {
+            servers[i] = new NameServer(nodes[i].getId(), 1, nodes[i].getPort(), "127.0.0.1", bootstrapPort,
+                    stores[i], new KeyTransferService(stores[i]), new ConnectionPool(), ServerEngine.THREADED,
+                    (i == 1) ? entryCache : null);
+            startDaemon(servers[i]::startServer);
+        }
+        for (int i = 1; i <= n; i++) awaitListening(nodes[i].getPort());
+        for (int i = 1; i <= n; i++) {
+            servers[i].markAsJoined();
+            servers[i].refreshRing();                   // Fetch the ring snapshot from the bootstrap
+        }
+        return new BenchmarkRing(bootstrapPort, ringManager, servers);
+    }
+
+    // The address of name server i, the entry node being 1
+    NodeInfo node(int i) {
+        return new NodeInfo(0, "127.0.0.1", bootstrapPort + i);
+    }
+
+    NameServer server(int i) {
+        return servers[i];
+    }
+
+    RingSnapshot snapshot() {
+        return ringManager.snapshot();
+    }
+
+    // The index of the node that owns the key, 0 for the bootstrap
+    int ownerOf(String key) {
+        return snapshot().ownerOf(key).getPort() - bootstrapPort;
+    }
+
+    static void startDaemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static void awaitListening(int port) throws InterruptedException {
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
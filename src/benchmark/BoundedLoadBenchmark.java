@@ -0,0 +1,97 @@
+package benchmark;
+
+import common.KeyHash;
+import common.NodeInfo;
+import common.PlacementStrategy;
+import common.Range;
+import common.RingSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Peak node load of weighted rings, plain and with bounded-load placement for several epsilons.
+ * Each node gets a random weight of 1 to 4 and vnodes * weight tokens, as a name server does from the
+ * weight line of its config file. A node's load is its share of the token space (keys hash uniformly, see
+ * KeyHashBenchmark) divided by its fair share, its weight over the total; the peak is the highest over the
+ * nodes, averaged over several random rings. Bounded placement caps the peak at 1 + epsilon but moves more
+ * keys when a node joins, as capacities shrink and ranges overflow differently: the last column is the part
+ * of the keys changing owner on a join, next to the joining node's fair share, which is all a plain ring moves.
+ * Usage: java benchmark.BoundedLoadBenchmark [trials]
+ */
+public class BoundedLoadBenchmark {
+    private static final int[] NODE_COUNTS = {16, 64};
+    private static final int[] VNODES = {1, 16};
+    private static final double[] EPSILONS = {0, 0.5, 0.25, 0.1};
+
+    public static void main(String[] args) {
+        int trials = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+
+        System.out.printf("%6s %7s %-14s %10s %12s %14s%n", "nodes", "vnodes", "placement", "peak/fair", "moved on join", "joiner's share");
+        for (int n : NODE_COUNTS) {
+            for (int vnodes : VNODES) {
+                for (double epsilon : EPSILONS) {
+                    double peak = 0, moved = 0, joinerShare = 0;
+                    Random random = new Random(42);         // The same rings for every epsilon
+                    for (int trial = 0; trial < trials; trial++) {
+                        long[] ids = new long[n + 1];       // The last node is the joining one
+                        int[] weights = new int[n + 1];
+                        for (int i = 0; i <= n; i++) {
+                            ids[i] = (i == 0) ? 0 : random.nextLong();
+                            weights[i] = 1 + random.nextInt(4);
+                        }
+                        RingSnapshot ring = ring(ids, weights, n, vnodes, epsilon);
+                        RingSnapshot joined = ring(ids, weights, n + 1, vnodes, epsilon);
+
+                        int totalWeight = 0;
+                        for (int i = 0; i < n; i++) totalWeight += weights[i];
+                        double[] load = load(ring, n);
+                        double highest = 0;
+                        for (int i = 0; i < n; i++) highest = Math.max(highest, load[i] / ((double) weights[i] / totalWeight));
+                        peak += highest;
+                        moved += moved(ring, joined);
+                        joinerShare += (double) weights[n] / (totalWeight + weights[n]);
+                    }
+                    String placement = (epsilon == 0) ? "plain" : "bounded " + epsilon;
+                    System.out.printf("%6d %7d %-14s %10.2f %12.1f%% %13.1f%%%n", n, vnodes, placement,
+                            peak / trials, moved / trials * 100, joinerShare / trials * 100);
+                }
+            }
+        }
+    }
+
+    // The first n nodes, each with vnodes * weight tokens; the port of each entry is its node index
+    private static RingSnapshot ring(long[] ids, int[] weights, int n, int vnodes, double epsilon) {
+        List<NodeInfo> members = new ArrayList<>();
+        for (int node = 0; node < n; node++) {
+            for (long token : KeyHash.vnodeTokens(ids[node], vnodes * weights[node]))
+                members.add(new NodeInfo(token, "sim", node));
+        }
+        return new RingSnapshot(1, members.toArray(new NodeInfo[0]), PlacementStrategy.RING, epsilon);
+    }
+
+    // Share of the token space owned by each node
+    private static double[] load(RingSnapshot ring, int n) {
+        double[] load = new double[n];
+        for (int i = 0; i < ring.size(); i++) load[ring.get(i).getPort()] += size(ring.rangeOf(i)) / 0x1p64;
+        return load;
+    }
+
+    // Share of the token space whose owner differs between the two rings
+    private static double moved(RingSnapshot before, RingSnapshot after) {
+        double[] moved = {0};
+        for (int i = 0; i < after.size(); i++) {
+            NodeInfo owner = after.get(i);
+            before.split(after.rangeOf(i), (previous, slice) -> {
+                if (previous.getPort() != owner.getPort()) moved[0] += size(slice) / 0x1p64;
+            });
+        }
+        return moved[0];
+    }
+
+    private static double size(Range range) {
+        long span = range.getEnd() - range.getStart();      // Unsigned distance, correct for wrapping ranges too
+        return (span < 0 ? span + 0x1p64 : span) + 1;
+    }
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import common.ConcurrentTokenKeyValueStore;
+import common.HashMapKeyValueStore;
+import common.KeyValueStore;
+import common.TokenKeyValueStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Multi-threaded throughput of the single-monitor stores against the striped StampedLock store,
+ * for 1 to 64 threads and read/write mixes from 50/50 to 99/1. Writes alternate between insert and
+ * delete of random keys so the store size stays around half the keyspace.
+ * Usage: java benchmark.ConcurrentStoreBenchmark [keyspace] [millisPerRun]
+ */
+public class ConcurrentStoreBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int keyspace = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 20;
+        int millis = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int[] threadCounts = {1, 2, 4, 8, 16, 32, 64};
+        int[] readPercents = {50, 90, 99};
+
+        System.out.printf("%-28s %7s %6s %16s%n", "store", "threads", "reads", "ops/sec");
+        for (int readPercent : readPercents) {
+            for (int threads : threadCounts) {
+                run("HashMapKeyValueStore", HashMapKeyValueStore::new, keyspace, threads, readPercent, millis);
+                run("TokenKeyValueStore", () -> new TokenKeyValueStore(keyspace), keyspace, threads, readPercent, millis);
+                run("ConcurrentTokenKeyValueStore", () -> new ConcurrentTokenKeyValueStore(keyspace, 64),
+                        keyspace, threads, readPercent, millis);
+            }
+        }
+    }
+
+    private static void run(String name, Supplier<KeyValueStore> factory, int keyspace,
+                            int threads, int readPercent, int millis) throws InterruptedException {
+        String[] keys = new String[keyspace];
+        for (int i = 0; i < keyspace; i++) keys[i] = "key" + i;
+        KeyValueStore store = factory.get();
+        for (int i = 0; i < keyspace; i += 2) store.insert(keys[i], "value");
+
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while ((done & 1023) != 0 || System.nanoTime() < deadline) {
+                    String key = keys[random.nextInt(keyspace)];
+                    if (random.nextInt(100) < readPercent) store.lookup(key);
+                    else if ((done & 1) == 0) store.insert(key, "value");
+                    else store.delete(key);
+                    done++;
+                }
+                operations.add(done);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+        System.out.printf("%-28s %7d %3d/%-2d %16.0f%n", name, threads, readPercent, 100 - readPercent,
+                operations.sum() / (millis / 1000.0));
+    }
+}
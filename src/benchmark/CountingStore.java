@@ -0,0 +1,19 @@
+package benchmark;
+
+import common.TokenKeyValueStore;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A store that counts the lookups reaching it, so a benchmark can tell which node served a request, or that
+ * a filter or cache in front of the store answered it.
+ */
+final class CountingStore extends TokenKeyValueStore {
+    final LongAdder lookups = new LongAdder();
+
+    @Override
+    public String lookup(String key) {
+        lookups.increment();
+        return super.lookup(key);
+    }
+}
@@ -0,0 +1,107 @@
+package benchmark;
+
+import common.NodeInfo;
+import common.RingSnapshot;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Simulates routing on rings of 8 to 1024 nodes at random 64-bit tokens and compares the number of hops a request
+ * takes with successor-only forwarding, Chord finger table forwarding (to the closest preceding finger) and the
+ * one-hop forwarding name servers use, straight to the owner named by their ring snapshot.
+ * Usage: java benchmark.HopCountBenchmark [requestsPerRing]
+ */
+public class HopCountBenchmark {
+    private static final int MAX_NODES = 1024;
+
+    public static void main(String[] args) {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        Random random = new Random(42);
+
+        System.out.printf("%6s %16s %16s %14s %14s %14s %14s%n", "nodes", "successor(mean)", "successor(max)",
+                "finger(mean)", "finger(max)", "one-hop(mean)", "one-hop(max)");
+        for (int n = 8; n <= MAX_NODES; n *= 2) {
+            RingSnapshot ring = buildRing(n, random);
+            int[][] fingers = fingers(ring);
+
+            long successorHops = 0, fingerHops = 0, oneHops = 0;
+            int successorMax = 0, fingerMax = 0, oneHopMax = 0;
+            for (int r = 0; r < requests; r++) {
+                int start = random.nextInt(n);
+                long key = random.nextLong();
+                int owner = ring.indexOf(key);
+
+                int hops = (owner - start + n) % n;
+                successorHops += hops;
+                successorMax = Math.max(successorMax, hops);
+
+                hops = routeByFingers(ring, fingers, start, key);
+                fingerHops += hops;
+                fingerMax = Math.max(fingerMax, hops);
+
+                hops = (owner == start) ? 0 : 1;
+                oneHops += hops;
+                oneHopMax = Math.max(oneHopMax, hops);
+            }
+            System.out.printf("%6d %16.2f %16d %14.2f %14d %14.2f %14d%n", n,
+                    (double) successorHops / requests, successorMax,
+                    (double) fingerHops / requests, fingerMax,
+                    (double) oneHops / requests, oneHopMax);
+        }
+    }
+
+    // n distinct random tokens, always including the bootstrap node's 0
+    private static RingSnapshot buildRing(int n, Random random) {
+        NodeInfo[] nodes = new NodeInfo[n];
+        nodes[0] = new NodeInfo(0, "sim", 0);
+        Set<Long> taken = new HashSet<>();
+        taken.add(0L);
+        for (int i = 1; i < n; i++) {
+            long id;
+            do {
+                id = random.nextLong();
+            } while (!taken.add(id));
+            nodes[i] = new NodeInfo(id, "sim", i);
+        }
+        return new RingSnapshot(1, nodes);
+    }
+
+    // Finger b of each node: the index of the owner of its token + 2^b
+    private static int[][] fingers(RingSnapshot ring) {
+        int[][] fingers = new int[ring.size()][Long.SIZE];
+        for (int i = 0; i < ring.size(); i++) {
+            long id = ring.get(i).getId();
+            for (int b = 0; b < Long.SIZE; b++) fingers[i][b] = ring.indexOf(id + (1L << b));
+        }
+        return fingers;
+    }
+
+    // Forwards until the request reaches the key's owner, each to the closest finger preceding the key
+    private static int routeByFingers(RingSnapshot ring, int[][] fingers, int start, long key) {
+        int owner = ring.indexOf(key);
+        int current = start;
+        int hops = 0;
+        while (current != owner) {
+            int next = (current + 1) % ring.size();
+            long id = ring.get(current).getId();
+            for (int b = Long.SIZE - 1; b >= 0; b--) {
+                int finger = fingers[current][b];
+                if (isBetween(ring.get(finger).getId(), id, key)) {
+                    next = finger;
+                    break;
+                }
+            }
+            current = next;
+            hops++;
+        }
+        return hops;
+    }
+
+    // True if token lies strictly inside the clockwise interval (from, to)
+    private static boolean isBetween(long token, long from, long to) {
+        long offset = token - from;
+        return offset != 0 && Long.compareUnsigned(offset, to - from) < 0;
+    }
+}
@@ -0,0 +1,225 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.KeyTransferService;
+import common.KeyValueStore;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.RingSnapshot;
+import common.ServerEngine;
+import common.TokenKeyValueStore;
+import common.WireCodec;
+import nameservers.NameServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Measures how many concurrent in-flight LOOKUPs a NameServer sustains under each server engine.
+ * The node under test does not own the key, so every LOOKUP is forwarded to a downstream stub that
+ * answers after a fixed delay, standing in for a long forwarding chain. All client requests are sent
+ * at once and the benchmark reports how many were answered and how long the burst took.
+ * Usage: java benchmark.InFlightBenchmark [delayMillis] [concurrency...]
+ */
+public class InFlightBenchmark {
+    private static final int STUB_PORT = 9800;
+    private static final int BASE_PORT = 9810;
+
+    public static void main(String[] args) throws Exception {
+        int delay = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        List<Integer> levels = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) levels.add(Integer.parseInt(args[i]));
+        if (levels.isEmpty()) levels = List.of(256, 1024, 4096);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+        if (!ServerEngine.virtualThreadsAvailable())
+            console.println("Note: this JVM has no virtual threads, VIRTUAL runs on a cached platform thread pool");
+
+        Thread stub = new Thread(() -> runDelayedResponder(STUB_PORT, delay));
+        stub.setDaemon(true);
+        stub.start();
+
+        console.printf("%-9s %8s %9s %8s %11s %13s%n", "engine", "inflight", "answered", "failed", "elapsed ms", "live threads");
+        int port = BASE_PORT;
+        for (ServerEngine engine : ServerEngine.values()) {
+            startForwardingNode(port, engine);
+            for (int concurrency : levels) {
+                long start = System.nanoTime();
+                int answered = burst(port, concurrency, delay * 20L + 10000);
+                long elapsed = (System.nanoTime() - start) / 1_000_000;
+                console.printf("%-9s %8d %9d %8d %11d %13d%n", engine, concurrency, answered,
+                        concurrency - answered, elapsed, ManagementFactory.getThreadMXBean().getThreadCount());
+                Thread.sleep(500);
+            }
+            port++;
+        }
+        System.exit(0);
+    }
+
+    // A NameServer owning only tokens 1-100, whose ring gives the rest, key 500 included, to the stub
+    private static void startForwardingNode(int port, ServerEngine engine) throws InterruptedException {
+        KeyValueStore keyValueStore = new TokenKeyValueStore();
+        NameServer nameServer = new NameServer(100, 1, port, "127.0.0.1", 0, keyValueStore,
+                new KeyTransferService(keyValueStore), new ConnectionPool(), engine);
+        nameServer.installRing(new RingSnapshot(1, new NodeInfo[] {
+                new NodeInfo(0, "127.0.0.1", STUB_PORT), new NodeInfo(100, "127.0.0.1", port)}));
+        Thread server = new Thread(nameServer::startServer);
+        server.setDaemon(true);
+        server.start();
+        BenchmarkRing.awaitListening(port);
+    }
+
+    // Open all connections, send one LOOKUP on each, and count replies until all arrive or the timeout passes
+    private static int burst(int port, int concurrency, long timeoutMillis) throws IOException {
+        byte[] request = "LOOKUP 0 0 500\n".getBytes(StandardCharsets.UTF_8);
+        int answered = 0;
+        try (Selector selector = Selector.open()) {
+            List<SocketChannel> channels = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                try {
+                    SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                    channel.write(ByteBuffer.wrap(request));
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ);
+                    channels.add(channel);
+                } catch (IOException e) {
+                    break;      // Connection refused: the node cannot take more
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            int open = channels.size();
+            while (open > 0 && System.currentTimeMillis() < deadline) {
+                selector.select(100);
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    buffer.clear();
+                    int read;
+                    try {
+                        read = ((SocketChannel) key.channel()).read(buffer);
+                    } catch (IOException e) {
+                        read = -1;
+                    }
+                    if (read > 0 && buffer.get(read - 1) == '\n') answered++;
+                    if (read != 0) {
+                        key.cancel();
+                        open--;
+                    }
+                }
+            }
+            for (SocketChannel channel : channels) channel.close();
+        }
+        return answered;
+    }
+
+    /**
+     * Single-threaded stub successor: replies to every binary request frame after the given delay, echoing
+     * its request id, so it can hold any number of requests in flight without a thread per request.
+     */
+    private static void runDelayedResponder(int port, int delayMillis) {
+        PriorityQueue<DueReply> due = new PriorityQueue<>((a, b) -> Long.compare(a.at, b.at));
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 4096);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (true) {
+                long wait = due.isEmpty() ? 0 : Math.max(1, due.peek().at - System.currentTimeMillis());
+                selector.select(wait);
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = server.accept()) != null) {
+                            channel.configureBlocking(false);
+                            channel.register(selector, SelectionKey.OP_READ, new FrameReader());
+                        }
+                    } else if (key.isReadable()) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        buffer.clear();
+                        int read;
+                        try {
+                            read = channel.read(buffer);
+                        } catch (IOException e) {
+                            read = -1;
+                        }
+                        if (read == -1) {
+                            key.cancel();
+                            channel.close();
+                            continue;
+                        }
+                        FrameReader reader = (FrameReader) key.attachment();
+                        for (Message request : reader.feed(buffer, read)) {
+                            byte[] reply = WireCodec.encode(request.reply("value"));
+                            due.add(new DueReply(System.currentTimeMillis() + delayMillis, channel, reply));
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                while (!due.isEmpty() && due.peek().at <= now) {
+                    DueReply reply = due.poll();
+                    if (reply.channel.isOpen()) {
+                        try {
+                            reply.channel.write(ByteBuffer.wrap(reply.frame));
+                        } catch (IOException ignored) { }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Delayed responder failed: " + e.getMessage());
+        }
+    }
+
+    private record DueReply(long at, SocketChannel channel, byte[] frame) {
+    }
+
+    // Decodes complete frames on one stub connection, skipping the leading negotiation byte
+    private static final class FrameReader {
+        private byte[] pending = new byte[256];
+        private int length;
+        private boolean negotiated;
+
+        List<Message> feed(ByteBuffer buffer, int read) {
+            int start = 0;
+            if (!negotiated && read > 0) {
+                negotiated = true;
+                start = 1;
+            }
+            if (length + read > pending.length) pending = Arrays.copyOf(pending, Math.max(pending.length * 2, length + read));
+            for (int i = start; i < read; i++) pending[length++] = buffer.get(i);
+
+            List<Message> frames = new ArrayList<>();
+            int offset = 0;
+            int[] header;
+            while ((header = WireCodec.peekFrameLength(pending, offset, length)) != null
+                    && length - offset - header[1] >= header[0]) {
+                frames.add(WireCodec.decode(pending, offset + header[1], header[0]));
+                offset += header[1] + header[0];
+            }
+            System.arraycopy(pending, offset, pending, 0, length - offset);
+            length -= offset;
+            return frames;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package benchmark;
+
+import common.KeyHash;
+import common.Range;
+import common.RingSnapshot;
+import common.NodeInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hash throughput and placement uniformity of the 64-bit token ring.
+ * Throughput: xxHash64 over keys of several lengths, against Arrays.hashCode as a 32-bit baseline, and
+ * KeyHash.token(String) including the UTF-8 encoding. Uniformity: a chi-square test of 1M sequential keys
+ * ("key0", "key1", ...) over 1024 equal buckets, then the keys per node on rings whose node tokens are
+ * evenly spaced or random. Even spacing shows the hash itself is uniform; random placement shows the
+ * imbalance single tokens per node leave, since each node's share is the gap before it.
+ * Usage: java benchmark.KeyHashBenchmark [keyCount]
+ */
+public class KeyHashBenchmark {
+    private static final int[] KEY_LENGTHS = {8, 16, 64, 256, 1024};
+    private static final int[] RING_SIZES = {4, 16, 64, 256};
+    private static final int BUCKETS = 1024;
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+
+        System.out.printf("%9s %16s %16s %15s%n", "key bytes", "xxHash64 ns/key", "xxHash64 MB/s", "hashCode ns/key");
+        for (int round = 0; round < 2; round++) {       // The first round only warms up the JIT
+            for (int length : KEY_LENGTHS) {
+                byte[][] keys = randomKeys(4096, length);
+                double xx = nanosPerKey(keys, true);
+                double baseline = nanosPerKey(keys, false);
+                if (round == 1) System.out.printf("%9d %16.1f %16.0f %15.1f%n", length, xx, length / xx * 1e3, baseline);
+            }
+        }
+
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) keys[i] = "key" + i;
+        long[] tokens = new long[keyCount];
+        long start = 0;
+        for (int round = 0; round < 3; round++) {       // Only the last round is timed
+            start = System.nanoTime();
+            for (int i = 0; i < keyCount; i++) tokens[i] = KeyHash.token(keys[i]);
+        }
+        System.out.printf("KeyHash.token(String) on %,d short keys: %.1f ns/key%n%n",
+                keyCount, (System.nanoTime() - start) / (double) keyCount);
+
+        long[] buckets = new long[BUCKETS];
+        for (long token : tokens) buckets[(int) (token >>> 54)]++;          // Top 10 bits pick the bucket
+        double expected = (double) keyCount / BUCKETS;
+        double chiSquare = 0;
+        for (long count : buckets) chiSquare += (count - expected) * (count - expected) / expected;
+        // For 1023 degrees of freedom a uniform hash lands within about 1023 +- 2 * sqrt(2 * 1023) = 1023 +- 90
+        System.out.printf("Chi-square over %d buckets: %.1f (uniform: about %d +- 90)%n%n", BUCKETS, chiSquare, BUCKETS - 1);
+
+        System.out.printf("%6s %-8s %12s %10s %12s%n", "nodes", "tokens", "mean keys", "max/mean", "stddev/mean");
+        Random random = new Random(42);
+        for (int n : RING_SIZES) {
+            report(n, "even", load(evenRing(n), tokens));
+            report(n, "random", load(randomRing(n, random), tokens));
+        }
+    }
+
+    private static double nanosPerKey(byte[][] keys, boolean xxHash) {
+        int rounds = Math.max(1, 4_000_000 / keys.length / Math.max(1, keys[0].length / 16));
+        long accumulator = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] key : keys)
+                accumulator += xxHash ? KeyHash.token(key) : Arrays.hashCode(key);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = accumulator;
+        return elapsed / ((double) rounds * keys.length);
+    }
+
+    private static byte[][] randomKeys(int count, int length) {
+        Random random = new Random(length);
+        byte[][] keys = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[length];
+            for (int j = 0; j < length; j++) key[j] = (byte) ('a' + random.nextInt(26));
+            keys[i] = key;
+        }
+        return keys;
+    }
+
+    // Bootstrap node 0 plus n - 1 nodes at evenly spaced tokens
+    private static RingSnapshot evenRing(int n) {
+        NodeInfo[] nodes = new NodeInfo[n];
+        long spacing = Long.divideUnsigned(Range.MAX_TOKEN, n) + 1;
+        for (int i = 0; i < n; i++) nodes[i] = new NodeInfo(spacing * i, "sim", i);
+        return new RingSnapshot(1, nodes);
+    }
+
+    // Bootstrap node 0 plus n - 1 nodes at random tokens, as hashing node names would place them
+    private static RingSnapshot randomRing(int n, Random random) {
+        NodeInfo[] nodes = new NodeInfo[n];
+        nodes[0] = new NodeInfo(0, "sim", 0);
+        for (int i = 1; i < n; i++)
+            nodes[i] = new NodeInfo(KeyHash.token(("node-" + random.nextLong()).getBytes(StandardCharsets.UTF_8)), "sim", i);
+        return new RingSnapshot(1, nodes);
+    }
+
+    private static long[] load(RingSnapshot ring, long[] tokens) {
+        long[] perNode = new long[ring.size()];
+        for (long token : tokens) perNode[ring.ownerOf(token).getPort()]++;     // The port doubles as node index
+        return perNode;
+    }
+
+    private static void report(int n, String placement, long[] perNode) {
+        double mean = Arrays.stream(perNode).average().orElse(0);
+        double max = Arrays.stream(perNode).max().orElse(0);
+        double variance = Arrays.stream(perNode).mapToDouble(c -> (c - mean) * (c - mean)).sum() / perNode.length;
+        System.out.printf("%6d %-8s %12.0f %10.2f %12.3f%n", n, placement, mean, max / mean, Math.sqrt(variance) / mean);
+    }
+}
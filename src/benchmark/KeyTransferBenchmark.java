@@ -0,0 +1,116 @@
+package benchmark;
+
+import common.ConcurrentTokenKeyValueStore;
+import common.KeyTransferService;
+import common.KeyValueStore;
+import common.Range;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Moves a range of 10M keys between two stores over a loopback socket with the streaming transfer
+ * protocol and reports throughput and the peak heap seen during the transfer, which includes both
+ * stores. A second run breaks the connection halfway and resumes after the last acknowledged key.
+ * Usage: java -Xmx4g benchmark.KeyTransferBenchmark [keyCount]
+ */
+public class KeyTransferBenchmark {
+    private static final String VALUE = "value-0123456789";
+
+    public static void main(String[] args) throws Exception {
+        int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+        Range range = new Range(0, Range.MAX_TOKEN);        // The whole ring, keys are hashed all over it
+
+        KeyValueStore source = new ConcurrentTokenKeyValueStore(keyCount, 64);
+        for (int i = 0; i < keyCount; i++) source.insert("key" + i, VALUE);
+        System.out.println("Loaded " + keyCount + " keys, batch " + KeyTransferService.BATCH_SIZE +
+                ", window " + KeyTransferService.WINDOW);
+
+        ConcurrentTokenKeyValueStore target = new ConcurrentTokenKeyValueStore(keyCount, 64);
+        KeyTransferService.Progress progress = new KeyTransferService.Progress();
+        resetPeakHeap();
+        long start = System.nanoTime();
+        transfer(source, target, range, progress, -1);
+        report("full transfer", keyCount, target.size(), start);
+
+        // Abort the first attempt after half of the keys, then resume from the receiver's progress
+        target = new ConcurrentTokenKeyValueStore(keyCount, 64);
+        progress = new KeyTransferService.Progress();
+        resetPeakHeap();
+        start = System.nanoTime();
+        transfer(source, target, range, progress, keyCount / 2);
+        long firstAttempt = progress.getTransferred();
+        transfer(source, target, progress.remainingOf(range), progress, -1);
+        report("resumed after " + firstAttempt, keyCount, target.size(), start);
+    }
+
+    // One transfer attempt; the receiver drops the connection once it has stored abortAfter keys (-1 = never)
+    private static void transfer(KeyValueStore source, KeyValueStore target, Range range,
+                                 KeyTransferService.Progress progress, long abortAfter) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = server.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                    BufferedReader limited = (abortAfter < 0) ? in : new AbortingReader(in, progress, abortAfter);
+                    new KeyTransferService(target).receiveKeyValueRange(limited, out, progress);
+                } catch (IOException e) {
+                    System.out.println("Receiver stopped: " + e.getMessage());
+                }
+            });
+            receiver.start();
+            try (Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                new KeyTransferService(source).sendKeyValueRange(in, out, range, new KeyTransferService.Progress());
+            } catch (IOException e) {
+                System.out.println("Sender stopped: " + e.getMessage());
+            }
+            receiver.join();
+        }
+    }
+
+    private static void report(String name, int keyCount, int received, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-24s %10d keys %8.2f s %12.0f keys/s  peak heap %6d MB%s%n", name, received, seconds,
+                received / seconds, peakHeap() >> 20, received == keyCount ? "" : "  (INCOMPLETE)");
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) pool.resetPeakUsage();
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    // Simulates a dropped connection: reports end of stream once enough keys have been stored
+    private static final class AbortingReader extends BufferedReader {
+        private final KeyTransferService.Progress progress;
+        private final long abortAfter;
+
+        AbortingReader(BufferedReader in, KeyTransferService.Progress progress, long abortAfter) {
+            super(in, 1);
+            this.progress = progress;
+            this.abortAfter = abortAfter;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            return (progress.getTransferred() >= abortAfter) ? null : super.readLine();
+        }
+    }
+}
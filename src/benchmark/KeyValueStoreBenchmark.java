@@ -0,0 +1,78 @@
+package benchmark;
+
+import common.HashMapKeyValueStore;
+import common.KeyValueStore;
+import common.TokenKeyValueStore;
+
+import java.util.function.Supplier;
+
+/**
+ * Compares the HashMap-backed store with the primitive open-addressing store: retained heap per store
+ * and insert / lookup / delete throughput for 1K, 1M and 100M keys. The key strings are built before the
+ * store and all entries share one value string, so the footprint measures the index structure only and the
+ * rates include hashing each key. Sizes that do not fit in the heap are skipped.
+ * Usage: java -Xmx16g benchmark.KeyValueStoreBenchmark [keyCount...]
+ */
+public class KeyValueStoreBenchmark {
+    private static final String VALUE = "value";
+
+    public static void main(String[] args) {
+        long[] sizes = {1_000, 1_000_000, 100_000_000};
+        if (args.length > 0) {
+            sizes = new long[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Long.parseLong(args[i]);
+        }
+
+        System.out.printf("%-10s %-22s %12s %10s %14s %14s %14s%n",
+                "keys", "store", "heap MB", "bytes/key", "insert ops/s", "lookup ops/s", "delete ops/s");
+        for (long size : sizes) {
+            int n = (int) size;
+            run(n, "HashMapKeyValueStore", HashMapKeyValueStore::new, 160);
+            run(n, "TokenKeyValueStore", () -> new TokenKeyValueStore(n), 100);
+        }
+    }
+
+    private static void run(int n, String name, Supplier<KeyValueStore> factory, int estimatedBytesPerKey) {
+        long needed = (long) n * estimatedBytesPerKey;
+        if (needed > Runtime.getRuntime().maxMemory() * 0.8) {
+            System.out.printf("%-10d %-22s skipped, needs about %d MB of heap%n", n, name, needed >> 20);
+            return;
+        }
+
+        String[] keys = new String[n];
+        for (int i = 0; i < n; i++) keys[i] = "key" + i;
+
+        long before = usedHeap();
+        KeyValueStore store = factory.get();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) store.insert(keys[i], VALUE);
+        double insertRate = rate(n, start);
+        long footprint = usedHeap() - before;
+
+        int mask = Integer.highestOneBit(Math.max(1, n)) - 1;
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            if (store.lookup(keys[(i * 0x9E3779B9) & mask]) != null) found++;   // Scattered reads over existing keys
+        }
+        double lookupRate = rate(n, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) store.delete(keys[i]);
+        double deleteRate = rate(n, start);
+
+        System.out.printf("%-10d %-22s %12.1f %10.1f %14.0f %14.0f %14.0f%s%n", n, name,
+                footprint / 1048576.0, (double) footprint / n, insertRate, lookupRate, deleteRate,
+                found == 0 ? " (no hits)" : "");
+    }
+
+    private static double rate(int operations, long startNanos) {
+        return operations / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
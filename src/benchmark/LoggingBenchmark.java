@@ -0,0 +1,102 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.ConcurrentTokenKeyValueStore;
+import common.KeyValueStore;
+import common.Log;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.RingClient;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lookup throughput of a local ring with the servers' logging at INFO, with the per-request lines sampled
+ * one in 100, and off. Clients send lookups to random name servers, which forward those they do not own,
+ * so each lookup logs a few lines on two nodes. The log goes to a file rather than a null stream so the
+ * writes cost what they cost on a redirected console; the file is deleted at the end.
+ * Reports lookups per second, log lines written and records dropped because the buffer was full.
+ * Usage: java benchmark.LoggingBenchmark [seconds] [nodes] [threads]
+ */
+public class LoggingBenchmark {
+    private static final int BOOTSTRAP_PORT = 14000;
+    private static final int KEYS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+
+        PrintStream console = System.out;
+        Path file = Files.createTempFile("logging-benchmark", ".log");
+        System.setOut(new PrintStream(new FileOutputStream(file.toFile()), true));
+
+        Log.setDefaultLevel(Log.Level.OFF);                 // Quiet while the ring starts and fills
+        KeyValueStore[] stores = new KeyValueStore[n + 1];
+        for (int i = 0; i <= n; i++) stores[i] = new ConcurrentTokenKeyValueStore();
+        BenchmarkRing.start(BOOTSTRAP_PORT, stores, 1);
+        RingClient client = new RingClient("127.0.0.1", BOOTSTRAP_PORT, new ConnectionPool());
+        for (int key = 0; key < KEYS; key++) client.insert("key" + key, "value" + key);
+
+        console.printf("%d nodes, %d client threads, %d s per run%n", n + 1, threads, seconds);
+        console.printf("%-14s %12s %14s %10s%n", "logging", "lookups/s", "lines/s", "dropped");
+        Log request = Log.get("request");
+        String[] runs = {"info", "sampled 1/100", "off"};
+        for (String name : runs) {
+            Log.setDefaultLevel(name.equals("off") ? Log.Level.OFF : Log.Level.INFO);
+            request.setSampling(name.startsWith("sampled") ? 100 : 1);
+            run(n, threads, 1);                             // Warm up
+            Log.flush();
+            long linesBefore = countLines(file);
+            long droppedBefore = Log.getDropped();
+            double throughput = run(n, threads, seconds);
+            Log.flush();
+            long lines = countLines(file) - linesBefore;
+            console.printf("%-14s %,12.0f %,14.0f %,10d%n", name, throughput, lines / (double) seconds,
+                    Log.getDropped() - droppedBefore);
+        }
+        Files.deleteIfExists(file);
+        System.exit(0);
+    }
+
+    // Lookups per second of client threads, each with its own connections, sending to random name servers
+    private static double run(int n, int threads, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ConnectionPool pool = new ConnectionPool();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (running.get()) {
+                        NodeInfo entry = new NodeInfo(0, "127.0.0.1", BOOTSTRAP_PORT + 1 + random.nextInt(n));
+                        pool.request(entry, Message.request(NameServerFunctions.LOOKUP, 0, 0, "key" + random.nextInt(KEYS)));
+                        lookups.increment();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        return lookups.sum() / (double) seconds;
+    }
+
+    private static long countLines(Path file) throws IOException {
+        try (var lines = Files.lines(file)) {
+            return lines.count();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package benchmark;
+
+import common.BloomKeyValueStore;
+import common.ConcurrentTokenKeyValueStore;
+import common.ConnectionPool;
+import common.KeyValueStore;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.Range;
+import common.RingClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Latency of lookups for missing keys sent to one entry name server, against the number of nodes, with and
+ * without Bloom filters. Without them the entry node forwards every miss to the key's owner, which answers
+ * it authoritatively; with them the entry node holds a copy of every owner's filter and answers a definite
+ * miss itself. Also reports the latency of hits, the share of misses the filters let through (false
+ * positives plus the entry node's own keys), and how many of a set of keys inserted after the filters were
+ * fetched the entry node then failed to find right after their inserts were answered, and the same for keys
+ * inserted through the entry node (read-your-writes). Fails if any of them was missed. First checks that a
+ * filter sized for a thousand keys keeps its false positives low when a hundred times as many arrive, and
+ * that a range delete clears them.
+ * Usage: java benchmark.MissLatencyBenchmark [nodeCounts,...] [lookups]
+ */
+public class MissLatencyBenchmark {
+    private static final int BASE_PORT = 13000;
+    private static final int KEYS = 20_000;
+    private static final int LATE_KEYS = 1_000;
+
+    private static CountingStore[] stores;             // Of the ring being measured, the bootstrap's first
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = ((args.length > 0) ? args[0] : "2,4,8,16").split(",");
+        int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 20_000;
+
+        checkGrowth();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        console.printf("%d keys, %d lookups per measurement, mean microseconds%n", KEYS, lookups);
+        console.printf("%6s %-8s %10s %10s %14s %16s %18s%n", "nodes", "filters", "hit us", "miss us", "misses passed",
+                "late keys missed", "written keys missed");
+        int run = 0;
+        for (String size : sizes) {
+            int n = Integer.parseInt(size);
+            for (boolean filters : new boolean[] {false, true}) {
+                int bootstrapPort = BASE_PORT + (run++) * 100;
+                startRing(n, bootstrapPort, filters);
+                RingClient client = new RingClient("127.0.0.1", bootstrapPort, new ConnectionPool());
+                for (int key = 0; key < KEYS; key++) client.insert("key" + key, "value" + key);
+                NodeInfo entry = new NodeInfo(0, "127.0.0.1", bootstrapPort + 1);
+                ConnectionPool pool = new ConnectionPool();
+
+                for (int i = 0; i < 2_000; i++) lookup(pool, entry, "warmup" + i);   // Fetches the filters
+                Thread.sleep(500);
+                double hit = measure(pool, entry, "key", KEYS, lookups);
+                long passed = -forwarded();
+                double miss = measure(pool, entry, "missing", Integer.MAX_VALUE, lookups);
+                passed += forwarded();
+
+                // Each insert is answered once every copy of the owner's filter has the key, so no wait is needed
+                for (int key = 0; key < LATE_KEYS; key++) client.insert("late" + key, "value" + key);
+                int lateMissed = 0;
+                for (int key = 0; key < LATE_KEYS; key++) {
+                    if (lookup(pool, entry, "late" + key) == null) lateMissed++;
+                }
+                int writtenMissed = 0;
+                for (int key = 0; key < LATE_KEYS; key++) {
+                    pool.request(entry, Message.request(NameServerFunctions.INSERT, 0, 0, "written" + key, "value" + key));
+                    if (lookup(pool, entry, "written" + key) == null) writtenMissed++;
+                }
+                console.printf("%6d %-8s %10.1f %10.1f %13.1f%% %16d %18d%n", n + 1, filters ? "yes" : "no", hit, miss,
+                        100.0 * passed / lookups, lateMissed, writtenMissed);
+                if (lateMissed + writtenMissed > 0) throw new IllegalStateException("Inserted keys were answered as missing");
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void checkGrowth() {
+        BloomKeyValueStore store = new BloomKeyValueStore(new ConcurrentTokenKeyValueStore(), 1_000);
+        int keys = 100_000;
+        for (int key = 0; key < keys; key++) store.insert("key" + key, "value");
+        int passed = 0;
+        for (int key = 0; key < keys; key++) if (store.mightContain("missing" + key)) passed++;
+        store.deleteRange(new Range(0, Range.MAX_TOKEN));
+        int left = 0;
+        for (int key = 0; key < keys; key++) if (store.mightContain("key" + key)) left++;
+        System.out.printf("filter for 1,000 keys after %,d inserts: %.2f%% false positives, %d keys left after a range delete%n",
+                keys, 100.0 * passed / keys, left);
+        if (passed > keys / 50) throw new IllegalStateException("The filter did not grow with the keys");
+        if (left > keys / 50) throw new IllegalStateException("A range delete left its keys in the filter");
+    }
+
+    // Mean microseconds of lookups of prefix + i for i cycling below keys
+    private static double measure(ConnectionPool pool, NodeInfo entry, String prefix, int keys, int lookups) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) lookup(pool, entry, prefix + (i % keys));
+        return (System.nanoTime() - start) / 1e3 / lookups;
+    }
+
+    private static String lookup(ConnectionPool pool, NodeInfo entry, String key) throws IOException {
+        return pool.request(entry, Message.request(NameServerFunctions.LOOKUP, 0, 0, key)).getValueString();
+    }
+
+    // A ring of n name servers with empty stores, each behind a BloomKeyValueStore if filters are on
+    private static void startRing(int n, int bootstrapPort, boolean filters) throws InterruptedException {
+        stores = new CountingStore[n + 1];
+        KeyValueStore[] wrapped = new KeyValueStore[n + 1];
+        for (int i = 0; i <= n; i++) {
+            stores[i] = new CountingStore();
+            wrapped[i] = filters ? new BloomKeyValueStore(stores[i]) : stores[i];
+        }
+        BenchmarkRing.start(bootstrapPort, wrapped, 1);
+    }
+
+    // Lookups that reached the stores of every node but the entry node
+    private static long forwarded() {
+        long sum = 0;
+        for (int i = 0; i < stores.length; i++) if (i != 1) sum += stores[i].lookups.sum();
+        return sum;
+    }
+}
@@ -0,0 +1,136 @@
+package benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import common.ConcurrentTokenKeyValueStore;
+import common.KeyValueStore;
+import common.OffHeapKeyValueStore;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Load rate, mixed throughput and GC pauses of the heap store against the off-heap store at several data
+ * sizes. Each size is loaded into each store, then client threads run 90% lookups and 10% replacements
+ * (delete and insert a new value, which churns the heap store's values and the off-heap store's segments)
+ * while every stop-the-world GC pause is recorded. The heap store keeps every key and value as objects the
+ * collector traces; the off-heap store keeps only primitive index arrays on the heap.
+ * A size the heap store cannot hold in -Xmx is only run off-heap; the off-heap store needs disk space for
+ * its segment files in java.io.tmpdir and is fastest when they fit in the page cache.
+ * Usage: java -Xmx<heap> benchmark.OffHeapBenchmark [gigabytes,...] [valueBytes] [seconds] [threads]
+ */
+public class OffHeapBenchmark {
+    private static final double HEAP_OVERHEAD = 2.5;    // Heap bytes per data byte for the heap store, about
+
+    private static final LongAdder pauses = new LongAdder();
+    private static final LongAdder pauseMillis = new LongAdder();
+    private static volatile long maxPauseMillis;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = ((args.length > 0) ? args[0] : "1,10,50").split(",");
+        int valueBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        recordPauses();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence compaction logging
+
+        console.printf("%d byte values, %d threads, max heap %d MB%n", valueBytes, threads,
+                Runtime.getRuntime().maxMemory() >> 20);
+        console.printf("%7s %-8s %12s %12s %10s %8s %12s %12s%n", "GB", "store", "loads/s", "ops/s",
+                "heap MB", "pauses", "pause ms", "max pause ms");
+        for (String size : sizes) {
+            double gigabytes = Double.parseDouble(size);
+            int keys = (int) Math.min(Integer.MAX_VALUE - 8, gigabytes * (1L << 30) / valueBytes);
+            for (String name : new String[] {"heap", "offheap"}) {
+                if (name.equals("heap") && gigabytes * (1L << 30) * HEAP_OVERHEAD > Runtime.getRuntime().maxMemory()) {
+                    console.printf("%7s %-8s %12s%n", size, name, "skipped, does not fit in the heap");
+                    continue;
+                }
+                KeyValueStore store = name.equals("heap") ? new ConcurrentTokenKeyValueStore(keys, 64) : new OffHeapKeyValueStore();
+                run(console, size, name, store, keys, valueBytes, seconds, threads);
+                if (store instanceof Closeable) ((Closeable) store).close();
+                store = null;
+                System.gc();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(PrintStream console, String size, String name, KeyValueStore store, int keys,
+                            int valueBytes, int seconds, int threads) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread[] loaders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            loaders[t] = new Thread(() -> {
+                for (int key = first; key < keys; key += threads) store.insert("key" + key, value(key, valueBytes));
+            });
+            loaders[t].start();
+        }
+        for (Thread loader : loaders) loader.join();
+        double loadRate = keys / ((System.nanoTime() - start) / 1e9);
+
+        System.gc();
+        long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        pauses.reset();
+        pauseMillis.reset();
+        maxPauseMillis = 0;
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            clients[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    int key = random.nextInt(keys);
+                    if (random.nextInt(10) == 0) {
+                        store.delete("key" + key);
+                        store.insert("key" + key, value(random.nextInt(), valueBytes));
+                    } else {
+                        store.lookup("key" + key);
+                    }
+                    operations.increment();
+                }
+            });
+            clients[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread client : clients) client.join();
+
+        console.printf("%7s %-8s %,12.0f %,12.0f %,10d %8d %,12d %,12d%n", size, name, loadRate,
+                operations.sum() / (double) seconds, heap >> 20, pauses.sum(), pauseMillis.sum(), maxPauseMillis);
+    }
+
+    // A distinct value per seed, so the heap store cannot share one string between keys
+    private static String value(int seed, int valueBytes) {
+        char[] chars = new char[valueBytes];
+        for (int i = 0; i < valueBytes; i++) chars[i] = (char) ('a' + ((seed + i) & 15));
+        return new String(chars);
+    }
+
+    // Count the stop-the-world pauses reported by every collector; concurrent cycles do not stop the clients
+    private static void recordPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector.getName().contains("Concurrent")) continue;
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                long millis = info.getGcInfo().getDuration();
+                pauses.increment();
+                pauseMillis.add(millis);
+                if (millis > maxPauseMillis) maxPauseMillis = millis;
+            }, null, null);
+        }
+    }
+}
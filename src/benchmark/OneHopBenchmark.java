@@ -0,0 +1,77 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.KeyValueStore;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.RingClient;
+import common.TokenKeyValueStore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lookup latency on local rings of growing size: routed lookups entering at the bootstrap's successor, which
+ * forwards each one to the owner named by its ring snapshot, against the RingClient sending each key straight
+ * to its owner. Routed lookups take two hops for keys the entry node does not own; the one-hop client takes one.
+ * Usage: java benchmark.OneHopBenchmark [secondsPerRing]
+ */
+public class OneHopBenchmark {
+    private static final int BASE_PORT = 10000;
+    private static final int[] RING_SIZES = {4, 16, 64};
+    private static final int KEYS = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        console.printf("%6s %18s %18s%n", "nodes", "routed us/lookup", "one-hop us/lookup");
+        for (int r = 0; r < RING_SIZES.length; r++) {
+            int bootstrapPort = BASE_PORT + r * 100;
+            NodeInfo entry = startRing(RING_SIZES[r], bootstrapPort);
+            ConnectionPool connectionPool = new ConnectionPool();
+            RingClient client = new RingClient("127.0.0.1", bootstrapPort, connectionPool);
+
+            double routed = measure(seconds, key ->
+                    connectionPool.request(entry, Message.request(NameServerFunctions.LOOKUP, 0, 0, key)));
+            double oneHop = measure(seconds, client::lookup);
+            console.printf("%6d %18.1f %18.1f%n", RING_SIZES[r], routed, oneHop);
+        }
+        System.exit(0);
+    }
+
+    // A ring of n name servers whose stores hold the KEYS keys at their owners; returns the entry node
+    private static NodeInfo startRing(int n, int bootstrapPort) throws InterruptedException {
+        KeyValueStore[] stores = new KeyValueStore[n + 1];
+        for (int i = 0; i <= n; i++) stores[i] = new TokenKeyValueStore();
+        BenchmarkRing ring = BenchmarkRing.start(bootstrapPort, stores, 1);
+        for (int key = 0; key < KEYS; key++) stores[ring.ownerOf("key" + key)].insert("key" + key, "value" + key);
+        return ring.node(1);
+    }
+
+    private interface Lookup {
+        Object lookup(String key) throws IOException;
+    }
+
+    // Sequential lookups of random keys; returns the mean latency in microseconds
+    private static double measure(int seconds, Lookup lookup) throws IOException {
+        for (int i = 0; i < 2000; i++) lookup.lookup(randomKey());     // Warm up
+        long count = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            lookup.lookup(randomKey());
+            count++;
+        }
+        return (System.nanoTime() - start) / 1000.0 / count;
+    }
+
+    private static String randomKey() {
+        return "key" + ThreadLocalRandom.current().nextInt(KEYS);
+    }
+}
@@ -0,0 +1,117 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.KeyTransferService;
+import common.KeyValueStore;
+import common.Message;
+import common.MultiplexedConnection;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.Range;
+import common.RingSnapshot;
+import common.ServerEngine;
+import common.TokenKeyValueStore;
+import nameservers.NameServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LOOKUP throughput against pipeline depth on a fixed number of multiplexed connections, per server engine.
+ * Each connection keeps `depth` requests in flight and sends the next one as soon as any reply arrives,
+ * so depth 1 is the old one-request-per-round-trip behaviour.
+ * Also checks that a pipelined request whose handling throws gets an error reply with its request id.
+ * Usage: java benchmark.PipelineBenchmark [connections] [secondsPerDepth] [maxDepth]
+ */
+public class PipelineBenchmark {
+    private static final int BASE_PORT = 9900;
+    private static final String FAILING_KEY = "failing";
+
+    public static void main(String[] args) throws Exception {
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int maxDepth = (args.length > 2) ? Integer.parseInt(args[2]) : 128;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        console.printf("%-9s %6s %14s%n", "engine", "depth", "requests/sec");
+        int port = BASE_PORT;
+        for (ServerEngine engine : ServerEngine.values()) {
+            startNameServer(port, engine);
+            List<MultiplexedConnection> open = new ArrayList<>();
+            for (int c = 0; c < connections; c++)
+                open.add(new MultiplexedConnection("127.0.0.1", port));
+            measure(open, 1, 1);                        // Warm up both sides
+            for (int depth = 1; depth <= maxDepth; depth *= 2)
+                console.printf("%-9s %6d %14.0f%n", engine, depth, measure(open, depth, seconds));
+            checkFailedRequest(open.get(0), engine);
+            for (MultiplexedConnection connection : open)
+                connection.close();
+            port++;
+        }
+        System.exit(0);
+    }
+
+    private static void startNameServer(int port, ServerEngine engine) throws InterruptedException {
+        KeyValueStore keyValueStore = new TokenKeyValueStore() {
+            @Override
+            public String lookup(String key) {
+                if (key.equals(FAILING_KEY)) throw new IllegalStateException("lookup of " + key + " failed");
+                return super.lookup(key);
+            }
+        };
+        for (int key = 0; key <= 1023; key++)
+            keyValueStore.insert(String.valueOf(key), "value" + key);
+        // Not joined to a bootstrap: alone in a hand-made ring snapshot, the node owns every key
+        NameServer nameServer = new NameServer(Range.MAX_TOKEN, 1, port, "127.0.0.1", 0, keyValueStore,
+                new KeyTransferService(keyValueStore), new ConnectionPool(), engine);
+        nameServer.installRing(new RingSnapshot(1, new NodeInfo[] {new NodeInfo(Range.MAX_TOKEN, "127.0.0.1", port)}));
+        Thread server = new Thread(nameServer::startServer);
+        server.setDaemon(true);
+        server.start();
+
+        BenchmarkRing.awaitListening(port);
+    }
+
+    // A lookup the store fails must be answered with an error, well before any timeout
+    private static void checkFailedRequest(MultiplexedConnection connection, ServerEngine engine) throws IOException {
+        String reply = connection.request(Message.request(NameServerFunctions.LOOKUP, 0, 0, FAILING_KEY), 5000).getValueString();
+        if (reply == null || !reply.startsWith("Error handling LOOKUP"))
+            throw new IllegalStateException(engine + " answered a failing pipelined request with " + reply);
+    }
+
+    // One sender thread per connection refills its window of `depth` outstanding requests until the deadline
+    private static double measure(List<MultiplexedConnection> connections, int depth, int seconds)
+            throws InterruptedException {
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> senders = new ArrayList<>();
+        for (MultiplexedConnection connection : connections) {
+            Thread sender = new Thread(() -> {
+                Semaphore window = new Semaphore(depth);
+                while (System.nanoTime() < deadline) {
+                    window.acquireUninterruptibly();
+                    int key = ThreadLocalRandom.current().nextInt(1024);
+                    connection.send(Message.request(NameServerFunctions.LOOKUP, 0, 0, String.valueOf(key)))
+                            .whenComplete((reply, error) -> {
+                                if (error == null) completed.incrementAndGet();
+                                window.release();
+                            });
+                }
+                window.acquireUninterruptibly(depth);   // Drain before the next depth starts
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders)
+            sender.join();
+        return (double) completed.get() / seconds;
+    }
+}
@@ -0,0 +1,153 @@
+package benchmark;
+
+import common.KeyHash;
+import common.NodeInfo;
+import common.Placement;
+import common.PlacementStrategy;
+import common.RingSnapshot;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the placement strategies at 10 to 10,000 equally weighted nodes: time to build the placement and
+ * its ranges, ownerOf through the strategy itself and through a RingSnapshot of the same members (the path
+ * nodes and clients route by: a binary search over the placed ranges), the number of ranges (a RING reply lists the members; every node derives the ranges), the peak
+ * node load over the fair share, and the part of the keys changing owner when a random node joins or a
+ * random node leaves, next to the fair share of one node, the least any placement must move.
+ * Usage: java benchmark.PlacementBenchmark [lookups] [nodes...]
+ */
+public class PlacementBenchmark {
+    private static final int[] NODE_COUNTS = {10, 100, 1000, 10000};
+    private static final String[] PLACEMENTS = {"ring", "ring", "ring 0.25", "jump", "rendezvous", "maglev"};
+    private static final int[] VNODES = {1, 16, 16, 1, 1, 1};
+
+    private static volatile long sink;              // Keeps lookups from being optimized away
+
+    public static void main(String[] args) {
+        int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int[] nodeCounts = NODE_COUNTS;
+        if (args.length > 1) {
+            nodeCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) nodeCounts[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%6s %-12s %7s %9s %11s %11s %8s %10s %8s %8s %7s%n", "nodes", "placement", "vnodes",
+                "build ms", "lookup ns", "snapshot ns", "ranges", "peak/fair", "join", "leave", "fair");
+        for (int n : nodeCounts) {
+            Random random = new Random(42);
+            long[] ids = new long[n + 1];           // The last id is the joining node
+            for (int i = 1; i <= n; i++) ids[i] = random.nextLong();
+            int leaving = 1 + random.nextInt(n - 1);
+            long[] keys = new long[1 << 16];
+            for (int i = 0; i < keys.length; i++) keys[i] = KeyHash.token("key" + random.nextInt());
+
+            for (int s = 0; s < PLACEMENTS.length; s++) {
+                PlacementStrategy strategy = PlacementStrategy.of(PLACEMENTS[s]);
+                double epsilon = PlacementStrategy.epsilonOf(PLACEMENTS[s]);
+                int vnodes = VNODES[s];
+                long[][] ring = ring(ids, n, -1, vnodes);
+
+                long start = System.nanoTime();
+                Placement placement = strategy.build(ring[0], ring[1], epsilon);
+                long[] entries = placement.entries();
+                double buildMs = (System.nanoTime() - start) / 1e6;
+
+                // The strategy's own lookup costs O(n) for rendezvous; fewer lookups keep large rings quick
+                int count = (strategy == PlacementStrategy.RENDEZVOUS) ? Math.max(1000, lookups / n) : lookups;
+                double lookupNs = lookupNs(placement, keys, count);
+                double snapshotNs = snapshotNs(snapshot(ring, strategy, epsilon), keys, lookups);
+
+                double[] load = new double[n];
+                for (int k = 0; k < entries.length; k += 2) load[(int) entries[k + 1]] += size(entries, k / 2) / 0x1p64;
+                double peak = Arrays.stream(load).max().getAsDouble() * n;
+
+                long[][] joined = ring(ids, n + 1, -1, vnodes);
+                double join = moved(entries, strategy.build(joined[0], joined[1], epsilon).entries());
+                long[][] left = ring(ids, n, leaving, vnodes);
+                double leave = moved(entries, strategy.build(left[0], left[1], epsilon).entries());
+
+                System.out.printf("%6d %-12s %7d %9.1f %11.1f %11.1f %8d %10.2f %7.2f%% %7.2f%% %6.2f%%%n", n,
+                        PLACEMENTS[s], vnodes, buildMs, lookupNs, snapshotNs, entries.length / 2, peak,
+                        join * 100, leave * 100, 100.0 / n);
+            }
+        }
+    }
+
+    // Tokens and owners of the first n nodes but 'skip', ascending in unsigned token order; the owner is the node index
+    private static long[][] ring(long[] ids, int n, int skip, int vnodes) {
+        long[][] members = new long[(n - (skip >= 0 ? 1 : 0)) * vnodes][];
+        int m = 0;
+        for (int node = 0; node < n; node++) {
+            if (node == skip) continue;
+            for (long token : KeyHash.vnodeTokens(ids[node], vnodes)) members[m++] = new long[] {token, node};
+        }
+        Arrays.sort(members, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        long[][] ring = new long[2][members.length];
+        for (int i = 0; i < members.length; i++) {
+            ring[0][i] = members[i][0];
+            ring[1][i] = members[i][1];
+        }
+        return ring;
+    }
+
+    private static double lookupNs(Placement placement, long[] keys, int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) sum += placement.ownerOf(keys[i & (keys.length - 1)]);      // Warm up
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) sum += placement.ownerOf(keys[i & (keys.length - 1)]);
+        long elapsed = System.nanoTime() - start;
+        sink = sum;
+        return (double) elapsed / count;
+    }
+
+    // The snapshot a node would build from a RING reply listing these members, one address per node
+    private static RingSnapshot snapshot(long[][] ring, PlacementStrategy strategy, double epsilon) {
+        NodeInfo[] members = new NodeInfo[ring[0].length];
+        for (int i = 0; i < members.length; i++) members[i] = new NodeInfo(ring[0][i], "node" + ring[1][i], 1);
+        return new RingSnapshot(1, members, strategy, epsilon);
+    }
+
+    private static double snapshotNs(RingSnapshot snapshot, long[] keys, int count) {
+        long sum = 0;
+        long start = 0;
+        for (int round = 0; round < 2; round++) {           // The first round warms up
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) sum += snapshot.ownerOf(keys[i & (keys.length - 1)]).getId();
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = sum;
+        return (double) elapsed / count;
+    }
+
+    // Share of the token space whose owner differs between two placements, walking both range lists at once
+    private static double moved(long[] before, long[] after) {
+        double moved = 0;
+        long position = 0;              // Start of the piece being compared
+        int b = 0, a = 0;
+        while (true) {
+            long endBefore = before[2 * b], endAfter = after[2 * a];
+            // Past the last entry, the first one owns the tokens up to the top
+            if (Long.compareUnsigned(endBefore, position) < 0) endBefore = -1L;
+            if (Long.compareUnsigned(endAfter, position) < 0) endAfter = -1L;
+            long end = (Long.compareUnsigned(endBefore, endAfter) <= 0) ? endBefore : endAfter;
+            if (before[2 * b + 1] != after[2 * a + 1]) {
+                long span = end - position;
+                moved += ((span < 0) ? span + 0x1p64 : span) + 1;
+            }
+            if (end == -1L) break;
+            position = end + 1;
+            if (end == endBefore) b = (b + 1) % (before.length / 2);
+            if (end == endAfter) a = (a + 1) % (after.length / 2);
+        }
+        return moved / 0x1p64;
+    }
+
+    // Size of the k-th range, from the previous entry's token (exclusive) to its own
+    private static double size(long[] entries, int k) {
+        int ranges = entries.length / 2;
+        if (ranges == 1) return 0x1p64;
+        long span = entries[2 * k] - entries[2 * ((k + ranges - 1) % ranges)] - 1;
+        return ((span < 0) ? span + 0x1p64 : span) + 1;
+    }
+}
@@ -0,0 +1,118 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.RingClient;
+import common.TokenKeyValueStore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency distribution of lookups and inserts for each read quorum R and write quorum W on a local ring keeping
+ * 3 replicas of every key. One name server stalls for a moment on a small part of its operations, as a node
+ * does in a GC pause or on a slow disk: an operation waiting for all 3 replicas waits for every stall of the
+ * straggler it involves, while one answered by the first 1 or 2 replicas goes around it. Lookups go to a random
+ * replica, which reads from the others when R > 1; inserts go to the owner, which answers once W replicas
+ * have the key.
+ * Usage: java benchmark.QuorumLatencyBenchmark [operationsPerSetting] [nodes] [stallMicros] [stallPercent]
+ */
+public class QuorumLatencyBenchmark {
+    private static final int BASE_PORT = 12000;
+    private static final int REPLICAS = 3;
+    private static final int KEYS = 2048;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    public static void main(String[] args) throws Exception {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int stallMicros = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+        double stallPercent = (args.length > 3) ? Double.parseDouble(args[3]) : 5;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        TokenKeyValueStore[] stores = new TokenKeyValueStore[n + 1];
+        for (int i = 0; i < n; i++) stores[i] = new TokenKeyValueStore();
+        stores[n] = new StallingStore(stallMicros * 1000L, stallPercent / 100);    // The last name server stalls
+        BenchmarkRing.start(BASE_PORT, stores, REPLICAS);
+        RingClient client = new RingClient("127.0.0.1", BASE_PORT, new ConnectionPool());
+        for (int key = 0; key < KEYS; key++) client.insert("key" + key, "value" + key);
+
+        console.printf("%d nodes, %d replicas, one node stalls %d us on %.1f%% of its operations%n", n + 1, REPLICAS,
+                stallMicros, stallPercent);
+        console.printf("%-10s %9s %9s %9s %9s %9s %9s%n", "operation", "mean us", "p50", "p90", "p99", "p99.9", "max");
+        for (int quorum = 1; quorum <= REPLICAS; quorum++) {
+            int r = quorum;
+            report(console, "lookup R=" + r, measure(operations, () -> client.lookup(randomKey(), r)));
+        }
+        int[] inserted = {0};                           // Inserts only add absent keys, so each one is new
+        for (int quorum = 1; quorum <= REPLICAS; quorum++) {
+            int w = quorum;
+            report(console, "insert W=" + w, measure(operations, () -> client.insert("new" + inserted[0]++, "value", w)));
+        }
+        System.exit(0);
+    }
+
+    private interface Operation {
+        Object run() throws IOException;
+    }
+
+    // Latency of each sequential operation in nanoseconds, after a warm-up
+    private static long[] measure(int operations, Operation operation) throws IOException {
+        for (int i = 0; i < operations / 10; i++) operation.run();
+        long[] latencies = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static void report(PrintStream console, String name, long[] sorted) {
+        StringBuilder line = new StringBuilder(String.format("%-10s %9.1f", name,
+                Arrays.stream(sorted).average().orElse(0) / 1000));
+        for (double percentile : PERCENTILES) {
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+            line.append(String.format(" %9.1f", sorted[Math.max(0, index)] / 1000.0));
+        }
+        line.append(String.format(" %9.1f", sorted[sorted.length - 1] / 1000.0));
+        console.println(line);
+    }
+
+    private static String randomKey() {
+        return "key" + ThreadLocalRandom.current().nextInt(KEYS);
+    }
+
+    // A store that stalls on a part of its operations
+    private static final class StallingStore extends TokenKeyValueStore {
+        private final long stallNanos;
+        private final double stallChance;
+
+        StallingStore(long stallNanos, double stallChance) {
+            this.stallNanos = stallNanos;
+            this.stallChance = stallChance;
+        }
+
+        @Override
+        public String lookup(String key) {
+            stall();
+            return super.lookup(key);
+        }
+
+        @Override
+        public int insert(String key, String value) {
+            stall();
+            return super.insert(key, value);
+        }
+
+        private void stall() {
+            if (ThreadLocalRandom.current().nextDouble() < stallChance) LockSupport.parkNanos(stallNanos);
+        }
+    }
+}
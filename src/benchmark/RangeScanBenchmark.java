@@ -0,0 +1,96 @@
+package benchmark;
+
+import common.ConcurrentTokenKeyValueStore;
+import common.HashMapKeyValueStore;
+import common.KeyHash;
+import common.KeyValueStore;
+import common.OffHeapKeyValueStore;
+import common.Range;
+import common.TokenKeyValueStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Cost of range operations on many narrow slices, as a transfer or a replica cleanup sends them for a node
+ * with many virtual nodes: forEachInRange and deleteRange over SLICES slices that together hold a sixteenth of
+ * the keys, per store. The stores keep their keys in token order, so each call should cost about the keys of
+ * its slice, not the keys of the store. Before measuring, checks each store against a plain map over random
+ * ranges, wrapping ones included, after random deletes, and fails if a range misses, repeats or misorders a key.
+ * Usage: java benchmark.RangeScanBenchmark [keyCount]
+ */
+public class RangeScanBenchmark {
+    private static final int SLICES = 4096;
+    private static final int CHECKED_RANGES = 500;
+
+    public static void main(String[] args) {
+        int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 500_000;
+        System.out.printf("%d keys, %d slices holding 1/16 of them%n", keyCount, SLICES);
+        System.out.printf("%-30s %12s %14s %14s %14s%n", "store", "keys in", "visit ms", "delete ms", "ns/key");
+        run("HashMapKeyValueStore", HashMapKeyValueStore::new, keyCount);
+        run("TokenKeyValueStore", () -> new TokenKeyValueStore(keyCount), keyCount);
+        run("ConcurrentTokenKeyValueStore", () -> new ConcurrentTokenKeyValueStore(keyCount, 64), keyCount);
+        run("OffHeapKeyValueStore", OffHeapKeyValueStore::new, keyCount);
+    }
+
+    private static void run(String name, Supplier<KeyValueStore> factory, int keyCount) {
+        KeyValueStore store = factory.get();
+        Map<String, String> reference = new HashMap<>();
+        for (int i = 0; i < keyCount; i++) {
+            store.insert("key" + i, "value" + i);
+            reference.put("key" + i, "value" + i);
+        }
+        check(name, store, reference, new Random(7));
+
+        // Slices spread evenly over the ring, each 1/16 of the gap between two slice starts
+        long step = Long.divideUnsigned(Range.MAX_TOKEN, SLICES);
+        List<Range> slices = new ArrayList<>();
+        for (int i = 0; i < SLICES; i++) slices.add(new Range(step * i, step * i + step / 16));
+
+        List<String> visited = new ArrayList<>();
+        long start = System.nanoTime();
+        for (Range slice : slices) store.forEachInRange(slice, (token, key, value) -> visited.add(key));
+        double visitMillis = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        long deleted = 0;
+        for (Range slice : slices) deleted += store.deleteRange(slice);
+        double deleteMillis = (System.nanoTime() - start) / 1e6;
+        if (deleted != visited.size()) throw new IllegalStateException(name + " deleted " + deleted + " of " + visited.size() + " keys in the slices");
+        for (String key : visited) reference.remove(key);
+        check(name, store, reference, new Random(11));
+
+        System.out.printf("%-30s %12d %14.1f %14.1f %14.0f%n", name, visited.size(), visitMillis, deleteMillis,
+                (visitMillis + deleteMillis) * 1e6 / Math.max(1, visited.size()));
+    }
+
+    // Random deletes, then random ranges compared key by key, in order, with the reference map
+    private static void check(String name, KeyValueStore store, Map<String, String> reference, Random random) {
+        List<String> keys = new ArrayList<>(reference.keySet());
+        for (int i = 0; i < keys.size() / 100; i++) {
+            String key = keys.get(random.nextInt(keys.size()));
+            if ((store.delete(key) == 0) != (reference.remove(key) != null))
+                throw new IllegalStateException(name + " disagrees on deleting " + key);
+        }
+        for (int i = 0; i < CHECKED_RANGES; i++) {
+            long from = random.nextLong();
+            Range range = new Range(from, from + (random.nextLong() >>> (random.nextInt(64))));
+            List<String> expected = new ArrayList<>();
+            for (Map.Entry<String, String> entry : reference.entrySet()) {
+                if (range.contains(KeyHash.token(entry.getKey()))) expected.add(entry.getKey());
+            }
+            expected.sort((a, b) -> Long.compareUnsigned(KeyHash.token(a), KeyHash.token(b)));
+            List<String> found = new ArrayList<>();
+            store.forEachInRange(range, (token, key, value) -> {
+                if (token != KeyHash.token(key) || !value.equals(reference.get(key)))
+                    throw new IllegalStateException(name + " returned a wrong entry for " + key);
+                found.add(key);
+            });
+            if (!found.equals(expected))
+                throw new IllegalStateException(name + " returned " + found.size() + " keys for " + range + ", expected " + expected.size());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.ReadCache;
+import common.RingClient;
+import nameservers.NameServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Zipf-skewed lookups through one entry name server, without a read cache and with an LRU and a W-TinyLFU
+ * cache holding 1% of the keys. Clients send every lookup to the entry node, which forwards the ones it does
+ * not hold to their owner unless its cache has them; a share of the requests are writes (a delete and an
+ * insert at the owner through the RingClient), so the owners send invalidations back to the entry node.
+ * Every tenth lookup is for a key read once and never again, the kind of scan LRU admits at the hot keys'
+ * expense. Reports the throughput, the cache's hit ratio, evictions and invalidations, and the share of
+ * lookups that still reached another node. Checks that the owners send no invalidations to an entry node
+ * without a cache.
+ * Usage: java benchmark.ReadCacheBenchmark [secondsPerRun] [nodes] [threads] [writePercent]
+ */
+public class ReadCacheBenchmark {
+    private static final int BASE_PORT = 12000;
+    private static final int KEYS = 100_000;
+    private static final int CAPACITY = KEYS / 100;
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int writePercent = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+        double[] zipf = zipfCumulative(KEYS, ZIPF_EXPONENT);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        console.printf("%d nodes, %d keys, %d cache entries, %d client threads, %d%% writes%n", n + 1, KEYS,
+                CAPACITY, threads, writePercent);
+        console.printf("%-9s %12s %10s %11s %14s %18s%n", "cache", "requests/s", "hit ratio", "evictions",
+                "invalidations", "forwarded share");
+        String[] runs = {"none", "lru", "tiny-lfu"};
+        for (int r = 0; r < runs.length; r++) {
+            int bootstrapPort = BASE_PORT + r * 100;
+            ReadCache cache = runs[r].equals("none") ? null : new ReadCache(CAPACITY, ReadCache.Eviction.of(runs[r]));
+            CountingStore[] stores = new CountingStore[n + 1];
+            for (int i = 0; i <= n; i++) stores[i] = new CountingStore();
+            NameServer entry = BenchmarkRing.start(bootstrapPort, stores, 1, cache).server(1);
+            RingClient client = new RingClient("127.0.0.1", bootstrapPort, new ConnectionPool());
+            for (int key = 0; key < KEYS; key++) client.insert("key" + key, "value" + key);
+
+            for (CountingStore store : stores) store.lookups.reset();
+            LongAdder lookups = new LongAdder();
+            double throughput = run(client, new NodeInfo(0, "127.0.0.1", bootstrapPort + 1), zipf, threads,
+                    seconds, writePercent, lookups);
+            long forwarded = 0;
+            for (int i = 0; i <= n; i++) if (i != 1) forwarded += stores[i].lookups.sum();
+            ReadCache used = entry.getReadCache();
+            console.printf("%-9s %,12.0f %9.1f%% %,11d %,14d %17.1f%%%n", runs[r], throughput,
+                    (used == null) ? 0 : used.getHitRatio() * 100, (used == null) ? 0 : used.getEvictions(),
+                    (used == null) ? 0 : used.getInvalidations(), 100.0 * forwarded / Math.max(1, lookups.sum()));
+            if (cache == null) checkNoInvalidations(new NodeInfo(0, "127.0.0.1", bootstrapPort + 1));
+        }
+        System.exit(0);
+    }
+
+    // Requests per second from client threads: lookups at the entry node, writes through the ring client
+    private static double run(RingClient client, NodeInfo entry, double[] zipf, int threads, int seconds,
+                              int writePercent, LongAdder lookups) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder requests = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ConnectionPool pool = new ConnectionPool();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long scanned = KEYS;
+                try {
+                    while (running.get()) {
+                        String key = "key" + sample(zipf);
+                        if (random.nextInt(100) < writePercent) {
+                            client.delete(key);
+                            client.insert(key, "value" + random.nextInt());
+                        } else {
+                            if (random.nextInt(10) == 0) key = "scan" + Thread.currentThread().getId() + "-" + scanned++;
+                            pool.request(entry, Message.request(NameServerFunctions.LOOKUP, 0, 0, key));
+                            lookups.increment();
+                        }
+                        requests.increment();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        return requests.sum() / (double) seconds;
+    }
+
+    // The entry node's STATS list every command it served; INVALIDATE must not be among them
+    private static void checkNoInvalidations(NodeInfo entry) throws IOException {
+        String report = new ConnectionPool().request(entry, Message.request(NameServerFunctions.STATS, 0, 0)).getValueString();
+        if (report.contains(NameServerFunctions.INVALIDATE + ":"))
+            throw new IllegalStateException("Owners sent invalidations to an entry node without a cache: " + report);
+    }
+
+    // Cumulative probabilities of ranks 0..keys-1, rank k having weight 1 / (k + 1)^exponent
+    private static double[] zipfCumulative(int keys, double exponent) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int k = 0; k < keys; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < keys; k++) cumulative[k] /= sum;
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative) {
+        int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return Math.min((index >= 0) ? index : -index - 1, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,76 @@
+package benchmark;
+
+import common.ConcurrentTokenKeyValueStore;
+import common.DurableKeyValueStore;
+import common.FsyncPolicy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Restart time of a durable store holding many keys, recovering once by replaying the whole write-ahead log
+ * and once from a snapshot, and the size on disk of each. The keys are written from several threads under
+ * NEVER, which logs them exactly as ALWAYS would, only faster.
+ * 10 million keys take a few GB of heap; pass -Xmx accordingly or fewer keys.
+ * Usage: java benchmark.RecoveryBenchmark [keys] [dataDir]
+ */
+public class RecoveryBenchmark {
+    private static final int WRITERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+        Path directory = (args.length > 1) ? Path.of(args[1]) : Files.createTempDirectory("recovery-benchmark");
+
+        DurableKeyValueStore store = open(directory);
+        long start = System.nanoTime();
+        Thread[] writers = new Thread[WRITERS];
+        for (int t = 0; t < WRITERS; t++) {
+            int first = t;
+            writers[t] = new Thread(() -> {
+                for (int key = first; key < keys; key += WRITERS) store.insert("key" + key, "value" + key);
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) writer.join();
+        store.close();
+        System.out.printf("%,d keys written in %.1f s%n", keys, (System.nanoTime() - start) / 1e9);
+
+        System.out.printf("%-9s %12s %12s %12s%n", "recovery", "seconds", "keys", "MB on disk");
+        long logBytes = size(directory);
+        DurableKeyValueStore fromLog = measure("log", directory, logBytes);
+        fromLog.snapshot();
+        fromLog.close();
+        DurableKeyValueStore fromSnapshot = measure("snapshot", directory, size(directory));
+        fromSnapshot.close();
+        delete(directory);
+        System.exit(0);
+    }
+
+    private static DurableKeyValueStore measure(String name, Path directory, long bytes) throws IOException {
+        System.gc();
+        long start = System.nanoTime();
+        DurableKeyValueStore store = open(directory);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-9s %12.2f %,12d %12.1f%n", name, seconds, store.getRecoveredKeys(), bytes / 1e6);
+        return store;
+    }
+
+    private static DurableKeyValueStore open(Path directory) throws IOException {
+        return new DurableKeyValueStore(new ConcurrentTokenKeyValueStore(), directory, FsyncPolicy.NEVER, Long.MAX_VALUE);
+    }
+
+    private static long size(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+        }
+    }
+}
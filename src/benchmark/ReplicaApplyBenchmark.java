@@ -0,0 +1,126 @@
+package benchmark;
+
+import common.BloomKeyValueStore;
+import common.ConcurrentTokenKeyValueStore;
+import common.KeyValueStore;
+import common.KeyVersions;
+import common.Message;
+import common.Replicator;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static common.NameServerFunctions.REPLICATE;
+
+/**
+ * What a replica's readers see while it applies an owner's REPLICATE batches, and what its version stamps
+ * cost. A writer thread applies batches that give every key a new value with a newer stamp, as an owner's
+ * updates do, while reader threads look the keys up: each lookup should find the old value or the new one,
+ * never a miss. Then deletes are stamped for many keys and the stamps left after the tombstone grace period
+ * are counted, which should be about none. Last, one key's write is held up, as a slow fsync would, while
+ * another key is written. Fails if a reader missed a key, the tombstones stayed or the other write waited.
+ * Usage: java benchmark.ReplicaApplyBenchmark [seconds] [readers]
+ */
+public class ReplicaApplyBenchmark {
+    private static final int KEYS = 10_000;
+    private static final int BATCH = 100;
+    private static final int DELETES = 200_000;
+    private static final long GRACE_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int readers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+        KeyValueStore store = new BloomKeyValueStore(new ConcurrentTokenKeyValueStore());
+        Replicator replicator = new Replicator(store, null, 0, 0);
+        for (int key = 0; key < KEYS; key++) store.insert("key" + key, "value0");
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        LongAdder misses = new LongAdder();
+        Thread[] threads = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                for (int i = first; running.get(); i = (i + 7) % KEYS) {
+                    if (store.lookup("key" + i) == null) misses.increment();
+                    lookups.increment();
+                }
+            });
+            threads[t].start();
+        }
+        long applied = 0;
+        long stamp = System.currentTimeMillis() << 12;
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int round = 1; System.nanoTime() < end; round++) {
+            for (int from = 0; from < KEYS; from += BATCH) {
+                String[] keys = new String[BATCH];
+                String[] values = new String[BATCH];
+                long[] stamps = new long[BATCH];
+                for (int j = 0; j < BATCH; j++) {
+                    keys[j] = "key" + (from + j);
+                    values[j] = "value" + round;
+                    stamps[j] = ++stamp;
+                }
+                replicator.apply(Message.batch(REPLICATE, 0, 0, keys, values).withTokens(stamps));
+                applied += BATCH;
+            }
+        }
+        running.set(false);
+        for (Thread thread : threads) thread.join();
+        System.out.printf("%,d overwrites applied, %,d lookups, %d missed%n", applied, lookups.sum(), misses.sum());
+
+        KeyVersions versions = new KeyVersions(GRACE_MILLIS);
+        for (int key = 0; key < DELETES; key++) versions.stamp("gone" + key, true, () -> true);
+        int held = versions.size();
+        Thread.sleep(2 * GRACE_MILLIS);
+        versions.stamp("last", true, () -> true);   // Expiry runs with the writes
+        System.out.printf("%,d deletes stamped: %,d stamps held, %,d after the grace period%n", DELETES, held, versions.size());
+
+        if (misses.sum() > 0) throw new IllegalStateException(misses.sum() + " lookups missed a key being overwritten");
+        if (versions.size() > 1) throw new IllegalStateException(versions.size() + " tombstones outlived the grace period");
+        checkSlowWrite();
+    }
+
+    // The other key lands in the same bin of the stamp map, which a write run inside the map's update would hold
+    private static void checkSlowWrite() throws InterruptedException {
+        KeyVersions versions = new KeyVersions();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread slow = new Thread(() -> versions.stamp("slow", false, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }));
+        slow.start();
+        started.await();
+        String other = sameBin("slow");
+        long start = System.nanoTime();
+        Thread fast = new Thread(() -> versions.stamp(other, false, () -> true));
+        fast.start();
+        fast.join(1000);
+        boolean waited = fast.isAlive();
+        release.countDown();
+        slow.join();
+        fast.join();
+        System.out.printf("write of %s while %s was being written: %.1f ms%n", other, "slow", (System.nanoTime() - start) / 1e6);
+        if (waited) throw new IllegalStateException("A write waited for a slow write of another key");
+    }
+
+    // A key whose hash picks the same bin as key's in a new ConcurrentHashMap of 16 bins
+    private static String sameBin(String key) {
+        for (int i = 0; ; i++) {
+            String candidate = "key" + i;
+            if ((spread(candidate.hashCode()) & 15) == (spread(key.hashCode()) & 15)) return candidate;
+        }
+    }
+
+    private static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) & 0x7fffffff;
+    }
+}
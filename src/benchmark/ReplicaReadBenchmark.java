@@ -0,0 +1,106 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.RingClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Zipf-skewed lookups on local rings keeping 1, 2 and 3 replicas of every key. The keys are inserted through
+ * the RingClient, so each owner copies them to its replicas, then client threads look up keys drawn with
+ * exponent 0.99, which the client sends to a random replica. Reports the throughput and the share of all
+ * lookups served by the busiest node: with one copy the node owning the hottest keys serves most of them,
+ * and since a node serves a bounded number of lookups per second, the busiest node's share bounds the ring's
+ * throughput. The projected speedup is the busiest share without replication over the busiest share with it.
+ * All nodes run in this process, so measured throughput only follows the projection on a machine with a
+ * core per node; on fewer cores compare the shares.
+ * Usage: java benchmark.ReplicaReadBenchmark [secondsPerRing] [nodes] [threads]
+ */
+public class ReplicaReadBenchmark {
+    private static final int BASE_PORT = 11000;
+    private static final int[] REPLICAS = {1, 2, 3};
+    private static final int KEYS = 10_000;
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        double[] zipf = zipfCumulative(KEYS, ZIPF_EXPONENT);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        console.printf("%d nodes, %d client threads, %d cores%n", n + 1, threads, Runtime.getRuntime().availableProcessors());
+        console.printf("%9s %14s %14s %10s %18s%n", "replicas", "lookups/s", "busiest share", "fair", "projected speedup");
+        double busiestWithoutCopies = 0;
+        for (int r = 0; r < REPLICAS.length; r++) {
+            int bootstrapPort = BASE_PORT + r * 100;
+            CountingStore[] stores = new CountingStore[n + 1];
+            for (int i = 0; i <= n; i++) stores[i] = new CountingStore();
+            BenchmarkRing.start(bootstrapPort, stores, REPLICAS[r]);
+            RingClient client = new RingClient("127.0.0.1", bootstrapPort, new ConnectionPool());
+            for (int key = 0; key < KEYS; key++) client.insert("key" + key, "value" + key);
+
+            for (CountingStore store : stores) store.lookups.reset();
+            double throughput = run(client, zipf, threads, seconds);
+            long total = 0, busiest = 0;
+            for (CountingStore store : stores) {
+                total += store.lookups.sum();
+                busiest = Math.max(busiest, store.lookups.sum());
+            }
+            double share = (double) busiest / Math.max(1, total);
+            if (REPLICAS[r] == 1) busiestWithoutCopies = share;
+            console.printf("%9d %,14.0f %13.1f%% %9.1f%% %17.2fx%n", REPLICAS[r], throughput, share * 100,
+                    100.0 / (n + 1), busiestWithoutCopies / share);
+        }
+        System.exit(0);
+    }
+
+    // Lookups per second from client threads drawing keys from the Zipf distribution
+    private static double run(RingClient client, double[] zipf, int threads, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        client.lookup("key" + sample(zipf));
+                        lookups.increment();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        return lookups.sum() / (double) seconds;
+    }
+
+    // Cumulative probabilities of ranks 0..keys-1, rank k having weight 1 / (k + 1)^exponent
+    private static double[] zipfCumulative(int keys, double exponent) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int k = 0; k < keys; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < keys; k++) cumulative[k] /= sum;
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative) {
+        int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return Math.min((index >= 0) ? index : -index - 1, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,152 @@
+package benchmark;
+
+import bootstrap.bootstrapUtil.RingManager;
+import common.KeyHash;
+import common.NodeInfo;
+import common.PlacementStrategy;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Owner lookups per second while nodes keep joining and leaving. Reader threads look up random key tokens
+ * as the bootstrap does for every request, while one writer thread removes a random node and adds it back
+ * as fast as it can. RingManager readers binary-search the current immutable snapshot without locking; the
+ * locked TreeMap is the layout the bootstrap used before, where readers and writers share one monitor.
+ * Also reports the bytes the readers allocate per lookup, which should be 0 for the snapshot.
+ * Usage: java benchmark.RingChurnBenchmark [secondsPerRun] [nodes] [vnodes]
+ */
+public class RingChurnBenchmark {
+    private static final int[] READERS = {1, 2, 4};
+    private static final int KEYS = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int vnodes = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence the range printout per change
+
+        Random random = new Random(42);
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) ids[i] = random.nextLong();
+        long[] keys = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) keys[i] = KeyHash.token("key" + i);
+
+        console.printf("%d nodes with %d tokens each, %d cores%n", n, vnodes, Runtime.getRuntime().availableProcessors());
+        console.printf("%-14s %8s %7s %16s %14s %14s%n", "ring", "readers", "churn", "lookups/s", "changes/s", "bytes/lookup");
+        for (int readers : READERS) {
+            for (boolean churn : new boolean[] {false, true}) {
+                RingManager ringManager = new RingManager(0, KeyHash.vnodeTokens(0, vnodes), PlacementStrategy.RING, 0);
+                LockedRing lockedRing = new LockedRing();
+                for (long token : KeyHash.vnodeTokens(0, vnodes)) lockedRing.add(token, 0);
+                for (long id : ids) {
+                    long[] tokens = KeyHash.vnodeTokens(id, vnodes);
+                    ringManager.addNode(new NodeInfo(id, "127.0.0.1", 1), tokens);
+                    for (long token : tokens) lockedRing.add(token, id);
+                }
+
+                Ring snapshotRing = new Ring() {
+                    public long ownerOf(long token) {
+                        return ringManager.findSuccessor(token).getPort();
+                    }
+                    public void churn(long id) {
+                        ringManager.removeNode(id);
+                        ringManager.addNode(new NodeInfo(id, "127.0.0.1", 1), KeyHash.vnodeTokens(id, vnodes));
+                    }
+                };
+                Ring treeRing = new Ring() {
+                    public long ownerOf(long token) {
+                        return lockedRing.ownerOf(token);
+                    }
+                    public void churn(long id) {
+                        long[] tokens = KeyHash.vnodeTokens(id, vnodes);
+                        for (long token : tokens) lockedRing.remove(token);
+                        for (long token : tokens) lockedRing.add(token, id);
+                    }
+                };
+                report(console, "snapshot", run(snapshotRing, readers, churn, seconds, ids, keys), readers, churn);
+                report(console, "locked TreeMap", run(treeRing, readers, churn, seconds, ids, keys), readers, churn);
+            }
+        }
+        System.setOut(console);
+    }
+
+    private interface Ring {
+        long ownerOf(long token);
+        void churn(long id);            // The node leaves and joins again
+    }
+
+    // Owners by token behind one monitor, as the bootstrap's managers kept them before snapshots
+    private static final class LockedRing {
+        private final TreeMap<Long, Long> owners = new TreeMap<>(Long::compareUnsigned);
+
+        synchronized void add(long token, long owner) {
+            owners.put(token, owner);
+        }
+
+        synchronized void remove(long token) {
+            owners.remove(token);
+        }
+
+        synchronized long ownerOf(long token) {
+            Map.Entry<Long, Long> owner = owners.ceilingEntry(token);
+            return (owner == null) ? owners.firstEntry().getValue() : owner.getValue();
+        }
+    }
+
+    // Lookups per second, changes per second and bytes allocated per lookup
+    private static double[] run(Ring ring, int readers, boolean churn, int seconds, long[] ids, long[] keys)
+            throws InterruptedException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        LongAdder allocated = new LongAdder();
+        LongAdder changes = new LongAdder();
+
+        Thread[] workers = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            int seed = r;
+            workers[r] = new Thread(() -> {
+                long sum = 0, count = 0;
+                int i = seed * 7919;
+                for (int warm = 0; warm < 200_000; warm++) sum += ring.ownerOf(keys[i++ & (KEYS - 1)]);
+                long before = threads.getCurrentThreadAllocatedBytes();
+                while (running.get()) {
+                    for (int batch = 0; batch < 1024; batch++) sum += ring.ownerOf(keys[i++ & (KEYS - 1)]);
+                    count += 1024;
+                }
+                allocated.add(threads.getCurrentThreadAllocatedBytes() - before);
+                lookups.add(count + (sum & 0));
+            });
+        }
+        Thread writer = new Thread(() -> {
+            Random random = new Random(7);
+            while (running.get()) {
+                ring.churn(ids[random.nextInt(ids.length)]);
+                changes.add(2);
+            }
+        });
+
+        for (Thread worker : workers) worker.start();
+        if (churn) writer.start();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        if (churn) writer.join();
+        return new double[] {lookups.sum() / (double) seconds, changes.sum() / (double) seconds,
+                allocated.sum() / (double) Math.max(1, lookups.sum())};
+    }
+
+    private static void report(PrintStream console, String name, double[] result, int readers, boolean churn) {
+        console.printf("%-14s %8d %7s %,16.0f %,14.0f %14.2f%n", name, readers, churn ? "yes" : "no",
+                result[0], result[1], result[2]);
+    }
+}
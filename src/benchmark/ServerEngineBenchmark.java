@@ -0,0 +1,271 @@
+package benchmark;
+
+import common.ConnectionPool;
+import common.KeyTransferService;
+import common.KeyValueStore;
+import common.Message;
+import common.MessageHandler;
+import common.MultiplexedConnection;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.NioServer;
+import common.Range;
+import common.RingSnapshot;
+import common.ServerEngine;
+import common.ServerSession;
+import common.TokenKeyValueStore;
+import common.WireCodec;
+import nameservers.NameServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the THREADED and NIO server engines on loopback with a local NameServer answering LOOKUPs:
+ * new connections per second (connect, one LOOKUP, close) and request latency over many persistent connections.
+ * Also checks that a request whose handling throws is answered with an error and leaves its connection usable,
+ * that a malformed frame closes only its own connection, that a key transfer asked for in a binary frame gets
+ * an error reply and leaves its connection usable, and that the NIO engine answers every request once more
+ * are waiting than it has threads for.
+ * Usage: java benchmark.ServerEngineBenchmark [persistentConnections] [secondsPerPhase]
+ */
+public class ServerEngineBenchmark {
+    private static final int BASE_PORT = 9700;
+    private static final String FAILING_KEY = "failing";
+
+    public static void main(String[] args) throws Exception {
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Silence per-request server logging
+
+        int port = BASE_PORT;
+        for (ServerEngine engine : ServerEngine.values()) {
+            startNameServer(port, engine);
+            double connectRate = measureConnectRate(port, 16, seconds);
+            long[] latencies = measureLatency(port, connections, seconds);
+            Arrays.sort(latencies);
+            console.printf("%-9s connections/sec: %9.0f   requests/sec: %9.0f   p50: %7.1f us   p99: %8.1f us%n",
+                    engine, connectRate, (double) latencies.length / seconds,
+                    percentile(latencies, 0.50) / 1000.0, percentile(latencies, 0.99) / 1000.0);
+            checkFailedRequest(port, engine);
+            checkMalformedFrame(port, engine);
+            checkStreamingFrame(port, engine);
+            port++;
+        }
+        checkNioBackpressure(port);
+        System.exit(0);
+    }
+
+    private static void startNameServer(int port, ServerEngine engine) throws InterruptedException {
+        KeyValueStore keyValueStore = new TokenKeyValueStore() {
+            @Override
+            public String lookup(String key) {
+                if (key.equals(FAILING_KEY)) throw new IllegalStateException("lookup of " + key + " failed");
+                return super.lookup(key);
+            }
+        };
+        for (int key = 0; key <= 1023; key++)
+            keyValueStore.insert(String.valueOf(key), "value" + key);
+        // Not joined to a bootstrap: alone in a hand-made ring snapshot, the node owns every key
+        NameServer nameServer = new NameServer(Range.MAX_TOKEN, 1, port, "127.0.0.1", 0, keyValueStore,
+                new KeyTransferService(keyValueStore), new ConnectionPool(), engine);
+        nameServer.installRing(new RingSnapshot(1, new NodeInfo[] {new NodeInfo(Range.MAX_TOKEN, "127.0.0.1", port)}));
+        Thread server = new Thread(nameServer::startServer);
+        server.setDaemon(true);
+        server.start();
+
+        BenchmarkRing.awaitListening(port);
+    }
+
+    // A lookup the store fails must get an error reply, and the next request on the connection its answer
+    private static void checkFailedRequest(int port, ServerEngine engine) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.setSoTimeout(5000);
+            out.println("LOOKUP 0 0 " + FAILING_KEY);
+            String failed = in.readLine();
+            out.println("LOOKUP 0 0 1");
+            String next = in.readLine();
+            if (failed == null || !failed.startsWith("Error handling LOOKUP") || !"value1".equals(next))
+                throw new IllegalStateException(engine + " answered a failing request with " + failed + ", then " + next);
+        }
+    }
+
+    // A frame with an impossible node count closes its connection; the engine goes on serving new ones
+    private static void checkMalformedFrame(int port, ServerEngine engine) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(new byte[] {(byte) WireCodec.MAGIC, 9, 0, 4, 0, 0,
+                    (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+            if (socket.getInputStream().read() != -1)
+                throw new IllegalStateException(engine + " answered a malformed frame");
+        }
+        for (int i = 0; i < 8; i++) checkFailedRequest(port, engine);  // More connections than event loops
+    }
+
+    // Key transfers run only on text connections; in a frame the request fails, not the connection it shares
+    private static void checkStreamingFrame(int port, ServerEngine engine) throws IOException {
+        MultiplexedConnection connection = new MultiplexedConnection("127.0.0.1", port);
+        try {
+            String failed = connection.request(Message.request(NameServerFunctions.SEND_KEYS, 0, 0), 5000).getValueString();
+            String next = connection.request(Message.request(NameServerFunctions.LOOKUP, 0, 0, "1"), 5000).getValueString();
+            if (failed == null || !failed.startsWith("Error handling SEND_KEYS") || !"value1".equals(next))
+                throw new IllegalStateException(engine + " answered a SEND_KEYS frame with " + failed + ", then " + next);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * One event loop and one worker, with a handler that blocks until released, and more pipelined requests
+     * than the worker and overflow threads together: every request must still be answered once released.
+     */
+    private static void checkNioBackpressure(int port) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger entered = new AtomicInteger();
+        MessageHandler handler = new MessageHandler() {
+            @Override
+            public Message handle(Message request, String clientIp) {
+                entered.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return request.reply("ok");
+            }
+
+            @Override
+            public void transfer(Message request, String clientIp, BufferedReader in, PrintWriter out) {
+            }
+        };
+        Thread server = new Thread(() -> {
+            try {
+                new NioServer(port, 1, 1, handler).start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        BenchmarkRing.awaitListening(port);
+
+        List<CompletableFuture<Message>> replies = new ArrayList<>();
+        for (int c = 0; c < 5; c++) {
+            MultiplexedConnection connection = new MultiplexedConnection("127.0.0.1", port);
+            for (int i = 0; i < ServerSession.MAX_IN_FLIGHT; i++)
+                replies.add(connection.send(Message.request(NameServerFunctions.LOOKUP, 0, 0, "key" + i)));
+        }
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (entered.get() < 1025 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        Thread.sleep(200);
+        int running = entered.get();
+        release.countDown();
+        for (CompletableFuture<Message> reply : replies) {
+            if (!"ok".equals(reply.get(30, TimeUnit.SECONDS).getValueString()))
+                throw new IllegalStateException("NIO answered a queued request with " + reply.get());
+        }
+        if (running > 1025)
+            throw new IllegalStateException("NIO ran " + running + " requests at once on 1025 threads");
+    }
+
+    // Each client thread opens a connection, sends one LOOKUP, reads the reply and closes
+    private static double measureConnectRate(int port, int threads, int seconds) throws InterruptedException {
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> clients = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread client = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket("127.0.0.1", port);
+                         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                        out.println("LOOKUP 0 0 " + ThreadLocalRandom.current().nextInt(1024));
+                        if (in.readLine() != null) completed.incrementAndGet();
+                    } catch (IOException e) {
+                        // Count only completed exchanges
+                    }
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) client.join();
+        return (double) completed.get() / seconds;
+    }
+
+    // Many persistent connections, each sending LOOKUPs back to back; returns every request latency in nanoseconds
+    private static long[] measureLatency(int port, int connections, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<LatencyClient> clients = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            LatencyClient client = new LatencyClient(port, deadline);
+            clients.add(client);
+            client.start();
+        }
+        int total = 0;
+        for (LatencyClient client : clients) {
+            client.join();
+            total += client.count;
+        }
+
+        long[] all = new long[total];
+        int offset = 0;
+        for (LatencyClient client : clients) {
+            System.arraycopy(client.latencies, 0, all, offset, client.count);
+            offset += client.count;
+        }
+        return all;
+    }
+
+    private static class LatencyClient extends Thread {
+        private final int port;
+        private final long deadline;
+        private long[] latencies = new long[1 << 12];
+        private int count = 0;
+
+        LatencyClient(int port, long deadline) {
+            this.port = port;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket("127.0.0.1", port);
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    out.println("LOOKUP 0 0 " + ThreadLocalRandom.current().nextInt(1024));
+                    if (in.readLine() == null) break;
+                    if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = System.nanoTime() - start;
+                }
+            } catch (IOException e) {
+                // Connection refused or reset; its samples so far still count
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+}
@@ -0,0 +1,71 @@
+package benchmark;
+
+import common.Histogram;
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeStats;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost of the instrumentation on the request path: what NodeStats.recordRequest adds to a lookup (a histogram
+ * record plus the arc counter, which hashes the key), and a bare Histogram.record, with 1 to 8 threads
+ * recording into the same objects. Latencies are random values of the range a request takes.
+ * Reports records per second and nanoseconds per record, and checks the histogram lost no records.
+ * Usage: java benchmark.StatsBenchmark [seconds per run]
+ */
+public class StatsBenchmark {
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+        System.out.printf("%-14s %8s %16s %14s%n", "recording", "threads", "records/s", "ns/record");
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            NodeStats stats = new NodeStats();
+            Message[] requests = new Message[1024];
+            for (int i = 0; i < requests.length; i++) requests[i] = Message.request(NameServerFunctions.LOOKUP, 0, 0, "key" + i);
+            report("recordRequest", threads, run(threads, seconds,
+                    random -> stats.recordRequest(requests[random.nextInt(requests.length)], 20_000 + random.nextInt(2_000_000))),
+                    seconds);
+
+            Histogram histogram = new Histogram();
+            long records = run(threads, seconds, random -> histogram.record(20_000 + random.nextInt(2_000_000)));
+            report("Histogram", threads, records, seconds);
+            if (histogram.getCount() != records) System.out.printf("Lost records: %d of %d%n", records - histogram.getCount(), records);
+        }
+    }
+
+    private interface Recorder {
+        void record(ThreadLocalRandom random);
+    }
+
+    // Throughput of all threads together, and the CPU time per record if each thread had a core
+    private static void report(String name, int threads, long count, int seconds) {
+        double perSecond = count / (double) seconds;
+        System.out.printf("%-14s %8d %,16.0f %14.1f%n", name, threads, perSecond,
+                Math.min(threads, Runtime.getRuntime().availableProcessors()) * 1e9 / perSecond);
+    }
+
+    // Records made by the threads in the given time
+    private static long run(int threads, int seconds, Recorder recorder) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder count = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long made = 0;
+                while (running.get()) {
+                    recorder.record(random);
+                    made++;
+                }
+                count.add(made);
+            });
+            workers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+        return count.sum();
+    }
+}
@@ -0,0 +1,96 @@
+package benchmark;
+
+import common.KeyHash;
+import common.NodeInfo;
+import common.Range;
+import common.RingSnapshot;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Simulated load balance with 1 to 256 virtual nodes per physical node. Each node, the bootstrap included,
+ * takes KeyHash.vnodeTokens(id, vnodes) for a random id, and its load is the share of the token space its
+ * ranges cover (keys hash uniformly, see KeyHashBenchmark). Reports max/mean and stddev/mean load averaged
+ * over several random rings, then what one more node joining would pull: from how many peers, and the
+ * largest part of its keys coming from any single one of them.
+ * Usage: java benchmark.VirtualNodeBenchmark [trials]
+ */
+public class VirtualNodeBenchmark {
+    private static final int[] NODE_COUNTS = {8, 64};
+    private static final int[] VNODES = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+
+    public static void main(String[] args) {
+        int trials = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+
+        System.out.printf("%6s %7s %10s %12s %14s %18s%n",
+                "nodes", "vnodes", "max/mean", "stddev/mean", "join: sources", "join: max source");
+        for (int n : NODE_COUNTS) {
+            for (int vnodes : VNODES) {
+                double maxOverMean = 0, deviation = 0, sources = 0, largestSource = 0;
+                Random random = new Random(42);
+                for (int trial = 0; trial < trials; trial++) {
+                    long[] ids = new long[n + 1];               // The last id is the joining node
+                    for (int i = 1; i <= n; i++) ids[i] = random.nextLong();
+
+                    RingSnapshot ring = ring(ids, n, vnodes);
+                    double[] load = load(ring, n);
+                    double mean = 1.0 / n, max = 0, variance = 0;
+                    for (double share : load) {
+                        max = Math.max(max, share);
+                        variance += (share - mean) * (share - mean) / n;
+                    }
+                    maxOverMean += max / mean;
+                    deviation += Math.sqrt(variance) / mean;
+
+                    // Each slice of the joining node comes from the old owner of its token
+                    RingSnapshot joined = ring(ids, n + 1, vnodes);
+                    double[] pulled = new double[n];
+                    for (int i = 0; i < joined.size(); i++) {
+                        if (joined.get(i).getPort() != n) continue;
+                        pulled[ring.ownerOf(joined.get(i).getId()).getPort()] += size(joined.rangeOf(i));
+                    }
+                    double total = 0, largest = 0;
+                    int count = 0;
+                    for (double share : pulled) {
+                        total += share;
+                        largest = Math.max(largest, share);
+                        if (share > 0) count++;
+                    }
+                    sources += count;
+                    largestSource += largest / total;
+                }
+                System.out.printf("%6d %7d %10.2f %12.3f %14.1f %17.0f%%%n", n, vnodes, maxOverMean / trials,
+                        deviation / trials, sources / trials, largestSource / trials * 100);
+            }
+        }
+    }
+
+    // The first n nodes of ids, node 0 being the bootstrap at id 0; the port of each entry is its node index
+    private static RingSnapshot ring(long[] ids, int n, int vnodes) {
+        NodeInfo[] entries = new NodeInfo[n * vnodes];
+        Set<Long> taken = new HashSet<>();
+        int count = 0;
+        for (int node = 0; node < n; node++) {
+            for (long token : KeyHash.vnodeTokens(ids[node], vnodes)) {
+                if (taken.add(token)) entries[count++] = new NodeInfo(token, "sim", node);
+            }
+        }
+        NodeInfo[] unique = new NodeInfo[count];
+        System.arraycopy(entries, 0, unique, 0, count);
+        return new RingSnapshot(1, unique);
+    }
+
+    // Share of the token space owned by each node
+    private static double[] load(RingSnapshot ring, int n) {
+        double[] load = new double[n];
+        for (int i = 0; i < ring.size(); i++) load[ring.get(i).getPort()] += size(ring.rangeOf(i)) / 0x1p64;
+        return load;
+    }
+
+    private static double size(Range range) {
+        long span = range.getEnd() - range.getStart();      // Unsigned distance, correct for wrapping ranges too
+        return (span < 0 ? span + 0x1p64 : span) + 1;
+    }
+}
@@ -0,0 +1,86 @@
+package benchmark;
+
+import common.ConcurrentTokenKeyValueStore;
+import common.DurableKeyValueStore;
+import common.FsyncPolicy;
+import common.KeyValueStore;
+import common.WriteAheadLog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Insert throughput of the in-memory store against the durable store under each fsync policy, with 1 to many
+ * writer threads. Under ALWAYS every write waits for an fsync, so a single writer is bound by the disk's
+ * flush latency; with more writers each fsync commits a whole group of writes, and the mean group size shows
+ * how many writers shared one. INTERVAL and NEVER only wait for the write to reach the operating system.
+ * Usage: java benchmark.WalBenchmark [secondsPerRun] [dataDir]
+ */
+public class WalBenchmark {
+    private static final int[] THREADS = {1, 4, 16, 64};
+    private static final String VALUE = "value-0123456789-0123456789-0123456789";
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        Path root = (args.length > 1) ? Path.of(args[1]) : Files.createTempDirectory("wal-benchmark");
+
+        System.out.printf("%-10s %8s %14s %12s %12s%n", "store", "threads", "inserts/s", "fsyncs/s", "group size");
+        for (int threads : THREADS) {
+            double rate = run(new ConcurrentTokenKeyValueStore(), threads, seconds);
+            System.out.printf("%-10s %8d %,14.0f %12s %12s%n", "memory", threads, rate, "-", "-");
+        }
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            for (int threads : THREADS) {
+                Path directory = root.resolve(policy.name().toLowerCase() + "-" + threads);
+                DurableKeyValueStore store = new DurableKeyValueStore(new ConcurrentTokenKeyValueStore(), directory,
+                        policy, Long.MAX_VALUE);     // No snapshots during the run
+                double rate = run(store, threads, seconds);
+                WriteAheadLog log = store.getLog();
+                store.close();
+                System.out.printf("%-10s %8d %,14.0f %12.0f %12.1f%n", policy.name().toLowerCase(), threads, rate,
+                        log.getSyncs() / (double) seconds, log.getAppended() / (double) Math.max(1, log.getCommits()));
+                delete(directory);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Inserts per second of new keys from the writer threads
+    private static double run(KeyValueStore store, int threads, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder inserts = new LongAdder();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            String prefix = "t" + t + "-";
+            writers[t] = new Thread(() -> {
+                for (long i = 0; running.get(); i++) {
+                    store.insert(prefix + i, VALUE);
+                    inserts.increment();
+                }
+            });
+            writers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread writer : writers) writer.join();
+        return inserts.sum() / (double) seconds;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package benchmark;
+
+import common.Message;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.WireCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Encode + decode cost of the text lines (split, parseInt, valueOf and the indexOf scraping of join replies)
+ * against the binary frames, for the three message shapes that dominate traffic: a LOOKUP request, an
+ * INSERT request and the ENTER reply with both neighbours. Also prints the encoded size of each.
+ * First checks that a frame with a negative node count is rejected rather than allocated.
+ * Usage: java benchmark.WireCodecBenchmark [iterations]
+ */
+public class WireCodecBenchmark {
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2_000_000;
+
+        long nodeId = 434L << 54, otherId = 740L << 54;     // The sample configs' ring tokens
+        Message lookup = Message.request(NameServerFunctions.LOOKUP, nodeId, 7432, "user:900");
+        Message insert = Message.request(NameServerFunctions.INSERT, nodeId, 7432, "user:777", "Blueberry");
+        Message enter = Message.request(NameServerFunctions.ENTER, otherId, 7431)
+                .reply("ENTER OK", new NodeInfo(nodeId, "127.0.0.1", 7432), new NodeInfo(0, "N/A", 3768));
+
+        checkRejectsBadCount();
+        System.out.printf("%-8s %-7s %8s %14s %12s%n", "message", "format", "bytes", "round trips/s", "ns/op");
+        for (int round = 0; round < 2; round++) {       // The first round only warms up the JIT
+            boolean print = round == 1;
+            run("LOOKUP", "text", print, iterations, textBytes(lookup),
+                    () -> WireCodec.parseRequest(WireCodec.formatRequest(lookup)));
+            run("LOOKUP", "binary", print, iterations, WireCodec.encode(lookup).length,
+                    () -> decode(WireCodec.encode(lookup)));
+            run("INSERT", "text", print, iterations, textBytes(insert),
+                    () -> WireCodec.parseRequest(WireCodec.formatRequest(insert)));
+            run("INSERT", "binary", print, iterations, WireCodec.encode(insert).length,
+                    () -> decode(WireCodec.encode(insert)));
+            run("ENTER", "text", print, iterations, textBytes(enter),
+                    () -> WireCodec.parseReply(NameServerFunctions.ENTER, WireCodec.formatReply(enter)));
+            run("ENTER", "binary", print, iterations, WireCodec.encode(enter).length,
+                    () -> decode(WireCodec.encode(enter)));
+        }
+    }
+
+    // Opcode 0, HAS_NODES, node id 0, port 0 and a node count of -1
+    private static void checkRejectsBadCount() {
+        byte[] body = {0, 4, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        try {
+            WireCodec.decode(body, 0, body.length);
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new IllegalStateException("A frame with a negative node count was decoded");
+    }
+
+    private static void run(String name, String format, boolean print, int iterations, int bytes,
+                            Supplier<Message> roundTrip) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = roundTrip.get();
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.printf("%-8s %-7s %8d %14.0f %12.1f%n", name, format, bytes,
+                    iterations / (elapsed / 1e9), (double) elapsed / iterations);
+        }
+    }
+
+    // Skip the length prefix, as a server does after framing
+    private static Message decode(byte[] frame) {
+        int[] header = WireCodec.peekFrameLength(frame, 0, frame.length);
+        return WireCodec.decode(frame, header[1], header[0]);
+    }
+
+    private static int textBytes(Message message) {
+        return (message.toString() + "\n").getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -1,122 +1,216 @@
 package bootstrap;
 
 import bootstrap.bootstrapUtil.ClientFunctions;
-import bootstrap.bootstrapUtil.NodeManager;
-import bootstrap.bootstrapUtil.RangeManager;
+import bootstrap.bootstrapUtil.RingManager;
+import common.BatchRouter;
+import common.CacheInvalidator;
+import common.ConnectionPool;
+import common.KeyHash;
 import common.KeyValueStore;
+import common.Message;
+import common.NameServerFunctions;
 import common.NodeInfo;
-import common.Range;
+import common.ReadCache;
+import common.Replicator;
+import common.RingSnapshot;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.LinkedHashSet;
 import java.util.Scanner;
+import java.util.Set;
 
 public class BootstrapCLI {
-    private final RangeManager rangeManager;
+    private final RingManager ringManager;
     private KeyValueStore keyValueStore;
-    private NodeManager nodeManager;
+    private ConnectionPool connectionPool;
+    private BatchRouter batchRouter;
+    private Replicator replicator;
+    private ReadCache readCache;                // Null without a cache
+    private CacheInvalidator cacheInvalidator;
     private final int port;
 
-    public BootstrapCLI(KeyValueStore keyValueStore, RangeManager rangeManager,
-                        NodeManager nodeManager, int port) {
+    public BootstrapCLI(KeyValueStore keyValueStore, RingManager ringManager,
+                        ConnectionPool connectionPool, BatchRouter batchRouter, Replicator replicator, int port) {
+        this(keyValueStore, ringManager, connectionPool, batchRouter, replicator, port, null,
+                new CacheInvalidator(connectionPool, 0, port));
+    }
+
+    public BootstrapCLI(KeyValueStore keyValueStore, RingManager ringManager,
+                        ConnectionPool connectionPool, BatchRouter batchRouter, Replicator replicator, int port,
+                        ReadCache readCache, CacheInvalidator cacheInvalidator) {
         this.keyValueStore = keyValueStore;
-        this.rangeManager = rangeManager;
-        this.nodeManager = nodeManager;
+        this.ringManager = ringManager;
+        this.connectionPool = connectionPool;
+        this.batchRouter = batchRouter;
+        this.replicator = replicator;
+        this.readCache = readCache;
+        this.cacheInvalidator = cacheInvalidator;
         this.port = port;
     }
 
-    private String forwardToSuccessor(ClientFunctions clientFunctions, String message) {
-        NodeInfo successor = nodeManager.getNodeById(0).getSuccessor();
-        if (successor == null) {
+    // Send the request straight to the node owning its key; the bootstrap's own entries have no address
+    private String forwardToOwner(Message request) {
+        NodeInfo owner = ringManager.findSuccessor(KeyHash.token(request.getKey()));
+        if (owner.getIp().equals("N/A")) {
             return null;
         }
-        try (Socket socket = new Socket(successor.getIp(), successor.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())))
-        {
-            String request = clientFunctions + " " + "0" + " " + port + " " + message;
-            out.println(request);
-            return in.readLine();
+        try {
+            return connectionPool.request(owner, request).getValueString();
+        } catch (IOException e) {
+            return "Error forwarding lookup: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Look up a key held by other nodes, through the read cache if there is one. Only an answer from the owner
+     * of the current ring is cached, and only if no invalidation arrived meanwhile.
+     */
+    private String lookupRemote(Message request, RingSnapshot ring) {
+        if (readCache == null || request.getQuorum() > 1) return forwardToOwner(request);
+        String value = readCache.get(request.getKey(), ring.getEpoch());
+        if (value != null) return value;
+        long ticket = readCache.ticket();
+        NodeInfo owner = ring.ownerOf(KeyHash.token(request.getKey()));
+        if (owner.getIp().equals("N/A")) return null;
+        try {
+            Message reply = connectionPool.request(owner, request);
+            if (ringManager.snapshot().getEpoch() == ring.getEpoch()) {
+                readCache.put(request.getKey(), reply.getValueString(), ring.getEpoch(), ticket);
+            }
+            return reply.getValueString();
         } catch (IOException e) {
             return "Error forwarding lookup: " + e.getMessage();
         }
     }
 
+    // Optional last argument: the replicas to read (R) or write (W), 0 for the default
+    private static int quorumArgument(String[] tokens, int index) {
+        return (tokens.length > index) ? Integer.parseInt(tokens[index]) : 0;
+    }
+
     public void lookupKey(String[] tokens) {
         if (tokens.length < 2) {
-            System.out.println("Usage: lookup <key>");
+            System.out.println("Usage: lookup <key> [r]");
         } else {
-            try {
-                int key = Integer.parseInt(tokens[1]);
-                String value = keyValueStore.lookup(key);
-                if(value != null) {
-                    System.out.println("Value for key " + key + " is: " + value);
-                } else {
-                    value = forwardToSuccessor(ClientFunctions.LOOKUP, Integer.toString(key)); // Forward request to successor
-                    if (value == null || value.equals("null")) System.out.println("Key " + key + " not found.");
-                    else System.out.println("Value for key " + key + " is: " + value);
-                }
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid key format. Key must be an integer.");
+            String key = tokens[1];
+            int quorum = quorumArgument(tokens, 2);
+            RingSnapshot ring = ringManager.snapshot();
+            Message request = Message.request(NameServerFunctions.LOOKUP, 0, port, key).withQuorum(quorum);
+            String value = (quorum > 1 && ring.isReplica(ring.getMember(0), KeyHash.token(key)))
+                    ? replicator.lookup(request, ring, ring.getMember(0)).getValueString()
+                    : keyValueStore.lookup(key);
+            if(value != null) {
+                System.out.println("Value for key " + key + " is: " + value);
+            } else {
+                value = lookupRemote(request, ring);   // Forward request to the owner, unless cached
+                if (value == null || value.equals("null")) System.out.println("Key " + key + " not found.");
+                else System.out.println("Value for key " + key + " is: " + value);
             }
         }
     }
 
     public void insertKey(String[] tokens) {
         if (tokens.length < 3) {
-            System.out.println("Usage: insert <key> <value>");
+            System.out.println("Usage: insert <key> <value> [w]");
         } else {
-            try {
-                int key = Integer.parseInt(tokens[1]);
-                String value = tokens[2];
-                Range range = rangeManager.getRangeForNode(0);
-                boolean inRange;
-                if (range.getStart() <= range.getEnd()) {
-                    // Non-wrapping range: key is valid if it's between start and end
-                    inRange = (key >= range.getStart() && key <= range.getEnd());
-                } else {
-                    // Wrapping range: key is valid if it's >= start OR <= end
-                    inRange = (key >= range.getStart() || key <= range.getEnd());
-                }
-                if (inRange) {
-                    int result = keyValueStore.insert(key, value);
-                    if (result == 0) {
-                        System.out.println("Insertion successful for key " + key);
-                    } else {
-                        System.out.println("Key " + key + " already exists.");
-                    }
+            String key = tokens[1];
+            String value = tokens[2];
+            int quorum = quorumArgument(tokens, 3);
+            // One range per virtual node token of the bootstrap, any of which may wrap past the top of the ring
+            if (ringManager.ownsToken(0, KeyHash.token(key))) {
+                RingSnapshot ring = ringManager.snapshot();
+                int result = replicator.insert(ring, ring.getMember(0), key, value, quorum);
+                if (result != -1) cacheInvalidator.written(key);
+                if (result == 0) {
+                    System.out.println("Insertion successful for key " + key);
+                } else if (result == -2) {
+                    System.out.println("Key " + key + " inserted, but not on enough replicas");
                 } else {
-                    String response = forwardToSuccessor(ClientFunctions.INSERT, key + " " + value);
-                    if (response == null || response.equals("null"))
-                        System.out.println("Key " + key + " not inserted");
-                    else
-                        System.out.println(response);
+                    System.out.println("Key " + key + " already exists.");
                 }
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid key format. Key must be an integer.");
+            } else {
+                String response = forwardToOwner(Message.request(NameServerFunctions.INSERT, 0, port, key, value).withQuorum(quorum));
+                if (response == null || response.equals("null"))
+                    System.out.println("Key " + key + " not inserted");
+                else
+                    System.out.println(response);
             }
         }
     }
 
     public void deleteKey(String[] tokens) {
         if (tokens.length < 2) {
-            System.out.println("Usage: delete <key>");
+            System.out.println("Usage: delete <key> [w]");
         } else {
+            String key = tokens[1];
+            int quorum = quorumArgument(tokens, 2);
+            if (ringManager.ownsToken(0, KeyHash.token(key))) {
+                // Replicas may hold it even if the bootstrap did not
+                RingSnapshot ring = ringManager.snapshot();
+                int result = replicator.delete(ring, ring.getMember(0), key, quorum);
+                cacheInvalidator.written(key);
+                if (result == 0) System.out.println("Key " + key + " deleted successfully.");
+                else if (result == -2) System.out.println("Key " + key + " deleted, but not on enough replicas");
+                else System.out.println("Key " + key + " not found.");
+            } else {
+                // A copy deleted here; the owner deletes it for good and tells the other replicas
+                if (keyValueStore.delete(key) == 0) cacheInvalidator.written(key);
+                String value = forwardToOwner(Message.request(NameServerFunctions.DELETE, 0, port, key).withQuorum(quorum));
+                if (value == null || value.equals("null")) System.out.println("Key " + key + " not found.");
+                else System.out.println(value);
+            }
+        }
+    }
+
+    /**
+     * mget / mdelete <key>..., minsert (<key> <value>)...: one request per owning node, sent in parallel.
+     */
+    public void batchCommand(NameServerFunctions function, String[] tokens) {
+        boolean withValues = function == NameServerFunctions.MINSERT;
+        int count = withValues ? (tokens.length - 1) / 2 : tokens.length - 1;
+        if (count == 0 || (withValues && tokens.length % 2 == 0)) {
+            System.out.println("Usage: " + function.name().toLowerCase() + (withValues ? " (<key> <value>)..." : " <key>..."));
+            return;
+        }
+        String[] keys = new String[count];
+        String[] values = withValues ? new String[count] : null;
+        for (int i = 0; i < count; i++) {
+            keys[i] = tokens[withValues ? 1 + 2 * i : 1 + i];
+            if (withValues) values[i] = tokens[2 + 2 * i];
+        }
+
+        Message reply = batchRouter.execute(Message.batch(function, 0, port, keys, values));
+        String[] results = reply.getBatchValues();
+        int applied = 0;
+        for (int i = 0; i < count; i++) {
+            if (results[i] != null) applied++;
+            if (function == NameServerFunctions.MGET) {
+                if (results[i] == null) System.out.println("Key " + keys[i] + " not found.");
+                else System.out.println("Value for key " + keys[i] + " is: " + results[i]);
+            }
+        }
+        if (function == NameServerFunctions.MINSERT) System.out.println("Inserted " + applied + " of " + count + " keys");
+        if (function == NameServerFunctions.MDELETE) System.out.println("Deleted " + applied + " of " + count + " keys");
+        if (reply.getValueString() != null) System.out.println(reply.getValueString());
+    }
+
+    /**
+     * Print the STATS of every ring member, the bootstrap first, so slow nodes and hot ranges can be compared
+     * side by side. Each node is asked once, whatever number of virtual node tokens it has.
+     */
+    private void printStats() {
+        RingSnapshot ring = ringManager.snapshot();
+        Set<String> asked = new LinkedHashSet<>();
+        for (int i = 0; i < ring.size(); i++) {
+            NodeInfo node = ring.get(i);
+            String ip = node.getIp().equals("N/A") ? "127.0.0.1" : node.getIp();
+            if (!asked.add(ip + ":" + node.getPort())) continue;
+            System.out.println("== Node " + Long.toUnsignedString(node.getId()) + " [" + ip + ":" + node.getPort() + "]");
             try {
-                int key = Integer.parseInt(tokens[1]);
-                int result = keyValueStore.delete(key);
-                if(result == 0) {
-                    System.out.println("Key " + key + " deleted successfully.");
-                } else {
-                    String value = forwardToSuccessor(ClientFunctions.DELETE, Integer.toString(key));
-                    if (value == null || value.equals("null")) System.out.println("Key " + key + " not found.");
-                    else System.out.println(value);
-                }
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid key format. Key must be an integer.");
+                Message reply = connectionPool.request(ip, node.getPort(), Message.request(NameServerFunctions.STATS, 0, port));
+                System.out.println(reply.getValueString());
+            } catch (IOException e) {
+                System.out.println("Error fetching stats: " + e.getMessage());
             }
         }
     }
@@ -139,25 +233,40 @@ public class BootstrapCLI {
                 case DELETE:
                     deleteKey(tokens);
                     break;
+                case MGET:
+                    batchCommand(NameServerFunctions.MGET, tokens);
+                    break;
+                case MINSERT:
+                    batchCommand(NameServerFunctions.MINSERT, tokens);
+                    break;
+                case MDELETE:
+                    batchCommand(NameServerFunctions.MDELETE, tokens);
+                    break;
                 case PRINT:
                     keyValueStore.print_keys();
                     break;
                 case RANGE:
-                    rangeManager.printRanges();
+                    ringManager.printRanges();
                     break;
                 case NODES:
-                    nodeManager.printNodes();
+                    ringManager.printNodes();
+                    break;
+                case CACHE:
+                    System.out.println((readCache == null) ? "No read cache" : readCache.stats());
+                    break;
+                case STATS:
+                    printStats();
                     break;
                 default: break;
             }
         } catch (IllegalArgumentException e) {
-            System.out.println("Unknown command. Available commands: insert, lookup, delete, exit.");
+            System.out.println("Unknown command. Available commands: insert, lookup, delete, mget, minsert, mdelete, cache, stats, exit.");
         }
     }
 
     public void startCLI() {
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Bootstrap Node CLI started. Enter commands lookup, insert, delete (type 'exit' to quit):");
+        System.out.println("Bootstrap Node CLI started. Enter commands lookup, insert, delete, mget, minsert, mdelete (type 'exit' to quit):");
 
         while(true) {
             System.out.print("> ");
@@ -1,18 +1,34 @@
 package bootstrap;
 
-import bootstrap.bootstrapUtil.NodeManager;
+import bootstrap.bootstrapUtil.RingManager;
+import common.BatchRouter;
+import common.BloomKeyValueStore;
+import common.CacheInvalidator;
+import common.ConnectionPool;
+import common.ConcurrentTokenKeyValueStore;
+import common.DurableKeyValueStore;
+import common.FsyncPolicy;
+import common.KeyHash;
+import common.NameServerFunctions;
+import common.NodeInfo;
+import common.OffHeapKeyValueStore;
+import common.PlacementStrategy;
+import common.ReadCache;
+import common.Replicator;
+import common.RingSnapshot;
 import common.KeyTransferService;
 import common.KeyValueStore;
-import bootstrap.bootstrapUtil.RangeManager;
+import common.ServerEngine;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
 
 public class BootstrapManager {
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java BootstrapManager.java <bnConfigFile>");
+        if (args.length < 1 || args.length > 10) {
+            System.out.println("Usage: java BootstrapManager.java <bnConfigFile> [threaded|virtual|nio] [vnodes] [placement] [replicas] [dataDir or -] [always|interval|never] [heap|offheap] [cacheEntries] [lru|tiny-lfu]");
             return;
         }
 
@@ -21,30 +37,80 @@ public class BootstrapManager {
             br.readLine();                                      // Skip first line as Server ID is always 0
             int serverPort = Integer.parseInt(br.readLine());   // Second line is server port
 
-            KeyValueStore keyValueStore = new KeyValueStore();  // Create the KeyStore (common across the server & client CLI)
+            // Optional store engine: values on the heap by default, or off-heap in memory-mapped segment files
+            boolean offHeap = args.length >= 8 && args[7].equalsIgnoreCase("offheap");
+            if (args.length >= 8 && !offHeap && !args[7].equalsIgnoreCase("heap"))
+                throw new IllegalArgumentException("Unknown store " + args[7]);
+            KeyValueStore keyValueStore = offHeap      // Create the KeyStore (common across the server & client CLI)
+                    ? new OffHeapKeyValueStore() : new ConcurrentTokenKeyValueStore();
+            // Optional data directory: writes are logged there and the keys recovered from it on restart
+            boolean recovered = false;
+            if (args.length >= 6 && !args[5].equals("-")) {
+                FsyncPolicy fsync = (args.length >= 7) ? FsyncPolicy.of(args[6]) : FsyncPolicy.ALWAYS;
+                DurableKeyValueStore durableStore = new DurableKeyValueStore(keyValueStore, Path.of(args[5]), fsync);
+                recovered = durableStore.getRecoveredKeys() > 0;
+                keyValueStore = durableStore;
+            }
+            keyValueStore = new BloomKeyValueStore(keyValueStore);    // Misses answered from a filter of the keys
             String line;
-            while ((line = br.readLine()) != null) {
+            while (!recovered && (line = br.readLine()) != null) {   // Recovered keys replace the initial ones
                 String[] parts = line.split(" ");     // Split key value
-                int key = Integer.parseInt(parts[0]);       // Get the key
+                String key = parts[0];                      // Get the key
                 String value = parts[1];                    // Get the Value
 
                 keyValueStore.insert(key, value);           // Insert the Key-Value pair
             }
-            System.out.println("Inserted Initial Key-Values");
+            if (!recovered) System.out.println("Inserted Initial Key-Values");
+
+            // Optional number of virtual node tokens for the bootstrap node, 1 (token 0 only) by default
+            int vnodes = (args.length >= 3) ? Integer.parseInt(args[2]) : 1;
+            if (vnodes < 1) throw new IllegalArgumentException("vnodes must be at least 1");
+            long[] bootstrapTokens = KeyHash.vnodeTokens(0, vnodes);
+            // Optional placement: ring, a bounded-load epsilon or "ring epsilon", jump, rendezvous or maglev
+            String placement = (args.length >= 4) ? args[3] : "ring";
+            PlacementStrategy strategy = PlacementStrategy.of(placement);
+            double epsilon = PlacementStrategy.epsilonOf(placement);
+            if (epsilon < 0) throw new IllegalArgumentException("epsilon must not be negative");
+            // Optional number of nodes storing each key, its owner and the next ones clockwise; 1 by default
+            int replicas = (args.length >= 5) ? Integer.parseInt(args[4]) : 1;
+            if (replicas < 1) throw new IllegalArgumentException("replicas must be at least 1");
 
-            RangeManager rangeManager = new RangeManager();
+            RingManager ringManager = new RingManager(serverPort, bootstrapTokens, strategy, epsilon, replicas);
             KeyTransferService keyTransferService = new KeyTransferService(keyValueStore);
-            NodeManager nodeManager = new NodeManager(serverPort);
+            ServerEngine serverEngine = (args.length >= 2)      // Optional engine switch, thread per connection by default
+                    ? ServerEngine.valueOf(args[1].toUpperCase()) : ServerEngine.THREADED;
+            ConnectionPool connectionPool = new ConnectionPool();  // Outbound connections to name servers are reused
+            Replicator replicator = new Replicator(keyValueStore, connectionPool, 0, serverPort);
+            CacheInvalidator cacheInvalidator = new CacheInvalidator(connectionPool, 0, serverPort);
+            // Optional read cache for the CLI's lookups of keys other nodes hold, W-TinyLFU unless LRU is asked for
+            ReadCache readCache = (args.length >= 9) ? new ReadCache(Integer.parseInt(args[8]),
+                    (args.length == 10) ? ReadCache.Eviction.of(args[9]) : ReadCache.Eviction.TINY_LFU) : null;
+            // Batches are split by owner using the ranges of the whole ring; the owned keys written here are copied
+            BatchRouter batchRouter = new BatchRouter(keyValueStore, connectionPool, 0, serverPort,
+                    token -> ringManager.ownsToken(0, token),
+                    token -> {
+                        NodeInfo owner = ringManager.findSuccessor(token);
+                        return owner.getIp().equals("N/A") ? null : owner;
+                    },
+                    (function, keys, values) -> {
+                        RingSnapshot ring = ringManager.snapshot();
+                        String[] results = replicator.writeOwned(ring, ring.getMember(0), function, keys, values);
+                        cacheInvalidator.written(keys);
+                        if (function == NameServerFunctions.MINSERT) cacheInvalidator.awaitAdded(keys);
+                        return results;
+                    });
             BootstrapServer server = new BootstrapServer(serverPort, keyValueStore,
-                    rangeManager, keyTransferService, nodeManager);
+                    ringManager, keyTransferService, serverEngine, batchRouter, connectionPool, replicator,
+                    readCache, cacheInvalidator);
             new Thread(server::start).start();              // Start server in a new thread
 
-            BootstrapCLI clientCLI = new BootstrapCLI(keyValueStore, rangeManager, nodeManager, serverPort);
+            BootstrapCLI clientCLI = new BootstrapCLI(keyValueStore, ringManager,
+                    connectionPool, batchRouter, replicator, serverPort, readCache, cacheInvalidator);
             new Thread(clientCLI::startCLI).start();        // Start the Client CLI
 
         } catch (IOException e) {
             System.out.println("Error reading config file: " + e.getMessage());
-        } catch (NumberFormatException e) {
+        } catch (IllegalArgumentException e) {
             System.out.println("Invalid configuration format: " + e.getMessage());
         }
     }
@@ -5,197 +5,368 @@ import bootstrap.bootstrapUtil.*;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static common.NameServerFunctions.EXIT;
+import static common.NameServerFunctions.FILTER;
+import static common.NameServerFunctions.INVALIDATE;
+import static common.NameServerFunctions.REPLICATE;
+import static common.NameServerFunctions.REPLICA_READ;
+import static common.NameServerFunctions.STATS;
+import static common.NameServerFunctions.UPDATE_SUCCESSOR;
+
+public class BootstrapServer implements MessageHandler {
+    private static final Log serverLog = Log.get("server");
+    private static final Log requestLog = Log.get("request");
+    private static final Log transferLog = Log.get("transfer");
+    private static final Log ringLog = Log.get("ring");
 
-public class BootstrapServer {
     private int port;
     private boolean running;
     private KeyValueStore keyValueStore;
     private ExecutorService threadPool;
-    private RangeManager rangeManager;
+    private RingManager ringManager;
     private KeyTransferService keyTransferService;
-    private NodeManager nodeManger;
+    private ServerEngine serverEngine;
+    private BatchRouter batchRouter;
+    private ConnectionPool connectionPool;
+    private KeyHandoff keyHandoff;
+    private Replicator replicator;
+    private ReadCache readCache;                // The CLI's read cache, null without one
+    private CacheInvalidator cacheInvalidator;
+    private final NodeStats stats = new NodeStats();
+
+    public BootstrapServer(int port, KeyValueStore keyValueStore,
+                           RingManager ringManager, KeyTransferService keyTransferService,
+                           ServerEngine serverEngine, BatchRouter batchRouter,
+                           ConnectionPool connectionPool, Replicator replicator) {
+        this(port, keyValueStore, ringManager, keyTransferService, serverEngine, batchRouter, connectionPool,
+                replicator, null, new CacheInvalidator(connectionPool, 0, port));
+    }
 
     public BootstrapServer(int port, KeyValueStore keyValueStore,
-                           RangeManager rangeManager, KeyTransferService keyTransferService,
-                           NodeManager nodeManager) {
+                           RingManager ringManager, KeyTransferService keyTransferService,
+                           ServerEngine serverEngine, BatchRouter batchRouter,
+                           ConnectionPool connectionPool, Replicator replicator,
+                           ReadCache readCache, CacheInvalidator cacheInvalidator) {
         this.port = port;
         this.keyValueStore = keyValueStore;
-        this.threadPool = Executors.newCachedThreadPool();
-        this.rangeManager = rangeManager;
+        this.threadPool = serverEngine.newConnectionExecutor();
+        this.ringManager = ringManager;
         this.keyTransferService = keyTransferService;
-        this.nodeManger = nodeManager;
+        this.serverEngine = serverEngine;
+        this.batchRouter = batchRouter;
+        this.connectionPool = connectionPool;
+        this.keyHandoff = new KeyHandoff(keyTransferService, connectionPool, 0, port);
+        this.replicator = replicator;
+        this.readCache = readCache;
+        this.cacheInvalidator = cacheInvalidator;
+        // Nodes holding copies of the store's Bloom filter hear of new keys
+        if (keyValueStore instanceof BloomKeyValueStore) {
+            ((BloomKeyValueStore) keyValueStore).setNewBitsListener(cacheInvalidator::added);
+        }
     }
 
     public void start() {
         running = true;
-        try(ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Bootstrap Server started on port " + port);
+        if (serverEngine == ServerEngine.NIO) {
+            startNioServer();
+            return;
+        }
+        try(ServerSocket serverSocket = new ServerSocket(port, ServerEngine.ACCEPT_BACKLOG)) {
+            serverLog.info("Bootstrap Server started on port {}", port);
             while (running) {
                 Socket clientSocket = serverSocket.accept();
                 threadPool.execute(() -> handleClient(clientSocket));   // Handle each client connection in a thread pool.
             }
         } catch (Exception e) {
-            System.out.println("Error starting server: " + e.getMessage());
+            serverLog.error("Error starting server: {}", e.getMessage());
         } finally {
             threadPool.shutdown();
         }
     }
 
+    private void startNioServer() {
+        try {
+            serverLog.info("Bootstrap Server started on port {} (NIO engine)", port);
+            new NioServer(port, this).start();
+        } catch (Exception e) {
+            serverLog.error("Error starting server: {}", e.getMessage());
+        }
+    }
+
     private void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true))
-        {
-            String message = in.readLine();
-            if (message != null)
-                parseNodeMessage(clientSocket, out, in, message);
+        try {
+            ServerSession.serve(clientSocket, this, threadPool);    // Serve every request sent on this connection
+        }
+        catch (SocketTimeoutException e) {
+            // Peer kept the connection idle past the timeout, nothing to report
         }
         catch (Exception e) {
-            System.out.println("Error handling client: " + e.getMessage());
+            requestLog.warn("Error handling client: {}", e.getMessage());
         } finally {
             try {
                 clientSocket.close();
             } catch (Exception ex) {
-                System.out.println("Encountered a problem while closing socket");
+                requestLog.warn("Encountered a problem while closing socket");
             }
         }
     }
 
-    private void parseNodeMessage(Socket clientSocket, PrintWriter out, BufferedReader in, String message) {
-        System.out.println("Received message: " + message);
-        String[] tokens = message.split("\\s+");
-        if (tokens.length >= 3) {
+    /**
+     * Answer one request from a name server and record how long it took. Shared by all server engines and
+     * both wire formats.
+     */
+    @Override
+    public Message handle(Message request, String clientIP) {
+        long start = System.nanoTime();
+        Message reply = serve(request, clientIP);
+        stats.recordRequest(request, System.nanoTime() - start);
+        if (reply.isNotOwner()) stats.recordNotOwner();
+        return reply;
+    }
 
-            Response response;
-            String command = tokens[0].toUpperCase();
-            int clientNodeId = Integer.parseInt(tokens[1]);
-            int clientPort = Integer.parseInt(tokens[2]);
-            String clientIP = clientSocket.getInetAddress().getHostAddress();
-            NodeInfo requestNode = new NodeInfo(clientNodeId, clientIP, clientPort);
-            NodeInfo predNode;
-            NodeInfo succNode;
-            try {
-                switch(NameServerFunctions.valueOf(command)) {
-                    case ENTER:
-                        System.out.println("Processing entry of Node " + clientNodeId);
-
-                        if ((response = nodeManger.addNode(requestNode)).getCode() == -1) {
-                            out.println(response.getMessage());
-                            break;
-                        }
-
-                        if ((response = rangeManager.addNode(clientNodeId)).getCode() == -1){
-                            nodeManger.removeNode(requestNode);
-                            out.println(response.getMessage());
-                            break;
-                        }
-
-                        predNode = requestNode.getPredecessor();
-                        succNode = requestNode.getSuccessor();
-
-                        out.println("ENTER OK" + " Predecessor: " + predNode.toString() + " Successor: " + succNode.toString());
-                        break;
-                    case EXIT:
-                        System.out.println("Processing exit for node " + clientNodeId);
-
-                        if ((response = nodeManger.removeNode(requestNode)).getCode() == -1) {
-                            out.println(response.getMessage());
-                            break;
-                        }
-
-                        if ((response = rangeManager.removeNode(clientNodeId)).getCode() == -1){
-                            nodeManger.addNode(requestNode);
-                            out.println(response.getMessage());
-                            break;
-                        }
-                        out.println(EXIT + " OK");
-                        break;
-                    case SEND_KEYS:
-                        System.out.println("Processing SEND_KEYS for node " + clientNodeId);
-                        Range range = sendKeys(out, clientNodeId);
-
-                        message = in.readLine();
-                        if (message.equals("RECEIVED_OK")){
-                            deleteKeys(range);
-                        }
-                        break;
-                    case RECEIVE_KEYS:
-                        System.out.println("Receiving keys from predecessor node");
-                        if (tokens.length < 6) {
-                            System.out.println("Invalid Request");
-                            break;
-                        }
-                        out.println("SEND_OK");
-
-                        int predId = Integer.parseInt(tokens[3]);
-                        String predIp = tokens[4];
-                        int predPort = Integer.parseInt(tokens[5]);
-
-                        receiveKeys(in);
-                        out.println("RECEIVED_OK");
-
-                        NodeInfo bootstrapNode = nodeManger.getNodeById(0);
-                        bootstrapNode.setPredecessor(new NodeInfo(predId, predIp, predPort));
-                        break;
-                    case UPDATE_SUCCESSOR:
-                        break;
-                    default: break;
-                }
-            } catch (IllegalArgumentException e) {
-                out.println("INVALID COMMAND");
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    private Message serve(Message request, String clientIP) {
+        if (request.getFunction() == STATS) return request.reply(stats.report(keyTransferService));
+        if (request.getFunction() == REPLICATE) {
+            Message applied = replicator.apply(request);        // Writes an owner copies here
+            cacheInvalidator.written(request.getBatchKeys());
+            return applied;
+        }
+        if (request.getFunction() == INVALIDATE) {
+            if (readCache == null) return request.reply(null);
+            if (request.hasKey()) readCache.invalidate(request.getKey());
+            else readCache.clear();
+            return request.reply("OK");
+        }
+        if (request.getFunction() == FILTER) {
+            // The bootstrap answers every miss itself, so it fetches no filters and ignores additions
+            if (request.hasKey() || request.isBatch() || !(keyValueStore instanceof BloomKeyValueStore)) {
+                return request.reply(null);
             }
-        } else {
-            out.println("Usage command <id> <nodeId> <localPort>. Commands supported ENTER, EXIT, SEND_KEYS");
+            cacheInvalidator.registerFilterReader(clientIP, request.getPort());   // Before the bits are read
+            return request.bytesReply(((BloomKeyValueStore) keyValueStore).toBloomFilter().toBytes());
         }
-    }
+        if (request.getFunction() == REPLICA_READ) return replicator.readLocal(request);  // One answer of a quorum read
+        if (request.isBatch()) {
+            // The bootstrap knows every node's range, so it splits batches straight to the owners
+            requestLog.info("Received {} for {} keys", request.getFunction(), request.getBatchKeys().length);
+            return batchRouter.execute(request);
+        }
+        requestLog.info("Received message: {}", request);
+        Response response;
+        long clientNodeId = request.getNodeId();
+        NodeInfo requestNode = new NodeInfo(clientNodeId, clientIP, request.getPort());
+        switch (request.getFunction()) {
+            case ENTER:
+                ringLog.info("Processing entry of Node {}", Long.toUnsignedString(clientNodeId));
+                // A node joins under its virtual node tokens, or under its id alone if it lists none
+                long[] tokens = (request.getTokens().length > 0) ? request.getTokens() : new long[] {clientNodeId};
+                RingSnapshot before = ringManager.snapshot();
+
+                if ((response = ringManager.addNode(requestNode, tokens)).getCode() == -1) {
+                    return request.reply(response.getMessage());
+                }
+
+                RingSnapshot after = ringManager.snapshot();
+                rebalanceLater(before, after, requestNode);
+
+                NodeInfo predNode = after.predecessorOf(clientNodeId);
+                NodeInfo succNode = after.successorOf(clientNodeId);
+                return request.reply("ENTER OK", predNode, succNode);
+            case EXIT:
+                ringLog.info("Processing exit for node {}", Long.toUnsignedString(clientNodeId));
+                before = ringManager.snapshot();
 
-    private Range sendKeys(PrintWriter out, int nodeId) {
-        Range range = rangeManager.getRangeForNode(nodeId);
-        keyTransferService.sendKeyValueRange(out, range);
-        return range;
+                if ((response = ringManager.removeNode(clientNodeId)).getCode() == -1) {
+                    return request.reply(response.getMessage());
+                }
+                rebalanceLater(before, ringManager.snapshot(), requestNode);
+                return request.reply(EXIT + " OK");
+            case UPDATE_SUCCESSOR:
+                return request.reply(UPDATE_SUCCESSOR + " OK");
+            case FIND_SUCCESSOR:
+                // The bootstrap sees the whole ring, so it answers finger lookups authoritatively
+                NodeInfo owner = ringManager.findSuccessor(request.getToken());
+                String ownerIp = owner.getIp().equals("N/A") ? "self" : owner.getIp();
+                return request.reply(null, new NodeInfo(owner.getId(), ownerIp, owner.getPort()));
+            case RING:
+                return ringManager.snapshot().toReply(request);
+            case LOOKUP:
+                // Clients routing with a ring snapshot send reads for the bootstrap's own keys and copies here
+                if (!ringManager.replicatesToken(0, KeyHash.token(request.getKey()))) {
+                    return (request.getEpoch() != 0) ? request.notOwnerReply() : request.reply(null);
+                }
+                cacheInvalidator.registerReader(request.getKey(), clientIP, request.getPort());
+                return request.reply(applyLocally(request));
+            case INSERT:
+            case DELETE:
+                // Writes come to the owner, which copies them to the other replicas
+                if (!ringManager.ownsToken(0, KeyHash.token(request.getKey()))) {
+                    return (request.getEpoch() != 0) ? request.notOwnerReply() : request.reply(null);
+                }
+                return request.reply(applyLocally(request));
+            default:
+                return request.reply("INVALID COMMAND");
+        }
     }
 
-    private void deleteKeys(Range range) {
-        for (int key = range.getStart(); key <= range.getEnd(); key ++)
-            keyValueStore.delete(key);
+    // Same replies as a name server gives for keys it owns, reading or writing as many replicas as asked for
+    private String applyLocally(Message request) {
+        String key = request.getKey();
+        RingSnapshot ring = ringManager.snapshot();
+        NodeInfo self = ring.getMember(0);
+        switch (request.getFunction()) {
+            case LOOKUP:
+                if (request.getQuorum() > 1) return replicator.lookup(request, ring, self).getValueString();
+                return keyValueStore.lookup(key);
+            case INSERT:
+                int result = replicator.insert(ring, self, key, request.getValueString(), request.getQuorum());
+                if (result == -1) return "Key " + key + " already exists.";
+                cacheInvalidator.written(key);
+                cacheInvalidator.awaitAdded(key);           // In every copy of the filter before it is answered
+                if (result == -2) return "Key " + key + " inserted, but not on enough replicas";
+                return "Insertion successful for key " + key;
+            default:
+                result = replicator.delete(ring, self, key, request.getQuorum());
+                cacheInvalidator.written(key);
+                if (result == -2) return "Key " + key + " deleted, but not on enough replicas";
+                return (result == 0) ? "Key " + key + " deleted" : null;
+        }
     }
 
-    private void receiveKeys(BufferedReader in) {
-        try {
-            String received = in.readLine();
-            String[] lines = received.split("%0A");
-            for (String line : lines) {
-                if (line.trim().isEmpty()) continue;
-                if (line.equals("FIN"))
-                    break;  // Receive key-value pairs until we encounter a termination marker ("FIN").
-
-                String[] parts = line.split(":");
-                if (parts.length < 2) {
-                    System.out.println("Invalid key-value pair: " + line);
-                    continue;
+    /**
+     * Key transfers, the only requests that read further lines from 'in'.
+     */
+    @Override
+    public void transfer(Message request, String clientIP, BufferedReader in, PrintWriter out) throws IOException {
+        transferLog.info("Received message: {}", request);
+        long clientNodeId = request.getNodeId();
+        switch (request.getFunction()) {
+            case SEND_KEYS:
+                transferLog.info("Processing SEND_KEYS for node {}", Long.toUnsignedString(clientNodeId));
+                // An optional token resumes an interrupted transfer after the last acknowledged key
+                List<Range> slices = sendKeys(in, out, clientNodeId, request);
+
+                String message = in.readLine();
+                if ("RECEIVED_OK".equals(message)){
+                    deleteUnreplicated(slices);
                 }
+                break;
+            case RECEIVE_KEYS:
+                // Keys of a leaving node; the ring manager already dropped it on its EXIT
+                transferLog.info("Receiving keys from node {}", Long.toUnsignedString(clientNodeId));
+                out.println("SEND_OK");
+
+                receiveKeys(in, out);
+                out.println("RECEIVED_OK");
+                break;
+            default: break;
+        }
+    }
+
+    /**
+     * Send the slices the joining node asked for, or all of its ranges if it named none.
+     * Returns every slice, including those finished before a resume, so the caller can delete them all.
+     */
+    private List<Range> sendKeys(BufferedReader in, PrintWriter out, long nodeId, Message request) throws IOException {
+        List<Range> slices = KeyTransferService.slices(request.getTokens());
+        if (slices.isEmpty()) slices = ringManager.getRangesForNode(nodeId);
+        List<Range> remaining = request.hasToken() ? KeyTransferService.remainingAfter(slices, request.getToken()) : slices;
+        keyTransferService.sendKeyValueRanges(in, out, remaining, new KeyTransferService.Progress());
+        return slices;
+    }
 
-                try {
-                    int key = Integer.parseInt(parts[0].trim());
-                    String value = parts[1].trim();
-                    keyValueStore.insert(key, value);       // Insert the key-value pair into the local store
-                    System.out.println("Received key " + key + " with value " + value);
-                } catch (NumberFormatException e) {
-                    System.out.println("Invalid key format in line: " + line);
+    /**
+     * Unless the ring is plain without copies, give the nodes that stay in the ring the ranges they start holding.
+     * The joining node pulls its own slices and the leaving node pushes what it held, but bounded-load capacities
+     * change with the membership and jump hashing renumbers nodes, so ranges also move between the other
+     * nodes, and with replication a join or exit also shifts copies onto nodes further clockwise. Only the
+     * bootstrap sees both rings, so it makes those moves itself, after replying to the node that joined or left:
+     * each piece comes from its previous owner, read once per source however many nodes it goes to.
+     */
+    private void rebalanceLater(RingSnapshot before, RingSnapshot after, NodeInfo changed) {
+        if (after.isPlainRing() && after.getReplicas() == 1) return;
+        Map<String, NodeInfo> sources = new LinkedHashMap<>();
+        Map<String, KeyHandoff.Plan> targetsBySource = new LinkedHashMap<>();
+        for (int i = 0; i < after.size(); i++) {
+            NodeInfo[] holders = after.replicasAt(i);
+            before.split(after.rangeOf(i), (source, slice) -> {
+                NodeInfo[] previous = before.replicasOf(slice.getEnd());
+                if (Replicator.holds(previous, changed)) return;       // The leaving node pushes what it held
+                for (NodeInfo target : holders) {
+                    if (RingSnapshot.sameNode(target, changed) || Replicator.holds(previous, target)) continue;
+                    String address = source.getIp() + ":" + source.getPort();
+                    sources.putIfAbsent(address, source);
+                    targetsBySource.computeIfAbsent(address, a -> new KeyHandoff.Plan()).add(target, slice);
                 }
+            });
+        }
+        NodeInfo self = after.getMember(0);
+        threadPool.execute(() -> {
+            for (Map.Entry<String, NodeInfo> source : sources.entrySet()) {
+                move(source.getValue(), targetsBySource.get(source.getKey()));
             }
-        } catch (IOException e) {
-            System.out.println("Error receiving keys due to I/O Exception: " + e.getMessage());
+            replicator.dropStaleCopies(before, after, self);
+        });
+    }
+
+    // Copy slices from one node to others; keys passing between name servers are streamed through, not stored here
+    private void move(NodeInfo source, KeyHandoff.Plan targets) {
+        transferLog.info("Rebalancing {} slices from {} to {} nodes", targets.sliceCount(), source, targets.peerCount());
+        if (isBootstrap(source)) {
+            List<Range> moved = new ArrayList<>();
+            targets.forEach((target, slices) -> {
+                if (keyHandoff.push(target, slices)) moved.addAll(slices);
+            });
+            deleteUnreplicated(moved);
+            return;
         }
+        KeyHandoff.Plan peers = new KeyHandoff.Plan();
+        List<Range> kept = new ArrayList<>();
+        targets.forEach((target, slices) -> {
+            if (isBootstrap(target)) {
+                kept.addAll(slices);
+                return;
+            }
+            for (Range slice : slices) peers.add(target, slice);
+        });
+        keyHandoff.relay(source, union(targets), peers, kept);
+    }
+
+    // Every slice of the plan once, in token order: the same piece often goes to several replicas
+    private static List<Range> union(KeyHandoff.Plan plan) {
+        TreeMap<Long, Range> slices = new TreeMap<>(Long::compareUnsigned);
+        plan.forEach((peer, peerSlices) -> {
+            for (Range slice : peerSlices) slices.put(slice.getStart(), slice);
+        });
+        return new ArrayList<>(slices.values());
+    }
+
+    // The bootstrap's own entries carry no address, see RingManager
+    private static boolean isBootstrap(NodeInfo entry) {
+        return entry.getIp().equals("N/A");
+    }
+
+    // Delete the handed over slices the bootstrap no longer holds, as owner or copy
+    private void deleteUnreplicated(List<Range> slices) {
+        RingSnapshot ring = ringManager.snapshot();
+        replicator.deleteUnreplicated(ring, ring.getMember(0), slices);
+    }
+
+    private void receiveKeys(BufferedReader in, PrintWriter out) throws IOException {
+        KeyTransferService.Progress progress = new KeyTransferService.Progress();
+        keyTransferService.receiveKeyValueRange(in, out, progress);
+        transferLog.info("Received {} keys", progress.getTransferred());
     }
 }
 
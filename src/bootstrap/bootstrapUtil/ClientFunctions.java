@@ -1,6 +1,6 @@
 package bootstrap.bootstrapUtil;
 
 public enum ClientFunctions {
-    LOOKUP, INSERT, DELETE, PRINT, RANGE, NODES
+    LOOKUP, INSERT, DELETE, MGET, MINSERT, MDELETE, PRINT, RANGE, NODES, CACHE, STATS
 }
 
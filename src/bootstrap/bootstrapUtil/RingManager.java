@@ -0,0 +1,176 @@
+package bootstrap.bootstrapUtil;
+
+import common.Log;
+import common.NodeInfo;
+import common.PlacementStrategy;
+import common.Range;
+import common.RingSnapshot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The bootstrap's view of the ring: one immutable RingSnapshot holding every node's tokens, address and ranges.
+// Joins and exits are serialized and publish the next snapshot, built from the current one, through a volatile
+// reference; lookups read that reference without locking and allocate nothing.
+// A node is known by its id, which is also one of its tokens. The bootstrap node is id 0 with the address "N/A".
+// Every range is stored by its owner and the next replicas - 1 distinct nodes clockwise.
+// Each join and exit logs the new ranges to the "ring" category; the report is formatted on the log's writer thread.
+public class RingManager {
+    private static final Log ringLog = Log.get("ring");
+
+    private volatile RingSnapshot ring;
+
+    public RingManager(int bootstrapNodePort, long[] bootstrapTokens, PlacementStrategy strategy, double epsilon) {
+        this(bootstrapNodePort, bootstrapTokens, strategy, epsilon, 1);
+    }
+
+    public RingManager(int bootstrapNodePort, long[] bootstrapTokens, PlacementStrategy strategy, double epsilon,
+                       int replicas) {
+        NodeInfo[] entries = new NodeInfo[bootstrapTokens.length];
+        for (int i = 0; i < entries.length; i++) entries[i] = new NodeInfo(bootstrapTokens[i], "N/A", bootstrapNodePort);
+        ring = new RingSnapshot(1, entries, strategy, epsilon, replicas);
+    }
+
+    // Add the node under each of its tokens, its id among them
+    public synchronized Response addNode(NodeInfo node, long[] tokens) {
+        String nodeId = Long.toUnsignedString(node.getId());
+        RingSnapshot current = ring;
+        if (current.getMember(node.getId()) != null) {
+            return new Response(-1, "Node " + nodeId + " already exists.");
+        }
+        boolean hasId = false;
+        for (long token : tokens) {
+            if (current.getMember(token) != null) {
+                return new Response(-1, "Token " + Long.toUnsignedString(token) + " is already taken.");
+            }
+            hasId |= token == node.getId();
+        }
+        if (!hasId) return new Response(-1, "The tokens of node " + nodeId + " must include its id.");
+
+        ring = current.with(current.getEpoch() + 1, node, tokens);
+        ringLog.info("Node {} added: {}", nodeId, new RangesReport(ring));
+        return new Response(0, "Node " + nodeId + " added.");
+    }
+
+    public synchronized Response removeNode(long nodeId) {
+        if (nodeId == 0) {
+            return new Response(-1, "Bootstrap node cannot be removed.");
+        }
+
+        RingSnapshot current = ring;
+        NodeInfo member = current.getMember(nodeId);
+        if (member != null) {
+            ring = current.without(current.getEpoch() + 1, member);
+            ringLog.info("Node {} removed: {}", Long.toUnsignedString(nodeId), new RangesReport(ring));
+            return new Response(0, "Node " + Long.toUnsignedString(nodeId) + " removed.");
+        }
+
+        return new Response(-1, "Node " + Long.toUnsignedString(nodeId) + " does not exist.");
+    }
+
+    // Every node's tokens and address with the current epoch, for clients that route by themselves
+    public RingSnapshot snapshot() {
+        return ring;
+    }
+
+    // Entry owning the target token: the first whose token is >= target in unsigned order, wrapping around to
+    // the lowest, or wherever the placement puts it
+    public NodeInfo findSuccessor(long target) {
+        return ring.ownerOf(target);
+    }
+
+    // True if the token falls in one of the node's ranges
+    public boolean ownsToken(long nodeId, long token) {
+        RingSnapshot current = ring;
+        NodeInfo member = current.getMember(nodeId);
+        return member != null && RingSnapshot.sameNode(current.ownerOf(token), member);
+    }
+
+    // True if the node stores the token's keys, as owner or copy
+    public boolean replicatesToken(long nodeId, long token) {
+        RingSnapshot current = ring;
+        NodeInfo member = current.getMember(nodeId);
+        return member != null && current.isReplica(member, token);
+    }
+
+    // Tokens of the node, or null if it is not in the ring
+    public long[] getTokens(long nodeId) {
+        RingSnapshot current = ring;
+        NodeInfo member = current.getMember(nodeId);
+        if (member == null) return null;
+        NodeInfo[] members = current.getMembers();
+        int count = 0;
+        for (NodeInfo entry : members) if (RingSnapshot.sameNode(entry, member)) count++;
+        long[] tokens = new long[count];
+        count = 0;
+        for (NodeInfo entry : members) if (RingSnapshot.sameNode(entry, member)) tokens[count++] = entry.getId();
+        return tokens;
+    }
+
+    // The node's ranges in token order, one per token on a plain ring; empty if it is not in the ring
+    public List<Range> getRangesForNode(long nodeId) {
+        RingSnapshot current = ring;
+        NodeInfo member = current.getMember(nodeId);
+        List<Range> ranges = new ArrayList<>();
+        for (int i = 0; member != null && i < current.size(); i++) {
+            if (RingSnapshot.sameNode(current.get(i), member)) ranges.add(current.rangeOf(i));
+        }
+        return ranges;
+    }
+
+    // The RANGE command of the bootstrap CLI
+    public void printRanges() {
+        System.out.println("Current Node Ranges:");
+        System.out.println(new RangesReport(ring).toString().replace("; ", System.lineSeparator()));
+    }
+
+    public void printNodes() {
+        RingSnapshot current = ring;
+        System.out.println("Current Node Pointers (epoch " + current.getEpoch() + "):");
+        for (NodeInfo member : current.getMembers()) {
+            NodeInfo node = new NodeInfo(member.getId(), member.getIp(), member.getPort());
+            node.setPredecessor(current.predecessorOf(member.getId()));
+            node.setSuccessor(current.successorOf(member.getId()));
+            System.out.println(node);
+        }
+    }
+
+    // Per node its tokens, ranges and share of the ring in one snapshot, built only when printed
+    private static final class RangesReport {
+        private final RingSnapshot snapshot;
+
+        RangesReport(RingSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public String toString() {
+            Map<String, double[]> nodes = new LinkedHashMap<>();       // Address -> tokens, ranges, share of the ring
+            for (NodeInfo member : snapshot.getMembers()) nodes.computeIfAbsent(address(member), a -> new double[3])[0]++;
+            for (int i = 0; i < snapshot.size(); i++) {
+                double[] node = nodes.get(address(snapshot.get(i)));
+                node[1]++;
+                node[2] += size(snapshot.rangeOf(i));
+            }
+            StringBuilder report = new StringBuilder("epoch " + snapshot.getEpoch());
+            for (Map.Entry<String, double[]> node : nodes.entrySet()) {
+                double[] counts = node.getValue();
+                report.append(String.format("; Node %s %d tokens, %d ranges, %.2f%% of the ring", node.getKey(),
+                        (int) counts[0], (int) counts[1], counts[2] / 0x1p64 * 100));
+            }
+            return report.toString();
+        }
+    }
+
+    private static String address(NodeInfo entry) {
+        return entry.getIp() + ":" + entry.getPort();
+    }
+
+    // Number of tokens in the range as a double, the whole ring being 2^64
+    private static double size(Range range) {
+        long span = range.getEnd() - range.getStart();      // Unsigned distance, correct for wrapping ranges too
+        return (span < 0 ? span + 0x1p64 : span) + 1;
+    }
+}
@@ -0,0 +1,40 @@
+package common;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock stripes of the store decorators, one per arc of the ring by the top bits of a token, as the stores
+ * stripe their tables. A key's write takes its arc's lock; a range operation takes the locks of the arcs the
+ * range touches, in ascending order so that two of them cannot deadlock, and leaves writes elsewhere alone.
+ */
+final class ArcLocks {
+    private static final int BITS = 6;
+
+    private final ReentrantLock[] locks = new ReentrantLock[1 << BITS];
+
+    ArcLocks() {
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+    }
+
+    ReentrantLock lockFor(long token) {
+        return locks[arcOf(token)];
+    }
+
+    void lockRange(Range range) {
+        for (int arc = 0; arc < locks.length; arc++) if (touches(range, arc)) locks[arc].lock();
+    }
+
+    void unlockRange(Range range) {
+        for (int arc = 0; arc < locks.length; arc++) if (touches(range, arc)) locks[arc].unlock();
+    }
+
+    private static boolean touches(Range range, int arc) {
+        int first = arcOf(range.getStart());
+        int last = arcOf(range.getEnd());
+        return range.isWrapping() ? arc >= first || arc <= last : arc >= first && arc <= last;
+    }
+
+    private static int arcOf(long token) {
+        return (int) (token >>> (64 - BITS));
+    }
+}
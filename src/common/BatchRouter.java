@@ -0,0 +1,200 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+
+/**
+ * Executes MGET / MINSERT / MDELETE batches at the node that received them.
+ * Each key is hashed to its ring token once. Keys this node owns are applied to the local store; the others
+ * are grouped by the physical node their token routes to, by address since a node has an entry per virtual
+ * node token or placed range, and sent on as one sub-batch per node (split into
+ * MAX_KEYS_PER_REQUEST chunks). All sub-batches are in flight at once on the pooled multiplexed connections,
+ * and their results are merged back into request order. The owned keys' writes are applied in one call to the
+ * node's OwnedWrites, which stamps each write as it applies it and copies them to their replicas.
+ */
+public class BatchRouter {
+    public static final int MAX_KEYS_PER_REQUEST = 8192;
+    private static final String APPLIED = "OK";
+
+    private final KeyValueStore keyValueStore;
+    private final ConnectionPool connectionPool;
+    private final long nodeId;
+    private final int port;
+    private final LongPredicate ownsToken;
+    private final LongFunction<NodeInfo> nextHop;
+    private final OwnedWrites ownedWrites;
+
+    /**
+     * Applies the MINSERT or MDELETE writes of the keys this node owns (values are null for MDELETE) and
+     * returns per key "OK" where the key was inserted or deleted, null otherwise.
+     */
+    public interface OwnedWrites {
+        String[] apply(NameServerFunctions function, String[] keys, String[] values);
+    }
+
+    public BatchRouter(KeyValueStore keyValueStore, ConnectionPool connectionPool, long nodeId, int port,
+                       LongPredicate ownsToken, LongFunction<NodeInfo> nextHop) {
+        this(keyValueStore, connectionPool, nodeId, port, ownsToken, nextHop, null);
+    }
+
+    /**
+     * @param ownsToken whether this node is the owner of the keys with the token
+     * @param nextHop the node to send a token this node does not own to, or null if it cannot be routed
+     * @param ownedWrites applies the writes of owned keys, or null to write them to the store directly
+     */
+    public BatchRouter(KeyValueStore keyValueStore, ConnectionPool connectionPool, long nodeId, int port,
+                       LongPredicate ownsToken, LongFunction<NodeInfo> nextHop, OwnedWrites ownedWrites) {
+        this.keyValueStore = keyValueStore;
+        this.connectionPool = connectionPool;
+        this.nodeId = nodeId;
+        this.port = port;
+        this.ownsToken = ownsToken;
+        this.nextHop = nextHop;
+        this.ownedWrites = (ownedWrites != null) ? ownedWrites : this::writeLocally;
+    }
+
+    /**
+     * Run the batch and return its reply: per key the value (MGET) or "OK" when it was inserted / deleted,
+     * null otherwise. Keys whose owner could not be reached are null as well and reported in the reply value.
+     */
+    public Message execute(Message request) {
+        NameServerFunctions function = request.getFunction();
+        String[] keys = request.getBatchKeys();
+        String[] values = request.getBatchValues();
+        String[] results = new String[keys.length];
+
+        // Bucket the keys by destination: a counting sort over the distinct next hops, which are few
+        List<NodeInfo> destinations = new ArrayList<>();
+        int[] destinationOf = new int[keys.length];     // -1 local, -2 unroutable, otherwise index into destinations
+        List<Integer> counts = new ArrayList<>();
+        int unroutable = 0;
+        for (int i = 0; i < keys.length; i++) {
+            long token = KeyHash.token(keys[i]);
+            if (ownsToken.test(token)) {
+                destinationOf[i] = -1;
+                continue;
+            }
+            NodeInfo next = nextHop.apply(token);
+            if (next == null) {
+                destinationOf[i] = -2;
+                unroutable++;
+                continue;
+            }
+            int index = indexOf(destinations, next);
+            if (index == -1) {
+                index = destinations.size();
+                destinations.add(next);
+                counts.add(0);
+            }
+            destinationOf[i] = index;
+            counts.set(index, counts.get(index) + 1);
+        }
+        int[][] positions = new int[destinations.size()][];
+        for (int d = 0; d < positions.length; d++)
+            positions[d] = new int[counts.get(d)];
+        int[] filled = new int[positions.length];
+        for (int i = 0; i < keys.length; i++) {
+            int d = destinationOf[i];
+            if (d >= 0) positions[d][filled[d]++] = i;
+        }
+
+        // Send every sub-batch before touching the local store so the remote work overlaps with it
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        List<Integer> pendingSizes = new ArrayList<>();
+        for (int d = 0; d < positions.length; d++) {
+            for (int from = 0; from < positions[d].length; from += MAX_KEYS_PER_REQUEST) {
+                int[] chunk = Arrays.copyOfRange(positions[d], from, Math.min(positions[d].length, from + MAX_KEYS_PER_REQUEST));
+                pending.add(send(destinations.get(d), function, chunk, keys, values, results));
+                pendingSizes.add(chunk.length);
+            }
+        }
+
+        int owned = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (destinationOf[i] != -1) continue;
+            if (function == NameServerFunctions.MGET) results[i] = keyValueStore.lookup(keys[i]);
+            owned++;
+        }
+        if (owned > 0 && function != NameServerFunctions.MGET) {
+            int[] ownedPositions = new int[owned];
+            String[] ownedKeys = new String[owned];
+            String[] ownedValues = new String[owned];
+            owned = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (destinationOf[i] != -1) continue;
+                ownedPositions[owned] = i;
+                ownedKeys[owned] = keys[i];
+                ownedValues[owned++] = (values == null) ? null : values[i];
+            }
+            String[] ownedResults = ownedWrites.apply(function, ownedKeys, ownedValues);
+            for (int j = 0; j < owned; j++) results[ownedPositions[j]] = ownedResults[j];
+        }
+
+        int failed = 0;
+        String lastError = null;
+        for (int c = 0; c < pending.size(); c++) {
+            try {
+                pending.get(c).join();
+            } catch (CompletionException e) {
+                failed += pendingSizes.get(c);
+                lastError = e.getCause().getMessage();
+            }
+        }
+
+        String error = null;
+        if (failed > 0) error = "Error forwarding " + failed + " keys: " + lastError;
+        if (unroutable > 0) error = (error == null ? "" : error + "; ") + unroutable + " keys have no route";
+        return request.batchReply(results, error);
+    }
+
+    private CompletableFuture<Void> send(NodeInfo destination, NameServerFunctions function, int[] chunk,
+                                         String[] keys, String[] values, String[] results) {
+        String[] subKeys = new String[chunk.length];
+        String[] subValues = (values == null) ? null : new String[chunk.length];
+        for (int j = 0; j < chunk.length; j++) {
+            subKeys[j] = keys[chunk[j]];
+            if (values != null) subValues[j] = values[chunk[j]];
+        }
+        Message subBatch = Message.batch(function, nodeId, port, subKeys, subValues);
+        // Runs on the connection's reader thread: only copies results into slots no other sub-batch writes
+        return connectionPool.requestAsync(destination, subBatch).thenAccept(reply -> {
+            String[] subResults = reply.getBatchValues();
+            if (subResults == null || subResults.length != chunk.length)
+                throw new IllegalStateException("Invalid batch reply from " + destination.getIp() + ":" + destination.getPort());
+            for (int j = 0; j < chunk.length; j++)
+                results[chunk[j]] = subResults[j];
+        });
+    }
+
+    // The writes of a node that does not replicate
+    private String[] writeLocally(NameServerFunctions function, String[] keys, String[] values) {
+        String[] results = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            boolean applied;
+            switch (function) {
+                case MINSERT:
+                    applied = values[i] != null && keyValueStore.insert(keys[i], values[i]) == 0;
+                    break;
+                case MDELETE:
+                    applied = keyValueStore.delete(keys[i]) == 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a batch write: " + function);
+            }
+            results[i] = applied ? APPLIED : null;
+        }
+        return results;
+    }
+
+    private static int indexOf(List<NodeInfo> destinations, NodeInfo node) {
+        for (int i = 0; i < destinations.size(); i++) {
+            if (RingSnapshot.sameNode(destinations.get(i), node)) return i;
+        }
+        return -1;
+    }
+}
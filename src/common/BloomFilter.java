@@ -0,0 +1,89 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of keys: a key sets HASHES bits picked from its KeyHash token by double hashing, and a key
+ * with any of its bits clear was never added. Sized at BITS_PER_KEY bits per expected key, which keeps false
+ * positives near 1% up to that many keys. Bits are set with CAS, so adds and reads may run concurrently.
+ * This is the form sent to other nodes; a node's own filter is a CountingBloomFilter, which can also
+ * remove keys, and toBloomFilter gives its bits.
+ */
+public class BloomFilter {
+    static final int BITS_PER_KEY = 10;
+    static final int HASHES = 7;
+
+    private final AtomicLongArray words;
+    private final int mask;
+
+    public BloomFilter(int expectedKeys) {
+        this(new AtomicLongArray(size(expectedKeys) / 64));
+    }
+
+    BloomFilter(AtomicLongArray words) {
+        this.words = words;
+        mask = words.length() * 64 - 1;
+    }
+
+    // The filter whose bits toBytes wrote
+    public static BloomFilter fromBytes(byte[] bytes) {
+        if (bytes.length < 8 || Integer.bitCount(bytes.length) != 1)
+            throw new IllegalArgumentException("Bloom filter of " + bytes.length + " bytes");
+        AtomicLongArray words = new AtomicLongArray(bytes.length / 8);
+        for (int i = 0; i < words.length(); i++) {
+            long word = 0;
+            for (int b = 7; b >= 0; b--) word = (word << 8) | (bytes[i * 8 + b] & 0xFF);
+            words.set(i, word);
+        }
+        return new BloomFilter(words);
+    }
+
+    public void add(String key) {
+        long token = KeyHash.token(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(token, i, mask);
+            long word;
+            do {
+                word = words.get(bit >>> 6);
+            } while ((word & (1L << bit)) == 0 && !words.compareAndSet(bit >>> 6, word, word | (1L << bit)));
+        }
+    }
+
+    // False only if the key was never added
+    public boolean mightContain(String key) {
+        long token = KeyHash.token(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(token, i, mask);
+            if ((words.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    // The bits, little-endian words
+    public byte[] toBytes() {
+        byte[] bytes = new byte[words.length() * 8];
+        for (int i = 0; i < words.length(); i++) {
+            long word = words.get(i);
+            for (int b = 0; b < 8; b++) bytes[i * 8 + b] = (byte) (word >>> (b * 8));
+        }
+        return bytes;
+    }
+
+    public int sizeInBytes() {
+        return words.length() * 8;
+    }
+
+    // Positions per filter: a power of two of at least BITS_PER_KEY per expected key, and at least one word
+    static int size(int expectedKeys) {
+        long positions = Math.max(64, (long) expectedKeys * BITS_PER_KEY);
+        if (positions > 1 << 30) throw new IllegalArgumentException("Bloom filter for " + expectedKeys + " keys is too large");
+        return Integer.highestOneBit((int) positions - 1) << 1;
+    }
+
+    // The i-th position of a token: h1 + i * h2 over the token's halves, h2 odd so the positions differ
+    static int index(long token, int i, int mask) {
+        int h1 = (int) (token >>> 32);
+        int h2 = (int) token | 1;
+        return (h1 + i * h2) & mask;
+    }
+}
@@ -0,0 +1,164 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A store that keeps a CountingBloomFilter of its keys, so a lookup of a key it does not have is answered
+ * from the filter without probing the store, and other nodes can fetch the filter (see RemoteFilters) to
+ * answer misses for keys this node would hold without asking it.
+ * Every change goes through here, client writes, replica copies, key transfers and recovery alike, and is
+ * applied to the filter under a stripe lock of the key's token, so the filter counts each stored key once.
+ * A range delete holds the locks of the arcs it touches and removes each key from the filter as it goes.
+ * The filter is sized for the keys the store holds when it is wrapped, and at least expectedKeys; once the
+ * store holds more keys than that, the filter is rebuilt at twice the size under every arc lock, so false
+ * positives stay near 1% however many keys arrive, at the cost of one pause per doubling.
+ * A listener hears of each key whose insert set new bits, which is when other nodes' copies must learn of it.
+ */
+public class BloomKeyValueStore implements KeyValueStore {
+    public static final int DEFAULT_EXPECTED_KEYS = 1 << 18;
+    private static final int MAX_EXPECTED_KEYS = 1 << 26;          // 640M counters, 320 MB
+    private static final Range EVERY_TOKEN = new Range(0, Range.MAX_TOKEN);
+
+    private final KeyValueStore store;
+    private final ArcLocks locks = new ArcLocks();
+    private final AtomicInteger keys = new AtomicInteger();
+    private volatile CountingBloomFilter filter;                   // Replaced only under every arc lock
+    private volatile int capacity;
+    private volatile Consumer<String> onNewBits = key -> { };
+
+    public BloomKeyValueStore(KeyValueStore store) {
+        this(store, DEFAULT_EXPECTED_KEYS);
+    }
+
+    // Adds the keys the wrapped store already holds, e.g. recovered from its data directory
+    public BloomKeyValueStore(KeyValueStore store, int expectedKeys) {
+        this.store = store;
+        store.forEach((token, key, value) -> keys.incrementAndGet());
+        capacity = expectedKeys;
+        while (capacity < keys.get() && capacity < MAX_EXPECTED_KEYS) capacity *= 2;
+        filter = filled(capacity);
+    }
+
+    public void setNewBitsListener(Consumer<String> listener) {
+        onNewBits = listener;
+    }
+
+    @Override
+    public int insert(String key, String value) {
+        boolean newBits;
+        ReentrantLock lock = locks.lockFor(KeyHash.token(key));
+        lock.lock();
+        try {
+            if (store.insert(key, value) != 0) return -1;
+            newBits = filter.add(key);
+        } finally {
+            lock.unlock();
+        }
+        if (keys.incrementAndGet() > capacity) grow();
+        if (newBits) onNewBits.accept(key);
+        return 0;
+    }
+
+    // Only a key that was absent is added to the filter, which counts each stored key once
+    @Override
+    public int put(String key, String value) {
+        boolean newBits = false;
+        int result;
+        ReentrantLock lock = locks.lockFor(KeyHash.token(key));
+        lock.lock();
+        try {
+            result = store.put(key, value);
+            if (result == 0) newBits = filter.add(key);
+        } finally {
+            lock.unlock();
+        }
+        if (result == 0 && keys.incrementAndGet() > capacity) grow();
+        if (newBits) onNewBits.accept(key);
+        return result;
+    }
+
+    @Override
+    public String lookup(String key) {
+        return filter.mightContain(key) ? store.lookup(key) : null;
+    }
+
+    @Override
+    public int delete(String key) {
+        ReentrantLock lock = locks.lockFor(KeyHash.token(key));
+        lock.lock();
+        try {
+            if (store.delete(key) != 0) return -1;
+            filter.remove(key);
+            keys.decrementAndGet();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void print_keys() {
+        store.print_keys();
+    }
+
+    @Override
+    public void forEachInRange(Range range, EntryConsumer consumer) {
+        store.forEachInRange(range, consumer);
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        store.forEach(consumer);
+    }
+
+    @Override
+    public int deleteRange(Range range) {
+        locks.lockRange(range);
+        try {
+            // No write can reach the range meanwhile, so every key removed here is one the store deletes
+            CountingBloomFilter current = filter;
+            store.forEachInRange(range, (token, key, value) -> current.remove(key));
+            int removed = store.deleteRange(range);
+            keys.addAndGet(-removed);
+            return removed;
+        } finally {
+            locks.unlockRange(range);
+        }
+    }
+
+    // False only if the store does not have the key
+    public boolean mightContain(String key) {
+        return filter.mightContain(key);
+    }
+
+    // The filter's bits as other nodes keep them
+    public BloomFilter toBloomFilter() {
+        return filter.toBloomFilter();
+    }
+
+    /**
+     * Double the filter until it is sized for the keys held, refilling it from the store with every write
+     * stopped. Lookups keep using the old filter, which is exact while no write runs. A copy another node
+     * took of the smaller filter stays right: each position there is a position here folded onto fewer bits.
+     */
+    private void grow() {
+        locks.lockRange(EVERY_TOKEN);
+        try {
+            if (keys.get() <= capacity || capacity >= MAX_EXPECTED_KEYS) return;
+            int grown = capacity;
+            while (grown < keys.get() && grown < MAX_EXPECTED_KEYS) grown *= 2;
+            filter = filled(grown);
+            capacity = grown;
+        } finally {
+            locks.unlockRange(EVERY_TOKEN);
+        }
+    }
+
+    private CountingBloomFilter filled(int expectedKeys) {
+        CountingBloomFilter filled = new CountingBloomFilter(expectedKeys);
+        store.forEach((token, key, value) -> filled.add(key));
+        return filled;
+    }
+}
@@ -0,0 +1,100 @@
+package common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consistent hashing with bounded loads (Mirrokni, Thorup and Zadimoghaddam) over the token ring.
+ * A node may hold at most (1 + epsilon) times the average load, scaled by its share of the tokens, so a node
+ * with twice the tokens (twice the weight) gets twice the capacity. Walking the ring, the keys of each
+ * token's range go to the token's node while it has room; the rest overflows to the next node clockwise
+ * that has room. Load is measured as the share of the token space a node holds, which is its expected share
+ * of the keys as KeyHash spreads keys uniformly. The placement only depends on the tokens and their owners,
+ * so the bootstrap and every name server derive the same one from the same ring.
+ */
+public final class BoundedLoad {
+    private static final double RING = 0x1p64;
+
+    private BoundedLoad() {
+    }
+
+    /**
+     * Place the ring with the given tokens, ascending in unsigned order, and the physical node owning each.
+     * Returns flat (token, owner) pairs in ascending unsigned token order, read like the entries of a plain
+     * ring: each pair owns the tokens after the previous pair's token up to its own.
+     */
+    public static long[] place(long[] tokens, long[] owners, double epsilon) {
+        int n = tokens.length;
+        if (epsilon <= 0 || n <= 1) return pairs(tokens, owners);
+
+        Map<Long, Double> capacity = new HashMap<>();
+        for (long owner : owners) capacity.merge(owner, (1 + epsilon) * RING / n, Double::sum);
+        Map<Long, Double> load = new HashMap<>();
+
+        List<long[]> pieces = new ArrayList<>();                // (end, owner) of every placed piece
+        ArrayDeque<long[]> overflow = new ArrayDeque<>();       // (start, end, token index) waiting for room
+        // The first pass offers each range to its own node; the second carries what overflowed past the last token
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < n; i++) {
+                if (pass == 0) overflow.addLast(new long[] {tokens[(i + n - 1) % n] + 1, tokens[i], i});
+                long owner = owners[i];
+                double room = capacity.get(owner) - load.getOrDefault(owner, 0.0);
+                while (!overflow.isEmpty() && room >= 1) {
+                    long[] piece = overflow.peekFirst();
+                    double size = size(piece[0], piece[1]);
+                    if (size <= room) {
+                        pieces.add(new long[] {piece[1], owner});
+                        overflow.pollFirst();
+                        room -= size;
+                    } else {
+                        long cut = piece[0] + toUnsigned(Math.floor(room)) - 1;     // Keys up to the cut still fit
+                        pieces.add(new long[] {cut, owner});
+                        piece[0] = cut + 1;
+                        room = 0;
+                    }
+                }
+                load.put(owner, capacity.get(owner) - room);
+            }
+        }
+        // Only rounding can leave anything over; it stays with the token's own node
+        for (long[] piece : overflow) pieces.add(new long[] {piece[1], owners[(int) piece[2]]});
+
+        pieces.sort((a, b) -> Long.compareUnsigned(a[0], b[0]));
+        // A piece followed by one of the same node needs no entry of its own
+        List<long[]> entries = new ArrayList<>();
+        for (int k = 0; k < pieces.size(); k++) {
+            if (pieces.get(k)[1] != pieces.get((k + 1) % pieces.size())[1]) entries.add(pieces.get(k));
+        }
+        if (entries.isEmpty()) entries.add(pieces.get(pieces.size() - 1));
+
+        long[] placed = new long[2 * entries.size()];
+        for (int k = 0; k < entries.size(); k++) {
+            placed[2 * k] = entries.get(k)[0];
+            placed[2 * k + 1] = entries.get(k)[1];
+        }
+        return placed;
+    }
+
+    private static long[] pairs(long[] tokens, long[] owners) {
+        long[] placed = new long[2 * tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            placed[2 * i] = tokens[i];
+            placed[2 * i + 1] = owners[i];
+        }
+        return placed;
+    }
+
+    // Number of tokens from start to end inclusive, wrapping past the top of the ring
+    private static double size(long start, long end) {
+        long span = end - start;
+        return (span < 0 ? span + RING : span) + 1;
+    }
+
+    // A whole number of tokens below 2^64 as an unsigned long
+    private static long toUnsigned(double tokens) {
+        return (tokens >= 0x1p63) ? (long) (tokens - 0x1p63) ^ Long.MIN_VALUE : (long) tokens;
+    }
+}
@@ -0,0 +1,201 @@
+package common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The serving side of the entry nodes' read caches: a node that answers a lookup another node forwarded
+ * remembers who asked, and once it writes the key (as owner, as replica applying a copied write, or in a
+ * batch) it sends each of them an INVALIDATE for it and forgets them until they read the key again.
+ * Only entry nodes with a read cache give their port when they forward a lookup, so only they are registered.
+ * The asker is registered before the value is read, so a write racing with the read always invalidates it.
+ * Invalidations go out in order on one background thread and are not waited for. A key read by more than
+ * MAX_READERS_PER_KEY nodes is invalidated at every known reader instead of tracking each of them. At most
+ * MAX_TRACKED_READS (key, reader) pairs are tracked; beyond that every known reader is told to drop its whole
+ * cache and tracking starts over.
+ * Nodes that fetched this node's Bloom filter are sent, on a thread of their own, the keys that set new bits
+ * in it and every key a client inserts here: keys queued while a batch is out go together in the next one, up
+ * to FILTER_BATCH per message, so a burst of inserts costs each filter reader a few messages rather than one
+ * per key. A client's insert is answered only once its key reached every copy (awaitAdded), so no copy
+ * answers a miss for a key whose insert was acknowledged. A copy is trusted only for RemoteFilters.LEASE_MILLIS
+ * after it last heard from here, so an idle filter is renewed with empty batches; a reader a batch cannot
+ * reach is dropped, and inserts are held until the lease of the copy it holds has run out.
+ */
+public class CacheInvalidator {
+    private static final int MAX_TRACKED_READS = 100_000;
+    private static final int MAX_READERS_PER_KEY = 16;
+    private static final int FILTER_BATCH = 1000;
+    private static final long RENEW_MILLIS = RemoteFilters.LEASE_MILLIS / 4;
+    private static final Log log = Log.get("cache");
+
+    private final ConnectionPool connectionPool;
+    private final long nodeId;
+    private final int port;
+    private final ConcurrentHashMap<String, Map<String, NodeInfo>> readers = new ConcurrentHashMap<>();
+    private final Map<String, NodeInfo> knownReaders = new ConcurrentHashMap<>();   // Also the readers of a widely read key
+    private final AtomicInteger trackedReads = new AtomicInteger();
+    private final Map<String, NodeInfo> filterReaders = new ConcurrentHashMap<>();
+    private List<String> addedKeys = new ArrayList<>();            // Guarded by this, as are the two counts
+    private long queuedKeys;
+    private long sentKeys;
+    private volatile boolean sentSinceRenewal;
+    private volatile long heldUntil = System.nanoTime();            // A dropped reader may trust its copy until then
+    private final AtomicBoolean additionsScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "cache-invalidator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService filterSender = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "filter-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CacheInvalidator(ConnectionPool connectionPool, long nodeId, int port) {
+        this.connectionPool = connectionPool;
+        this.nodeId = nodeId;
+        this.port = port;
+        filterSender.scheduleWithFixedDelay(this::renewLeases, RENEW_MILLIS, RENEW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Remember the node that asked for the key; a request without a port came from a client, which caches nothing
+    public void registerReader(String key, String ip, int readerPort) {
+        if (readerPort == 0) return;
+        String address = ip + ":" + readerPort;
+        NodeInfo reader = knownReaders.computeIfAbsent(address, a -> new NodeInfo(0, ip, readerPort));
+        if (trackedReads.get() >= MAX_TRACKED_READS && !readers.containsKey(key)) {
+            readers.clear();
+            trackedReads.set(0);
+            for (NodeInfo known : knownReaders.values()) send(known, null);
+        }
+        readers.compute(key, (k, keyReaders) -> {     // Atomic with written's remove, so no registration is lost
+            if (keyReaders == knownReaders) return keyReaders;
+            if (keyReaders == null) keyReaders = new ConcurrentHashMap<>();
+            if (keyReaders.size() >= MAX_READERS_PER_KEY && !keyReaders.containsKey(address)) {
+                trackedReads.addAndGet(1 - keyReaders.size());
+                return knownReaders;
+            }
+            if (keyReaders.put(address, reader) == null) trackedReads.incrementAndGet();
+            return keyReaders;
+        });
+    }
+
+    // The key was written here: invalidate it at every node that read it since the last write
+    public void written(String key) {
+        Map<String, NodeInfo> keyReaders = readers.remove(key);
+        if (keyReaders == null) return;
+        trackedReads.addAndGet((keyReaders == knownReaders) ? -1 : -keyReaders.size());
+        for (NodeInfo reader : keyReaders.values()) send(reader, key);
+    }
+
+    public void written(String[] keys) {
+        for (String key : keys) written(key);
+    }
+
+    // Remember a node that fetched the Bloom filter; registered before the filter is read, as for lookups
+    public void registerFilterReader(String ip, int readerPort) {
+        if (readerPort != 0) filterReaders.putIfAbsent(ip + ":" + readerPort, new NodeInfo(0, ip, readerPort));
+    }
+
+    // The key set new bits in this node's Bloom filter: add it to every copy with the next batch
+    public void added(String key) {
+        if (!filterReaders.isEmpty()) queue(key);
+    }
+
+    // A client inserted the keys here: wait until every copy of the filter has them, before answering
+    public void awaitAdded(String... keys) {
+        if (!filterReaders.isEmpty() && keys.length > 0) {
+            long ticket = 0;
+            for (String key : keys) ticket = queue(key);
+            try {
+                synchronized (this) {
+                    while (sentKeys < ticket) wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long held = heldUntil - System.nanoTime();         // Read after the readers, as it is set before a drop
+        if (held > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(held);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long queue(String key) {
+        long ticket;
+        synchronized (this) {
+            addedKeys.add(key);
+            ticket = ++queuedKeys;
+        }
+        if (additionsScheduled.compareAndSet(false, true)) filterSender.execute(this::sendAdded);
+        return ticket;
+    }
+
+    // Send the keys added since the last batch to every copy; a node that cannot be reached is dropped
+    private void sendAdded() {
+        additionsScheduled.set(false);                  // Keys added from here on schedule the next batch
+        List<String> keys;
+        long ticket;
+        synchronized (this) {
+            keys = addedKeys;
+            addedKeys = new ArrayList<>();
+            ticket = queuedKeys;
+        }
+        for (int from = 0; from < keys.size(); from += FILTER_BATCH) {
+            sendFilterBatch(keys.subList(from, Math.min(keys.size(), from + FILTER_BATCH)).toArray(new String[0]));
+        }
+        sentSinceRenewal = true;
+        synchronized (this) {
+            sentKeys = ticket;
+            notifyAll();
+        }
+    }
+
+    // An empty batch renews the lease of every copy that heard nothing since the last renewal
+    private void renewLeases() {
+        if (!sentSinceRenewal && !filterReaders.isEmpty()) sendFilterBatch(new String[0]);
+        sentSinceRenewal = false;
+    }
+
+    private void sendFilterBatch(String[] batch) {
+        Message addition = Message.batch(NameServerFunctions.FILTER, nodeId, port, batch, null);
+        for (Map.Entry<String, NodeInfo> entry : filterReaders.entrySet()) {
+            NodeInfo reader = entry.getValue();
+            try {
+                connectionPool.request(reader.getIp(), reader.getPort(), addition, RemoteFilters.LEASE_MILLIS / 2);
+            } catch (IOException e) {
+                // Whatever reached it arrived before now, so its copy lapses within a lease from now
+                heldUntil = Math.max(heldUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RemoteFilters.LEASE_MILLIS));
+                filterReaders.remove(entry.getKey(), reader);
+                log.warn("Filter update of {} keys to {} failed: {}", batch.length, entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    // A null key drops the reader's whole cache
+    private void send(NodeInfo reader, String key) {
+        Message invalidation = (key == null) ? Message.request(NameServerFunctions.INVALIDATE, nodeId, port)
+                : Message.request(NameServerFunctions.INVALIDATE, nodeId, port, key);
+        sender.execute(() -> {
+            try {
+                connectionPool.request(reader, invalidation);
+            } catch (IOException e) {
+                log.warn("Invalidation of {} at {} failed: {}", key, reader.getIp() + ":" + reader.getPort(), e.getMessage());
+            }
+        });
+    }
+}
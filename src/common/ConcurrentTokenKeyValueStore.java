@@ -0,0 +1,371 @@
+package common;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent string-keyed store split into independently locked stripes.
+ * Each stripe is an ordered open-addressing table indexed by key token (as in TokenKeyValueStore) guarded by
+ * a StampedLock: lookups run as optimistic reads without taking the lock and only fall back to a read lock
+ * when a writer on the same stripe interfered, while insert and delete take the stripe's write lock, so
+ * insert-if-absent stays atomic and writers on different stripes never contend.
+ * The top bits of a token pick its stripe, so each stripe holds one contiguous arc of the ring and a range
+ * operation only locks and reads the stripes whose arcs the range touches, from its start.
+ */
+public class ConcurrentTokenKeyValueStore implements KeyValueStore {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int DEFAULT_EXPECTED_KEYS = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final int OVERFLOW_SLOTS = 64;
+
+    private final Stripe[] stripes;
+    private final int stripeBits;
+
+    public ConcurrentTokenKeyValueStore() {
+        this(DEFAULT_EXPECTED_KEYS, DEFAULT_STRIPES);
+    }
+
+    public ConcurrentTokenKeyValueStore(int expectedKeys, int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;     // Round up to a power of two
+        stripeBits = Integer.numberOfTrailingZeros(count);
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe(Math.max(1, expectedKeys / count), stripeBits);
+    }
+
+    @Override
+    public int insert(String key, String value) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).insert(token, key, value);
+    }
+
+    @Override
+    public int put(String key, String value) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).put(token, key, value);
+    }
+
+    @Override
+    public String lookup(String key) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).lookup(token, key);
+    }
+
+    @Override
+    public int delete(String key) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).delete(token, key);
+    }
+
+    @Override
+    public void print_keys() {
+        forEach((token, key, value) -> System.out.println("Key: " + key + ", Value: " + value));
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        visit(0, Range.MAX_TOKEN, consumer);
+    }
+
+    @Override
+    public void forEachInRange(Range range, EntryConsumer consumer) {
+        if (range.isWrapping()) {
+            visit(0, range.getEnd(), consumer);
+            visit(range.getStart(), Range.MAX_TOKEN, consumer);
+        } else {
+            visit(range.getStart(), range.getEnd(), consumer);
+        }
+    }
+
+    @Override
+    public int deleteRange(Range range) {
+        if (!range.isWrapping()) return deleteBetween(range.getStart(), range.getEnd());
+        return deleteBetween(0, range.getEnd()) + deleteBetween(range.getStart(), Range.MAX_TOKEN);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    // The stripes the tokens from..to (unsigned, from <= to) touch, in order, each a chunk at a time under its read lock
+    private void visit(long from, long to, EntryConsumer consumer) {
+        EntryBuffer chunk = new EntryBuffer();
+        for (int i = stripeIndex(from); i <= stripeIndex(to); i++) {
+            Stripe stripe = stripes[i];
+            long next = fromIn(i, from);
+            long last = toIn(i, to);
+            while (true) {
+                boolean full;
+                long stamp = stripe.lock.readLock();
+                try {
+                    full = stripe.collect(next, last, chunk);
+                } finally {
+                    stripe.lock.unlockRead(stamp);
+                }
+                if (full) next = chunk.lastToken() + 1;
+                chunk.drain(consumer);
+                if (!full) break;
+            }
+        }
+    }
+
+    private int deleteBetween(long from, long to) {
+        int removed = 0;
+        for (int i = stripeIndex(from); i <= stripeIndex(to); i++)
+            removed += stripes[i].deleteBetween(fromIn(i, from), toIn(i, to));
+        return removed;
+    }
+
+    private Stripe stripeFor(long token) {
+        return stripes[stripeIndex(token)];
+    }
+
+    // The top stripeBits of the token, shifted in two steps as a shift by 64 would shift by 0
+    private int stripeIndex(long token) {
+        return (int) (token >>> 1 >>> (63 - stripeBits));
+    }
+
+    // The part of from..to in a stripe the tokens touch: from in the first such stripe, else the arc's start
+    private long fromIn(int stripe, long from) {
+        if (stripe == stripeIndex(from)) return from;
+        return (long) stripe << (64 - stripeBits);        // stripeBits > 0 here, as there are several stripes
+    }
+
+    private long toIn(int stripe, long to) {
+        if (stripe == stripeIndex(to)) return to;
+        return ((long) stripe << (64 - stripeBits)) | (Range.MAX_TOKEN >>> stripeBits);
+    }
+
+    // Arrays and shift published together, so an optimistic reader always probes a consistent table
+    private static final class Table {
+        final long[] tokens;
+        final String[] keys;
+        final String[] values;
+        final int stripeBits;
+        final int shift;
+
+        Table(int capacity, int stripeBits) {
+            tokens = new long[capacity + OVERFLOW_SLOTS];
+            keys = new String[capacity + OVERFLOW_SLOTS];
+            values = new String[capacity + OVERFLOW_SLOTS];
+            this.stripeBits = stripeBits;
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        // The token's bits below those that picked the stripe, top ones first
+        int homeOf(long token) {
+            return (int) ((token << stripeBits) >>> shift);
+        }
+
+        int capacity() {
+            return tokens.length - OVERFLOW_SLOTS;
+        }
+    }
+
+    private static final class Stripe {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table;
+        private int size;
+        private int resizeAt;
+
+        Stripe(int expectedKeys, int stripeBits) {
+            int capacity = Integer.highestOneBit(Math.max(16, (int) Math.ceil(expectedKeys / LOAD_FACTOR)) - 1) << 1;
+            table = new Table(capacity, stripeBits);
+            resizeAt = (int) (capacity * LOAD_FACTOR);
+        }
+
+        String lookup(long token, String key) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                String value = probe(table, token, key);
+                if (lock.validate(stamp)) return value;
+            }
+            stamp = lock.readLock();                    // A writer got in the way, retry under the read lock
+            try {
+                return probe(table, token, key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Bounded by the table length so a probe racing with a writer always terminates;
+        // key.equals tolerates a slot a racing delete has just cleared
+        private static String probe(Table table, long token, String key) {
+            long[] tokens = table.tokens;
+            String[] keys = table.keys;
+            String[] values = table.values;
+            for (int slot = table.homeOf(token); slot < values.length; slot++) {
+                String value = values[slot];
+                if (value == null) return null;
+                if (tokens[slot] == token && key.equals(keys[slot])) return value;
+                if (Long.compareUnsigned(tokens[slot], token) > 0) return null;
+            }
+            return null;
+        }
+
+        int insert(long token, String key, String value) {
+            long stamp = lock.writeLock();
+            try {
+                return insertLocked(token, key, value);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // A single store of the value reference, so an optimistic reader sees the old value or the new one
+        int put(long token, String key, String value) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                for (int slot = t.homeOf(token); slot < t.values.length && t.values[slot] != null; slot++) {
+                    if (t.tokens[slot] == token && key.equals(t.keys[slot])) {
+                        t.values[slot] = value;
+                        return 1;
+                    }
+                    if (Long.compareUnsigned(t.tokens[slot], token) > 0) break;
+                }
+                return insertLocked(token, key, value);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Ordered insert, see TokenKeyValueStore
+        private int insertLocked(long token, String key, String value) {
+            while (true) {
+                Table t = table;
+                int slot = t.homeOf(token);
+                while (slot < t.values.length && t.values[slot] != null && Long.compareUnsigned(t.tokens[slot], token) <= 0) {
+                    if (t.tokens[slot] == token && key.equals(t.keys[slot])) return -1;    // Key already exists
+                    slot++;
+                }
+                int free = slot;
+                while (free < t.values.length && t.values[free] != null) free++;
+                if (free == t.values.length) {
+                    resize();
+                    continue;
+                }
+                System.arraycopy(t.tokens, slot, t.tokens, slot + 1, free - slot);
+                System.arraycopy(t.keys, slot, t.keys, slot + 1, free - slot);
+                System.arraycopy(t.values, slot, t.values, slot + 1, free - slot);
+                t.tokens[slot] = token;
+                t.keys[slot] = key;
+                t.values[slot] = value;
+                if (++size > resizeAt) resize();
+                return 0;
+            }
+        }
+
+        int delete(long token, String key) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                for (int slot = t.homeOf(token); slot < t.values.length && t.values[slot] != null; slot++) {
+                    if (t.tokens[slot] == token && key.equals(t.keys[slot])) {
+                        removeAt(t, slot);
+                        size--;
+                        return 0;
+                    }
+                    if (Long.compareUnsigned(t.tokens[slot], token) > 0) break;
+                }
+                return -1;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Copy a chunk of the entries with tokens from..to of this stripe's arc, under the caller's read lock;
+        // see TokenKeyValueStore
+        boolean collect(long from, long to, EntryBuffer chunk) {
+            Table t = table;
+            int last = t.homeOf(to);
+            for (int slot = t.homeOf(from); slot < t.values.length; slot++) {
+                String value = t.values[slot];
+                if (value == null) {
+                    if (slot >= last) return false;
+                    continue;
+                }
+                long token = t.tokens[slot];
+                if (Long.compareUnsigned(token, to) > 0) return false;
+                if (Long.compareUnsigned(token, from) < 0) continue;
+                if (chunk.isFullBefore(token)) return true;
+                chunk.add(token, t.keys[slot], value);
+            }
+            return false;
+        }
+
+        // Remove the keys with tokens from..to of this stripe's arc under a single write lock acquisition
+        int deleteBetween(long from, long to) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int last = t.homeOf(to);
+                int removed = 0;
+                for (int slot = t.homeOf(from); slot < t.values.length; ) {
+                    if (t.values[slot] == null) {
+                        if (slot >= last) break;
+                        slot++;
+                        continue;
+                    }
+                    long token = t.tokens[slot];
+                    if (Long.compareUnsigned(token, to) > 0) break;
+                    if (Long.compareUnsigned(token, from) >= 0) {
+                        removeAt(t, slot);                  // The shift may bring the next entry into this slot
+                        removed++;
+                    } else {
+                        slot++;
+                    }
+                }
+                size -= removed;
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Backward-shift deletion, see TokenKeyValueStore
+        private static void removeAt(Table t, int gap) {
+            int end = gap + 1;
+            while (end < t.values.length && t.values[end] != null && t.homeOf(t.tokens[end]) < end) end++;
+            System.arraycopy(t.tokens, gap + 1, t.tokens, gap, end - gap - 1);
+            System.arraycopy(t.keys, gap + 1, t.keys, gap, end - gap - 1);
+            System.arraycopy(t.values, gap + 1, t.values, gap, end - gap - 1);
+            t.values[end - 1] = null;
+            t.keys[end - 1] = null;
+        }
+
+        // Double the home slots, refilling in order as in TokenKeyValueStore
+        private void resize() {
+            Table old = table;
+            for (int capacity = old.capacity() << 1; ; capacity <<= 1) {
+                Table grown = refill(old, new Table(capacity, old.stripeBits));
+                if (grown == null) continue;
+                resizeAt = (int) (grown.capacity() * LOAD_FACTOR);
+                table = grown;
+                return;
+            }
+        }
+
+        private static Table refill(Table old, Table grown) {
+            int next = 0;
+            for (int slot = 0; slot < old.values.length; slot++) {
+                if (old.values[slot] == null) continue;
+                int target = Math.max(grown.homeOf(old.tokens[slot]), next);
+                if (target == grown.values.length) return null;
+                grown.tokens[target] = old.tokens[slot];
+                grown.keys[target] = old.keys[slot];
+                grown.values[target] = old.values[slot];
+                next = target + 1;
+            }
+            return grown;
+        }
+    }
+}
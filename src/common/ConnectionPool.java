@@ -0,0 +1,202 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-peer pool of persistent connections.
+ * Request/reply traffic to a peer shares one multiplexed binary connection (see MultiplexedConnection), so any
+ * number of requests, including forwarded ones, can be in flight to the same neighbour at once.
+ * Key transfers open their own text connections.
+ * Connections are kept alive between requests and closed once they sit idle longer than the idle timeout,
+ * which is kept below the servers' read timeout so a pooled connection is normally still open when reused.
+ * A request that gets no reply within REQUEST_TIMEOUT_MS fails, unless the caller gives its own timeout.
+ * Connecting is bounded by CONNECT_TIMEOUT_MS and happens outside the pool's map, so an unreachable peer
+ * only holds up the callers that want it.
+ */
+public class ConnectionPool {
+    public static final int SERVER_IDLE_TIMEOUT_MS = 60000;    // Servers close connections idle for longer than this
+    public static final int REQUEST_TIMEOUT_MS = 30000;         // Below the servers' idle timeout
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    private final Map<String, MultiplexedConnection> connections = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+
+    public ConnectionPool() {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "connection-pool-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);           // Answered requests drop their timeouts right away
+        timer.scheduleWithFixedDelay(this::evictIdle, IDLE_TIMEOUT_MS / 3, IDLE_TIMEOUT_MS / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The shared connection to the peer, opened on first use or after the previous one broke.
+     */
+    public MultiplexedConnection acquire(String ip, int port) throws IOException {
+        String key = peerKey(ip, port);
+        MultiplexedConnection existing = connections.get(key);
+        if (existing != null && existing.isOpen()) return existing;
+        MultiplexedConnection opened = new MultiplexedConnection(ip, port);
+        MultiplexedConnection shared = connections.compute(key,
+                (peer, current) -> (current != null && current.isOpen()) ? current : opened);
+        if (shared != opened) opened.close();           // Another caller connected first
+        return shared;
+    }
+
+    /**
+     * Open a new text connection for a key transfer, which cannot be retried safely.
+     */
+    public Connection connect(String ip, int port) throws IOException {
+        return new Connection(ip, port);
+    }
+
+    // Text connections are used for a single transfer and closed afterwards
+    public void release(Connection connection) {
+        connection.close();
+    }
+
+    // Close a connection that failed or is in an unknown protocol state
+    public void invalidate(Connection connection) {
+        connection.close();
+    }
+
+    /**
+     * Send one request and wait for its reply.
+     * If a connection that had worked before turns out to be broken, a request that is safe to repeat is retried
+     * once on a new one. A write (INSERT, DELETE, a batch write, a join or exit) may have been applied before the
+     * connection broke, so its failure is returned instead.
+     */
+    public Message request(String ip, int port, Message request) throws IOException {
+        return request(ip, port, request, REQUEST_TIMEOUT_MS);
+    }
+
+    // Same as request(ip, port, request) but fails with a SocketTimeoutException if no reply arrives in time
+    public Message request(String ip, int port, Message request, int timeoutMillis) throws IOException {
+        MultiplexedConnection connection = acquire(ip, port);
+        try {
+            return connection.request(request, timeoutMillis);
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!connection.hasAnswered() || !isIdempotent(request.getFunction())) throw e;
+            return acquire(ip, port).request(request, timeoutMillis);   // Stale connection, e.g. closed by the peer
+        }
+    }
+
+    public Message request(NodeInfo node, Message request) throws IOException {
+        return request(node.getIp(), node.getPort(), request);
+    }
+
+    /**
+     * Send one request without waiting; the reply future completes on the connection's reader thread, or
+     * fails with a SocketTimeoutException if no reply arrives within REQUEST_TIMEOUT_MS.
+     */
+    public CompletableFuture<Message> requestAsync(NodeInfo node, Message request) {
+        CompletableFuture<Message> reply;
+        try {
+            reply = acquire(node.getIp(), node.getPort()).send(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (reply.isDone()) return reply;
+        ScheduledFuture<?> timeout = timer.schedule(() -> reply.completeExceptionally(new SocketTimeoutException(
+                "No reply from " + peerKey(node.getIp(), node.getPort()) + " within " + REQUEST_TIMEOUT_MS + " ms")),
+                REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        reply.whenComplete((message, error) -> timeout.cancel(false));
+        return reply;
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        for (Map.Entry<String, MultiplexedConnection> entry : connections.entrySet()) {
+            MultiplexedConnection connection = entry.getValue();
+            if (!connection.isOpen() || (connection.inFlight() == 0 && connection.getLastUsed() < cutoff)) {
+                connections.remove(entry.getKey(), connection);     // Only if it was not replaced meanwhile
+                connection.close();
+            }
+        }
+    }
+
+    public void closeAll() {
+        for (MultiplexedConnection connection : connections.values())
+            connection.close();
+        connections.clear();
+    }
+
+    private static String peerKey(String ip, int port) {
+        return ip + ":" + port;
+    }
+
+    // Requests that leave the same state when applied twice: reads, and writes that set rather than change
+    private static boolean isIdempotent(NameServerFunctions function) {
+        switch (function) {
+            case LOOKUP:
+            case MGET:
+            case RING:
+            case REPLICA_READ:
+            case REPLICATE:             // Version-stamped, a repeated copy is ignored
+            case FIND_SUCCESSOR:
+            case FINGERS:
+            case NEIGHBOR:
+            case PRINT:
+            case STATS:
+            case FILTER:
+            case INVALIDATE:
+            case UPDATE_SUCCESSOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        private Connection(String ip, int port) throws IOException {
+            this.socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        public BufferedReader getReader() {
+            return in;
+        }
+
+        public PrintWriter getWriter() {
+            return out;
+        }
+
+        public void setTimeout(int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+        }
+
+        private void close() {
+            try { socket.close(); } catch (IOException ignored) { }
+        }
+    }
+}
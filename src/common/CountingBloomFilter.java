@@ -0,0 +1,75 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter that can also remove keys: each position is a 4-bit counter instead of a bit, sixteen to a
+ * long, updated with CAS. A counter that reaches MAX_COUNT has lost its true count and stays there, so a
+ * removal never clears a position another key still needs; removing a key that was not added would, so
+ * callers remove only keys they added (see BloomKeyValueStore).
+ * Uses the positions of BloomFilter, so toBloomFilter is the filter other nodes get.
+ */
+public class CountingBloomFilter {
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray counters;
+    private final int mask;
+
+    public CountingBloomFilter(int expectedKeys) {
+        int positions = BloomFilter.size(expectedKeys);
+        counters = new AtomicLongArray(positions / 16);
+        mask = positions - 1;
+    }
+
+    // Returns true if a position went from zero to one, i.e. the key was not already in the filter
+    public boolean add(String key) {
+        long token = KeyHash.token(key);
+        boolean changed = false;
+        for (int i = 0; i < BloomFilter.HASHES; i++) {
+            if (update(BloomFilter.index(token, i, mask), 1) == 0) changed = true;
+        }
+        return changed;
+    }
+
+    public void remove(String key) {
+        long token = KeyHash.token(key);
+        for (int i = 0; i < BloomFilter.HASHES; i++) update(BloomFilter.index(token, i, mask), -1);
+    }
+
+    public boolean mightContain(String key) {
+        long token = KeyHash.token(key);
+        for (int i = 0; i < BloomFilter.HASHES; i++) {
+            if (count(BloomFilter.index(token, i, mask)) == 0) return false;
+        }
+        return true;
+    }
+
+    // A plain filter with a bit set wherever a counter is not zero
+    public BloomFilter toBloomFilter() {
+        AtomicLongArray words = new AtomicLongArray((mask + 1) / 64);
+        for (int position = 0; position <= mask; position++) {
+            if (count(position) != 0) words.set(position >>> 6, words.get(position >>> 6) | (1L << position));
+        }
+        return new BloomFilter(words);
+    }
+
+    public int sizeInBytes() {
+        return counters.length() * 8;
+    }
+
+    private int count(int position) {
+        return (int) (counters.get(position >>> 4) >>> ((position & 15) << 2)) & MAX_COUNT;
+    }
+
+    // Add delta (1 or -1) to a counter unless it is saturated or already zero; returns the count before
+    private int update(int position, int delta) {
+        int slot = position >>> 4;
+        int shift = (position & 15) << 2;
+        while (true) {
+            long word = counters.get(slot);
+            int count = (int) (word >>> shift) & MAX_COUNT;
+            if (count == MAX_COUNT || (delta < 0 && count == 0)) return count;
+            if (counters.compareAndSet(slot, word, word + ((long) delta << shift))) return count;
+        }
+    }
+}
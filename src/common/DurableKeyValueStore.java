@@ -0,0 +1,280 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A store that survives restarts: writes go to the wrapped in-memory store and to a write-ahead log in a data
+ * directory, and a write returns once the log holds it as durably as the FsyncPolicy asks.
+ * Only writes that changed the store are logged, each under a stripe lock of its key's token, so the log
+ * holds every key's writes in the order they were applied. Replaying insert-if-absent and delete in that order
+ * from any state the key passed through ends in the same state, which is what lets a snapshot be taken while
+ * writes go on: the log is rotated, the store is copied to a snapshot file, and the segments before the
+ * rotation are deleted. Recovery loads the snapshot and replays the segments after it.
+ * A snapshot is taken in the background whenever the current segment outgrows snapshotBytes, so recovery
+ * replays at most about that much log. Version stamps of replicated keys are not logged: recovered keys read
+ * as unversioned until their next write.
+ */
+public class DurableKeyValueStore implements KeyValueStore, Closeable {
+    public static final long DEFAULT_SNAPSHOT_BYTES = 64L << 20;
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+    private static final int SNAPSHOT_MAGIC = 0x4B565331;   // "KVS1"
+    private static final Log storeLog = Log.get("store");
+
+    private final KeyValueStore store;
+    private final Path directory;
+    private final long snapshotBytes;
+    private final ArcLocks locks = new ArcLocks();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final WriteAheadLog log;
+    private final long recoveredKeys;
+
+    public DurableKeyValueStore(KeyValueStore store, Path directory, FsyncPolicy policy) throws IOException {
+        this(store, directory, policy, DEFAULT_SNAPSHOT_BYTES);
+    }
+
+    /**
+     * Recover the store's contents from the directory into the (empty) wrapped store, then start logging.
+     */
+    public DurableKeyValueStore(KeyValueStore store, Path directory, FsyncPolicy policy, long snapshotBytes)
+            throws IOException {
+        this.store = store;
+        this.directory = directory;
+        this.snapshotBytes = snapshotBytes;
+
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        long[] keys = {0};                              // Counted as applied, the wrapped store starts empty
+        long firstSegment = loadSnapshot(keys);
+        long replayed = WriteAheadLog.replay(directory, firstSegment, new WriteAheadLog.Replay() {
+            public void insert(String key, String value) {
+                if (store.insert(key, value) == 0) keys[0]++;
+            }
+
+            public void delete(String key) {
+                if (store.delete(key) == 0) keys[0]--;
+            }
+
+            public void deleteRange(Range range) {
+                keys[0] -= store.deleteRange(range);
+            }
+
+            public void put(String key, String value) {
+                if (store.put(key, value) == 0) keys[0]++;
+            }
+        });
+        recoveredKeys = keys[0];
+        if (recoveredKeys > 0 || replayed > 0) {
+            storeLog.info("Recovered {} keys from {} ({} log records replayed) in {} ms", recoveredKeys, directory, replayed,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+        log = new WriteAheadLog(directory, policy);
+        log.dropBefore(firstSegment);
+    }
+
+    @Override
+    public int insert(String key, String value) {
+        long token = KeyHash.token(key);
+        long ticket;
+        ReentrantLock lock = locks.lockFor(token);
+        lock.lock();
+        try {
+            if (store.insert(key, value) != 0) return -1;
+            ticket = log.append(key, value);
+        } finally {
+            lock.unlock();
+        }
+        commit(ticket);
+        return 0;
+    }
+
+    @Override
+    public int put(String key, String value) {
+        long token = KeyHash.token(key);
+        long ticket;
+        int result;
+        ReentrantLock lock = locks.lockFor(token);
+        lock.lock();
+        try {
+            result = store.put(key, value);
+            ticket = log.appendPut(key, value);
+        } finally {
+            lock.unlock();
+        }
+        commit(ticket);
+        return result;
+    }
+
+    @Override
+    public String lookup(String key) {
+        return store.lookup(key);
+    }
+
+    @Override
+    public int delete(String key) {
+        long token = KeyHash.token(key);
+        long ticket;
+        ReentrantLock lock = locks.lockFor(token);
+        lock.lock();
+        try {
+            if (store.delete(key) != 0) return -1;
+            ticket = log.appendDelete(key);
+        } finally {
+            lock.unlock();
+        }
+        commit(ticket);
+        return 0;
+    }
+
+    @Override
+    public void print_keys() {
+        store.print_keys();
+    }
+
+    @Override
+    public void forEachInRange(Range range, EntryConsumer consumer) {
+        store.forEachInRange(range, consumer);
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        store.forEach(consumer);
+    }
+
+    // Holds the locks of the arcs the range touches, so the range delete sits in the log between the same
+    // writes of its keys as in the store
+    @Override
+    public int deleteRange(Range range) {
+        int removed;
+        long ticket = 0;
+        locks.lockRange(range);
+        try {
+            removed = store.deleteRange(range);
+            if (removed > 0) ticket = log.appendDeleteRange(range);
+        } finally {
+            locks.unlockRange(range);
+        }
+        if (removed > 0) commit(ticket);
+        return removed;
+    }
+
+    // Keys found in the data directory at startup
+    public long getRecoveredKeys() {
+        return recoveredKeys;
+    }
+
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    /**
+     * Write a snapshot of the store and delete the log segments it covers. Writes continue meanwhile and land
+     * in the segments after the rotation, which recovery replays on top of the snapshot.
+     */
+    public synchronized void snapshot() throws IOException {
+        long firstSegment = log.rotate();
+        Path temp = directory.resolve(SNAPSHOT_TEMP);
+        CRC32C crc = new CRC32C();
+        long[] count = {0};
+        try (OutputStream file = Files.newOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc);
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(firstSegment);
+            try {
+                store.forEach((token, key, value) -> {
+                    try {
+                        out.writeByte(1);
+                        writeString(out, key);
+                        writeString(out, value);
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeByte(0);
+            out.writeLong(count[0]);
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.dropBefore(firstSegment);
+        storeLog.info("Snapshot of {} keys written to {}", count[0], directory);
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private void commit(long ticket) {
+        log.await(ticket);
+        if (log.getSegmentBytes() > snapshotBytes && snapshotting.compareAndSet(false, true)) {
+            Thread snapshotter = new Thread(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | UncheckedIOException e) {
+                    storeLog.error("Snapshot failed: {}", e.getMessage());
+                } finally {
+                    snapshotting.set(false);
+                }
+            }, "snapshotter");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+    }
+
+    // Load the snapshot into the store, adding its keys to keys[0]; returns the first log segment to replay on top of it
+    private long loadSnapshot(long[] keys) throws IOException {
+        Path file = directory.resolve(SNAPSHOT);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_TEMP));     // Left by a crash while snapshotting
+        if (!Files.exists(file)) return 0;
+        try (BufferedInputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            CRC32C crc = new CRC32C();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot: " + file);
+            long firstSegment = in.readLong();
+            long count = 0;
+            while (in.readByte() == 1) {
+                String key = WriteAheadLog.readString(in);
+                if (store.insert(key, WriteAheadLog.readString(in)) == 0) keys[0]++;
+                count++;
+            }
+            if (in.readLong() != count) throw new IOException("Snapshot " + file + " is truncated");
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(raw).readInt() != expected) throw new IOException("Snapshot " + file + " is corrupt");
+            return firstSegment;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
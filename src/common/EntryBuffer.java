@@ -0,0 +1,52 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Chunk of key-value pairs that stores copy out in token order while holding their lock, then replay once
+ * the lock is released. A store stops adding at CHUNK pairs, at a token boundary so that keys sharing a token
+ * stay in one chunk, and resumes after the chunk's last token, so visiting a range of any size holds at most
+ * one chunk on the heap.
+ */
+class EntryBuffer {
+    static final int CHUNK = 1024;
+
+    private long[] tokens = new long[16];
+    private String[] keys = new String[16];
+    private String[] values = new String[16];
+    private int size = 0;
+
+    void add(long token, String key, String value) {
+        if (size == tokens.length) {
+            tokens = Arrays.copyOf(tokens, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        tokens[size] = token;
+        keys[size] = key;
+        values[size++] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Whether a pair with this token must wait for the next chunk
+    boolean isFullBefore(long token) {
+        return size >= CHUNK && tokens[size - 1] != token;
+    }
+
+    long lastToken() {
+        return tokens[size - 1];
+    }
+
+    // Visit the pairs in the order they were added and empty the chunk for the next one
+    void drain(KeyValueStore.EntryConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(tokens[i], keys[i], values[i]);
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+}
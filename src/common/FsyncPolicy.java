@@ -0,0 +1,19 @@
+package common;
+
+/**
+ * When the write-ahead log forces its writes to disk, trading write latency for what survives a crash.
+ * ALWAYS acknowledges a write once the group of writes it was committed with is on disk: nothing acknowledged
+ * is lost, and concurrent writers share each fsync.
+ * INTERVAL acknowledges once the write reached the operating system and forces the log every INTERVAL_MS:
+ * a process crash loses nothing, a machine crash loses up to the last interval.
+ * NEVER acknowledges once the write reached the operating system and leaves flushing to it.
+ */
+public enum FsyncPolicy {
+    ALWAYS, INTERVAL, NEVER;
+
+    public static final long INTERVAL_MS = 100;
+
+    public static FsyncPolicy of(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,118 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Original store backed by a HashMap, kept as the reference implementation. A TreeMap from token to the keys
+ * hashing to it orders the keys on the ring, so range operations read only the keys of their range.
+ */
+public class HashMapKeyValueStore implements KeyValueStore {
+    private final Map<String, String> keyValueStore;
+    private final NavigableMap<Long, List<String>> keysByToken = new TreeMap<>(Long::compareUnsigned);
+
+    public HashMapKeyValueStore() {
+        this.keyValueStore = new HashMap<>();
+    }
+
+    @Override
+    public synchronized int insert(String key, String value) {
+        if(!keyValueStore.containsKey(key)){
+            keyValueStore.put(key, value);
+            keysByToken.computeIfAbsent(KeyHash.token(key), token -> new ArrayList<>(1)).add(key);
+            return 0;
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized int put(String key, String value) {
+        if (keyValueStore.containsKey(key)) {
+            keyValueStore.put(key, value);
+            return 1;
+        }
+        return insert(key, value);
+    }
+
+    @Override
+    public synchronized String lookup(String key) {
+        return keyValueStore.get(key);
+    }
+
+    @Override
+    public synchronized int delete(String key) {
+        if(keyValueStore.containsKey(key)){
+            keyValueStore.remove(key);
+            long token = KeyHash.token(key);
+            List<String> keys = keysByToken.get(token);
+            keys.remove(key);
+            if (keys.isEmpty()) keysByToken.remove(token);
+            return 0;
+        }
+        return -1;
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        visit(0, Range.MAX_TOKEN, consumer);
+    }
+
+    @Override
+    public void forEachInRange(Range range, EntryConsumer consumer) {
+        if (range.isWrapping()) {
+            visit(0, range.getEnd(), consumer);
+            visit(range.getStart(), Range.MAX_TOKEN, consumer);
+        } else {
+            visit(range.getStart(), range.getEnd(), consumer);
+        }
+    }
+
+    // Visit the keys with tokens from..to (unsigned, from <= to), copying a chunk at a time under the lock
+    private void visit(long from, long to, EntryConsumer consumer) {
+        EntryBuffer chunk = new EntryBuffer();
+        while (true) {
+            boolean full = false;
+            synchronized (this) {
+                for (Map.Entry<Long, List<String>> entry : keysByToken.subMap(from, true, to, true).entrySet()) {
+                    if (chunk.isFullBefore(entry.getKey())) {
+                        full = true;
+                        break;
+                    }
+                    for (String key : entry.getValue()) chunk.add(entry.getKey(), key, keyValueStore.get(key));
+                }
+            }
+            if (full) from = chunk.lastToken() + 1;
+            chunk.drain(consumer);
+            if (!full) return;
+        }
+    }
+
+    @Override
+    public synchronized int deleteRange(Range range) {
+        int removed = 0;
+        for (NavigableMap<Long, List<String>> part : parts(range)) {
+            for (List<String> keys : part.values()) {
+                for (String key : keys) keyValueStore.remove(key);
+                removed += keys.size();
+            }
+            part.clear();
+        }
+        return removed;
+    }
+
+    // Only the copy is taken under the lock so console output never blocks other threads on this monitor
+    @Override
+    public void print_keys() {
+        forEach((token, key, value) -> System.out.println("Key: " + key + ", Value: " + value));
+    }
+
+    // Views of the index over the range, in ascending token order
+    private List<NavigableMap<Long, List<String>>> parts(Range range) {
+        if (!range.isWrapping()) return List.of(keysByToken.subMap(range.getStart(), true, range.getEnd(), true));
+        return List.of(keysByToken.headMap(range.getEnd(), true), keysByToken.tailMap(range.getStart(), true));
+    }
+}
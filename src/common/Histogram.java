@@ -0,0 +1,104 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds or keys per transfer, in log-linear
+ * buckets as HdrHistogram keeps them: values below 16 each have a bucket, and every power of two above is
+ * split into 16 buckets, so a value is known to within 1/16 (about 6%) at any size with under a thousand
+ * buckets for the whole long range. Percentiles report the top of their bucket.
+ * Recording is an increment of one counter in the calling thread's stripe, so threads on different stripes
+ * never write the same cache line; reads add the stripes up and may miss records still being made.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES = 8;
+    private static final int PADDING = 16;                 // Longs between two stripes' sums, past a cache line
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final AtomicLongArray sums = new AtomicLongArray(STRIPES * PADDING);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.getAndIncrement(stripe * BUCKETS + bucketOf(value));
+        sums.getAndAdd(stripe * PADDING, value);
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) previous = max.get();
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) count += counts.get(i);
+        return count;
+    }
+
+    public double getMean() {
+        long count = getCount();
+        if (count == 0) return 0;
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) sum += sums.get(stripe * PADDING);
+        return (double) sum / count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // The value at or below which the given fraction (0 to 1) of the records lie, to within its bucket
+    public long valueAt(double fraction) {
+        long[] merged = merged();
+        long total = 0;
+        for (long count : merged) total += count;
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += merged[bucket];
+            if (seen >= rank) return Math.min(highestIn(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * One line: count, mean, p50, p90, p99, p99.9 and max, each divided by scale and followed by unit,
+     * e.g. summary(1000, "us") for nanoseconds shown in microseconds.
+     */
+    public String summary(double scale, String unit) {
+        long count = getCount();
+        if (count == 0) return "n=0";
+        return String.format("n=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s", count,
+                format(getMean() / scale, unit), format(valueAt(0.5) / scale, unit), format(valueAt(0.9) / scale, unit),
+                format(valueAt(0.99) / scale, unit), format(valueAt(0.999) / scale, unit), format(getMax() / scale, unit));
+    }
+
+    private static String format(double value, String unit) {
+        return ((value >= 100 || value == Math.rint(value)) ? String.format("%.0f", value) : String.format("%.1f", value)) + unit;
+    }
+
+    private long[] merged() {
+        long[] merged = new long[BUCKETS];
+        for (int i = 0; i < counts.length(); i++) merged[i % BUCKETS] += counts.get(i);
+        return merged;
+    }
+
+    // Values below SUB_BUCKETS have their own bucket; above, the top bits after the leading one pick the bucket
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
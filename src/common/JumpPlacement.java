@@ -0,0 +1,28 @@
+package common;
+
+/**
+ * Jump consistent hash (Lamping and Veach) over the partitions: no table, O(log n) arithmetic per lookup.
+ * Buckets are the node numbers, so only adding or removing the node with the highest number moves the
+ * minimum of keys; any other join or exit renumbers the nodes after it. Suits rings that only grow at the end
+ * or never change. Weights are ignored.
+ */
+public class JumpPlacement extends PartitionedPlacement {
+    public JumpPlacement(long[] tokens, long[] owners) {
+        super(tokens, owners);
+    }
+
+    @Override
+    protected int nodeOf(int partition) {
+        return jump(mix(partition), owners.length);
+    }
+
+    static int jump(long key, int buckets) {
+        long bucket = -1, next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+}
@@ -0,0 +1,219 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static common.NameServerFunctions.RECEIVE_KEYS;
+import static common.NameServerFunctions.SEND_KEYS;
+
+/**
+ * Moves whole slices of keys between this node's store and a peer over KeyTransferService streams:
+ * pull asks the previous owner for the slices with SEND_KEYS, push hands them to their new owner with
+ * RECEIVE_KEYS, and relay streams them from one peer to others through this node. An interrupted pull or push
+ * resumes after the last acknowledged key, up to ATTEMPTS times.
+ */
+public class KeyHandoff {
+    private static final int ATTEMPTS = 3;
+    private static final Log log = Log.get("transfer");
+
+    private final KeyTransferService keyTransferService;
+    private final ConnectionPool connectionPool;
+    private final long nodeId;
+    private final int port;
+
+    public KeyHandoff(KeyTransferService keyTransferService, ConnectionPool connectionPool, long nodeId, int port) {
+        this.keyTransferService = keyTransferService;
+        this.connectionPool = connectionPool;
+        this.nodeId = nodeId;
+        this.port = port;
+    }
+
+    // Ask the previous owner for its slices with SEND_KEYS; it deletes them once all are stored here
+    public boolean pull(NodeInfo source, List<Range> slices) {
+        log.info("Initiating key retrieval from node: {}", source);
+        KeyTransferService.Progress progress = new KeyTransferService.Progress();
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            ConnectionPool.Connection connection = null;
+            try {
+                connection = connectionPool.connect(source.getIp(), source.getPort());
+                PrintWriter out = connection.getWriter();
+                BufferedReader in = connection.getReader();
+
+                Message transferRequest = progress.hasAcked()
+                        ? Message.request(SEND_KEYS, nodeId, port, progress.getLastAckedToken())     // Resume
+                        : Message.request(SEND_KEYS, nodeId, port);
+                out.println(WireCodec.formatRequest(transferRequest.withTokens(KeyTransferService.bounds(slices))));
+                log.info("Sent key retrieval request for {} slices{}", slices.size(),
+                        progress.hasAcked() ? ", resuming after " + Long.toUnsignedString(progress.getLastAckedToken()) : "");
+
+                long before = progress.getTransferred();
+                keyTransferService.receiveKeyValueRange(in, out, progress);
+                log.info("Received {} keys", progress.getTransferred() - before);
+                out.println("RECEIVED_OK");
+                connectionPool.release(connection);
+                return true;
+            } catch (Exception e) {
+                log.warn("Key reception interrupted after {} keys (attempt {}): {}", progress.getTransferred(),
+                        attempt + " of " + ATTEMPTS, e.getMessage());
+                if (connection != null) connectionPool.invalidate(connection);
+            }
+        }
+        return false;
+    }
+
+    // Send the slices the target takes over with RECEIVE_KEYS; true once it confirmed storing all of them
+    public boolean push(NodeInfo target, List<Range> slices) {
+        log.info("Initiating key sending to node: {}", target);
+        KeyTransferService.Progress progress = new KeyTransferService.Progress();
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            ConnectionPool.Connection connection = null;
+            try {
+                connection = connectionPool.connect(target.getIp(), target.getPort());
+                PrintWriter out = connection.getWriter();
+                BufferedReader in = connection.getReader();
+
+                String transferRequest = WireCodec.formatRequest(Message.request(RECEIVE_KEYS, nodeId, port));
+                out.println(transferRequest);
+                log.info("Sent key sending request: {}", transferRequest);
+
+                String message = in.readLine();
+                if (!"SEND_OK".equals(message)) {
+                    log.warn("Server not ready to receive keys");
+                    connectionPool.invalidate(connection);
+                    return false;
+                }
+                log.info("Sending keys...");
+
+                keyTransferService.sendKeyValueRanges(in, out, progress.remainingOf(slices), progress);
+
+                message = in.readLine();
+                if ("RECEIVED_OK".equals(message)) {
+                    log.info("Successfully sent all {} keys", progress.getTransferred());
+                    connectionPool.release(connection);
+                    return true;
+                }
+                log.warn("Failed to send keys");
+                connectionPool.invalidate(connection);
+                return false;
+            } catch (Exception e) {
+                log.warn("Key sending interrupted after {} keys (attempt {}): {}", progress.getTransferred(),
+                        attempt + " of " + ATTEMPTS, e.getMessage());
+                if (connection != null) connectionPool.invalidate(connection);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move slices from the source to other nodes without storing them here, for a node that sees a move no peer
+     * knows of. The keys pulled from the source are streamed on to every target whose slices hold them, and those
+     * in kept go into this node's store, a batch at a time, so this node holds a few batches however many keys
+     * move. The source hears the transfer completed, and deletes the keys it no longer holds, only once every
+     * target confirmed storing its slices; otherwise it keeps them. Returns true if every target has its slices.
+     */
+    public boolean relay(NodeInfo source, List<Range> slices, Plan targets, List<Range> kept) {
+        log.info("Relaying {} slices from node {} to {} nodes", slices.size(), source, targets.peerCount());
+        List<ConnectionPool.Connection> connections = new ArrayList<>();
+        List<Range[]> targetSlices = new ArrayList<>();
+        List<KeyTransferService.BatchWriter> writers = new ArrayList<>();
+        Range[] keptSlices = kept.toArray(new Range[0]);
+        KeyValueStore store = keyTransferService.getKeyValueStore();
+        boolean delivered = false;
+        try {
+            targets.forEach((target, peerSlices) -> {
+                ConnectionPool.Connection connection = connect(target, connections);
+                connection.getWriter().println(WireCodec.formatRequest(Message.request(RECEIVE_KEYS, nodeId, port)));
+                if (!"SEND_OK".equals(readLine(connection))) throw new IllegalStateException(target + " is not ready to receive keys");
+                targetSlices.add(peerSlices.toArray(new Range[0]));
+                writers.add(new KeyTransferService.BatchWriter(connection.getReader(), connection.getWriter(),
+                        new KeyTransferService.Progress()));
+            });
+            ConnectionPool.Connection from = connect(source, connections);
+            PrintWriter out = from.getWriter();
+            out.println(WireCodec.formatRequest(Message.request(SEND_KEYS, nodeId, port).withTokens(KeyTransferService.bounds(slices))));
+            keyTransferService.receiveKeyValueRange(from.getReader(), out, new KeyTransferService.Progress(), (key, value) -> {
+                long token = KeyHash.token(key);
+                for (int i = 0; i < writers.size(); i++) {
+                    if (contains(targetSlices.get(i), token)) writers.get(i).addUnchecked(token, key, value);
+                }
+                if (contains(keptSlices, token)) store.insert(key, value);
+            });
+            for (int i = 0; i < writers.size(); i++) {
+                writers.get(i).finish();
+                if (!"RECEIVED_OK".equals(readLine(connections.get(i)))) throw new IOException("A target did not store its keys");
+            }
+            delivered = true;
+            out.println("RECEIVED_OK");             // The source may delete its copies now
+            log.info("Relayed the slices of node {}", source);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Relaying keys from node {} failed, it keeps them: {}", source, e.getMessage());
+        } finally {
+            for (ConnectionPool.Connection connection : connections) connectionPool.release(connection);
+        }
+        return delivered;
+    }
+
+    private ConnectionPool.Connection connect(NodeInfo peer, List<ConnectionPool.Connection> opened) {
+        try {
+            ConnectionPool.Connection connection = connectionPool.connect(peer.getIp(), peer.getPort());
+            opened.add(connection);
+            return connection;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readLine(ConnectionPool.Connection connection) {
+        try {
+            return connection.getReader().readLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean contains(Range[] slices, long token) {
+        for (Range slice : slices) {
+            if (slice.contains(token)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Slices grouped per peer address, in the order they were added, so each peer gets one transfer.
+     * A slice adjacent to the previous one of the same peer is merged into it.
+     */
+    public static class Plan {
+        private final Map<String, NodeInfo> peers = new LinkedHashMap<>();
+        private final Map<String, List<Range>> slicesByPeer = new LinkedHashMap<>();
+
+        public void add(NodeInfo peer, Range slice) {
+            String address = peer.getIp() + ":" + peer.getPort();
+            peers.putIfAbsent(address, peer);
+            List<Range> slices = slicesByPeer.computeIfAbsent(address, a -> new ArrayList<>());
+            Range last = slices.isEmpty() ? null : slices.get(slices.size() - 1);
+            if (last != null && last.getEnd() + 1 == slice.getStart()) slices.set(slices.size() - 1, new Range(last.getStart(), slice.getEnd()));
+            else slices.add(slice);
+        }
+
+        public int peerCount() {
+            return peers.size();
+        }
+
+        public int sliceCount() {
+            int count = 0;
+            for (List<Range> slices : slicesByPeer.values()) count += slices.size();
+            return count;
+        }
+
+        public void forEach(BiConsumer<NodeInfo, List<Range>> action) {
+            for (Map.Entry<String, NodeInfo> peer : peers.entrySet()) action.accept(peer.getValue(), slicesByPeer.get(peer.getKey()));
+        }
+    }
+}
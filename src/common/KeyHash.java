@@ -0,0 +1,174 @@
+package common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps keys onto the 64-bit token ring with xxHash64 (seed 0), a fast non-cryptographic hash with
+ * good avalanche behaviour, so keys spread evenly over the ring whatever their shape.
+ * Tokens are unsigned: compare them with Long.compareUnsigned and print them with Long.toUnsignedString.
+ */
+public final class KeyHash {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private KeyHash() {
+    }
+
+    // Token of a string key, hashed over its UTF-8 bytes
+    public static long token(String key) {
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) >= 0x80) return token(key.getBytes(StandardCharsets.UTF_8));
+        }
+        return asciiXxHash64(key, length);     // ASCII chars are their own UTF-8 bytes, so skip the copy
+    }
+
+    public static long token(byte[] key) {
+        return xxHash64(key, 0, key.length, 0);
+    }
+
+    /**
+     * Ring tokens of a node's virtual nodes: its id, then count - 1 tokens hashed from the id with seeds 1, 2, ...
+     * Every node derives the same tokens for an id, so a node can be re-added at the same positions.
+     */
+    public static long[] vnodeTokens(long nodeId, int count) {
+        long[] tokens = new long[count];
+        byte[] id = new byte[8];
+        LONG_LE.set(id, 0, nodeId);
+        tokens[0] = nodeId;
+        for (int i = 1; i < count; i++) tokens[i] = xxHash64(id, 0, id.length, i);
+        return tokens;
+    }
+
+    public static long xxHash64(byte[] input, int offset, int length, long seed) {
+        int position = offset;
+        int end = offset + length;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, (long) LONG_LE.get(input, position));
+                v2 = round(v2, (long) LONG_LE.get(input, position + 8));
+                v3 = round(v3, (long) LONG_LE.get(input, position + 16));
+                v4 = round(v4, (long) LONG_LE.get(input, position + 24));
+                position += 32;
+            } while (position <= limit);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME64_5;
+        }
+        hash += length;
+
+        while (position + 8 <= end) {
+            hash ^= round(0, (long) LONG_LE.get(input, position));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            position += 8;
+        }
+        if (position + 4 <= end) {
+            hash ^= ((int) INT_LE.get(input, position) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            position += 4;
+        }
+        while (position < end) {
+            hash ^= (input[position] & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            position++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    // Same steps as xxHash64 over the bytes of an ASCII string, reading the lanes straight from its chars
+    private static long asciiXxHash64(String key, int length) {
+        int position = 0;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = PRIME64_1 + PRIME64_2;
+            long v2 = PRIME64_2;
+            long v3 = 0;
+            long v4 = -PRIME64_1;
+            int limit = length - 32;
+            do {
+                v1 = round(v1, lane(key, position, 8));
+                v2 = round(v2, lane(key, position + 8, 8));
+                v3 = round(v3, lane(key, position + 16, 8));
+                v4 = round(v4, lane(key, position + 24, 8));
+                position += 32;
+            } while (position <= limit);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += length;
+
+        while (position + 8 <= length) {
+            hash ^= round(0, lane(key, position, 8));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            position += 8;
+        }
+        if (position + 4 <= length) {
+            hash ^= lane(key, position, 4) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            position += 4;
+        }
+        while (position < length) {
+            hash ^= key.charAt(position) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            position++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    // Little-endian value of 'count' chars starting at 'position', one byte per char
+    private static long lane(String key, int position, int count) {
+        long value = 0;
+        for (int i = count - 1; i >= 0; i--) value = (value << 8) | key.charAt(position + i);
+        return value;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME64_2;
+        return Long.rotateLeft(accumulator, 31) * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+}
@@ -1,21 +1,296 @@
 package common;
 
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BiConsumer;
 
+/**
+ * Streams a key range between nodes in fixed-size batches over the line protocol:
+ *   sender:   BATCH <n>, then n entries of <key length>:<value length>:<key><value> and a newline, repeated,
+ *             and finally FIN <total>
+ *   receiver: ACK <token of the batch's last key> once the batch is stored
+ * At most WINDOW batches are unacknowledged at any time, so a slow receiver throttles the sender and
+ * neither side ever holds more than a few batches of serialized data; the store hands the sender its keys a
+ * bounded chunk at a time. Keys are sent in ring (token) order from the start of the range, so an interrupted
+ * transfer resumes after the last acknowledged token.
+ * A transfer may cover several slices (one per virtual node token), sent one after the other in list order.
+ * The length prefixes (in chars) let keys and values contain any character, newlines included.
+ * Every completed transfer records its keys and payload size (key and value chars, bytes for ASCII data) in
+ * the sent or received histograms, reported with a node's STATS.
+ */
 public class KeyTransferService {
+    public static final int BATCH_SIZE = 1000;
+    public static final int WINDOW = 8;
+
+    private static final String BATCH = "BATCH";
+    private static final String ACK = "ACK";
+    private static final String FIN = "FIN";
+
     private KeyValueStore keyValueStore;
+    private final Histogram sentKeys = new Histogram();
+    private final Histogram sentBytes = new Histogram();
+    private final Histogram receivedKeys = new Histogram();
+    private final Histogram receivedBytes = new Histogram();
 
     public KeyTransferService(KeyValueStore keyValueStore) {
         this.keyValueStore = keyValueStore;
     }
 
-    public synchronized void sendKeyValueRange(PrintWriter out, Range range) {
-        StringBuilder output = new StringBuilder();
-        for (int key = range.getStart(); key <= range.getEnd(); key++) {
-            String value = keyValueStore.lookup(key);
-            if (value != null)
-                output.append(key).append(":").append(value).append("%0A");
+    // The store transfers read from and write to
+    KeyValueStore getKeyValueStore() {
+        return keyValueStore;
+    }
+
+    /**
+     * Send every stored key of the range and wait until all batches are acknowledged.
+     * A null range sends an empty transfer, used when a resumed transfer has nothing left.
+     */
+    public void sendKeyValueRange(BufferedReader in, PrintWriter out, Range range, Progress progress) throws IOException {
+        sendKeyValueRanges(in, out, (range == null) ? List.of() : List.of(range), progress);
+    }
+
+    // Same as sendKeyValueRange for several slices in one transfer, each in ring order
+    public void sendKeyValueRanges(BufferedReader in, PrintWriter out, List<Range> ranges, Progress progress) throws IOException {
+        BatchWriter writer = new BatchWriter(in, out, progress);
+        try {
+            for (Range range : ranges) {
+                if (range.isWrapping()) {
+                    // Ring order: the top of the token space first, then the part after zero
+                    keyValueStore.forEachInRange(new Range(range.getStart(), Range.MAX_TOKEN), writer::addUnchecked);
+                    keyValueStore.forEachInRange(new Range(0, range.getEnd()), writer::addUnchecked);
+                } else {
+                    keyValueStore.forEachInRange(range, writer::addUnchecked);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.finish();
+        sentKeys.record(writer.sent);
+        sentBytes.record(writer.bytes);
+    }
+
+    /**
+     * Store batches until the sender's FIN, acknowledging each one after it has been inserted.
+     * Throws if the stream ends early; the progress then tells where to resume.
+     */
+    public void receiveKeyValueRange(BufferedReader in, PrintWriter out, Progress progress) throws IOException {
+        receiveKeyValueRange(in, out, progress, keyValueStore::insert);
+    }
+
+    // Same, handing each received pair to the sink instead of this node's store; a batch is acknowledged once
+    // the sink took all of it
+    void receiveKeyValueRange(BufferedReader in, PrintWriter out, Progress progress,
+                              BiConsumer<String, String> sink) throws IOException {
+        String line;
+        long keys = 0;
+        long bytes = 0;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(FIN)) {
+                receivedKeys.record(keys);
+                receivedBytes.record(bytes);
+                return;
+            }
+            if (!line.startsWith(BATCH + " ")) throw new IOException("Unexpected line in key transfer: " + line);
+
+            int count = Integer.parseInt(line.substring(BATCH.length() + 1).trim());
+            String lastKey = null;
+            for (int i = 0; i < count; i++) {
+                int keyLength = readLength(in);
+                char[] entry = readChars(in, keyLength + readLength(in));
+                if (in.read() != '\n') throw new IOException("Key transfer entry is longer than its length prefixes");
+                String key = new String(entry, 0, keyLength);
+                sink.accept(key, new String(entry, keyLength, entry.length - keyLength));
+                lastKey = key;
+                bytes += entry.length;
+            }
+            keys += count;
+            if (lastKey == null) {
+                out.println(ACK + " -");                // An empty batch, the resume point stays put
+                progress.acknowledge(count);
+            } else {
+                long lastToken = KeyHash.token(lastKey);
+                out.println(ACK + " " + Long.toUnsignedString(lastToken));
+                progress.acknowledge(lastToken, count);
+            }
+        }
+        throw new EOFException("Key transfer ended before " + FIN);
+    }
+
+    // Keys and bytes per completed transfer, one line each way
+    public String report() {
+        return "transfers sent: keys " + sentKeys.summary(1, "") + ", bytes " + sentBytes.summary(1, "") + "\n"
+                + "transfers received: keys " + receivedKeys.summary(1, "") + ", bytes " + receivedBytes.summary(1, "");
+    }
+
+    // A length prefix of an entry, digits up to a colon
+    private static int readLength(BufferedReader in) throws IOException {
+        int length = 0;
+        for (int c = in.read(); c != ':'; c = in.read()) {
+            if (c == -1) throw new EOFException("Key transfer ended inside a batch");
+            if (c < '0' || c > '9' || length > (WireCodec.MAX_FRAME_BYTES - (c - '0')) / 10)
+                throw new IOException("Invalid length prefix in key transfer");
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    private static char[] readChars(BufferedReader in, int count) throws IOException {
+        char[] chars = new char[count];
+        for (int read = 0; read < count; ) {
+            int n = in.read(chars, read, count - read);
+            if (n == -1) throw new EOFException("Key transfer ended inside a batch");
+            read += n;
+        }
+        return chars;
+    }
+
+    /**
+     * The part of the range that still has to be sent after the key with lastToken was acknowledged,
+     * or null when the whole range has been delivered.
+     */
+    public static Range remainingAfter(Range range, long lastToken) {
+        if (lastToken == range.getEnd()) return null;
+        return new Range(lastToken + 1, range.getEnd());
+    }
+
+    /**
+     * The slices still to send after the key with lastToken was acknowledged: the rest of the slice holding it
+     * and every later one. All of them if no slice holds the token.
+     */
+    public static List<Range> remainingAfter(List<Range> slices, long lastToken) {
+        for (int i = 0; i < slices.size(); i++) {
+            if (!slices.get(i).contains(lastToken)) continue;
+            List<Range> remaining = new ArrayList<>();
+            Range rest = remainingAfter(slices.get(i), lastToken);
+            if (rest != null) remaining.add(rest);
+            remaining.addAll(slices.subList(i + 1, slices.size()));
+            return remaining;
+        }
+        return slices;
+    }
+
+    // Slices from a token list of start / end pairs, as carried by SEND_KEYS
+    public static List<Range> slices(long[] bounds) {
+        List<Range> slices = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.length; i += 2) slices.add(new Range(bounds[i], bounds[i + 1]));
+        return slices;
+    }
+
+    public static long[] bounds(List<Range> slices) {
+        long[] bounds = new long[slices.size() * 2];
+        for (int i = 0; i < slices.size(); i++) {
+            bounds[2 * i] = slices.get(i).getStart();
+            bounds[2 * i + 1] = slices.get(i).getEnd();
+        }
+        return bounds;
+    }
+
+    /**
+     * Keys acknowledged so far by one logical transfer, kept across reconnect attempts.
+     */
+    public static final class Progress {
+        private boolean acked;
+        private long lastAckedToken;
+        private long transferred;
+
+        synchronized void acknowledge(long lastToken, int count) {
+            acked = true;
+            lastAckedToken = lastToken;
+            transferred += count;
+        }
+
+        synchronized void acknowledge(int count) {
+            transferred += count;
+        }
+
+        public synchronized long getLastAckedToken() {
+            return lastAckedToken;
+        }
+
+        public synchronized long getTransferred() {
+            return transferred;
+        }
+
+        public synchronized boolean hasAcked() {
+            return acked;
+        }
+
+        // What is left of the range for a resumed attempt: all of it until something was acknowledged
+        public synchronized Range remainingOf(Range range) {
+            return acked ? remainingAfter(range, lastAckedToken) : range;
+        }
+
+        public synchronized List<Range> remainingOf(List<Range> slices) {
+            return acked ? remainingAfter(slices, lastAckedToken) : slices;
+        }
+    }
+
+    // Accumulates one batch at a time and keeps the window of unacknowledged batches
+    static final class BatchWriter {
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private final Progress progress;
+        private final StringBuilder batch = new StringBuilder();
+        private final Deque<long[]> unacked = new ArrayDeque<>();     // {last token, key count} per batch in flight
+        private int count;
+        private long lastToken;
+        private long sent;
+        private long bytes;
+
+        BatchWriter(BufferedReader in, PrintWriter out, Progress progress) {
+            this.in = in;
+            this.out = out;
+            this.progress = progress;
+        }
+
+        void addUnchecked(long token, String key, String value) {
+            try {
+                add(token, key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void add(long token, String key, String value) throws IOException {
+            batch.append(key.length()).append(':').append(value.length()).append(':').append(key).append(value).append('\n');
+            bytes += key.length() + value.length();
+            lastToken = token;
+            if (++count == BATCH_SIZE) flushBatch();
+        }
+
+        void finish() throws IOException {
+            flushBatch();
+            out.print(FIN + " " + sent + "\n");
+            out.flush();
+            while (!unacked.isEmpty()) awaitAck();
+        }
+
+        private void flushBatch() throws IOException {
+            if (count == 0) return;
+            if (unacked.size() == WINDOW) awaitAck();     // Flow control: wait for the oldest batch
+            out.print(BATCH + " " + count + "\n");
+            out.print(batch);
+            out.flush();
+            unacked.addLast(new long[] {lastToken, count});
+            sent += count;
+            batch.setLength(0);
+            count = 0;
+        }
+
+        private void awaitAck() throws IOException {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(ACK + " "))
+                throw new IOException("Expected " + ACK + " in key transfer but got: " + line);
+            long[] acked = unacked.removeFirst();
+            progress.acknowledge(acked[0], (int) acked[1]);
         }
-        out.println(output+"FIN");
     }
 }
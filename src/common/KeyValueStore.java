@@ -1,40 +1,43 @@
 package common;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.TreeMap;
+/**
+ * Local key-value storage of a node.
+ * Keys are strings placed on the ring by their KeyHash token; range operations select keys by token.
+ * insert only adds absent keys and delete only removes present ones; both return 0 on success and -1 otherwise.
+ * put stores a value either way, replacing an existing one in place, so a concurrent lookup sees the old or
+ * the new value and never a miss; it returns 0 if the key was absent and 1 if its value was replaced.
+ */
+public interface KeyValueStore {
+    int insert(String key, String value);
 
-public class KeyValueStore {
-    private final Map<Integer, String> keyValueStore;
+    String lookup(String key);
 
-    public KeyValueStore() {
-        this.keyValueStore = new HashMap<>();
-    }
+    int delete(String key);
 
-    public synchronized int insert(int key, String value) {
-        if(!keyValueStore.containsKey(key)){
-            keyValueStore.put(key, value);
-            return 0;
-        }
-        return -1;
-    }
+    int put(String key, String value);
 
-    public synchronized String lookup(int key) {
-        return keyValueStore.get(key);
-    }
+    // Print every key-value pair in ring (token) order
+    void print_keys();
 
-    public synchronized int delete(int key) {
-        if(keyValueStore.containsKey(key)){
-            keyValueStore.remove(key);
-            return 0;
-        }
-        return -1;
-    }
+    /**
+     * Visit the stored pairs whose token lies in the range (wrap-around ranges included) in ascending
+     * unsigned token order. The stores keep their keys in token order, so only the keys of the range are
+     * read; they are copied a bounded chunk at a time under the store's lock and visited after it is
+     * released, so a range of any size holds one chunk on the heap. A key present throughout is visited
+     * once; one written meanwhile may or may not be.
+     */
+    void forEachInRange(Range range, EntryConsumer consumer);
+
+    /**
+     * Visit every stored pair in no particular order, for full scans such as snapshots, filters and printing.
+     * Streams like forEachInRange, a chunk at a time, so it never holds the whole store on the heap.
+     */
+    void forEach(EntryConsumer consumer);
+
+    // Remove every stored key whose token is in the range, reading only those keys; returns how many were removed
+    int deleteRange(Range range);
 
-    public synchronized void print_keys() {
-        Map<Integer, String> sortedMap = new TreeMap<>(keyValueStore);
-        for (Map.Entry<Integer, String> entry : sortedMap.entrySet()) {
-            System.out.println("Key: " + entry.getKey() + ", Value: " + entry.getValue());
-        }
+    interface EntryConsumer {
+        void accept(long token, String key, String value);
     }
 }
@@ -0,0 +1,140 @@
+package common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongPredicate;
+
+/**
+ * Version stamps of the keys a node stores as owner or replica, so a quorum read can pick the newest of the
+ * replicas' answers. A key's owner stamps each write it applies with the next value of a hybrid clock: the
+ * wall clock in milliseconds shifted left 12 bits, moved past every stamp seen so far, so stamps grow across
+ * ownership changes. A deleted key keeps its stamp for a grace period (TOMBSTONE_GRACE_MILLIS), which tells a replica that
+ * missed the delete apart from one that has the key and turns away older copies still in flight; then it is
+ * dropped, so the stamps held are those of the stored keys plus the recent deletes. Keys never written while
+ * the ring was replicated have no stamp and read as 0.
+ * A key's writes run one at a time under a lock that exists only while the key is being written, so its writes
+ * and stamps are applied in one order. The lock is a ReentrantLock taken outside the stamp map, so a slow write
+ * (a durable store's fsync) holds up only writes of the same key, and a waiting virtual thread parks unpinned.
+ * Stamps live beside the store rather than in it, so key transfers carry none: a moved key reads as 0 at its
+ * new replicas until its next write.
+ */
+public class KeyVersions {
+    public static final long TOMBSTONE_GRACE_MILLIS = 60_000;
+
+    private final long tombstoneGraceMillis;
+    private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Tombstone> tombstones = new ConcurrentLinkedQueue<>();     // Oldest first
+    private final ConcurrentHashMap<String, KeyLock> writing = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    public KeyVersions() {
+        this(TOMBSTONE_GRACE_MILLIS);
+    }
+
+    public KeyVersions(long tombstoneGraceMillis) {
+        this.tombstoneGraceMillis = tombstoneGraceMillis;
+    }
+
+    // Stamp of the key's last write, 0 if none is known
+    public long versionOf(String key) {
+        Long version = versions.get(key);
+        return (version == null) ? 0 : version;
+    }
+
+    /**
+     * Run the owner's write and stamp it, atomically with other writes of the key.
+     * Returns the stamp, or 0 if the write did not apply.
+     */
+    public long stamp(String key, boolean delete, BooleanSupplier write) {
+        expireTombstones();
+        long stamped;
+        KeyLock lock = lock(key);
+        try {
+            if (!write.getAsBoolean()) return 0;
+            stamped = clock.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis() << 12));
+            versions.put(key, stamped);
+        } finally {
+            unlock(key, lock);
+        }
+        if (delete) tombstones.add(new Tombstone(key, stamped));
+        return stamped;
+    }
+
+    /**
+     * Run a write an owner copied here unless a newer one of the key was applied already.
+     * Returns false for a stale write. A write without a stamp always applies.
+     */
+    public boolean apply(String key, long version, boolean delete, Runnable write) {
+        if (version == 0) {
+            write.run();
+            return true;
+        }
+        expireTombstones();
+        clock.accumulateAndGet(version, Math::max);
+        KeyLock lock = lock(key);
+        try {
+            Long known = versions.get(key);
+            if (known != null && Long.compareUnsigned(known, version) >= 0) return false;
+            write.run();
+            versions.put(key, version);
+        } finally {
+            unlock(key, lock);
+        }
+        if (delete) tombstones.add(new Tombstone(key, version));
+        return true;
+    }
+
+    // Forget the stamps of the keys whose token the node no longer holds
+    public void retainTokens(LongPredicate holds) {
+        versions.keySet().removeIf(key -> !holds.test(KeyHash.token(key)));
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    // Drop the stamps of deletes older than the grace period, unless the key was written again since
+    private void expireTombstones() {
+        long expired = System.currentTimeMillis() - tombstoneGraceMillis;
+        Tombstone oldest;
+        while ((oldest = tombstones.peek()) != null && oldest.millis < expired) {
+            if (tombstones.remove(oldest)) versions.remove(oldest.key, oldest.version);
+        }
+    }
+
+    // The key's write lock, created by the first writer waiting for it
+    private KeyLock lock(String key) {
+        KeyLock lock = writing.compute(key, (k, held) -> {
+            KeyLock next = (held == null) ? new KeyLock() : held;
+            next.users++;
+            return next;
+        });
+        lock.held.lock();
+        return lock;
+    }
+
+    // Dropped by the last writer, so only keys being written have a lock
+    private void unlock(String key, KeyLock lock) {
+        lock.held.unlock();
+        writing.computeIfPresent(key, (k, held) -> (--held.users == 0) ? null : held);
+    }
+
+    private static final class KeyLock {
+        final ReentrantLock held = new ReentrantLock();
+        int users;                              // Writers holding or waiting, changed only inside the map's compute
+    }
+
+    private static final class Tombstone {
+        final String key;
+        final Long version;
+        final long millis = System.currentTimeMillis();
+
+        Tombstone(String key, long version) {
+            this.key = key;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package common;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Levelled, sampled logging that keeps console I/O off the request path. A log call only checks its category's
+ * level and sampling and, if the record is kept, copies the format and its arguments into a slot of a bounded
+ * lock-free ring buffer (Vyukov's multi-producer queue: a CAS on the head claims a slot, a sequence number per
+ * slot publishes it). One background thread drains the buffer, fills the "{}" placeholders and writes logfmt
+ * lines ("time=... level=... category=... thread=... msg=...") to System.out in batches. When the buffer is
+ * full a record is dropped rather than blocking the caller; the writer reports how many were dropped.
+ * Categories group the output by concern rather than by class, e.g. "request" for the per-request lines.
+ * Each has a level and may keep only one in N of its records below WARN, chosen at random so the callers
+ * share no counter. The levels come from the "log" system property: a default level, then per-category
+ * overrides with an optional sampling rate, e.g. -Dlog=info,request=info/100,transfer=warn or -Dlog=off.
+ * Arguments are formatted on the writer thread, so they must not change after the call.
+ */
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF;
+
+        public static Level of(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final int BATCH = 1024;
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private static final Map<String, Log> categories = new ConcurrentHashMap<>();
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long tail;                       // Written by the writer thread only
+    private static volatile Level defaultLevel = Level.INFO;
+    private static volatile Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) slots[i] = new Slot(i);
+        configure(System.getProperty("log"));
+    }
+
+    private final String category;
+    private volatile Level level;                            // Null follows the default level
+    private volatile int sampleEvery = 1;
+
+    private Log(String category) {
+        this.category = category;
+    }
+
+    public static Log get(String category) {
+        return categories.computeIfAbsent(category, Log::new);
+    }
+
+    /**
+     * Apply a spec like "info,request=info/100,transfer=warn": an optional default level, then per-category
+     * levels with an optional 1-in-N sampling rate. A null or blank spec leaves everything at INFO.
+     */
+    public static void configure(String spec) {
+        if (spec == null || spec.isBlank()) return;
+        for (String part : spec.split(",")) {
+            int equals = part.indexOf('=');
+            if (equals < 0) {
+                defaultLevel = Level.of(part);
+                continue;
+            }
+            Log log = get(part.substring(0, equals).trim());
+            String setting = part.substring(equals + 1);
+            int slash = setting.indexOf('/');
+            log.level = Level.of((slash < 0) ? setting : setting.substring(0, slash));
+            log.sampleEvery = (slash < 0) ? 1 : Integer.parseInt(setting.substring(slash + 1).trim());
+        }
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    // Keep one in that many records below WARN
+    public void setSampling(int every) {
+        if (every < 1) throw new IllegalArgumentException("Sampling rate must be at least 1");
+        sampleEvery = every;
+    }
+
+    public static void setDefaultLevel(Level level) {
+        defaultLevel = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        Level threshold = this.level;
+        return level.compareTo((threshold == null) ? defaultLevel : threshold) >= 0 && level != Level.OFF;
+    }
+
+    public void debug(String format) {
+        log(Level.DEBUG, format, null, null, null, null);
+    }
+
+    public void debug(String format, Object a) {
+        log(Level.DEBUG, format, a, null, null, null);
+    }
+
+    public void debug(String format, Object a, Object b) {
+        log(Level.DEBUG, format, a, b, null, null);
+    }
+
+    public void info(String format) {
+        log(Level.INFO, format, null, null, null, null);
+    }
+
+    public void info(String format, Object a) {
+        log(Level.INFO, format, a, null, null, null);
+    }
+
+    public void info(String format, Object a, Object b) {
+        log(Level.INFO, format, a, b, null, null);
+    }
+
+    public void info(String format, Object a, Object b, Object c) {
+        log(Level.INFO, format, a, b, c, null);
+    }
+
+    public void info(String format, Object a, Object b, Object c, Object d) {
+        log(Level.INFO, format, a, b, c, d);
+    }
+
+    public void warn(String format) {
+        log(Level.WARN, format, null, null, null, null);
+    }
+
+    public void warn(String format, Object a) {
+        log(Level.WARN, format, a, null, null, null);
+    }
+
+    public void warn(String format, Object a, Object b) {
+        log(Level.WARN, format, a, b, null, null);
+    }
+
+    public void warn(String format, Object a, Object b, Object c) {
+        log(Level.WARN, format, a, b, c, null);
+    }
+
+    public void error(String format) {
+        log(Level.ERROR, format, null, null, null, null);
+    }
+
+    public void error(String format, Object a) {
+        log(Level.ERROR, format, a, null, null, null);
+    }
+
+    public void error(String format, Object a, Object b) {
+        log(Level.ERROR, format, a, b, null, null);
+    }
+
+    // Records the buffer had no room for since startup
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // Wait until the writer has written every record logged before the call
+    public static void flush() {
+        long target = head.get();
+        while (tail < target && writer != null) LockSupport.parkNanos(IDLE_NANOS);
+    }
+
+    private void log(Level level, String format, Object a, Object b, Object c, Object d) {
+        if (!isEnabled(level)) return;
+        int every = sampleEvery;
+        if (every > 1 && level.compareTo(Level.WARN) < 0 && ThreadLocalRandom.current().nextInt(every) != 0) return;
+        if (writer == null) startWriter();
+
+        long position = head.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) position & MASK];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) break;
+                position = head.get();
+            } else if (difference < 0) {                     // The writer has not freed this slot yet: full
+                dropped.increment();
+                return;
+            } else {
+                position = head.get();
+            }
+        }
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.log = this;
+        slot.thread = Thread.currentThread().getName();
+        slot.format = format;
+        slot.a = a;
+        slot.b = b;
+        slot.c = c;
+        slot.d = d;
+        slot.sequence = position + 1;                        // Publishes the fields to the writer
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        Thread thread = new Thread(Log::drain, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+        writer = thread;
+    }
+
+    // The writer thread: format every published record in order, one print per batch
+    private static void drain() {
+        StringBuilder lines = new StringBuilder(1 << 16);
+        long reportedDrops = 0;
+        while (true) {
+            long position = tail;
+            int count = 0;
+            while (count < BATCH) {
+                Slot slot = slots[(int) position & MASK];
+                if (slot.sequence != position + 1) break;
+                slot.appendTo(lines);
+                slot.clear();
+                slot.sequence = position + CAPACITY;         // Free for the producer one lap later
+                position++;
+                count++;
+            }
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                lines.append("time=").append(Instant.now()).append(" level=WARN category=log thread=log-writer msg=\"")
+                        .append(drops - reportedDrops).append(" records dropped, the log buffer was full\"\n");
+                reportedDrops = drops;
+            }
+            if (lines.length() > 0) {
+                PrintStream out = System.out;
+                out.print(lines);
+                out.flush();
+                lines.setLength(0);
+            }
+            tail = position;
+            if (count == 0) LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * One record of the ring buffer. sequence equals the slot's position when the slot is free for that lap,
+     * position + 1 once a record has been published in it.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        long time;
+        Level level;
+        Log log;
+        String thread;
+        String format;
+        Object a;
+        Object b;
+        Object c;
+        Object d;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void appendTo(StringBuilder line) {
+            line.append("time=").append(Instant.ofEpochMilli(time)).append(" level=").append(level)
+                    .append(" category=").append(log.category).append(" thread=").append(thread).append(" msg=\"");
+            int argument = 0;
+            int start = 0;
+            int placeholder;
+            while ((placeholder = format.indexOf("{}", start)) >= 0 && argument < 4) {
+                appendQuoted(line, format.substring(start, placeholder));
+                appendQuoted(line, String.valueOf((argument == 0) ? a : (argument == 1) ? b : (argument == 2) ? c : d));
+                argument++;
+                start = placeholder + 2;
+            }
+            appendQuoted(line, format.substring(start));
+            line.append("\"\n");
+        }
+
+        // Escaped so a message stays one line and its quotes do not end the field
+        private static void appendQuoted(StringBuilder line, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char ch = text.charAt(i);
+                if (ch == '"' || ch == '\\') line.append('\\').append(ch);
+                else if (ch == '\n') line.append("\\n");
+                else line.append(ch);
+            }
+        }
+
+        void clear() {
+            log = null;
+            thread = null;
+            format = null;
+            a = null;
+            b = null;
+            c = null;
+            d = null;
+        }
+    }
+}
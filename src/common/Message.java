@@ -0,0 +1,244 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One request or reply exchanged between nodes, independent of how it travels on the wire.
+ * Every message names the function and the sending node (id and listening port); the optional
+ * parts are a string key (LOOKUP / INSERT / DELETE), a ring token (FIND_SUCCESSOR target, transfer resume
+ * token), a value and a list of nodes (ENTER neighbours, FIND_SUCCESSOR owner, RECEIVE_KEYS / UPDATE_SUCCESSOR
+ * node to link to) and a list of tokens (the virtual node tokens of an ENTER, the start / end pairs of the
+ * slices a SEND_KEYS asks for). Node ids and tokens are unsigned 64-bit ring positions.
+ * Batch messages (MGET / MINSERT / MDELETE) carry a list of keys and, for MINSERT requests and all batch
+ * replies, one value per key in the same order.
+ * A non-zero request id lets many requests share one binary connection: the reply carries the id of
+ * its request and may arrive out of order. Id 0 means unnumbered, answered in order.
+ * A non-zero epoch marks a request a client sent straight to the owner named by that ring snapshot epoch:
+ * it is never forwarded, and a node that does not own the key answers with a not-owner reply instead.
+ * RING replies carry the epoch of the snapshot they describe.
+ * A non-zero quorum on LOOKUP / INSERT / DELETE asks for that many of the key's replicas to answer (R) or
+ * acknowledge the write (W) before the reply; 0 keeps the defaults, one replica for reads and all for writes.
+ * REPLICATE batches and REPLICA_READ replies carry the keys' version stamps as their tokens.
+ * WireCodec converts messages to and from both the binary framing and the text lines.
+ */
+public class Message {
+    private static final NodeInfo[] NO_NODES = new NodeInfo[0];
+    private static final long[] NO_TOKENS = new long[0];
+
+    private final NameServerFunctions function;
+    private final boolean reply;
+    private final int requestId;
+    private final long nodeId;
+    private final int port;
+    private final String key;                       // Null if none
+    private final boolean hasToken;
+    private final long token;
+    private final byte[] value;
+    private final NodeInfo[] nodes;
+    private final long[] tokens;
+    private final String[] batchKeys;               // Null unless this is a batch message
+    private final String[] batchValues;             // Null entries are absent values
+    private final int epoch;                        // Ring snapshot epoch, 0 if none
+    private final boolean notOwner;                 // Reply: the key is not in this node's range
+    private final int quorum;                       // Replicas to read from or write to, 0 for the default
+
+    Message(NameServerFunctions function, boolean reply, int requestId, long nodeId, int port,
+            String key, boolean hasToken, long token, byte[] value, NodeInfo[] nodes) {
+        this(function, reply, requestId, nodeId, port, key, hasToken, token, value, nodes, null, null, null, 0, false);
+    }
+
+    Message(NameServerFunctions function, boolean reply, int requestId, long nodeId, int port,
+            String key, boolean hasToken, long token, byte[] value, NodeInfo[] nodes, long[] tokens,
+            String[] batchKeys, String[] batchValues, int epoch, boolean notOwner) {
+        this(function, reply, requestId, nodeId, port, key, hasToken, token, value, nodes, tokens,
+                batchKeys, batchValues, epoch, notOwner, 0);
+    }
+
+    Message(NameServerFunctions function, boolean reply, int requestId, long nodeId, int port,
+            String key, boolean hasToken, long token, byte[] value, NodeInfo[] nodes, long[] tokens,
+            String[] batchKeys, String[] batchValues, int epoch, boolean notOwner, int quorum) {
+        this.function = function;
+        this.reply = reply;
+        this.requestId = requestId;
+        this.nodeId = nodeId;
+        this.port = port;
+        this.key = key;
+        this.hasToken = hasToken;
+        this.token = token;
+        this.value = value;
+        this.nodes = (nodes == null) ? NO_NODES : nodes;
+        this.tokens = (tokens == null) ? NO_TOKENS : tokens;
+        this.batchKeys = batchKeys;
+        this.batchValues = batchValues;
+        this.epoch = epoch;
+        this.notOwner = notOwner;
+        this.quorum = quorum;
+    }
+
+    public static Message request(NameServerFunctions function, long nodeId, int port) {
+        return new Message(function, false, 0, nodeId, port, null, false, 0, null, null);
+    }
+
+    public static Message request(NameServerFunctions function, long nodeId, int port, String key) {
+        return new Message(function, false, 0, nodeId, port, key, false, 0, null, null);
+    }
+
+    public static Message request(NameServerFunctions function, long nodeId, int port, String key, String value) {
+        return new Message(function, false, 0, nodeId, port, key, false, 0, toBytes(value), null);
+    }
+
+    // Request about a ring position rather than a key, e.g. the FIND_SUCCESSOR target
+    public static Message request(NameServerFunctions function, long nodeId, int port, long token) {
+        return new Message(function, false, 0, nodeId, port, null, true, token, null, null);
+    }
+
+    public static Message request(NameServerFunctions function, long nodeId, int port, NodeInfo... nodes) {
+        return new Message(function, false, 0, nodeId, port, null, false, 0, null, nodes);
+    }
+
+    // Batch request; values is null for MGET and MDELETE, one value per key for MINSERT
+    public static Message batch(NameServerFunctions function, long nodeId, int port, String[] keys, String[] values) {
+        return new Message(function, false, 0, nodeId, port, null, false, 0, null, null, null, keys, values, 0, false);
+    }
+
+    // The same request sent on by another node, e.g. when forwarding towards the key's owner
+    public Message from(long senderId, int senderPort) {
+        return new Message(function, reply, 0, senderId, senderPort, key, hasToken, token, value, nodes,
+                tokens, batchKeys, batchValues, epoch, notOwner, quorum);
+    }
+
+    public Message withRequestId(int id) {
+        return new Message(function, reply, id, nodeId, port, key, hasToken, token, value, nodes,
+                tokens, batchKeys, batchValues, epoch, notOwner, quorum);
+    }
+
+    public Message withEpoch(int epoch) {
+        return new Message(function, reply, requestId, nodeId, port, key, hasToken, token, value, nodes,
+                tokens, batchKeys, batchValues, epoch, notOwner, quorum);
+    }
+
+    // The same request with a list of ring tokens, e.g. the slices a SEND_KEYS asks for
+    public Message withTokens(long... tokens) {
+        return new Message(function, reply, requestId, nodeId, port, key, hasToken, token, value, nodes,
+                tokens, batchKeys, batchValues, epoch, notOwner, quorum);
+    }
+
+    // The same request asking for R replicas to answer a read, or W to acknowledge a write
+    public Message withQuorum(int quorum) {
+        return new Message(function, reply, requestId, nodeId, port, key, hasToken, token, value, nodes,
+                tokens, batchKeys, batchValues, epoch, notOwner, quorum);
+    }
+
+    // Reply carrying a text value; a null value is the protocol's "null" (key not found, no answer)
+    public Message reply(String value) {
+        return new Message(function, true, requestId, nodeId, port, null, false, 0, toBytes(value), null);
+    }
+
+    // Reply carrying raw bytes, e.g. a Bloom filter
+    public Message bytesReply(byte[] value) {
+        return new Message(function, true, requestId, nodeId, port, null, false, 0, value, null);
+    }
+
+    public Message reply(String value, NodeInfo... nodes) {
+        return new Message(function, true, requestId, nodeId, port, null, false, 0, toBytes(value), nodes);
+    }
+
+    /**
+     * Reply to a batch request: one result per requested key, in request order (null where the key was
+     * not found or not applied), and an optional error describing keys that could not be reached.
+     */
+    public Message batchReply(String[] results, String error) {
+        return new Message(function, true, requestId, nodeId, port, null, false, 0, toBytes(error), null,
+                null, batchKeys, results, 0, false);
+    }
+
+    // Reply to a request sent with a ring epoch to a node that does not own its key; echoes the epoch
+    public Message notOwnerReply() {
+        return new Message(function, true, requestId, nodeId, port, null, false, 0, null, null, null, null, null, epoch, true);
+    }
+
+    public NameServerFunctions getFunction() {
+        return function;
+    }
+
+    public boolean isReply() {
+        return reply;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean hasKey() {
+        return key != null;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean hasToken() {
+        return hasToken;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public String getValueString() {
+        return (value == null) ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public NodeInfo[] getNodes() {
+        return nodes;
+    }
+
+    public long[] getTokens() {
+        return tokens;
+    }
+
+    public boolean isBatch() {
+        return batchKeys != null;
+    }
+
+    public String[] getBatchKeys() {
+        return batchKeys;
+    }
+
+    public String[] getBatchValues() {
+        return batchValues;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public boolean isNotOwner() {
+        return notOwner;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    @Override
+    public String toString() {
+        return reply ? WireCodec.formatReply(this) : WireCodec.formatRequest(this);
+    }
+
+    private static byte[] toBytes(String value) {
+        return (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+}
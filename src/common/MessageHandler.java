@@ -0,0 +1,24 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Server-side logic of a node, shared by every server engine and both wire formats.
+ */
+public interface MessageHandler {
+    /**
+     * Answer a request/reply function. Must return a reply, built with request.reply(...).
+     */
+    Message handle(Message request, String clientIp) throws IOException;
+
+    /**
+     * Serve SEND_KEYS / RECEIVE_KEYS, which stream further lines over the text connection.
+     */
+    void transfer(Message request, String clientIp, BufferedReader in, PrintWriter out) throws IOException;
+
+    static boolean isStreaming(NameServerFunctions function) {
+        return function == NameServerFunctions.SEND_KEYS || function == NameServerFunctions.RECEIVE_KEYS;
+    }
+}
@@ -0,0 +1,190 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One binary connection shared by any number of concurrent requests.
+ * Every request is sent with a fresh request id, and a reader thread hands each reply frame to the request
+ * with the same id. Callers therefore never wait for each other's round trips and replies may come back in
+ * any order. Reply futures complete on the reader thread, so callbacks attached to them must not block.
+ * Frames are written by a writer thread from a queue of at most MAX_QUEUED_FRAMES, all that have piled up in
+ * one flush. A caller that cannot queue its frame within WRITE_TIMEOUT_MS, because the peer stopped reading,
+ * closes the connection, failing every request on it, so no caller waits on a stuck peer for longer.
+ */
+public class MultiplexedConnection {
+    private static final int MAX_QUEUED_FRAMES = 1024;
+    private static final int WRITE_TIMEOUT_MS = 10000;
+
+    private final String peer;
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private final Thread writer;
+    private final Map<Integer, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean closed = false;
+    private volatile boolean answered = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    public MultiplexedConnection(String ip, int port) throws IOException {
+        this.peer = ip + ":" + port;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), ConnectionPool.CONNECT_TIMEOUT_MS);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            output.write(WireCodec.MAGIC);              // Negotiate binary frames for this connection
+            output.flush();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        writer = new Thread(this::writeRequests, "mux-writer-" + peer);
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this::readReplies, "mux-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send the request without waiting. The future fails with an IOException if the connection breaks first.
+     */
+    public CompletableFuture<Message> send(Message request) {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        if (closed) {
+            reply.completeExceptionally(new IOException("Connection to " + peer + " is closed"));
+            return reply;
+        }
+        int id = newRequestId();
+        pending.put(id, reply);
+        reply.whenComplete((message, error) -> pending.remove(id));     // Also drops abandoned requests
+        byte[] frame = WireCodec.encode(request.withRequestId(id));
+        lastUsed = System.currentTimeMillis();
+        try {
+            if (!outbound.offer(frame, WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                close(new SocketTimeoutException(peer + " read no request for " + WRITE_TIMEOUT_MS + " ms"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply.completeExceptionally(new InterruptedIOException("Interrupted sending to " + peer));
+        }
+        if (closed) reply.completeExceptionally(new IOException("Connection to " + peer + " is closed"));
+        return reply;
+    }
+
+    /**
+     * Send the request and wait for its reply, at most timeoutMillis (0 waits indefinitely; ConnectionPool
+     * callers get REQUEST_TIMEOUT_MS).
+     */
+    public Message request(Message request, int timeoutMillis) throws IOException {
+        CompletableFuture<Message> reply = send(request);
+        try {
+            if (timeoutMillis > 0) return reply.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return reply.get();
+        } catch (TimeoutException e) {
+            reply.cancel(false);
+            throw new SocketTimeoutException("No reply from " + peer + " within " + timeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            reply.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + peer);
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // True once any reply arrived, i.e. the connection has been shown to work
+    public boolean hasAnswered() {
+        return answered;
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public void close() {
+        close(new IOException("Connection to " + peer + " was closed"));
+    }
+
+    private int newRequestId() {
+        int id;
+        do {
+            id = nextRequestId.incrementAndGet();
+        } while (id == 0);                              // 0 marks unnumbered requests
+        return id;
+    }
+
+    private void readReplies() {
+        try {
+            Message reply;
+            while ((reply = WireCodec.read(input)) != null) {
+                answered = true;
+                CompletableFuture<Message> waiting = pending.get(reply.getRequestId());
+                if (waiting != null) waiting.complete(reply);
+            }
+            close(new EOFException("Connection to " + peer + " was closed by the peer"));
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            close(new IOException("Invalid reply from " + peer + ": " + e.getMessage()));
+        }
+    }
+
+    // Write queued frames, flushing once the queue is empty, until the connection closes
+    private void writeRequests() {
+        try {
+            while (!closed) {
+                byte[] frame = outbound.take();
+                do {
+                    output.write(frame);
+                } while ((frame = outbound.poll()) != null);
+                output.flush();
+            }
+        } catch (IOException e) {
+            close(e);
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    // Fail every request still waiting; they cannot be answered any more
+    private void close(IOException cause) {
+        closed = true;
+        try { socket.close(); } catch (IOException ignored) { }
+        writer.interrupt();
+        for (CompletableFuture<Message> waiting : pending.values())
+            waiting.completeExceptionally(cause);
+    }
+}
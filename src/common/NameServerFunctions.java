@@ -1,5 +1,6 @@
 package common;
 
 public enum NameServerFunctions {
-    ENTER, EXIT, SEND_KEYS, RECEIVE_KEYS, UPDATE_SUCCESSOR, LOOKUP, INSERT, DELETE, PRINT, NEIGHBOR
+    ENTER, EXIT, SEND_KEYS, RECEIVE_KEYS, UPDATE_SUCCESSOR, LOOKUP, INSERT, DELETE, PRINT, NEIGHBOR, FIND_SUCCESSOR, FINGERS,
+    MGET, MINSERT, MDELETE, RING, REPLICATE, REPLICA_READ, INVALIDATE, CACHE, FILTER, STATS
 }
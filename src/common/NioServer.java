@@ -0,0 +1,516 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking server engine: an acceptor hands connections to a small pool of selector event loops.
+ * The loops frame request lines and dispatch each one to a bounded worker pool, so idle connections
+ * hold no thread. Text requests on one connection are answered in order, and a line longer than
+ * WireCodec.MAX_FRAME_BYTES closes the connection.
+ * A request may block its worker on a forward to another node (to the owner, a quorum read, a key handoff),
+ * and that node's workers may be blocked forwarding back here. So when every worker is busy, a request runs on
+ * one of up to MAX_OVERFLOW_THREADS overflow threads instead of queueing behind them, and a forward between two
+ * loaded nodes does not wait on each other. Once those are busy as well the connection stops being read until
+ * a request finishes, and its unhandled requests stay capped at ServerSession.MAX_IN_FLIGHT.
+ * Every dispatched request is answered, with an error reply if handling it failed, and releases its connection.
+ * A connection that makes its event loop fail is closed; the loop goes on serving the others.
+ * The first byte of a connection selects binary frames or text lines, see WireCodec. Binary requests that
+ * carry a request id run concurrently, up to ServerSession.MAX_IN_FLIGHT per connection, and each reply is
+ * written as soon as it is ready; a request without an id waits for everything before it.
+ * Key transfers (SEND_KEYS / RECEIVE_KEYS) exchange several lines with the peer, so their connection is
+ * switched back to blocking mode and served by the same handler on a dedicated thread.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int MAX_OVERFLOW_THREADS = 1024;
+    private static final Log serverLog = Log.get("server");
+    private static final Log requestLog = Log.get("request");
+
+    private final int port;
+    private final MessageHandler handler;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workers;
+    private final ExecutorService overflow = new ThreadPoolExecutor(0, MAX_OVERFLOW_THREADS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>());         // Rejects when full, the connection then waits
+    private final ExecutorService blockingSessions = Executors.newCachedThreadPool();
+
+    public NioServer(int port, int eventLoopCount, int workerCount, MessageHandler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        // No queue: a request no idle worker takes goes to the overflow threads, or is rejected if they are busy
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), (task, pool) -> overflow.execute(task));
+    }
+
+    // Default sizing: one event loop per two cores (at most 4) and 64 request workers
+    public NioServer(int port, MessageHandler handler) {
+        this(port, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), 64, handler);
+    }
+
+    /**
+     * Start the event loops and accept connections on the calling thread until the server socket fails.
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "nio-event-loop-" + i).start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), ServerEngine.ACCEPT_BACKLOG);
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[next].register(channel);     // Spread connections round-robin over the loops
+                next = (next + 1) % eventLoops.length;
+            }
+        } finally {
+            workers.shutdown();
+            overflow.shutdown();
+            blockingSessions.shutdown();
+        }
+    }
+
+    // A request finished, so a thread is free: let the loops retry connections that found none
+    private void retryStalled() {
+        for (EventLoop loop : eventLoops) {
+            if (loop != null && loop.hasStalled) loop.execute(loop::retryStalled);
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Set<Connection> stalled = new LinkedHashSet<>();     // Waiting for a free thread
+        private volatile boolean hasStalled = false;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Run a task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stall(Connection connection) {
+            stalled.add(connection);
+            hasStalled = true;
+        }
+
+        void retryStalled() {
+            hasStalled = false;
+            List<Connection> waiting = new ArrayList<>(stalled);
+            stalled.clear();
+            for (Connection connection : waiting) connection.resume();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(SELECT_TIMEOUT_MS);
+                } catch (IOException e) {
+                    serverLog.error("Error in NIO event loop: {}", e.getMessage());
+                    continue;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        serverLog.error("Error in NIO event loop task: {}", e);
+                    }
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid() || connection == null) continue;
+                    try {
+                        if (key.isReadable()) connection.onReadable(readBuffer);
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (RuntimeException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SELECT_TIMEOUT_MS) {
+                    closeIdle(now);
+                    if (hasStalled) retryStalled();     // In case the wakeup came before the thread was free
+                    lastSweep = now;
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isIdleSince(now - ConnectionPool.SERVER_IDLE_TIMEOUT_MS))
+                    connection.close();
+            }
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String clientIp;
+        private final Deque<String> pendingLines = new ArrayDeque<>();
+        private final Deque<Message> pendingFrames = new ArrayDeque<>();
+        private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength = 0;
+        private Boolean binary = null;                  // Unknown until the first byte arrives
+        private boolean busy = false;                   // A text or unnumbered binary request is being handled
+        private int inFlight = 0;                       // Numbered binary requests being handled
+        private boolean closeAfterWrite = false;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.clientIp = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void onReadable(ByteBuffer readBuffer) {
+            readBuffer.clear();
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (read == 0) return;
+            lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+            if (binary == null) {
+                binary = (readBuffer.get(0) & 0xFF) == WireCodec.MAGIC;
+                if (binary) readBuffer.get();           // Consume the negotiation byte
+            }
+            if (binary) {
+                readFrames(readBuffer);
+                dispatchNext();
+                updateInterest();
+                return;
+            }
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = (lineLength > 0 && lineBuffer[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+                    pendingLines.add(new String(lineBuffer, 0, length, StandardCharsets.UTF_8));
+                    lineLength = 0;
+                } else {
+                    if (lineLength == WireCodec.MAX_FRAME_BYTES) {
+                        requestLog.warn("Invalid Request from incoming request {}", "Line too long");
+                        close();
+                        return;
+                    }
+                    if (lineLength == lineBuffer.length)
+                        lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineLength * 2, WireCodec.MAX_FRAME_BYTES));
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+            dispatchNext();
+            updateInterest();
+        }
+
+        // Append to the frame buffer and queue every complete frame
+        private void readFrames(ByteBuffer readBuffer) {
+            int count = readBuffer.remaining();
+            if (lineLength + count > lineBuffer.length)
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + count));
+            readBuffer.get(lineBuffer, lineLength, count);
+            lineLength += count;
+
+            int offset = 0;
+            try {
+                int[] header;
+                while ((header = WireCodec.peekFrameLength(lineBuffer, offset, lineLength)) != null) {
+                    int length = header[0];
+                    if (length > WireCodec.MAX_FRAME_BYTES) throw new IllegalArgumentException("Frame too large");
+                    int start = offset + header[1];
+                    if (lineLength - start < length) break;     // Body not complete yet
+                    pendingFrames.add(WireCodec.decode(lineBuffer, start, length));
+                    offset = start + length;
+                }
+            } catch (IllegalArgumentException e) {
+                requestLog.warn("Invalid Request from incoming request {}", e.getMessage());
+                close();
+                return;
+            }
+            System.arraycopy(lineBuffer, offset, lineBuffer, 0, lineLength - offset);
+            lineLength -= offset;
+        }
+
+        void onWritable() {
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer buffer = pendingWrites.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) return;      // Socket buffer full, wait for the next OP_WRITE
+                    pendingWrites.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            dispatchNext();
+            updateInterest();
+        }
+
+        // Read while the request queue has room, and wait for OP_WRITE only while replies are queued
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            int pending = Boolean.TRUE.equals(binary) ? pendingFrames.size() : pendingLines.size();
+            int ops = (pending < ServerSession.MAX_IN_FLIGHT) ? SelectionKey.OP_READ : 0;
+            if (!pendingWrites.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        // Hand the next complete request to a worker: one text request at a time, binary ones as described above
+        private void dispatchNext() {
+            if (!key.isValid() || closeAfterWrite) return;
+            if (Boolean.TRUE.equals(binary)) {
+                dispatchFrames();
+                return;
+            }
+            if (busy || !pendingWrites.isEmpty() || pendingLines.isEmpty()) return;
+            String message = pendingLines.poll();
+            if (isStreaming(message)) {
+                handOffToBlockingSession(message);
+                return;
+            }
+
+            busy = true;
+            boolean submitted = submit(() -> {
+                StringWriter response = new StringWriter();
+                boolean keepOpen = true;
+                try (PrintWriter out = new PrintWriter(response)) {
+                    BufferedReader noInput = new BufferedReader(new StringReader(""));
+                    ServerSession.handleLine(message, clientIp, noInput, out, handler);
+                } catch (IOException | RuntimeException e) {
+                    requestLog.warn("Invalid Request from incoming request {}", e.getMessage());
+                    keepOpen = false;
+                } finally {
+                    byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+                    boolean close = !keepOpen;
+                    onLoop(() -> onResponse(bytes, close));
+                }
+            });
+            if (!submitted) {
+                busy = false;
+                pendingLines.addFirst(message);
+            }
+        }
+
+        private void dispatchFrames() {
+            while (!busy && !pendingFrames.isEmpty()) {
+                boolean numbered = pendingFrames.peek().getRequestId() != 0;
+                if (numbered ? inFlight >= ServerSession.MAX_IN_FLIGHT : inFlight > 0) return;
+                Message request = pendingFrames.poll();
+                if (numbered) inFlight++;
+                else busy = true;
+                boolean submitted = submit(() -> {
+                    byte[] reply = new byte[0];
+                    boolean keepOpen = true;
+                    try {
+                        reply = ServerSession.handleFrame(request, clientIp, handler);
+                    } catch (IOException | RuntimeException e) {
+                        requestLog.warn("Invalid Request from incoming request {}", e.getMessage());
+                        keepOpen = false;
+                    } finally {
+                        byte[] bytes = reply;
+                        boolean close = !keepOpen;
+                        onLoop(() -> {
+                            if (numbered) inFlight--;
+                            onResponse(bytes, close);
+                        });
+                    }
+                });
+                if (!submitted) {
+                    if (numbered) inFlight--;
+                    else busy = false;
+                    pendingFrames.addFirst(request);
+                    return;
+                }
+            }
+        }
+
+        // Run a request on a worker or overflow thread; false if none is free, the connection then waits for one
+        private boolean submit(Runnable request) {
+            try {
+                workers.execute(request);
+                return true;
+            } catch (RejectedExecutionException e) {
+                loop.stall(this);
+                return false;
+            }
+        }
+
+        // Run on the loop thread once a request is done; a failure there closes only this connection
+        private void onLoop(Runnable task) {
+            loop.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            });
+            retryStalled();
+        }
+
+        void resume() {
+            dispatchNext();
+            updateInterest();
+        }
+
+        void fail(RuntimeException e) {
+            requestLog.error("Error serving connection from {}: {}", clientIp, e);
+            close();
+        }
+
+        private void onResponse(byte[] bytes, boolean close) {
+            busy = false;                               // Numbered requests never overlap an unnumbered one
+            lastActivity = System.currentTimeMillis();
+            if (!key.isValid()) return;
+            closeAfterWrite |= close;
+            if (bytes.length > 0) {
+                pendingWrites.add(ByteBuffer.wrap(bytes));
+                onWritable();
+            } else if (close) {
+                close();
+            } else {
+                dispatchNext();
+                updateInterest();
+            }
+        }
+
+        /**
+         * Switch the connection back to blocking mode and serve the rest of it with the blocking handler.
+         * Bytes already read but not yet handled are replayed ahead of the socket stream.
+         */
+        private void handOffToBlockingSession(String message) {
+            StringBuilder leftover = new StringBuilder();
+            for (String line : pendingLines)
+                leftover.append(line).append('\n');
+            byte[] partial = Arrays.copyOf(lineBuffer, lineLength);
+            pendingLines.clear();
+            key.attach(null);
+            key.cancel();
+            try {
+                loop.selector.selectNow();                  // Flush the cancelled key so the channel can block
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                return;
+            }
+
+            byte[] replay = concat(leftover.toString().getBytes(StandardCharsets.UTF_8), partial);
+            blockingSessions.execute(() -> {
+                Socket socket = channel.socket();
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new SequenceInputStream(
+                             new ByteArrayInputStream(replay), socket.getInputStream())));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                    socket.setSoTimeout(ConnectionPool.SERVER_IDLE_TIMEOUT_MS);
+                    ServerSession.serveText(in, out, clientIp, handler, message);
+                } catch (IllegalArgumentException | IOException e) {
+                    // Peer closed, timed out or sent an invalid request; the session ends either way
+                } finally {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        boolean isIdleSince(long cutoff) {
+            return !busy && inFlight == 0 && pendingWrites.isEmpty() && lastActivity < cutoff;
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static boolean isStreaming(String message) {
+        int end = message.indexOf(' ');
+        String command = (end == -1 ? message : message.substring(0, end)).trim().toUpperCase();
+        for (NameServerFunctions function : NameServerFunctions.values()) {
+            if (function.name().equals(command)) return MessageHandler.isStreaming(function);
+        }
+        return false;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try { channel.close(); } catch (IOException ignored) { }
+    }
+}
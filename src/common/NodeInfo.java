@@ -1,19 +1,19 @@
 package common;
 
 public class NodeInfo {
-    private int id;
+    private long id;                            // Position on the token ring
     private String ip;
     private int port;
     private NodeInfo predecessor;
     private NodeInfo successor;
 
-    public NodeInfo(int id, String ip, int port) {
+    public NodeInfo(long id, String ip, int port) {
         this.id = id;
         this.ip = ip;
         this.port = port;
     }
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
@@ -35,9 +35,9 @@ public class NodeInfo {
 
     @Override
     public String toString() {
-        String pred = (predecessor == null) ? "null" : predecessor.getId() + " (" + predecessor.getIp() + ":" + predecessor.getPort() + ")";
-        String succ = (successor == null) ? "null" : successor.getId() + " (" + successor.getIp() + ":" + successor.getPort() + ")";
-        return "Node " + id + " [" + ip + ":" + port + ", Pred: " + pred + ", Succ: " + succ + "]";
+        String pred = (predecessor == null) ? "null" : Long.toUnsignedString(predecessor.getId()) + " (" + predecessor.getIp() + ":" + predecessor.getPort() + ")";
+        String succ = (successor == null) ? "null" : Long.toUnsignedString(successor.getId()) + " (" + successor.getIp() + ":" + successor.getPort() + ")";
+        return "Node " + Long.toUnsignedString(id) + " [" + ip + ":" + port + ", Pred: " + pred + ", Succ: " + succ + "]";
     }
 
     public String getIp() {
@@ -0,0 +1,97 @@
+package common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What one node has served since it started, cheap enough to keep on for every request: a latency histogram
+ * per NameServerFunctions command, the latency of each forward to an owner, the forwards a request needed
+ * (one on a current ring, more when the owner answered not-owner or failed and the ring was refreshed), and
+ * striped counters of not-owner answers and of key requests per ring arc. The arcs are the 64 equal parts of
+ * the token space by the top bits of a key's token, so a hot range shows up as an arc with a large share.
+ * report() is the text of the STATS command; the latencies of several nodes side by side show a slow one.
+ */
+public class NodeStats {
+    private static final int ARC_BITS = 6;
+    private static final int ARCS = 1 << ARC_BITS;
+    private static final int HOT_ARCS = 5;
+    private static final NameServerFunctions[] FUNCTIONS = NameServerFunctions.values();
+
+    private final long started = System.currentTimeMillis();
+    private final Histogram[] latency = new Histogram[FUNCTIONS.length];
+    private final Histogram forwardLatency = new Histogram();
+    private final Histogram hops = new Histogram();
+    private final LongAdder notOwner = new LongAdder();
+    private final LongAdder[] arcs = new LongAdder[ARCS];
+
+    public NodeStats() {
+        for (int i = 0; i < latency.length; i++) latency[i] = new Histogram();
+        for (int i = 0; i < ARCS; i++) arcs[i] = new LongAdder();
+    }
+
+    // One request answered in the given time; a lookup, insert or delete also counts for its key's arc
+    public void recordRequest(Message request, long nanos) {
+        NameServerFunctions function = request.getFunction();
+        latency[function.ordinal()].record(nanos);
+        if (function == NameServerFunctions.LOOKUP || function == NameServerFunctions.INSERT
+                || function == NameServerFunctions.DELETE) {
+            arcs[(int) (KeyHash.token(request.getKey()) >>> (64 - ARC_BITS))].increment();
+        }
+    }
+
+    // One forward to an owner, answered or not
+    public void recordForward(long nanos) {
+        forwardLatency.record(nanos);
+    }
+
+    // The forwards one request took before an owner answered, or until the attempts ran out
+    public void recordHops(int forwards) {
+        hops.record(forwards);
+    }
+
+    // A request answered not-owner because the sender's ring snapshot was stale
+    public void recordNotOwner() {
+        notOwner.increment();
+    }
+
+    /**
+     * Multi-line report: uptime, latencies per command served, forwards, the busiest arcs and, if a transfer
+     * service is given, the keys and bytes of its transfers. Latencies are in microseconds.
+     */
+    public String report(KeyTransferService transfers) {
+        StringBuilder report = new StringBuilder();
+        report.append("uptime: ").append((System.currentTimeMillis() - started) / 1000).append(" s\n");
+        for (NameServerFunctions function : FUNCTIONS) {
+            Histogram histogram = latency[function.ordinal()];
+            if (histogram.getCount() == 0) continue;
+            report.append(function).append(": ").append(histogram.summary(1000, "us")).append('\n');
+        }
+        report.append("forward latency: ").append(forwardLatency.summary(1000, "us")).append('\n');
+        report.append("forwards per request: ").append(hops.summary(1, "")).append('\n');
+        report.append("not-owner answers: ").append(notOwner.sum()).append('\n');
+        appendHotArcs(report);
+        if (transfers != null) report.append(transfers.report()).append('\n');
+        return report.toString().stripTrailing();
+    }
+
+    // The HOT_ARCS arcs with the most key requests and their share of all of them
+    private void appendHotArcs(StringBuilder report) {
+        long[] counts = new long[ARCS];
+        long total = 0;
+        for (int i = 0; i < ARCS; i++) total += counts[i] = arcs[i].sum();
+        report.append("key requests: ").append(total).append('\n');
+        if (total == 0) return;
+        boolean[] shown = new boolean[ARCS];
+        for (int rank = 0; rank < HOT_ARCS; rank++) {
+            int hottest = -1;
+            for (int i = 0; i < ARCS; i++) {
+                if (!shown[i] && counts[i] > 0 && (hottest < 0 || counts[i] > counts[hottest])) hottest = i;
+            }
+            if (hottest < 0) break;
+            shown[hottest] = true;
+            long start = (long) hottest << (64 - ARC_BITS);
+            long end = start + (1L << (64 - ARC_BITS)) - 1;
+            report.append(String.format("hot arc %d (tokens %s-%s): %d requests, %.1f%%\n", hottest,
+                    Long.toUnsignedString(start), Long.toUnsignedString(end), counts[hottest], 100.0 * counts[hottest] / total));
+        }
+    }
+}
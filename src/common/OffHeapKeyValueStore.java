@@ -0,0 +1,618 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Store that keeps keys and values outside the Java heap, for nodes holding more data than a heap can
+ * collect without long pauses.
+ * Records are appended to memory-mapped segment files: long token, int key length, int value length, then
+ * the UTF-8 key and the value bytes, so a value may hold any bytes. The only thing on the heap is the index:
+ * per stripe, an ordered open-addressing table of primitive token and record location arrays (as in
+ * ConcurrentTokenKeyValueStore, without a single object per key), so the collector has nothing to trace
+ * however much data the node holds, and a range operation reads only the index slots of its range.
+ * A delete leaves its record in place as dead space. Once a full segment is mostly dead, a background
+ * compactor copies its live records to the segment being written and deletes the file.
+ * The segment files are scratch space and are deleted on close: durability is DurableKeyValueStore's job,
+ * which can wrap this store like any other.
+ */
+public class OffHeapKeyValueStore implements KeyValueStore, Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 256 << 20;
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int OVERFLOW_SLOTS = 64;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final Log log = Log.get("store");
+    private static final double COMPACT_DEAD_RATIO = 0.5;
+    private static final int HEADER_BYTES = 16;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Object appendLock = new Object();
+    private final LinkedBlockingQueue<Segment> compactions = new LinkedBlockingQueue<>();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final Thread compactor;
+
+    // Guarded by appendLock; readers see segments through the stripe locks that published their records
+    private volatile Segment[] segments = new Segment[16];
+    private Segment active;
+    private boolean closed;
+
+    public OffHeapKeyValueStore() {
+        this(temporaryDirectory(), DEFAULT_SEGMENT_BYTES);
+    }
+
+    public OffHeapKeyValueStore(Path directory, int segmentBytes) {
+        if (segmentBytes < HEADER_BYTES || segmentBytes > MAX_SEGMENT_BYTES)
+            throw new IllegalArgumentException("Segment size must be between " + HEADER_BYTES + " and " + MAX_SEGMENT_BYTES);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        synchronized (appendLock) {
+            active = newSegment(1);                     // Numbered from 1, so no record sits at location 0
+        }
+        compactor = new Thread(this::compactLoop, "offheap-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    @Override
+    public int insert(String key, String value) {
+        return insert(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Insert a value of raw bytes; 0 on success, -1 if the key exists
+    public int insert(String key, byte[] value) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).insert(token, key.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    @Override
+    public int put(String key, String value) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).put(token, key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String lookup(String key) {
+        byte[] value = lookupBytes(key);
+        return (value == null) ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    // The value's raw bytes, null if the key is absent
+    public byte[] lookupBytes(String key) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).lookup(token, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public int delete(String key) {
+        long token = KeyHash.token(key);
+        return stripeFor(token).delete(token, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void print_keys() {
+        forEach((token, key, value) -> System.out.println("Key: " + key + ", Value: " + value));
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        visit(0, Range.MAX_TOKEN, consumer);
+    }
+
+    @Override
+    public void forEachInRange(Range range, EntryConsumer consumer) {
+        if (range.isWrapping()) {
+            visit(0, range.getEnd(), consumer);
+            visit(range.getStart(), Range.MAX_TOKEN, consumer);
+        } else {
+            visit(range.getStart(), range.getEnd(), consumer);
+        }
+    }
+
+    @Override
+    public int deleteRange(Range range) {
+        if (!range.isWrapping()) return deleteBetween(range.getStart(), range.getEnd());
+        return deleteBetween(0, range.getEnd()) + deleteBetween(range.getStart(), Range.MAX_TOKEN);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) size += stripe.size();
+        return size;
+    }
+
+    // Bytes of the records still referenced by the index
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    // Bytes of the segment files, dead records included
+    public long getSegmentBytes() {
+        long total = 0;
+        for (Segment segment : segments) if (segment != null) total += segment.end;
+        return total;
+    }
+
+    // Stop compacting and delete the segment files; the store must not be used afterwards
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            closed = true;
+            for (Segment segment : segments) if (segment != null) Files.deleteIfExists(segment.file);
+        }
+        compactor.interrupt();
+    }
+
+    /**
+     * Each stripe holds one arc of the ring, so the tokens from..to (unsigned, from <= to) touch only a run
+     * of stripes; each is decoded onto the heap a chunk at a time, as in ConcurrentTokenKeyValueStore.
+     */
+    private void visit(long from, long to, EntryConsumer consumer) {
+        EntryBuffer chunk = new EntryBuffer();
+        for (int i = stripeIndex(from); i <= stripeIndex(to); i++) {
+            long next = fromIn(i, from);
+            long last = toIn(i, to);
+            while (true) {
+                boolean full = stripes[i].collect(next, last, chunk);
+                if (full) next = chunk.lastToken() + 1;
+                chunk.drain(consumer);
+                if (!full) break;
+            }
+        }
+    }
+
+    private int deleteBetween(long from, long to) {
+        int removed = 0;
+        for (int i = stripeIndex(from); i <= stripeIndex(to); i++) removed += stripes[i].deleteBetween(fromIn(i, from), toIn(i, to));
+        return removed;
+    }
+
+    private Stripe stripeFor(long token) {
+        return stripes[stripeIndex(token)];
+    }
+
+    private static int stripeIndex(long token) {
+        return (int) (token >>> (64 - STRIPE_BITS));
+    }
+
+    // The part of from..to in a stripe the tokens touch, see ConcurrentTokenKeyValueStore
+    private static long fromIn(int stripe, long from) {
+        return (stripe == stripeIndex(from)) ? from : (long) stripe << (64 - STRIPE_BITS);
+    }
+
+    private static long toIn(int stripe, long to) {
+        return (stripe == stripeIndex(to)) ? to : ((long) stripe << (64 - STRIPE_BITS)) | (Range.MAX_TOKEN >>> STRIPE_BITS);
+    }
+
+    // ---- Segments ----
+
+    private static final class Segment {
+        final int number;
+        final Path file;
+        final MappedByteBuffer buffer;
+        final AtomicLong dead = new AtomicLong();
+        final AtomicBoolean queued = new AtomicBoolean();
+        volatile int end;                               // Bytes appended, written under appendLock
+
+        Segment(int number, Path file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        long tokenAt(int offset) {
+            return buffer.getLong(offset);
+        }
+
+        int sizeAt(int offset) {
+            return HEADER_BYTES + buffer.getInt(offset + 8) + buffer.getInt(offset + 12);
+        }
+
+        boolean keyEquals(int offset, byte[] key) {
+            if (buffer.getInt(offset + 8) != key.length) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(offset + HEADER_BYTES + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        byte[] key(int offset) {
+            byte[] key = new byte[buffer.getInt(offset + 8)];
+            buffer.get(offset + HEADER_BYTES, key);
+            return key;
+        }
+
+        byte[] value(int offset) {
+            int keyLength = buffer.getInt(offset + 8);
+            byte[] value = new byte[buffer.getInt(offset + 12)];
+            buffer.get(offset + HEADER_BYTES + keyLength, value);
+            return value;
+        }
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private Segment segmentOf(long location) {
+        return segments[(int) (location >>> 32)];
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    // Map a new segment file; called under appendLock
+    private Segment newSegment(int number) {
+        Path file = directory.resolve(String.format("segment-%08d.dat", number));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            Segment segment = new Segment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+            Segment[] current = segments;
+            if (number >= current.length) current = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+            current[number] = segment;
+            segments = current;
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map segment " + file, e);
+        }
+    }
+
+    /**
+     * Append a record to the active segment and return its location. Records are written whole under the
+     * append lock, so the compactor never sees a record that is still being written.
+     */
+    private long append(long token, byte[] key, byte[] value) {
+        int size = HEADER_BYTES + key.length + value.length;
+        if (size > segmentBytes) throw new IllegalArgumentException("Record of " + size + " bytes exceeds the segment size");
+        synchronized (appendLock) {
+            if (closed) throw new IllegalStateException("Store is closed");
+            if (active.end + size > segmentBytes) {
+                Segment full = active;
+                active = newSegment(full.number + 1);
+                checkCompaction(full);                  // Its deletes may have happened while it was written
+            }
+            int offset = active.end;
+            MappedByteBuffer buffer = active.buffer;
+            buffer.putLong(offset, token);
+            buffer.putInt(offset + 8, key.length);
+            buffer.putInt(offset + 12, value.length);
+            buffer.put(offset + HEADER_BYTES, key);
+            buffer.put(offset + HEADER_BYTES + key.length, value);
+            active.end += size;
+            liveBytes.addAndGet(size);
+            return location(active.number, offset);
+        }
+    }
+
+    // Account a record no longer referenced and queue its segment once it is mostly dead
+    private void release(long location) {
+        Segment segment = segmentOf(location);
+        int size = segment.sizeAt(offsetOf(location));
+        segment.dead.addAndGet(size);
+        liveBytes.addAndGet(-size);
+        if (segment.dead.get() > segment.end * COMPACT_DEAD_RATIO) {
+            synchronized (appendLock) {
+                checkCompaction(segment);
+            }
+        }
+    }
+
+    // Called under appendLock; the active segment is only compacted once it is full
+    private void checkCompaction(Segment segment) {
+        if (segment != active && segment.dead.get() > segment.end * COMPACT_DEAD_RATIO && segment.queued.compareAndSet(false, true))
+            compactions.add(segment);
+    }
+
+    private void compactLoop() {
+        try {
+            while (true) compact(compactions.take());
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (RuntimeException e) {
+            log.error("Compaction stopped: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Move the live records of a full segment to the active one, then drop it. A record is live if the index
+     * still points at it; the check and the move happen under its stripe's write lock, so a racing delete
+     * either removes the old record first or the moved one afterwards.
+     */
+    private void compact(Segment segment) throws InterruptedException {
+        int end;
+        synchronized (appendLock) {
+            if (closed) throw new InterruptedException();
+            end = segment.end;
+        }
+        long moved = 0;
+        for (int offset = 0; offset < end; ) {
+            int size = segment.sizeAt(offset);
+            long token = segment.tokenAt(offset);
+            if (stripeFor(token).relocate(token, location(segment.number, offset))) moved += size;
+            offset += size;
+        }
+        synchronized (appendLock) {
+            segments[segment.number] = null;            // Readers still holding its buffer keep it mapped until collected
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                log.warn("Cannot delete segment {}: {}", segment.file, e.getMessage());
+            }
+        }
+        log.info("Compacted segment {}: moved {} live bytes, freed {} bytes", segment.number, moved, end - moved);
+    }
+
+    private static Path temporaryDirectory() {
+        try {
+            Path directory = Files.createTempDirectory("offheap-store");
+            directory.toFile().deleteOnExit();
+            return directory;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---- Index ----
+
+    // Arrays and shift published together, so an optimistic reader always probes a consistent table
+    private static final class Table {
+        final long[] tokens;
+        final long[] locations;                         // 0 marks an empty slot
+        final int shift;
+
+        Table(int capacity) {
+            tokens = new long[capacity + OVERFLOW_SLOTS];
+            locations = new long[capacity + OVERFLOW_SLOTS];
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        // The token's bits below those that picked the stripe, top ones first
+        int homeOf(long token) {
+            return (int) ((token << STRIPE_BITS) >>> shift);
+        }
+
+        int capacity() {
+            return tokens.length - OVERFLOW_SLOTS;
+        }
+    }
+
+    private final class Stripe {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(16);
+        private int size;
+        private int resizeAt = (int) (16 * LOAD_FACTOR);
+
+        byte[] lookup(long token, byte[] key) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    byte[] value = read(table, token, key);
+                    if (lock.validate(stamp)) return value;
+                } catch (RuntimeException e) {
+                    // A racing writer or compaction moved the record; retry under the read lock
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return read(table, token, key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private byte[] read(Table t, long token, byte[] key) {
+            int slot = find(t, token, key);
+            if (slot < 0) return null;
+            long location = t.locations[slot];
+            return segmentOf(location).value(offsetOf(location));
+        }
+
+        // Slot of the key, or -1; bounded by the table length so a probe racing with a writer terminates
+        private int find(Table t, long token, byte[] key) {
+            for (int slot = t.homeOf(token); slot < t.locations.length; slot++) {
+                long location = t.locations[slot];
+                if (location == 0) return -1;
+                if (t.tokens[slot] == token && segmentOf(location).keyEquals(offsetOf(location), key)) return slot;
+                if (Long.compareUnsigned(t.tokens[slot], token) > 0) return -1;
+            }
+            return -1;
+        }
+
+        int insert(long token, byte[] key, byte[] value) {
+            long stamp = lock.writeLock();
+            try {
+                if (find(table, token, key) >= 0) return -1;   // Key already exists
+                return insertLocked(token, key, value);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Ordered insert of an absent key under the write lock, see TokenKeyValueStore
+        private int insertLocked(long token, byte[] key, byte[] value) {
+            while (true) {
+                Table t = table;
+                int slot = t.homeOf(token);
+                while (slot < t.locations.length && t.locations[slot] != 0 && Long.compareUnsigned(t.tokens[slot], token) <= 0) slot++;
+                int free = slot;
+                while (free < t.locations.length && t.locations[free] != 0) free++;
+                if (free == t.locations.length) {
+                    resize();
+                    continue;
+                }
+                long location = append(token, key, value);
+                System.arraycopy(t.tokens, slot, t.tokens, slot + 1, free - slot);
+                System.arraycopy(t.locations, slot, t.locations, slot + 1, free - slot);
+                t.tokens[slot] = token;
+                t.locations[slot] = location;
+                if (++size > resizeAt) resize();
+                return 0;
+            }
+        }
+
+        // Append the new record and repoint the key's slot at it, so a reader finds the old record or the new one
+        int put(long token, byte[] key, byte[] value) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = find(t, token, key);
+                if (slot < 0) return insertLocked(token, key, value);
+                long old = t.locations[slot];
+                t.locations[slot] = append(token, key, value);
+                release(old);
+                return 1;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int delete(long token, byte[] key) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = find(table, token, key);
+                if (slot < 0) return -1;
+                removeAt(table, slot);
+                return 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Remove the keys with tokens from..to of this stripe's arc, bounded as in TokenKeyValueStore
+        int deleteBetween(long from, long to) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int last = t.homeOf(to);
+                int removed = 0;
+                for (int slot = t.homeOf(from); slot < t.locations.length; ) {
+                    if (t.locations[slot] == 0) {
+                        if (slot >= last) break;
+                        slot++;
+                        continue;
+                    }
+                    long token = t.tokens[slot];
+                    if (Long.compareUnsigned(token, to) > 0) break;
+                    if (Long.compareUnsigned(token, from) >= 0) {
+                        removeAt(t, slot);                  // The shift may bring the next entry into this slot
+                        removed++;
+                    } else {
+                        slot++;
+                    }
+                }
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Decode a chunk of the entries with tokens from..to of this stripe's arc; returns whether it filled first
+        boolean collect(long from, long to, EntryBuffer chunk) {
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                int last = t.homeOf(to);
+                for (int slot = t.homeOf(from); slot < t.locations.length; slot++) {
+                    long location = t.locations[slot];
+                    if (location == 0) {
+                        if (slot >= last) return false;
+                        continue;
+                    }
+                    long token = t.tokens[slot];
+                    if (Long.compareUnsigned(token, to) > 0) return false;
+                    if (Long.compareUnsigned(token, from) < 0) continue;
+                    if (chunk.isFullBefore(token)) return true;
+                    Segment segment = segmentOf(location);
+                    chunk.add(token, new String(segment.key(offsetOf(location)), StandardCharsets.UTF_8),
+                            new String(segment.value(offsetOf(location)), StandardCharsets.UTF_8));
+                }
+                return false;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Point the index at a copy of the record if it is still live; returns whether it was
+        boolean relocate(long token, long location) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                for (int slot = t.homeOf(token); slot < t.locations.length && t.locations[slot] != 0; slot++) {
+                    if (t.locations[slot] == location) {
+                        Segment segment = segmentOf(location);
+                        int offset = offsetOf(location);
+                        t.locations[slot] = append(token, segment.key(offset), segment.value(offset));
+                        liveBytes.addAndGet(-segment.sizeAt(offset));
+                        return true;
+                    }
+                    if (Long.compareUnsigned(t.tokens[slot], token) > 0) break;
+                }
+                return false;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Backward-shift deletion, see TokenKeyValueStore; the removed record becomes dead space
+        private void removeAt(Table t, int gap) {
+            release(t.locations[gap]);
+            size--;
+            int end = gap + 1;
+            while (end < t.locations.length && t.locations[end] != 0 && t.homeOf(t.tokens[end]) < end) end++;
+            System.arraycopy(t.tokens, gap + 1, t.tokens, gap, end - gap - 1);
+            System.arraycopy(t.locations, gap + 1, t.locations, gap, end - gap - 1);
+            t.locations[end - 1] = 0;
+        }
+
+        // Double the home slots, refilling in order as in TokenKeyValueStore
+        private void resize() {
+            Table old = table;
+            for (int capacity = old.capacity() << 1; ; capacity <<= 1) {
+                Table grown = refill(old, new Table(capacity));
+                if (grown == null) continue;
+                resizeAt = (int) (grown.capacity() * LOAD_FACTOR);
+                table = grown;
+                return;
+            }
+        }
+
+        private Table refill(Table old, Table grown) {
+            int next = 0;
+            for (int slot = 0; slot < old.locations.length; slot++) {
+                if (old.locations[slot] == 0) continue;
+                int target = Math.max(grown.homeOf(old.tokens[slot]), next);
+                if (target == grown.locations.length) return null;
+                grown.tokens[target] = old.tokens[slot];
+                grown.locations[target] = old.locations[slot];
+                next = target + 1;
+            }
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base of the placements that ignore where the tokens sit: the ring is cut into PARTITIONS equal ranges, and
+ * the strategy assigns every partition to a physical node, so ownership stays a set of token ranges and keys
+ * move between nodes by range like on the ring. A key's partition is the top PARTITION_BITS of its token.
+ * A node is known by its lowest token, which stays the same while it is in the ring, and weighs as many as
+ * its number of tokens; nodes are numbered in the order of their lowest tokens.
+ */
+public abstract class PartitionedPlacement implements Placement {
+    public static final int PARTITION_BITS = 16;
+    public static final int PARTITIONS = 1 << PARTITION_BITS;
+
+    protected final long[] owners;              // Owner of each node number
+    protected final long[] identities;          // Lowest token of each node
+    protected final int[] weights;              // Token count of each node
+
+    protected PartitionedPlacement(long[] tokens, long[] tokenOwners) {
+        Map<Long, Integer> numbers = new HashMap<>();
+        List<Long> ownerList = new ArrayList<>();
+        List<Long> identityList = new ArrayList<>();
+        List<Integer> weightList = new ArrayList<>();
+        for (int i = 0; i < tokens.length; i++) {
+            Integer number = numbers.get(tokenOwners[i]);
+            if (number == null) {
+                numbers.put(tokenOwners[i], ownerList.size());
+                ownerList.add(tokenOwners[i]);
+                identityList.add(tokens[i]);
+                weightList.add(1);
+            } else {
+                weightList.set(number, weightList.get(number) + 1);
+            }
+        }
+        owners = new long[ownerList.size()];
+        identities = new long[owners.length];
+        weights = new int[owners.length];
+        for (int n = 0; n < owners.length; n++) {
+            owners[n] = ownerList.get(n);
+            identities[n] = identityList.get(n);
+            weights[n] = weightList.get(n);
+        }
+    }
+
+    // Number of the node owning the partition
+    protected abstract int nodeOf(int partition);
+
+    @Override
+    public long ownerOf(long token) {
+        return owners[nodeOf((int) (token >>> (64 - PARTITION_BITS)))];
+    }
+
+    // One entry per run of partitions with the same node, the last run merged into the first if they match
+    @Override
+    public long[] entries() {
+        int[] nodes = new int[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++) nodes[p] = nodeOf(p);
+        long[] entries = new long[2 * PARTITIONS];
+        int count = 0;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (nodes[p] == nodes[(p + 1) % PARTITIONS]) continue;
+            entries[2 * count] = lastToken(p);
+            entries[2 * count + 1] = owners[nodes[p]];
+            count++;
+        }
+        if (count == 0) return new long[] {Range.MAX_TOKEN, owners[nodes[0]]};
+        return Arrays.copyOf(entries, 2 * count);
+    }
+
+    private static long lastToken(int partition) {
+        return ((long) (partition + 1) << (64 - PARTITION_BITS)) - 1;     // Wraps to MAX_TOKEN for the last one
+    }
+
+    // SplitMix64 finalizer: spreads partition numbers and node identities over all 64 bits
+    protected static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
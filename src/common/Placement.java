@@ -0,0 +1,18 @@
+package common;
+
+/**
+ * How the keys of one ring membership are spread over its physical nodes, see PlacementStrategy.
+ * A placement is built from the member tokens in ascending unsigned order and the physical node owning each
+ * (any long that tells the nodes apart), and is immutable. ownerOf answers the strategy's own way; entries
+ * gives the same ownership as contiguous token ranges, which is what RingSnapshot and key transfers work with.
+ */
+public interface Placement {
+    // Physical node owning the token
+    long ownerOf(long token);
+
+    /**
+     * Flat (token, owner) pairs in ascending unsigned token order; each pair owns the tokens after the previous
+     * pair's token up to its own, the first one wrapping around from the last.
+     */
+    long[] entries();
+}
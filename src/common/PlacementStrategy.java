@@ -0,0 +1,52 @@
+package common;
+
+/**
+ * Which Placement a deployment uses, chosen on the bootstrap node and sent to every node with the ring.
+ * RING is consistent hashing on the virtual node tokens, optionally with bounded loads (epsilon > 0);
+ * JUMP, RENDEZVOUS and MAGLEV assign fixed partitions of the ring instead (see PartitionedPlacement) and only
+ * use the tokens to tell the nodes apart and weigh them. They trade lookup cost, memory and the keys moved on
+ * a join or exit differently; benchmark.PlacementBenchmark compares them.
+ */
+public enum PlacementStrategy {
+    RING, JUMP, RENDEZVOUS, MAGLEV;
+
+    /**
+     * Placement of the members with the given tokens, ascending in unsigned order, and owners.
+     * epsilon only applies to RING.
+     */
+    public Placement build(long[] tokens, long[] owners, double epsilon) {
+        if (tokens.length == 0) return new RingPlacement(tokens, owners, 0);      // Nothing to partition
+        switch (this) {
+            case JUMP: return new JumpPlacement(tokens, owners);
+            case RENDEZVOUS: return new RendezvousPlacement(tokens, owners);
+            case MAGLEV: return new MaglevPlacement(tokens, owners);
+            default: return new RingPlacement(tokens, owners, epsilon);
+        }
+    }
+
+    // "ring", "ring 0.25", "maglev", ... as sent with ring snapshots
+    public String describe(double epsilon) {
+        String name = name().toLowerCase();
+        return (this == RING && epsilon > 0) ? name + " " + epsilon : name;
+    }
+
+    /**
+     * Strategy of a description made by describe. A bare number stands for a bounded-load ring with that
+     * epsilon, as given on the bootstrap's command line.
+     */
+    public static PlacementStrategy of(String description) {
+        String name = description.trim().split("\\s+")[0];
+        return isNumber(name) ? RING : valueOf(name.toUpperCase());
+    }
+
+    // Bounded-load epsilon of a description made by describe, 0 if it has none
+    public static double epsilonOf(String description) {
+        String[] parts = description.trim().split("\\s+");
+        if (isNumber(parts[0])) return Double.parseDouble(parts[0]);
+        return (parts.length > 1) ? Double.parseDouble(parts[1]) : 0;
+    }
+
+    private static boolean isNumber(String word) {
+        return Character.isDigit(word.charAt(0)) || word.charAt(0) == '.';
+    }
+}
@@ -1,19 +1,40 @@
 package common;
 
+/**
+ * Inclusive range [start, end] of unsigned 64-bit ring tokens. A range whose start is greater than its end
+ * (in unsigned order) wraps around the top of the ring, e.g. the bootstrap node's range runs from just
+ * after the last node up to 2^64 - 1 and on to token 0. Range(0, MAX_TOKEN) is the whole ring.
+ */
 public class Range {
-    private int start;
-    private int end;
+    public static final long MAX_TOKEN = -1L;      // 2^64 - 1 as an unsigned value
 
-    public Range(int start, int end) {
+    private long start;
+    private long end;
+
+    public Range(long start, long end) {
         this.start = start;
         this.end = end;
     }
 
-    public int getStart() {
+    public long getStart() {
         return start;
     }
 
-    public int getEnd() {
+    public long getEnd() {
         return end;
     }
+
+    public boolean isWrapping() {
+        return Long.compareUnsigned(start, end) > 0;
+    }
+
+    public boolean contains(long token) {
+        if (isWrapping()) return Long.compareUnsigned(token, start) >= 0 || Long.compareUnsigned(token, end) <= 0;
+        return Long.compareUnsigned(token, start) >= 0 && Long.compareUnsigned(token, end) <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(start) + " - " + Long.toUnsignedString(end);
+    }
 }
@@ -0,0 +1,218 @@
+package common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of values an entry node fetched from other nodes, so hot keys are not forwarded across the
+ * ring on every read. Entries are dropped when the node that served them sends an invalidation after writing
+ * the key (see CacheInvalidator), and all of them when the ring epoch changes, since ownership may have moved.
+ * A value cached before an invalidation arrived could be stale, so put takes the ticket read before the value
+ * was fetched and is ignored if any invalidation came in since. A cached value may still outlive a write by
+ * the time the invalidation takes to arrive.
+ * Eviction is LRU, or W-TinyLFU: a small LRU window admits new keys, and a key leaving the window only
+ * replaces the main area's LRU victim if a count-min sketch of recent accesses saw it more often, which keeps
+ * one-off reads from flushing the hot keys. The main area is a single LRU rather than segmented.
+ */
+public class ReadCache {
+    private static final int WINDOW_PERCENT = 1;
+
+    public enum Eviction {
+        LRU, TINY_LFU;
+
+        public static Eviction of(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final int capacity;
+    private final Eviction eviction;
+    private final LinkedHashMap<String, String> window;    // Every entry under LRU
+    private final LinkedHashMap<String, String> main;
+    private final int windowCapacity;
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder epochDrops = new LongAdder();
+
+    // Guarded by this
+    private int epoch;
+    private long ticket;                                    // Bumped by every invalidation
+
+    public ReadCache(int capacity, Eviction eviction) {
+        if (capacity < 1) throw new IllegalArgumentException("Cache capacity must be at least 1");
+        this.capacity = capacity;
+        this.eviction = eviction;
+        windowCapacity = (eviction == Eviction.LRU) ? capacity : Math.max(1, capacity * WINDOW_PERCENT / 100);
+        window = new LinkedHashMap<>(16, 0.75f, true);
+        main = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = (eviction == Eviction.TINY_LFU) ? new FrequencySketch(capacity) : null;
+    }
+
+    // The cached value, or null on a miss or if the cache holds values of another ring epoch
+    public synchronized String get(String key, int epoch) {
+        if (sketch != null) sketch.increment(key);
+        String value = adopt(epoch) ? null : lookup(key);
+        if (value == null) misses.increment();
+        else hits.increment();
+        return value;
+    }
+
+    // Taken before fetching a value to cache, see put
+    public synchronized long ticket() {
+        return ticket;
+    }
+
+    // Cache a fetched value unless an invalidation arrived since the ticket was taken
+    public synchronized void put(String key, String value, int epoch, long ticket) {
+        if (value == null || ticket != this.ticket || adopt(epoch)) return;
+        if (window.containsKey(key)) {
+            window.put(key, value);
+            return;
+        }
+        if (main.containsKey(key)) {
+            main.put(key, value);
+            return;
+        }
+        window.put(key, value);
+        if (window.size() <= windowCapacity) return;
+        Map.Entry<String, String> candidate = removeEldest(window);
+        if (eviction == Eviction.LRU || windowCapacity == capacity) {
+            evictions.increment();
+            return;
+        }
+        if (main.size() < capacity - windowCapacity) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        // The window's eldest replaces the main area's eldest only if it was accessed more often
+        String victim = main.keySet().iterator().next();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+            main.remove(victim);
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+        evictions.increment();
+    }
+
+    public synchronized void invalidate(String key) {
+        ticket++;
+        if (window.remove(key) != null | main.remove(key) != null) invalidations.increment();
+    }
+
+    public synchronized void clear() {
+        ticket++;
+        window.clear();
+        main.clear();
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    // Times the whole cache was dropped because the ring epoch changed
+    public long getEpochDrops() {
+        return epochDrops.sum();
+    }
+
+    public String stats() {
+        return String.format("%s cache: %d/%d entries, hit ratio %.1f%% (%d hits, %d misses), %d evictions, "
+                        + "%d invalidations, %d epoch drops", eviction, size(), capacity, getHitRatio() * 100,
+                getHits(), getMisses(), getEvictions(), getInvalidations(), getEpochDrops());
+    }
+
+    /**
+     * Move to a newer ring epoch, dropping everything cached under the old one.
+     * Returns true if the caller's epoch is older than the cache's, so it must neither read nor fill it.
+     */
+    private boolean adopt(int epoch) {
+        if (epoch == this.epoch) return false;
+        if (epoch < this.epoch) return true;
+        if (size() > 0) epochDrops.increment();
+        clear();
+        this.epoch = epoch;
+        return false;
+    }
+
+    private String lookup(String key) {
+        String value = window.get(key);                     // Both maps are in access order, get refreshes
+        return (value != null) ? value : main.get(key);
+    }
+
+    private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> map) {
+        Map.Entry<String, String> eldest = map.entrySet().iterator().next();
+        Map.Entry<String, String> removed = Map.entry(eldest.getKey(), eldest.getValue());
+        map.remove(removed.getKey());
+        return removed;
+    }
+
+    /**
+     * Count-min sketch of access counts: four rows of counters saturating at 15, the estimate being the
+     * smallest of a key's four. All counts are halved after 10 accesses per cached entry, so the estimates
+     * follow what is popular now rather than ever.
+     */
+    private static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int resetAt;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+            for (int i = 0; i < rows.length; i++) rows[i] = new byte[width];
+            mask = width - 1;
+            resetAt = 10 * Math.max(capacity, 16);
+        }
+
+        void increment(String key) {
+            long hash = KeyHash.token(key);
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < MAX_COUNT) rows[i][index]++;
+            }
+            if (++additions == resetAt) {
+                for (byte[] row : rows) for (int j = 0; j < row.length; j++) row[j] >>= 1;
+                additions = 0;
+            }
+        }
+
+        int frequency(String key) {
+            long hash = KeyHash.token(key);
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) frequency = Math.min(frequency, rows[i][index(hash, i)]);
+            return frequency;
+        }
+
+        private int index(long hash, int row) {
+            long mixed = hash * SEEDS[row];
+            return (int) (mixed >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An entry node's copies of other nodes' Bloom filters, so a lookup of a key its owner does not have is
+ * answered here instead of being forwarded. A copy is fetched in the background with a FILTER request the
+ * first time an owner is asked about; until it arrives the key is looked up as before. The owner remembers
+ * who fetched its filter and sends batches of the keys whose inserts set new bits (see CacheInvalidator),
+ * which this node adds to its copy; keys that arrive while the copy is in flight are kept and added once it
+ * lands. Removals are not sent, they only make a copy answer "maybe" more often.
+ * The owner answers an insert only once the key reached every copy (see CacheInvalidator.awaitAdded), and keys
+ * this node forwarded an insert for are also added to the owner's copy once the owner has answered, so an
+ * acknowledged insert is never followed by a false miss, whichever node it went through.
+ * A copy is trusted only for LEASE_MILLIS after it last heard from the owner, which renews it with empty
+ * batches while it has nothing to add. An owner that could not reach this node, and so stopped sending it
+ * keys, holds its inserts until that lease has run out; a lapsed copy answers "maybe" and is refetched,
+ * as is one whose owner restarted and forgot it. All copies are also dropped when the ring epoch changes,
+ * since a node that left and came back has forgotten who fetched its filter.
+ */
+public class RemoteFilters {
+    static final int LEASE_MILLIS = 2000;
+    private static final Log log = Log.get("cache");
+
+    private final ConnectionPool connectionPool;
+    private final long nodeId;
+    private final int port;
+    private final ConcurrentHashMap<String, Copy> copies = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final ExecutorService fetcher = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "filter-fetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile int epoch;
+
+    public RemoteFilters(ConnectionPool connectionPool, long nodeId, int port) {
+        this.connectionPool = connectionPool;
+        this.nodeId = nodeId;
+        this.port = port;
+    }
+
+    // False if the owner's filter shows it does not have the key, so the lookup can be answered as a miss
+    public boolean mightHold(NodeInfo owner, String key, int epoch) {
+        if (epoch != this.epoch) adopt(epoch);
+        String address = owner.getIp() + ":" + owner.getPort();
+        Copy copy = copies.get(address);
+        if (copy == null || copy.hasLapsed()) {
+            Copy fresh = new Copy();
+            if ((copy == null) ? copies.putIfAbsent(address, fresh) == null : copies.replace(address, copy, fresh)) {
+                fetcher.execute(() -> fetch(owner, address, fresh));
+            }
+            return true;
+        }
+        if (copy.mightContain(key)) return true;
+        rejected.increment();
+        return false;
+    }
+
+    // Keys the node at the address inserted after this node fetched its filter; none only renews the lease
+    public void added(String ip, int ownerPort, String... keys) {
+        Copy copy = copies.get(ip + ":" + ownerPort);
+        if (copy != null) copy.add(keys);
+    }
+
+    // A key whose insert this node forwarded to the owner, once the owner has answered
+    public void added(NodeInfo owner, String key) {
+        added(owner.getIp(), owner.getPort(), key);
+    }
+
+    // Lookups answered as misses from a copy
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private synchronized void adopt(int epoch) {
+        if (epoch <= this.epoch) return;
+        copies.clear();
+        this.epoch = epoch;
+    }
+
+    private void fetch(NodeInfo owner, String address, Copy copy) {
+        copy.renew();                               // The lease runs from before the owner registered this node
+        try {
+            Message reply = connectionPool.request(owner, Message.request(NameServerFunctions.FILTER, nodeId, port));
+            if (reply.getValue() == null) {         // The owner keeps no filter; ask again once this copy lapses
+                copy.install(null);
+                return;
+            }
+            copy.install(BloomFilter.fromBytes(reply.getValue()));
+            log.info("Fetched the Bloom filter of {}", address);
+        } catch (IOException | IllegalArgumentException e) {
+            copies.remove(address, copy);
+            log.warn("Fetching the Bloom filter of {} failed: {}", address, e.getMessage());
+        }
+    }
+
+    /**
+     * One owner's filter, or the keys it sent while the filter is being fetched.
+     * A lapsed copy is never renewed, since the owner may have given up on it and sent keys elsewhere since.
+     */
+    private static final class Copy {
+        private volatile long renewed = System.nanoTime();
+        private BloomFilter filter;                 // Guarded by this; null while fetching or if the owner has none
+        private List<String> pending = new ArrayList<>();
+
+        synchronized boolean mightContain(String key) {
+            return filter == null || hasLapsed() || filter.mightContain(key);
+        }
+
+        synchronized void add(String... keys) {
+            if (hasLapsed()) return;
+            renew();
+            for (String key : keys) {
+                if (pending != null) pending.add(key);
+                else if (filter != null) filter.add(key);
+            }
+        }
+
+        synchronized void install(BloomFilter fetched) {
+            if (fetched != null) for (String key : pending) fetched.add(key);
+            filter = fetched;
+            pending = null;
+        }
+
+        void renew() {
+            renewed = System.nanoTime();
+        }
+
+        boolean hasLapsed() {
+            return System.nanoTime() - renewed > TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+        }
+    }
+}
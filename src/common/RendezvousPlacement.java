@@ -0,0 +1,45 @@
+package common;
+
+/**
+ * Rendezvous (highest random weight) hashing over the partitions: every node scores each partition with a
+ * hash of its identity and the partition, and the best score wins. A join only takes partitions from others
+ * and an exit only gives its own away, whatever the node, at O(n) hashes per lookup and per partition when
+ * building. Weighted nodes score weight / -ln(hash) (logarithmic method), so they win in proportion.
+ */
+public class RendezvousPlacement extends PartitionedPlacement {
+    private final boolean weighted;
+
+    public RendezvousPlacement(long[] tokens, long[] owners) {
+        super(tokens, owners);
+        boolean differ = false;
+        for (int weight : weights) differ |= weight != weights[0];
+        weighted = differ;
+    }
+
+    @Override
+    protected int nodeOf(int partition) {
+        long salt = mix(partition);
+        int best = 0;
+        if (!weighted) {                // Equal weights: the highest hash wins, no logarithm needed
+            long bestHash = 0;
+            for (int n = 0; n < identities.length; n++) {
+                long hash = mix(identities[n] ^ salt);
+                if (n == 0 || Long.compareUnsigned(hash, bestHash) > 0) {
+                    best = n;
+                    bestHash = hash;
+                }
+            }
+            return best;
+        }
+        double bestScore = -1;
+        for (int n = 0; n < identities.length; n++) {
+            double unit = ((mix(identities[n] ^ salt) >>> 11) + 0.5) * 0x1p-53;      // Uniform in (0, 1)
+            double score = weights[n] / -Math.log(unit);
+            if (score > bestScore) {
+                best = n;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,282 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static common.NameServerFunctions.REPLICATE;
+import static common.NameServerFunctions.REPLICA_READ;
+
+/**
+ * Successor-list replication (see RingSnapshot.replicasOf) for one node's store.
+ * The owner of a key applies each write, stamps it with a version (see KeyVersions), then copies it to the
+ * key's other replicas with one REPLICATE batch per replica, all in flight at once. It answers once W of the
+ * replicas, itself included, have the write: all of them unless the request asks for fewer. A replica applies
+ * REPLICATE batches as they come, skipping writes older than the ones it has, since the owner already decided;
+ * a newer value replaces the stored one in place (KeyValueStore.put), so a read never misses the key meanwhile.
+ * Reads are served by any one replica, or by the first R to answer of all replicas asked in parallel, the
+ * newest stamp winning, when the request asks for R.
+ * On membership changes the replicas are kept in step by range: a node that starts holding a range gets it
+ * from the range's previous owner, or from the leaving node; a previous owner deletes what it no longer holds
+ * once handed over, and the other copies a node no longer holds are dropped when it learns the new ring.
+ */
+public class Replicator {
+    private static final String APPLIED = "OK";
+    private static final Log log = Log.get("replication");
+
+    private final KeyValueStore keyValueStore;
+    private final ConnectionPool connectionPool;
+    private final long nodeId;
+    private final int port;
+    private final KeyVersions versions = new KeyVersions();
+
+    public Replicator(KeyValueStore keyValueStore, ConnectionPool connectionPool, long nodeId, int port) {
+        this.keyValueStore = keyValueStore;
+        this.connectionPool = connectionPool;
+        this.nodeId = nodeId;
+        this.port = port;
+    }
+
+    /**
+     * Insert the key as its owner and copy it to the other replicas, waiting for 'quorum' of them in all.
+     * Returns 0 when inserted, -1 if the key exists, -2 when inserted with fewer replicas than asked for.
+     */
+    public int insert(RingSnapshot ring, NodeInfo self, String key, String value, int quorum) {
+        if (!replicated(ring)) return keyValueStore.insert(key, value);
+        long version = versions.stamp(key, false, () -> keyValueStore.insert(key, value) == 0);
+        if (version == 0) return -1;
+        return copy(ring, self, new String[] {key}, new String[] {value}, new long[] {version}, quorum) ? 0 : -2;
+    }
+
+    /**
+     * Delete the key as its owner and on the other replicas, which may hold it even if this node did not.
+     * Returns 0 when deleted here, -1 if it was not here, -2 when fewer replicas than asked for deleted it.
+     */
+    public int delete(RingSnapshot ring, NodeInfo self, String key, int quorum) {
+        if (!replicated(ring)) return keyValueStore.delete(key);
+        int[] result = {-1};
+        long version = versions.stamp(key, true, () -> {
+            result[0] = keyValueStore.delete(key);
+            return true;
+        });
+        boolean copied = copy(ring, self, new String[] {key}, new String[] {null}, new long[] {version}, quorum);
+        return copied ? result[0] : -2;
+    }
+
+    /**
+     * Apply the MINSERT or MDELETE writes of a batch's keys this node owns, each stamped as it is applied, and
+     * copy them to the keys' other replicas, waiting for all of them. A delete is copied even when the key was
+     * missing here, in case a replica still has it. Returns per key "OK" where inserted or deleted here.
+     */
+    public String[] writeOwned(RingSnapshot ring, NodeInfo self, NameServerFunctions function, String[] keys, String[] values) {
+        boolean delete = (function == NameServerFunctions.MDELETE);
+        String[] results = new String[keys.length];
+        if (!replicated(ring)) {
+            for (int i = 0; i < keys.length; i++) {
+                results[i] = (write(delete, keys[i], values[i]) == 0) ? APPLIED : null;
+            }
+            return results;
+        }
+        long[] stamps = new long[keys.length];
+        int written = 0;
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            String value = delete ? null : values[i];
+            int[] result = {-1};
+            stamps[i] = versions.stamp(key, delete, () -> {
+                result[0] = write(delete, key, value);
+                return delete || result[0] == 0;
+            });
+            results[i] = (result[0] == 0) ? APPLIED : null;
+            if (stamps[i] != 0) written++;
+        }
+
+        String[] copyKeys = new String[written];
+        String[] copyValues = new String[written];
+        long[] copyStamps = new long[written];
+        written = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (stamps[i] == 0) continue;
+            copyKeys[written] = keys[i];
+            copyValues[written] = delete ? null : values[i];
+            copyStamps[written++] = stamps[i];
+        }
+        if (written > 0) copy(ring, self, copyKeys, copyValues, copyStamps, 0);
+        return results;
+    }
+
+    // A batch value may be missing, which fails the insert
+    private int write(boolean delete, String key, String value) {
+        if (delete) return keyValueStore.delete(key);
+        return (value == null) ? -1 : keyValueStore.insert(key, value);
+    }
+
+    // Send the stamped writes to every other replica and wait until 'quorum' replicas have them, this one included
+    private boolean copy(RingSnapshot ring, NodeInfo self, String[] keys, String[] values, long[] stamps, int quorum) {
+        Map<String, NodeInfo> replicas = new LinkedHashMap<>();
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            for (NodeInfo replica : ring.replicasOf(KeyHash.token(keys[i]))) {
+                if (RingSnapshot.sameNode(replica, self)) continue;
+                String address = replica.getIp() + ":" + replica.getPort();
+                replicas.putIfAbsent(address, replica);
+                positions.computeIfAbsent(address, a -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<CompletableFuture<Message>> pending = new ArrayList<>();
+        for (Map.Entry<String, NodeInfo> replica : replicas.entrySet()) {
+            List<Integer> chunk = positions.get(replica.getKey());
+            String[] copyKeys = new String[chunk.size()];
+            String[] copyValues = new String[chunk.size()];
+            long[] copyStamps = new long[chunk.size()];
+            for (int j = 0; j < copyKeys.length; j++) {
+                copyKeys[j] = keys[chunk.get(j)];
+                copyValues[j] = values[chunk.get(j)];
+                copyStamps[j] = stamps[chunk.get(j)];
+            }
+            Message batch = Message.batch(REPLICATE, nodeId, port, copyKeys, copyValues).withTokens(copyStamps);
+            pending.add(connectionPool.requestAsync(replica.getValue(), batch));
+        }
+        int needed = (quorum <= 0) ? pending.size() : Math.min(quorum - 1, pending.size());
+        return await(pending, needed, "Copying writes to a replica failed: ") >= needed;
+    }
+
+    /**
+     * Wait until 'needed' of the requests succeeded or too many failed for that; the others finish in the
+     * background. Returns how many succeeded by then.
+     */
+    private static int await(List<CompletableFuture<Message>> pending, int needed, String failure) {
+        if (needed <= 0) return 0;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        int[] counts = new int[2];          // Succeeded, failed
+        for (CompletableFuture<Message> request : pending) {
+            request.whenComplete((reply, error) -> {
+                synchronized (counts) {
+                    if (error != null) {
+                        counts[1]++;
+                        log.warn("{}{}", failure, error.getMessage());
+                    } else {
+                        counts[0]++;
+                    }
+                    if (counts[0] >= needed || counts[1] > pending.size() - needed) done.complete(null);
+                }
+            });
+        }
+        done.join();
+        synchronized (counts) {
+            return counts[0];
+        }
+    }
+
+    // Apply a REPLICATE batch from a key's owner: inserts where a value is given, deletes where it is null
+    public Message apply(Message request) {
+        String[] keys = request.getBatchKeys();
+        String[] values = request.getBatchValues();
+        long[] stamps = request.getTokens();
+        String[] results = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            String value = (values == null) ? null : values[i];
+            long stamp = (stamps.length == keys.length) ? stamps[i] : 0;
+            boolean applied = versions.apply(key, stamp, value == null, () -> {
+                if (value == null) keyValueStore.delete(key);
+                else keyValueStore.put(key, value);      // A newer value replaces the one stored
+            });
+            results[i] = applied ? APPLIED : null;
+        }
+        return request.batchReply(results, null);
+    }
+
+    /**
+     * Answer a LOOKUP asking for R replicas: read the key here and at every other replica in parallel, and
+     * reply with the newest value among the first R answers. On a ring without copies the local value is final.
+     */
+    public Message lookup(Message request, RingSnapshot ring, NodeInfo self) {
+        String key = request.getKey();
+        NodeInfo[] replicas = replicated(ring) ? ring.replicasOf(KeyHash.token(key)) : new NodeInfo[] {self};
+        int quorum = Math.min(Math.max(1, request.getQuorum()), replicas.length);
+        Message newest = readLocal(request);
+        if (quorum == 1) return request.reply(newest.getValueString());
+
+        List<CompletableFuture<Message>> pending = new ArrayList<>();
+        Message read = Message.request(REPLICA_READ, nodeId, port, key);
+        for (NodeInfo replica : replicas) {
+            if (!RingSnapshot.sameNode(replica, self)) pending.add(connectionPool.requestAsync(replica, read));
+        }
+        int answered = 1 + await(pending, quorum - 1, "Reading a replica failed: ");
+        if (answered < quorum) return request.reply("Read quorum not reached: " + answered + " of " + quorum + " replicas answered");
+        for (CompletableFuture<Message> reply : pending) {
+            if (reply.isDone() && !reply.isCompletedExceptionally()) newest = newer(newest, reply.join());
+        }
+        return request.reply(newest.getValueString());
+    }
+
+    // A REPLICA_READ: the local value, or null, with its version stamp
+    public Message readLocal(Message request) {
+        String key = request.getKey();
+        long version = versions.versionOf(key);
+        return request.reply(keyValueStore.lookup(key)).withTokens(version);
+    }
+
+    // The answer with the higher stamp; between equal stamps, e.g. two unstamped keys, the one with a value
+    private static Message newer(Message a, Message b) {
+        long stampA = a.getTokens().length > 0 ? a.getTokens()[0] : 0;
+        long stampB = b.getTokens().length > 0 ? b.getTokens()[0] : 0;
+        int order = Long.compareUnsigned(stampA, stampB);
+        if (order != 0) return (order > 0) ? a : b;
+        return (a.getValue() == null) ? b : a;
+    }
+
+    private static boolean replicated(RingSnapshot ring) {
+        return ring != null && ring.getReplicas() > 1;
+    }
+
+    /**
+     * After handing slices to another node, delete the parts this node no longer holds in the ring.
+     * Without replication that is every slice; with it, a previous owner usually keeps a copy.
+     */
+    public void deleteUnreplicated(RingSnapshot ring, NodeInfo self, List<Range> slices) {
+        int[] removed = {0};
+        for (Range slice : slices) {
+            if (ring == null || self == null) {
+                removed[0] += keyValueStore.deleteRange(slice);
+                continue;
+            }
+            ring.split(slice, (owner, piece) -> {
+                if (!ring.isReplica(self, piece.getEnd())) removed[0] += keyValueStore.deleteRange(piece);
+            });
+        }
+        if (replicated(ring) && self != null) versions.retainTokens(token -> ring.isReplica(self, token));
+        String where = (slices.size() == 1) ? "range " + slices.get(0) : slices.size() + " slices";
+        log.info("Removed {} transferred keys in {}", removed[0], where);
+    }
+
+    /**
+     * Drop the copies this node held in the previous ring but not in the new one. Ranges it owned are left
+     * alone: their new replicas pull them from it, and deleteUnreplicated removes them then.
+     */
+    public void dropStaleCopies(RingSnapshot before, RingSnapshot after, NodeInfo self) {
+        if (before.getReplicas() == 1 || before.getEpoch() == after.getEpoch()) return;
+        int[] removed = {0};
+        for (int i = 0; i < before.size(); i++) {
+            NodeInfo[] held = before.replicasAt(i);
+            if (RingSnapshot.sameNode(held[0], self) || !holds(held, self)) continue;
+            after.split(before.rangeOf(i), (owner, piece) -> {
+                if (!after.isReplica(self, piece.getEnd())) removed[0] += keyValueStore.deleteRange(piece);
+            });
+        }
+        versions.retainTokens(token -> after.isReplica(self, token));
+        if (removed[0] > 0) log.info("Dropped {} keys no longer replicated here", removed[0]);
+    }
+
+    // True if the physical node is one of the replicas
+    public static boolean holds(NodeInfo[] replicas, NodeInfo node) {
+        for (NodeInfo replica : replicas) {
+            if (RingSnapshot.sameNode(replica, node)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+package common;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client that routes every key itself: it caches the bootstrap's ring snapshot and sends each request
+ * straight to the key's owner, so an operation takes one network hop whatever the size of the ring.
+ * Requests carry the snapshot's epoch. A node that no longer owns the key answers not-owner instead of
+ * forwarding, and the client then fetches a fresh snapshot and retries; so does a failure to reach the owner.
+ * Safe for concurrent use; a stale snapshot is refreshed once, however many requests noticed it.
+ * When the ring keeps several replicas of each key, lookups go to a random one of them so reads of a hot key
+ * spread over its replicas; writes go to the owner, which copies them to the others. Each operation may ask
+ * for a quorum: a read answered by the newest of R replicas, a write acknowledged by W of them.
+ */
+public class RingClient {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final String bootstrapIp;
+    private final int bootstrapPort;
+    private final ConnectionPool connectionPool;
+    private volatile RingSnapshot snapshot;
+
+    public RingClient(String bootstrapIp, int bootstrapPort, ConnectionPool connectionPool) {
+        this.bootstrapIp = bootstrapIp;
+        this.bootstrapPort = bootstrapPort;
+        this.connectionPool = connectionPool;
+    }
+
+    // Value stored under the key, or null if there is none
+    public String lookup(String key) throws IOException {
+        return lookup(key, 0);
+    }
+
+    // The newest value among the first r replicas to answer; 0 reads one replica
+    public String lookup(String key, int r) throws IOException {
+        return execute(Message.request(NameServerFunctions.LOOKUP, 0, 0, key).withQuorum(r)).getValueString();
+    }
+
+    // The owner's insert status, e.g. "Insertion successful for key apple"
+    public String insert(String key, String value) throws IOException {
+        return insert(key, value, 0);
+    }
+
+    // Insert status once w replicas have the key, the owner included; 0 waits for all
+    public String insert(String key, String value, int w) throws IOException {
+        return execute(Message.request(NameServerFunctions.INSERT, 0, 0, key, value).withQuorum(w)).getValueString();
+    }
+
+    // The owner's delete status, or null if the key was not there
+    public String delete(String key) throws IOException {
+        return delete(key, 0);
+    }
+
+    public String delete(String key, int w) throws IOException {
+        return execute(Message.request(NameServerFunctions.DELETE, 0, 0, key).withQuorum(w)).getValueString();
+    }
+
+    public RingSnapshot getSnapshot() throws IOException {
+        RingSnapshot current = snapshot;
+        return (current != null) ? current : refresh(0);
+    }
+
+    /**
+     * Fetch a new snapshot unless another caller already replaced the one with the given epoch.
+     */
+    public synchronized RingSnapshot refresh(int staleEpoch) throws IOException {
+        RingSnapshot current = snapshot;
+        if (current != null && current.getEpoch() != staleEpoch) return current;
+        Message reply = connectionPool.request(bootstrapIp, bootstrapPort,
+                Message.request(NameServerFunctions.RING, 0, 0));
+        snapshot = RingSnapshot.fromReply(reply, bootstrapIp, bootstrapPort, current);
+        return snapshot;
+    }
+
+    private Message execute(Message request) throws IOException {
+        RingSnapshot current = getSnapshot();
+        long token = KeyHash.token(request.getKey());
+        IOException lastFailure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            NodeInfo owner = (request.getFunction() == NameServerFunctions.LOOKUP && current.getReplicas() > 1)
+                    ? anyReplica(current, token) : current.ownerOf(token);
+            try {
+                Message reply = connectionPool.request(owner, request.withEpoch(current.getEpoch()));
+                if (!reply.isNotOwner()) return reply;
+                lastFailure = new IOException("Node " + Long.toUnsignedString(owner.getId()) + " does not own key " + request.getKey() +
+                        " at epoch " + current.getEpoch());
+            } catch (IOException e) {
+                lastFailure = e;                        // Owner gone, e.g. it left the ring since the snapshot
+            }
+            current = refresh(current.getEpoch());
+        }
+        throw lastFailure;
+    }
+
+    private static NodeInfo anyReplica(RingSnapshot ring, long token) {
+        NodeInfo[] replicas = ring.replicasOf(token);
+        return replicas[ThreadLocalRandom.current().nextInt(replicas.length)];
+    }
+}
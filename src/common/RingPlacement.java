@@ -0,0 +1,32 @@
+package common;
+
+/**
+ * Consistent hashing on the token ring: each token's node owns the tokens after the previous token up to
+ * it, or, with a bounded-load epsilon, the ranges BoundedLoad gives it. ownerOf is a binary search.
+ */
+public class RingPlacement implements Placement {
+    private final long[] entries;
+    private final long[] ends;                  // Entry tokens, for the binary search
+
+    public RingPlacement(long[] tokens, long[] owners, double epsilon) {
+        entries = BoundedLoad.place(tokens, owners, epsilon);
+        ends = new long[entries.length / 2];
+        for (int k = 0; k < ends.length; k++) ends[k] = entries[2 * k];
+    }
+
+    @Override
+    public long ownerOf(long token) {
+        int low = 0, high = ends.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(ends[mid], token) < 0) low = mid + 1;
+            else high = mid - 1;
+        }
+        return entries[2 * ((low < ends.length) ? low : 0) + 1];
+    }
+
+    @Override
+    public long[] entries() {
+        return entries.clone();
+    }
+}
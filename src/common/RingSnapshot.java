@@ -0,0 +1,329 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable view of the whole ring as the bootstrap node knew it at one epoch.
+ * The members are one entry per virtual node token, carrying the token as its id and the address of the
+ * physical node; the entries of one physical node share its address. Ownership is read from the placed
+ * entries: each owns the tokens (previous entry's token, its token], the first one the wrapping range after
+ * the last entry. On a plain ring the placed entries are the members. Otherwise they follow the Placement of
+ * the snapshot's strategy, so ranges need not end at their owner's tokens. Keys are placed by KeyHash.token.
+ * The epoch increases with every join and exit, so two snapshots with the same epoch describe the same ring.
+ * Tokens are kept in primitive arrays next to the entries, so lookups are a binary search over a long[] that
+ * allocates nothing; a snapshot is never modified, so any number of threads can read it without locking.
+ * With a replication factor r, the keys of each range are also stored on the next r - 1 distinct physical
+ * nodes clockwise from its owner (successor-list replication); together they are the range's replicas.
+ */
+public class RingSnapshot {
+    private static final String REPLICAS = " replicas ";
+
+    private final int epoch;
+    private final PlacementStrategy strategy;
+    private final double epsilon;               // Bounded-load epsilon of a RING placement, 0 for a plain ring
+    private final int replicas;                 // Replication factor, 1 for no copies
+    private final int physicalNodes;            // Distinct addresses, counted only when replicas > 1
+    private final NodeInfo[] members;           // Ascending by unsigned token
+    private final long[] memberTokens;          // Token of each member
+    private final NodeInfo[] nodes;             // Placed entries, ascending by unsigned token
+    private final long[] ends;                  // Token of each placed entry, the end of its range
+
+    public RingSnapshot(int epoch, NodeInfo[] members) {
+        this(epoch, members, PlacementStrategy.RING, 0);
+    }
+
+    public RingSnapshot(int epoch, NodeInfo[] members, PlacementStrategy strategy, double epsilon) {
+        this(epoch, members, strategy, epsilon, 1);
+    }
+
+    public RingSnapshot(int epoch, NodeInfo[] members, PlacementStrategy strategy, double epsilon, int replicas) {
+        this(epoch, strategy, epsilon, replicas, sorted(members));
+    }
+
+    // Members already sorted and owned by the snapshot
+    private RingSnapshot(int epoch, PlacementStrategy strategy, double epsilon, int replicas, NodeInfo[] members) {
+        this.epoch = epoch;
+        this.strategy = strategy;
+        this.epsilon = epsilon;
+        this.replicas = replicas;
+        this.members = members;
+        this.physicalNodes = (replicas > 1) ? countNodes(members) : 1;
+        this.memberTokens = tokens(members);
+        this.nodes = isPlainRing() ? members : place(members, strategy, epsilon);
+        this.ends = isPlainRing() ? memberTokens : tokens(nodes);
+    }
+
+    private static NodeInfo[] sorted(NodeInfo[] members) {
+        NodeInfo[] copy = members.clone();
+        Arrays.sort(copy, (a, b) -> Long.compareUnsigned(a.getId(), b.getId()));
+        return copy;
+    }
+
+    private static int countNodes(NodeInfo[] members) {
+        Set<String> addresses = new HashSet<>();
+        for (NodeInfo member : members) addresses.add(member.getIp() + ":" + member.getPort());
+        return addresses.size();
+    }
+
+    private static long[] tokens(NodeInfo[] entries) {
+        long[] tokens = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) tokens[i] = entries[i].getId();
+        return tokens;
+    }
+
+    /**
+     * Snapshot from a RING reply. The bootstrap node's entries are listed without a usable address
+     * ("self" / "N/A"), so they get the address the snapshot was requested from.
+     */
+    public static RingSnapshot fromReply(Message reply, String bootstrapIp, int bootstrapPort) {
+        return fromReply(reply, bootstrapIp, bootstrapPort, null);
+    }
+
+    /**
+     * Same, but returns the current snapshot if the reply has its epoch: the ring has not changed, and placing
+     * it again would cost up to seconds on a large ring (rendezvous at 10,000 nodes).
+     */
+    public static RingSnapshot fromReply(Message reply, String bootstrapIp, int bootstrapPort, RingSnapshot current) {
+        if (current != null && current.getEpoch() == reply.getEpoch()) return current;
+        NodeInfo[] nodes = reply.getNodes().clone();
+        for (int i = 0; i < nodes.length; i++) {
+            String ip = nodes[i].getIp();
+            if (ip.equals("N/A") || ip.equals("self")) nodes[i] = new NodeInfo(nodes[i].getId(), bootstrapIp, bootstrapPort);
+        }
+        String placement = reply.getValueString();          // Absent for a plain ring without copies
+        if (placement == null) return new RingSnapshot(reply.getEpoch(), nodes);
+        int replicas = 1;
+        int suffix = placement.indexOf(REPLICAS);
+        if (suffix >= 0) {
+            replicas = Integer.parseInt(placement.substring(suffix + REPLICAS.length()).trim());
+            placement = placement.substring(0, suffix);
+        }
+        return new RingSnapshot(reply.getEpoch(), nodes, PlacementStrategy.of(placement),
+                PlacementStrategy.epsilonOf(placement), replicas);
+    }
+
+    // Group the members by address and place them; each entry takes the address of its node's first member
+    private static NodeInfo[] place(NodeInfo[] members, PlacementStrategy strategy, double epsilon) {
+        Map<String, Integer> indexByAddress = new HashMap<>();
+        List<NodeInfo> physical = new ArrayList<>();
+        long[] tokens = new long[members.length];
+        long[] owners = new long[members.length];
+        for (int i = 0; i < members.length; i++) {
+            String address = members[i].getIp() + ":" + members[i].getPort();
+            Integer index = indexByAddress.get(address);
+            if (index == null) {
+                index = physical.size();
+                indexByAddress.put(address, index);
+                physical.add(members[i]);
+            }
+            tokens[i] = members[i].getId();
+            owners[i] = index;
+        }
+
+        long[] placed = strategy.build(tokens, owners, epsilon).entries();
+        NodeInfo[] nodes = new NodeInfo[placed.length / 2];
+        for (int k = 0; k < nodes.length; k++) {
+            NodeInfo owner = physical.get((int) placed[2 * k + 1]);
+            nodes[k] = new NodeInfo(placed[2 * k], owner.getIp(), owner.getPort());
+        }
+        return nodes;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public PlacementStrategy getStrategy() {
+        return strategy;
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    // True if every member owns the range ending at its token
+    public boolean isPlainRing() {
+        return strategy == PlacementStrategy.RING && epsilon <= 0;
+    }
+
+    // Placed entries, see the class comment
+    public NodeInfo[] getNodes() {
+        return nodes.clone();
+    }
+
+    public NodeInfo[] getMembers() {
+        return members.clone();
+    }
+
+    // The member entry with exactly this token, or null
+    public NodeInfo getMember(long token) {
+        int index = search(memberTokens, token);
+        return (index < members.length && memberTokens[index] == token) ? members[index] : null;
+    }
+
+    // The members before and after the one with this token in token order, wrapping around; null if it is none
+    public NodeInfo predecessorOf(long token) {
+        NodeInfo member = getMember(token);
+        return (member == null) ? null : members[(search(memberTokens, token) + members.length - 1) % members.length];
+    }
+
+    public NodeInfo successorOf(long token) {
+        NodeInfo member = getMember(token);
+        return (member == null) ? null : members[(search(memberTokens, token) + 1) % members.length];
+    }
+
+    // True if the physical node at the entry's address is in the ring
+    public boolean isMember(NodeInfo node) {
+        for (NodeInfo member : members) {
+            if (sameNode(member, node)) return true;
+        }
+        return false;
+    }
+
+    // The same ring without the physical node at the entry's address, placed the same way
+    public RingSnapshot without(NodeInfo node) {
+        return without(epoch, node);
+    }
+
+    // Next snapshot after the node at the entry's address left; the members stay sorted, so nothing is re-sorted
+    public RingSnapshot without(int nextEpoch, NodeInfo node) {
+        List<NodeInfo> rest = new ArrayList<>(members.length);
+        for (NodeInfo member : members) {
+            if (!sameNode(member, node)) rest.add(member);
+        }
+        return new RingSnapshot(nextEpoch, strategy, epsilon, replicas, rest.toArray(new NodeInfo[0]));
+    }
+
+    /**
+     * Next snapshot after a node joined under the given tokens, none of which may be taken. The new entries
+     * are merged into the sorted members, and on a plain ring they are the placed entries as well.
+     */
+    public RingSnapshot with(int nextEpoch, NodeInfo node, long[] tokens) {
+        NodeInfo[] added = new NodeInfo[tokens.length];
+        for (int i = 0; i < tokens.length; i++) added[i] = new NodeInfo(tokens[i], node.getIp(), node.getPort());
+        added = sorted(added);
+        NodeInfo[] merged = new NodeInfo[members.length + added.length];
+        int m = 0, a = 0;
+        for (int i = 0; i < merged.length; i++) {
+            boolean takeMember = a == added.length
+                    || (m < members.length && Long.compareUnsigned(memberTokens[m], added[a].getId()) < 0);
+            merged[i] = takeMember ? members[m++] : added[a++];
+        }
+        return new RingSnapshot(nextEpoch, strategy, epsilon, replicas, merged);
+    }
+
+    // True if two entries belong to the same physical node, i.e. share an address
+    public static boolean sameNode(NodeInfo a, NodeInfo b) {
+        return a.getPort() == b.getPort() && a.getIp().equals(b.getIp());
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public NodeInfo ownerOf(String key) {
+        return ownerOf(KeyHash.token(key));
+    }
+
+    // The entry owning the token: the first one whose token is >= token, wrapping around to the first entry
+    public NodeInfo ownerOf(long token) {
+        return nodes[indexOf(token)];
+    }
+
+    // Index of the entry owning the token
+    public int indexOf(long token) {
+        int index = search(ends, token);
+        return (index < ends.length) ? index : 0;
+    }
+
+    // Index of the first token >= token in unsigned order, or the length if there is none
+    private static int search(long[] tokens, long token) {
+        int low = 0, high = tokens.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(tokens[mid], token) < 0) low = mid + 1;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    // The i-th entry in token order
+    public NodeInfo get(int index) {
+        return nodes[index];
+    }
+
+    // Replicas of the token's range, its owner first, then the next distinct physical nodes clockwise
+    public NodeInfo[] replicasOf(long token) {
+        return replicasAt(indexOf(token));
+    }
+
+    // Replicas of the i-th entry's range; as many as the replication factor, or every node if there are fewer
+    public NodeInfo[] replicasAt(int index) {
+        NodeInfo[] replicaSet = new NodeInfo[Math.min(replicas, physicalNodes)];
+        int found = 0;
+        for (int step = 0; found < replicaSet.length && step < nodes.length; step++) {
+            NodeInfo entry = nodes[(index + step) % nodes.length];
+            boolean seen = false;
+            for (int r = 0; r < found && !seen; r++) seen = sameNode(replicaSet[r], entry);
+            if (!seen) replicaSet[found++] = entry;
+        }
+        return replicaSet;
+    }
+
+    // True if the physical node at the entry's address stores the token's keys, as owner or copy
+    public boolean isReplica(NodeInfo node, long token) {
+        if (replicas == 1) return sameNode(ownerOf(token), node);
+        for (NodeInfo replica : replicasOf(token)) {
+            if (sameNode(replica, node)) return true;
+        }
+        return false;
+    }
+
+    // Range owned by the i-th entry in token order: the previous entry's token + 1 up to its own
+    public Range rangeOf(int index) {
+        if (nodes.length == 1) return new Range(0, Range.MAX_TOKEN);
+        long previous = ends[(index + ends.length - 1) % ends.length];
+        return new Range(previous + 1, ends[index]);      // previous + 1 wraps to 0 past the top
+    }
+
+    /**
+     * Cut a range at this snapshot's entries and pass each piece with the entry owning it, in token order.
+     * Comparing two snapshots this way tells which keys change owner between them.
+     */
+    public void split(Range range, BiConsumer<NodeInfo, Range> action) {
+        long start = range.getStart();
+        long length = range.getEnd() - start;           // Unsigned distance from start to the range's end
+        while (true) {
+            NodeInfo owner = ownerOf(start);
+            long reach = owner.getId() - start;         // Unsigned distance to the end of the owner's range
+            if (nodes.length == 1 || Long.compareUnsigned(reach, length) >= 0) {
+                action.accept(owner, new Range(start, range.getEnd()));
+                return;
+            }
+            action.accept(owner, new Range(start, owner.getId()));
+            start = owner.getId() + 1;
+            length -= reach + 1;
+        }
+    }
+
+    /**
+     * Members, plus the placement and replication factor as the value unless the ring is plain without copies,
+     * so the receiver places and replicates it the same way: "ring 0.25", "maglev replicas 3", ...
+     */
+    public Message toReply(Message request) {
+        String placement = (replicas > 1) ? strategy.describe(epsilon) + REPLICAS + replicas
+                : isPlainRing() ? null : strategy.describe(epsilon);
+        return request.reply(placement, members).withEpoch(epoch);
+    }
+}
@@ -0,0 +1,44 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How a server accepts and serves connections.
+ * THREADED serves each connection on its own pooled platform thread with blocking I/O,
+ * VIRTUAL does the same on a virtual thread per connection, so a request blocked on a downstream
+ * forward only parks a cheap virtual thread,
+ * NIO multiplexes all connections over a few selector event loops (see NioServer).
+ */
+public enum ServerEngine {
+    THREADED, VIRTUAL, NIO;
+
+    public static final int ACCEPT_BACKLOG = 1024;  // Pending connections the OS queues before refusing new ones
+
+    /**
+     * Executor that runs one task per accepted connection for the blocking engines.
+     */
+    public ExecutorService newConnectionExecutor() {
+        if (this == VIRTUAL) return newVirtualThreadExecutor();
+        return Executors.newCachedThreadPool();
+    }
+
+    // Looked up reflectively so the code still compiles and runs on releases without virtual threads
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.get("server").warn("Virtual threads are not available on this JVM, falling back to a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
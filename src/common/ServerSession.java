@@ -0,0 +1,143 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves one blocking connection for the THREADED and VIRTUAL engines.
+ * The first byte negotiates the wire format: WireCodec.MAGIC switches the connection to binary frames,
+ * anything else is the start of a text request line.
+ * Binary requests that carry a request id are handled concurrently on the request executor and answered
+ * as soon as each one completes, up to MAX_IN_FLIGHT per connection; unnumbered ones are answered in order.
+ * Every binary request gets a reply frame with its id, an error reply if handling or encoding it failed or it
+ * asks for a key transfer.
+ */
+public class ServerSession {
+    public static final int MAX_IN_FLIGHT = 256;
+    private static final Log requestLog = Log.get("request");
+
+    private ServerSession() {
+    }
+
+    // Serve every request sent on the connection until the peer closes it or stays idle too long
+    public static void serve(Socket socket, MessageHandler handler, Executor requestExecutor) throws IOException {
+        socket.setSoTimeout(ConnectionPool.SERVER_IDLE_TIMEOUT_MS);   // Close pooled connections left idle
+        socket.setTcpNoDelay(true);     // Pipelined replies must not wait for the ACK of the previous one
+        String clientIp = socket.getInetAddress().getHostAddress();
+        BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+        OutputStream output = socket.getOutputStream();
+
+        input.mark(1);
+        int first = input.read();
+        if (first == -1) return;
+        if (first == WireCodec.MAGIC) {
+            serveBinary(socket, input, output, clientIp, handler, requestExecutor);
+            return;
+        }
+        input.reset();
+        serveText(new BufferedReader(new InputStreamReader(input)), new PrintWriter(output, true),
+                clientIp, handler, null);
+    }
+
+    private static void serveBinary(Socket socket, InputStream input, OutputStream output, String clientIp,
+                                    MessageHandler handler, Executor requestExecutor) throws IOException {
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        try {
+            Message request;
+            while ((request = WireCodec.read(input)) != null) {
+                if (request.getRequestId() == 0) {
+                    writeFrame(output, handleFrame(request, clientIp, handler));
+                    continue;
+                }
+                inFlight.acquireUninterruptibly();      // Stop reading while a full window is being served
+                Message pipelined = request;
+                requestExecutor.execute(() -> {
+                    try {
+                        writeFrame(output, handleFrame(pipelined, clientIp, handler));
+                    } catch (IOException | RuntimeException e) {
+                        try { socket.close(); } catch (IOException ignored) { }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);     // Let outstanding replies go out before closing
+        }
+    }
+
+    private static void writeFrame(OutputStream output, byte[] frame) throws IOException {
+        synchronized (output) {
+            output.write(frame);
+        }
+    }
+
+    /**
+     * Text loop, starting with firstLine when the caller has already read it.
+     */
+    public static void serveText(BufferedReader in, PrintWriter out, String clientIp,
+                                 MessageHandler handler, String firstLine) throws IOException {
+        String line = (firstLine != null) ? firstLine : in.readLine();
+        while (line != null) {
+            handleLine(line, clientIp, in, out, handler);
+            line = in.readLine();
+        }
+    }
+
+    public static void handleLine(String line, String clientIp, BufferedReader in, PrintWriter out,
+                                  MessageHandler handler) throws IOException {
+        if (line.trim().isEmpty()) return;
+        Message request;
+        try {
+            request = WireCodec.parseRequest(line);
+        } catch (IllegalArgumentException e) {
+            out.println("INVALID COMMAND");
+            return;
+        }
+        if (MessageHandler.isStreaming(request.getFunction())) handler.transfer(request, clientIp, in, out);
+        else out.println(WireCodec.formatReply(handle(request, clientIp, handler)));
+    }
+
+    /**
+     * Encoded reply frame for a binary request, or an error reply with the same request id if the request is
+     * a key transfer, which only text connections carry, or its reply cannot be encoded. Either way only this
+     * request fails; the others sharing the connection go on.
+     */
+    public static byte[] handleFrame(Message request, String clientIp, MessageHandler handler) throws IOException {
+        try {
+            if (MessageHandler.isStreaming(request.getFunction()))
+                throw new IllegalArgumentException(request.getFunction() + " is only supported on text connections");
+            return WireCodec.encode(handle(request, clientIp, handler));
+        } catch (RuntimeException e) {
+            requestLog.error("Error replying to {}: {}", request.getFunction(), e);
+            return WireCodec.encode(errorReply(request, e));
+        }
+    }
+
+    /**
+     * Reply to a request whose handling failed: the error as the value, and for a batch every key missing.
+     * The caller gets an answer instead of waiting for one that never comes.
+     */
+    public static Message errorReply(Message request, RuntimeException e) {
+        String error = "Error handling " + request.getFunction() + ": " + e;
+        if (request.isBatch()) return request.batchReply(new String[request.getBatchKeys().length], error);
+        return request.reply(error);
+    }
+
+    private static Message handle(Message request, String clientIp, MessageHandler handler) throws IOException {
+        try {
+            return handler.handle(request, clientIp);
+        } catch (RuntimeException e) {
+            requestLog.error("Error handling {}: {}", request.getFunction(), e);
+            return errorReply(request, e);
+        }
+    }
+}
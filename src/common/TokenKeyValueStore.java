@@ -0,0 +1,239 @@
+package common;
+
+/**
+ * String-keyed store using open addressing with linear probing, indexed by each key's ring token.
+ * Tokens live unboxed in a long[], so a probe compares longs and only calls equals on a token match, and
+ * range scans never rehash a key. Each key sits next to its value in one String[] (key at 2 * slot, value
+ * at 2 * slot + 1), so a hit touches two cache lines rather than three. A null value marks a free slot.
+ * The table is kept in token order: a key's home slot is the top bits of its token, an insert takes its
+ * token's place in the probe run and shifts the rest of the run up one slot, and a delete shifts it back
+ * instead of leaving a tombstone. Runs never wrap around: OVERFLOW_SLOTS follow the last home slot and the
+ * table grows if a run would spill past them. So the slots hold the keys in ascending token order, a probe
+ * stops at the first larger token, and a range operation starts at the home slot of the range's start and
+ * reads no further than the range's end.
+ */
+public class TokenKeyValueStore implements KeyValueStore {
+    private static final int DEFAULT_EXPECTED_KEYS = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final int OVERFLOW_SLOTS = 64;
+
+    private long[] tokens;
+    private String[] entries;                       // Key, value pairs; a null value is a free slot
+    private int shift;                              // A token shifted right by this is its home slot
+    private int size;
+    private int resizeAt;
+
+    public TokenKeyValueStore() {
+        this(DEFAULT_EXPECTED_KEYS);
+    }
+
+    public TokenKeyValueStore(int expectedKeys) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.ceil(expectedKeys / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    @Override
+    public int insert(String key, String value) {
+        long token = KeyHash.token(key);            // Hash outside the lock
+        synchronized (this) {
+            return insertLocked(token, key, value);
+        }
+    }
+
+    @Override
+    public int put(String key, String value) {
+        long token = KeyHash.token(key);
+        synchronized (this) {
+            int slot = find(token, key);
+            if (slot < 0) return insertLocked(token, key, value);
+            entries[2 * slot + 1] = value;
+            return 1;
+        }
+    }
+
+    @Override
+    public String lookup(String key) {
+        long token = KeyHash.token(key);
+        synchronized (this) {
+            int slot = find(token, key);
+            return (slot < 0) ? null : entries[2 * slot + 1];
+        }
+    }
+
+    @Override
+    public int delete(String key) {
+        long token = KeyHash.token(key);
+        synchronized (this) {
+            int slot = find(token, key);
+            if (slot < 0) return -1;
+            removeAt(slot);
+            return 0;
+        }
+    }
+
+    @Override
+    public void print_keys() {
+        forEach((token, key, value) -> System.out.println("Key: " + key + ", Value: " + value));
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        visit(0, Range.MAX_TOKEN, consumer);
+    }
+
+    @Override
+    public void forEachInRange(Range range, EntryConsumer consumer) {
+        if (range.isWrapping()) {
+            visit(0, range.getEnd(), consumer);
+            visit(range.getStart(), Range.MAX_TOKEN, consumer);
+        } else {
+            visit(range.getStart(), range.getEnd(), consumer);
+        }
+    }
+
+    @Override
+    public synchronized int deleteRange(Range range) {
+        if (!range.isWrapping()) return deleteBetween(range.getStart(), range.getEnd());
+        return deleteBetween(0, range.getEnd()) + deleteBetween(range.getStart(), Range.MAX_TOKEN);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private int insertLocked(long token, String key, String value) {
+        while (true) {
+            int slot = homeOf(token);
+            while (slot < tokens.length && entries[2 * slot + 1] != null && Long.compareUnsigned(tokens[slot], token) <= 0) {
+                if (tokens[slot] == token && key.equals(entries[2 * slot])) return -1;     // Key already exists
+                slot++;
+            }
+            int free = slot;
+            while (free < tokens.length && entries[2 * free + 1] != null) free++;
+            if (free == tokens.length) {            // The run would spill past the overflow slots
+                resize();
+                continue;
+            }
+            System.arraycopy(tokens, slot, tokens, slot + 1, free - slot);
+            System.arraycopy(entries, 2 * slot, entries, 2 * slot + 2, 2 * (free - slot));
+            tokens[slot] = token;
+            entries[2 * slot] = key;
+            entries[2 * slot + 1] = value;
+            if (++size > resizeAt) resize();
+            return 0;
+        }
+    }
+
+    // Slot of the key, or -1
+    private int find(long token, String key) {
+        for (int slot = homeOf(token); slot < tokens.length && entries[2 * slot + 1] != null; slot++) {
+            if (tokens[slot] == token && key.equals(entries[2 * slot])) return slot;
+            if (Long.compareUnsigned(tokens[slot], token) > 0) return -1;
+        }
+        return -1;
+    }
+
+    // Visit the entries with tokens from..to (unsigned, from <= to), copying a chunk at a time under the lock
+    private void visit(long from, long to, EntryConsumer consumer) {
+        EntryBuffer chunk = new EntryBuffer();
+        while (true) {
+            boolean full;
+            synchronized (this) {
+                full = collect(from, to, chunk);
+            }
+            if (full) from = chunk.lastToken() + 1;
+            chunk.drain(consumer);
+            if (!full) return;
+        }
+    }
+
+    /**
+     * Copy the entries with tokens from..to in order until the chunk is full; returns whether it filled
+     * first. A key sits in the run starting at its home slot, so past the home slot of to the first free
+     * slot ends the range.
+     */
+    private boolean collect(long from, long to, EntryBuffer chunk) {
+        int last = homeOf(to);
+        for (int slot = homeOf(from); slot < tokens.length; slot++) {
+            String value = entries[2 * slot + 1];
+            if (value == null) {
+                if (slot >= last) return false;
+                continue;
+            }
+            long token = tokens[slot];
+            if (Long.compareUnsigned(token, to) > 0) return false;
+            if (Long.compareUnsigned(token, from) < 0) continue;
+            if (chunk.isFullBefore(token)) return true;
+            chunk.add(token, entries[2 * slot], value);
+        }
+        return false;
+    }
+
+    // Remove the entries with tokens from..to, bounded as in collect
+    private int deleteBetween(long from, long to) {
+        int last = homeOf(to);
+        int removed = 0;
+        for (int slot = homeOf(from); slot < tokens.length; ) {
+            if (entries[2 * slot + 1] == null) {
+                if (slot >= last) break;
+                slot++;
+                continue;
+            }
+            long token = tokens[slot];
+            if (Long.compareUnsigned(token, to) > 0) break;
+            if (Long.compareUnsigned(token, from) >= 0) {
+                removeAt(slot);                     // The shift may bring the next entry into this slot
+                removed++;
+            } else {
+                slot++;
+            }
+        }
+        return removed;
+    }
+
+    // Backward-shift deletion: pull the displaced rest of the run down one slot, which keeps it in order
+    private void removeAt(int gap) {
+        int end = gap + 1;
+        while (end < tokens.length && entries[2 * end + 1] != null && homeOf(tokens[end]) < end) end++;
+        System.arraycopy(tokens, gap + 1, tokens, gap, end - gap - 1);
+        System.arraycopy(entries, 2 * gap + 2, entries, 2 * gap, 2 * (end - gap - 1));
+        entries[2 * end - 2] = null;
+        entries[2 * end - 1] = null;
+        size--;
+    }
+
+    // Tokens are already well mixed hashes, so their top bits spread keys evenly over the home slots
+    private int homeOf(long token) {
+        return (int) (token >>> shift);
+    }
+
+    private void allocate(int capacity) {
+        tokens = new long[capacity + OVERFLOW_SLOTS];
+        entries = new String[2 * (capacity + OVERFLOW_SLOTS)];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    // Double the home slots; the entries are already in order, so each goes to its home slot or just past the last
+    private void resize() {
+        long[] oldTokens = tokens;
+        String[] oldEntries = entries;
+        int capacity = (oldTokens.length - OVERFLOW_SLOTS) << 1;
+        while (!refill(oldTokens, oldEntries, capacity)) capacity <<= 1;
+    }
+
+    private boolean refill(long[] oldTokens, String[] oldEntries, int capacity) {
+        allocate(capacity);
+        int next = 0;
+        for (int slot = 0; slot < oldTokens.length; slot++) {
+            if (oldEntries[2 * slot + 1] == null) continue;
+            int target = Math.max(homeOf(oldTokens[slot]), next);
+            if (target == tokens.length) return false;
+            tokens[target] = oldTokens[slot];
+            entries[2 * target] = oldEntries[2 * slot];
+            entries[2 * target + 1] = oldEntries[2 * slot + 1];
+            next = target + 1;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,563 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The single place where messages are turned into bytes and back, for both wire formats.
+ *
+ * Binary: a client opts in by sending MAGIC as the very first byte of the connection; text requests always
+ * start with a letter, so servers tell the two apart from that byte. After it, every message is a frame:
+ *   varint body length, then the body
+ *   body = opcode (function ordinal, high bit set on replies), varint flags (which optional parts are present),
+ *          [varint request id], varlong node id, varint port, [varint length + key bytes], [varlong token],
+ *          [varint count + varlong per token in the token list],
+ *          [varint length + value bytes], [varint count + (varlong id, varint length + host bytes, varint port) per node],
+ *          [varint count + (varint length + bytes) per batch key], [varint (length + 1) + bytes per batch value, 0 = absent],
+ *          [varint ring epoch], [varint quorum]
+ * Node ids and tokens are unsigned 64-bit ring positions, written as 7-bit groups like the other varints.
+ * Opcodes are NameServerFunctions ordinals, so new functions must be appended to the end of the enum.
+ *
+ * Text: the original space-separated request lines and single-line replies, kept for manual debugging
+ * with telnet or nc and for the key transfer streams. Ids and tokens are unsigned decimals, and text keys are
+ * single words without colons. Batches are "MGET id port k1 k2 ..." or "MINSERT id port k1 v1 k2 v2 ...",
+ * answered with "k1:v1 k2:null ...". A key's owner copies writes to its replicas with
+ * "REPLICATE id port k1 v1 k2 null ...", a null value deleting the key. The ring snapshot is answered with
+ * "epoch (id ip port start end)...", one entry per member token, followed by
+ * "placement <strategy> [epsilon] [replicas r]" unless the ring is plain without copies.
+ * Token lists follow the other arguments: "ENTER id port t1 t2 ..." for virtual node tokens, and
+ * "SEND_KEYS id port <resume token or -> s1 e1 s2 e2 ..." for the slices a joining node pulls.
+ * An optional last argument asks for a read or write quorum: "LOOKUP id port key 2", "INSERT id port key value 3".
+ * A node that served a forwarded lookup and then wrote the key sends "INVALIDATE id port key" to the asker's
+ * read cache, or "INVALIDATE id port" to drop all of it. "FILTER id port" fetches a node's Bloom filter,
+ * answered with its bits (binary only), after which the node sends "FILTER id port k1 k2 ..." for keys it adds.
+ * "STATS id port" is answered with the node's counters and latency histograms, one line per figure in
+ * binary replies and the lines joined with "; " in text.
+ * Epochs on requests and version stamps are binary only: the one-hop client and the replicas speak binary.
+ */
+public class WireCodec {
+    public static final int MAGIC = 0xB1;
+    public static final int MAX_FRAME_BYTES = 16 << 20;
+
+    private static final int REPLY_BIT = 0x80;
+    private static final int HAS_KEY = 1;
+    private static final int HAS_VALUE = 2;
+    private static final int HAS_NODES = 4;
+    private static final int HAS_REQUEST_ID = 8;
+    private static final int HAS_BATCH_KEYS = 16;
+    private static final int HAS_BATCH_VALUES = 32;
+    private static final int HAS_EPOCH = 64;
+    private static final int NOT_OWNER = 128;
+    private static final int HAS_TOKEN = 256;
+    private static final int HAS_TOKENS = 512;
+    private static final int HAS_QUORUM = 1024;
+    private static final NameServerFunctions[] FUNCTIONS = NameServerFunctions.values();
+
+    private WireCodec() {
+    }
+
+    // ---- Binary framing ----
+
+    // The whole frame, length prefix included
+    public static byte[] encode(Message message) {
+        ByteWriter body = new ByteWriter(32);
+        int flags = (message.hasKey() ? HAS_KEY : 0) | (message.getValue() != null ? HAS_VALUE : 0)
+                | (message.getNodes().length > 0 ? HAS_NODES : 0) | (message.getRequestId() != 0 ? HAS_REQUEST_ID : 0)
+                | (message.getBatchKeys() != null ? HAS_BATCH_KEYS : 0)
+                | (message.getBatchValues() != null ? HAS_BATCH_VALUES : 0)
+                | (message.getEpoch() != 0 ? HAS_EPOCH : 0) | (message.isNotOwner() ? NOT_OWNER : 0)
+                | (message.hasToken() ? HAS_TOKEN : 0) | (message.getTokens().length > 0 ? HAS_TOKENS : 0)
+                | (message.getQuorum() != 0 ? HAS_QUORUM : 0);
+        body.writeByte(message.getFunction().ordinal() | (message.isReply() ? REPLY_BIT : 0));
+        body.writeVarint(flags);
+        if (message.getRequestId() != 0) body.writeVarint(message.getRequestId());
+        body.writeVarlong(message.getNodeId());
+        body.writeVarint(message.getPort());
+        if (message.hasKey()) body.writeBytes(message.getKey().getBytes(StandardCharsets.UTF_8));
+        if (message.hasToken()) body.writeVarlong(message.getToken());
+        if (message.getTokens().length > 0) {
+            body.writeVarint(message.getTokens().length);
+            for (long token : message.getTokens()) body.writeVarlong(token);
+        }
+        if (message.getValue() != null) body.writeBytes(message.getValue());
+        if (message.getNodes().length > 0) {
+            body.writeVarint(message.getNodes().length);
+            for (NodeInfo node : message.getNodes()) {
+                body.writeVarlong(node.getId());
+                body.writeBytes(node.getIp().getBytes(StandardCharsets.UTF_8));
+                body.writeVarint(node.getPort());
+            }
+        }
+        if (message.getBatchKeys() != null) {
+            body.writeVarint(message.getBatchKeys().length);
+            for (String key : message.getBatchKeys())
+                body.writeBytes(key.getBytes(StandardCharsets.UTF_8));
+        }
+        if (message.getBatchValues() != null) {
+            for (String value : message.getBatchValues()) {
+                if (value == null) {
+                    body.writeVarint(0);
+                    continue;
+                }
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                body.writeVarint(bytes.length + 1);
+                body.writeRaw(bytes, 0, bytes.length);
+            }
+        }
+        if (message.getEpoch() != 0) body.writeVarint(message.getEpoch());
+        if (message.getQuorum() != 0) body.writeVarint(message.getQuorum());
+
+        ByteWriter frame = new ByteWriter(body.length + 5);
+        frame.writeVarint(body.length);
+        frame.writeRaw(body.buffer, 0, body.length);
+        return frame.toByteArray();
+    }
+
+    public static void write(OutputStream out, Message message) throws IOException {
+        out.write(encode(message));
+        out.flush();
+    }
+
+    /**
+     * Read the next frame, or return null if the stream ends cleanly between frames.
+     */
+    public static Message read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return null;
+        int length = readVarint(in, first);
+        if (length < 2 || length > MAX_FRAME_BYTES) throw new IOException("Invalid frame length " + length);
+        byte[] body = in.readNBytes(length);
+        if (body.length < length) throw new EOFException("Connection closed inside a frame");
+        return decode(body, 0, length);
+    }
+
+    public static Message decode(byte[] body, int offset, int length) {
+        ByteReader reader = new ByteReader(body, offset, offset + length);
+        int opcode = reader.readByte();
+        int function = opcode & ~REPLY_BIT;
+        if (function >= FUNCTIONS.length) throw new IllegalArgumentException("Unknown opcode " + function);
+        int flags = reader.readVarint();
+        int requestId = ((flags & HAS_REQUEST_ID) != 0) ? reader.readVarint() : 0;
+        long nodeId = reader.readVarlong();
+        int port = reader.readVarint();
+        String key = ((flags & HAS_KEY) != 0) ? reader.readString() : null;
+        boolean hasToken = (flags & HAS_TOKEN) != 0;
+        long token = hasToken ? reader.readVarlong() : 0;
+        long[] tokens = null;
+        if ((flags & HAS_TOKENS) != 0) {
+            int count = reader.readVarint();
+            if (count < 0 || count > reader.remaining()) throw new IllegalArgumentException("Invalid token count " + count);
+            tokens = new long[count];
+            for (int i = 0; i < count; i++) tokens[i] = reader.readVarlong();
+        }
+        byte[] value = ((flags & HAS_VALUE) != 0) ? reader.readBytes() : null;
+        NodeInfo[] nodes = null;
+        if ((flags & HAS_NODES) != 0) {
+            int count = reader.readVarint();
+            if (count < 0 || count > reader.remaining()) throw new IllegalArgumentException("Invalid node count " + count);
+            nodes = new NodeInfo[count];
+            for (int i = 0; i < nodes.length; i++) {
+                long id = reader.readVarlong();
+                String ip = new String(reader.readBytes(), StandardCharsets.UTF_8);
+                nodes[i] = new NodeInfo(id, ip, reader.readVarint());
+            }
+        }
+        String[] batchKeys = null;
+        if ((flags & HAS_BATCH_KEYS) != 0) {
+            int count = reader.readVarint();
+            if (count < 0 || count > reader.remaining()) throw new IllegalArgumentException("Invalid batch size " + count);
+            batchKeys = new String[count];
+            for (int i = 0; i < count; i++)
+                batchKeys[i] = reader.readString();
+        }
+        String[] batchValues = null;
+        if ((flags & HAS_BATCH_VALUES) != 0) {
+            if (batchKeys == null) throw new IllegalArgumentException("Batch values without keys");
+            batchValues = new String[batchKeys.length];
+            for (int i = 0; i < batchValues.length; i++)
+                batchValues[i] = reader.readOptionalString();
+        }
+        int epoch = ((flags & HAS_EPOCH) != 0) ? reader.readVarint() : 0;
+        int quorum = ((flags & HAS_QUORUM) != 0) ? reader.readVarint() : 0;
+        return new Message(FUNCTIONS[function], (opcode & REPLY_BIT) != 0, requestId, nodeId, port,
+                key, hasToken, token, value, nodes, tokens, batchKeys, batchValues, epoch, (flags & NOT_OWNER) != 0, quorum);
+    }
+
+    /**
+     * Decode the varint length prefix at the start of buf[offset, limit).
+     * Returns {length, prefix size}, or null when the prefix is not complete yet.
+     */
+    public static int[] peekFrameLength(byte[] buf, int offset, int limit) {
+        int result = 0;
+        for (int shift = 0, i = offset; i < limit && shift < 35; shift += 7, i++) {
+            int b = buf[i] & 0xFF;
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return new int[] {result, i - offset + 1};
+        }
+        if (limit - offset >= 5) throw new IllegalArgumentException("Malformed frame length");
+        return null;
+    }
+
+    private static int readVarint(InputStream in, int first) throws IOException {
+        int result = first & 0x7F;
+        int b = first;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift > 28) throw new IOException("Malformed varint");
+            b = in.read();
+            if (b == -1) throw new EOFException("Connection closed inside a frame");
+            result |= (b & 0x7F) << shift;
+        }
+        return result;
+    }
+
+    // ---- Text lines ----
+
+    /**
+     * Parse a text request line: FUNCTION nodeId port [arguments].
+     * Throws IllegalArgumentException for unknown functions or malformed numbers.
+     */
+    public static Message parseRequest(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length < 3) throw new IllegalArgumentException("Usage: <command> <nodeId> <port> [arguments]");
+        NameServerFunctions function = NameServerFunctions.valueOf(tokens[0].toUpperCase());
+        long nodeId = Long.parseUnsignedLong(tokens[1]);
+        int port = Integer.parseInt(tokens[2]);
+
+        switch (function) {
+            case INSERT:
+                if (tokens.length < 5) throw new IllegalArgumentException("Usage: INSERT <nodeId> <port> <key> <value> [w]");
+                return Message.request(function, nodeId, port, tokens[3], tokens[4])
+                        .withQuorum((tokens.length > 5) ? Integer.parseInt(tokens[5]) : 0);
+            case LOOKUP:
+            case DELETE:
+            case REPLICA_READ:
+                if (tokens.length < 4) throw new IllegalArgumentException("Usage: " + function + " <nodeId> <port> <key> [r or w]");
+                return Message.request(function, nodeId, port, tokens[3])
+                        .withQuorum((tokens.length > 4) ? Integer.parseInt(tokens[4]) : 0);
+            case INVALIDATE:
+                return (tokens.length < 4) ? Message.request(function, nodeId, port) : Message.request(function, nodeId, port, tokens[3]);
+            case FILTER:
+                if (tokens.length < 4) return Message.request(function, nodeId, port);
+                return Message.batch(function, nodeId, port, Arrays.copyOfRange(tokens, 3, tokens.length), null);
+            case FIND_SUCCESSOR:
+                if (tokens.length < 4) throw new IllegalArgumentException("Usage: FIND_SUCCESSOR <nodeId> <port> <token>");
+                return Message.request(function, nodeId, port, Long.parseUnsignedLong(tokens[3]));
+            case ENTER:
+                return Message.request(function, nodeId, port).withTokens(parseTokens(tokens, 3));
+            case SEND_KEYS:
+                if (tokens.length < 4) return Message.request(function, nodeId, port);
+                Message request = tokens[3].equals("-") ? Message.request(function, nodeId, port)
+                        : Message.request(function, nodeId, port, Long.parseUnsignedLong(tokens[3]));
+                if ((tokens.length - 4) % 2 != 0)
+                    throw new IllegalArgumentException("Usage: SEND_KEYS <nodeId> <port> [<resume token or -> (<start> <end>)...]");
+                return request.withTokens(parseTokens(tokens, 4));
+            case RECEIVE_KEYS:
+                if (tokens.length < 6) return Message.request(function, nodeId, port);
+                return Message.request(function, nodeId, port,
+                        new NodeInfo(Long.parseUnsignedLong(tokens[3]), tokens[4], Integer.parseInt(tokens[5])));
+            case UPDATE_SUCCESSOR:
+                if (tokens.length < 4) return Message.request(function, nodeId, port);
+                return Message.request(function, nodeId, port, new NodeInfo(nodeId, tokens[3], port));
+            case MGET:
+            case MDELETE:
+                String[] keys = Arrays.copyOfRange(tokens, 3, tokens.length);
+                return Message.batch(function, nodeId, port, keys, null);
+            case MINSERT:
+                if (tokens.length % 2 == 0) throw new IllegalArgumentException("Usage: MINSERT <nodeId> <port> (<key> <value>)...");
+                keys = new String[(tokens.length - 3) / 2];
+                String[] values = new String[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = tokens[3 + 2 * i];
+                    values[i] = tokens[4 + 2 * i];
+                }
+                return Message.batch(function, nodeId, port, keys, values);
+            case REPLICATE:
+                if (tokens.length % 2 == 0) throw new IllegalArgumentException("Usage: REPLICATE <nodeId> <port> (<key> <value or null>)...");
+                keys = new String[(tokens.length - 3) / 2];
+                values = new String[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = tokens[3 + 2 * i];
+                    values[i] = tokens[4 + 2 * i].equals("null") ? null : tokens[4 + 2 * i];
+                }
+                return Message.batch(function, nodeId, port, keys, values);
+            default:
+                return Message.request(function, nodeId, port);
+        }
+    }
+
+    public static String formatRequest(Message request) {
+        StringBuilder line = new StringBuilder();
+        line.append(request.getFunction()).append(' ').append(Long.toUnsignedString(request.getNodeId()))
+                .append(' ').append(request.getPort());
+        if (request.hasKey()) line.append(' ').append(request.getKey());
+        if (request.hasToken()) line.append(' ').append(Long.toUnsignedString(request.getToken()));
+        if (request.getTokens().length > 0 && request.getFunction() != NameServerFunctions.REPLICATE) {
+            if (request.getFunction() == NameServerFunctions.SEND_KEYS && !request.hasToken()) line.append(" -");
+            for (long token : request.getTokens()) line.append(' ').append(Long.toUnsignedString(token));
+        }
+        if (request.getValue() != null) line.append(' ').append(request.getValueString());
+        for (NodeInfo node : request.getNodes()) {
+            if (request.getFunction() == NameServerFunctions.UPDATE_SUCCESSOR) line.append(' ').append(node.getIp());
+            else line.append(' ').append(formatNode(node));
+        }
+        if (request.isBatch()) {
+            String[] keys = request.getBatchKeys();
+            for (int i = 0; i < keys.length; i++) {
+                line.append(' ').append(keys[i]);
+                if (request.getBatchValues() != null) line.append(' ').append(request.getBatchValues()[i]);
+            }
+        }
+        if (request.getQuorum() != 0) line.append(' ').append(request.getQuorum());
+        return line.toString();
+    }
+
+    public static String formatReply(Message reply) {
+        NodeInfo[] nodes = reply.getNodes();
+        if (reply.isNotOwner()) return "NOT_OWNER " + reply.getEpoch();
+        if (reply.getFunction() == NameServerFunctions.RING) {
+            RingSnapshot snapshot = new RingSnapshot(reply.getEpoch(), nodes);
+            StringBuilder line = new StringBuilder().append(snapshot.getEpoch());
+            for (int i = 0; i < snapshot.size(); i++) {
+                Range range = snapshot.rangeOf(i);
+                line.append(' ').append(formatNode(snapshot.get(i)))
+                        .append(' ').append(Long.toUnsignedString(range.getStart()))
+                        .append(' ').append(Long.toUnsignedString(range.getEnd()));
+            }
+            if (reply.getValue() != null) line.append(" placement ").append(reply.getValueString());
+            return line.toString();
+        }
+        if (reply.isBatch()) {
+            // Errors reaching an owner are only reported in binary replies; the missing keys read as null
+            StringBuilder line = new StringBuilder();
+            String[] keys = reply.getBatchKeys();
+            for (int i = 0; i < keys.length; i++) {
+                if (i > 0) line.append(' ');
+                line.append(keys[i]).append(':').append(reply.getBatchValues()[i]);
+            }
+            return line.toString();
+        }
+        switch (reply.getFunction()) {
+            case FIND_SUCCESSOR:
+                return (nodes.length == 0) ? "null" : formatNode(nodes[0]);
+            case STATS:
+                return (reply.getValue() == null) ? "null" : reply.getValueString().replace("\n", "; ");
+            case ENTER:
+                if (nodes.length == 2) {
+                    return reply.getValueString() + " Predecessor: " + describeNode(nodes[0]) +
+                            " Successor: " + describeNode(nodes[1]);
+                }
+                return formatValue(reply);                  // A refused join only carries the reason
+            default:
+                return formatValue(reply);
+        }
+    }
+
+    private static String formatValue(Message reply) {
+        return (reply.getValue() == null) ? "null" : reply.getValueString();
+    }
+
+    /**
+     * Parse a text reply line to the given function, the inverse of formatReply.
+     */
+    public static Message parseReply(NameServerFunctions function, String line) {
+        Message request = Message.request(function, 0, 0);
+        if (line == null || line.equals("null")) return request.reply(null);
+        if (line.startsWith("NOT_OWNER ")) {
+            return request.withEpoch(Integer.parseInt(line.substring("NOT_OWNER ".length()).trim())).notOwnerReply();
+        }
+        switch (function) {
+            case RING:
+                String[] fields = line.trim().split("\\s+");
+                int entryFields = fields.length - 1;
+                for (int i = 1; i < fields.length; i += 5) {
+                    if (fields[i].equals("placement")) entryFields = i - 1;
+                }
+                if (entryFields % 5 != 0) throw new IllegalArgumentException("Invalid ring snapshot: " + line);
+                NodeInfo[] ring = new NodeInfo[entryFields / 5];
+                for (int i = 0; i < ring.length; i++) {
+                    int base = 1 + 5 * i;      // id ip port start end; the range follows from the ids
+                    ring[i] = new NodeInfo(Long.parseUnsignedLong(fields[base]), fields[base + 1], Integer.parseInt(fields[base + 2]));
+                }
+                String placement = (entryFields < fields.length - 1)        // "placement ring 0.25", "placement maglev", ...
+                        ? String.join(" ", Arrays.copyOfRange(fields, entryFields + 2, fields.length)) : null;
+                return request.reply(placement, ring).withEpoch(Integer.parseInt(fields[0]));
+            case FIND_SUCCESSOR:
+                String[] parts = line.trim().split("\\s+");
+                return request.reply(null, new NodeInfo(Long.parseUnsignedLong(parts[0]), parts[1], Integer.parseInt(parts[2])));
+            case ENTER:
+                int predIndex = line.indexOf(" Predecessor: ");
+                int succIndex = line.indexOf(" Successor: ");
+                if (predIndex == -1 || succIndex == -1) return request.reply(line);
+                return request.reply(line.substring(0, predIndex),
+                        parseDescribedNode(line.substring(predIndex + " Predecessor: ".length(), succIndex)),
+                        parseDescribedNode(line.substring(succIndex + " Successor: ".length())));
+            case MGET:
+            case MINSERT:
+            case MDELETE:
+            case REPLICATE:
+                String[] pairs = line.trim().isEmpty() ? new String[0] : line.trim().split("\\s+");
+                String[] keys = new String[pairs.length];
+                String[] values = new String[pairs.length];
+                for (int i = 0; i < pairs.length; i++) {
+                    int colon = pairs[i].indexOf(':');
+                    if (colon == -1) throw new IllegalArgumentException("Invalid batch reply entry: " + pairs[i]);
+                    keys[i] = pairs[i].substring(0, colon);
+                    String value = pairs[i].substring(colon + 1);
+                    values[i] = value.equals("null") ? null : value;
+                }
+                return Message.batch(function, 0, 0, keys, null).batchReply(values, null);
+            default:
+                return request.reply(line);
+        }
+    }
+
+    private static long[] parseTokens(String[] fields, int from) {
+        long[] tokens = new long[Math.max(0, fields.length - from)];
+        for (int i = 0; i < tokens.length; i++) tokens[i] = Long.parseUnsignedLong(fields[from + i]);
+        return tokens;
+    }
+
+    private static String formatNode(NodeInfo node) {
+        return Long.toUnsignedString(node.getId()) + " " + node.getIp() + " " + node.getPort();
+    }
+
+    // Same shape as the start of NodeInfo.toString(): "Node <id> [<ip>:<port>]"
+    private static String describeNode(NodeInfo node) {
+        return "Node " + Long.toUnsignedString(node.getId()) + " [" + node.getIp() + ":" + node.getPort() + "]";
+    }
+
+    private static NodeInfo parseDescribedNode(String text) {
+        int bracketStart = text.indexOf('[');
+        int colon = text.indexOf(':', bracketStart);
+        int end = text.indexOf(',', colon);
+        if (end == -1) end = text.indexOf(']', colon);
+        if (!text.startsWith("Node ") || bracketStart == -1 || colon == -1 || end == -1)
+            throw new IllegalArgumentException("Invalid node info format: " + text);
+        return new NodeInfo(Long.parseUnsignedLong(text.substring("Node ".length(), bracketStart).trim()),
+                text.substring(bracketStart + 1, colon), Integer.parseInt(text.substring(colon + 1, end).trim()));
+    }
+
+    // Growable byte array for building frames without a stream per message
+    private static final class ByteWriter {
+        private byte[] buffer;
+        private int length;
+
+        ByteWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            writeRaw(bytes, 0, bytes.length);
+        }
+
+        void writeRaw(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        byte[] toByteArray() {
+            return (length == buffer.length) ? buffer : Arrays.copyOf(buffer, length);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static final class ByteReader {
+        private final byte[] buffer;
+        private int position;
+        private final int limit;
+
+        ByteReader(byte[] buffer, int offset, int limit) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        // Every element of a counted list takes at least one byte, so a count above this is a corrupt frame
+        int remaining() {
+            return limit - position;
+        }
+
+        int readByte() {
+            if (position >= limit) throw new IllegalArgumentException("Truncated frame");
+            return buffer[position++] & 0xFF;
+        }
+
+        int readVarint() {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long readVarlong() {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        String readString() {
+            int count = readVarint();
+            if (count < 0 || count > limit - position) throw new IllegalArgumentException("Truncated frame");
+            String value = new String(buffer, position, count, StandardCharsets.UTF_8);
+            position += count;
+            return value;
+        }
+
+        // Varint (length + 1) followed by the bytes, 0 for an absent value
+        String readOptionalString() {
+            int count = readVarint() - 1;
+            if (count == -1) return null;
+            if (count < 0 || count > limit - position) throw new IllegalArgumentException("Truncated frame");
+            String value = new String(buffer, position, count, StandardCharsets.UTF_8);
+            position += count;
+            return value;
+        }
+
+        byte[] readBytes() {
+            int count = readVarint();
+            if (count < 0 || count > limit - position) throw new IllegalArgumentException("Truncated frame");
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + count);
+            position += count;
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the writes applied to a store, in segment files "wal-<number>.log" in one directory.
+ * Writers append records to an in-memory buffer and wait; one flusher thread writes everything buffered with
+ * a single write call and, depending on the FsyncPolicy, forces it to disk before acknowledging the whole
+ * group (group commit), so concurrent writers share the cost of each fsync.
+ * Record: int body length, int CRC-32C of the body, body = op byte, then the key and value for an insert or a
+ * put, the key for a delete, the start and end tokens for a range delete; strings are int length + UTF-8 bytes.
+ * A crash can leave a torn record at the end of the last segment; replay stops at the first record that is
+ * incomplete or fails its checksum and cuts it off.
+ * rotate() starts a new segment, so the segments before it can be dropped once a snapshot covers them.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final byte INSERT = 1;
+    public static final byte DELETE = 2;
+    public static final byte DELETE_RANGE = 3;
+    public static final byte PUT = 4;
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final Log log = Log.get("store");
+    private static final int MAX_RECORD_BYTES = 64 << 20;
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final Object lock = new Object();
+    private final Thread flusher;
+
+    // Guarded by lock
+    private byte[] pending = new byte[64 << 10];
+    private int pendingLength;
+    private long appended;                          // Records appended so far
+    private long acknowledged;                      // Records written, and forced if the policy says so
+    private boolean rotateRequested;
+    private boolean closed;
+    private IOException failure;
+
+    // Flusher thread only, but for the counters read by others
+    private FileChannel channel;
+    private volatile long segment;
+    private volatile long segmentBytes;
+    private volatile long commits;                  // Groups written
+    private volatile long syncs;                    // Forces to disk
+    private long lastSync = System.nanoTime();
+    private boolean unsynced;                       // Written since the last force
+
+    /**
+     * Open a new segment numbered after every existing one and start the flusher.
+     */
+    public WriteAheadLog(Path directory, FsyncPolicy policy) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        Files.createDirectories(directory);
+        List<Long> existing = segments(directory);
+        segment = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        channel = open(segment);
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public long append(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(9 + keyBytes.length + valueBytes.length);
+        body.put(INSERT).putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+        return append(body.array());
+    }
+
+    // A put replaces the value on replay, where an insert keeps the one found
+    public long appendPut(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(9 + keyBytes.length + valueBytes.length);
+        body.put(PUT).putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+        return append(body.array());
+    }
+
+    public long appendDelete(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(5 + keyBytes.length);
+        body.put(DELETE).putInt(keyBytes.length).put(keyBytes);
+        return append(body.array());
+    }
+
+    public long appendDeleteRange(Range range) {
+        ByteBuffer body = ByteBuffer.allocate(17);
+        body.put(DELETE_RANGE).putLong(range.getStart()).putLong(range.getEnd());
+        return append(body.array());
+    }
+
+    /**
+     * Buffer one record for the next group commit. Returns its ticket for await; records are written in
+     * ticket order, so callers that must keep an order between records append them in that order.
+     */
+    private long append(byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("Write-ahead log is closed");
+            int needed = pendingLength + HEADER_BYTES + body.length;
+            if (needed > pending.length) {
+                byte[] grown = new byte[Math.max(needed, pending.length * 2)];
+                System.arraycopy(pending, 0, grown, 0, pendingLength);
+                pending = grown;
+            }
+            ByteBuffer.wrap(pending, pendingLength, HEADER_BYTES).putInt(body.length).putInt((int) crc.getValue());
+            System.arraycopy(body, 0, pending, pendingLength + HEADER_BYTES, body.length);
+            boolean wasEmpty = pendingLength == 0;
+            pendingLength = needed;
+            if (wasEmpty) lock.notifyAll();             // The flusher only sleeps on an empty buffer
+            return ++appended;
+        }
+    }
+
+    // Wait until the record with the ticket is as durable as the policy makes it
+    public void await(long ticket) {
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (acknowledged < ticket && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (acknowledged < ticket) throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+    }
+
+    /**
+     * Close the current segment after everything appended so far and continue in a new one.
+     * Returns the number of the new segment: replaying it and the later ones on top of a snapshot taken
+     * after this call returns restores the store.
+     */
+    public long rotate() {
+        synchronized (lock) {
+            long before = segment;
+            rotateRequested = true;
+            lock.notifyAll();
+            while (segment == before && failure == null && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (failure != null) throw new UncheckedIOException("Write-ahead log failed", failure);
+            return segment;
+        }
+    }
+
+    // Delete the segments numbered below the given one, covered by a snapshot
+    public void dropBefore(long firstKept) throws IOException {
+        for (long number : segments(directory)) {
+            if (number < firstKept) Files.deleteIfExists(path(directory, number));
+        }
+    }
+
+    public long getSegment() {
+        return segment;
+    }
+
+    // Bytes written to the current segment
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public long getCommits() {
+        return commits;
+    }
+
+    public long getSyncs() {
+        return syncs;
+    }
+
+    public long getAppended() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    private void flushLoop() {
+        byte[] spare = new byte[pending.length];
+        while (true) {
+            byte[] batch;
+            int length;
+            long upTo;
+            boolean rotate;
+            boolean stop;
+            synchronized (lock) {
+                while (pendingLength == 0 && !rotateRequested && !closed) {
+                    try {
+                        // INTERVAL wakes up to force writes that no new append will trigger
+                        lock.wait(policy == FsyncPolicy.INTERVAL ? FsyncPolicy.INTERVAL_MS : 0);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (policy == FsyncPolicy.INTERVAL && pendingLength == 0) break;
+                }
+                batch = pending;
+                length = pendingLength;
+                pending = (spare.length >= batch.length) ? spare : new byte[batch.length];
+                pendingLength = 0;
+                upTo = appended;
+                rotate = rotateRequested;
+                stop = closed;
+            }
+            try {
+                if (length > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(batch, 0, length);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    segmentBytes += length;
+                    commits++;
+                    unsynced = true;
+                }
+                long now = System.nanoTime();
+                boolean sync = unsynced && (policy == FsyncPolicy.ALWAYS || rotate || stop
+                        || (policy == FsyncPolicy.INTERVAL && now - lastSync >= FsyncPolicy.INTERVAL_MS * 1_000_000));
+                if (sync) {
+                    channel.force(false);
+                    syncs++;
+                    lastSync = now;
+                    unsynced = false;
+                }
+                if (rotate) {
+                    channel.close();
+                    channel = open(segment + 1);
+                    segmentBytes = 0;
+                }
+                synchronized (lock) {
+                    acknowledged = upTo;
+                    if (rotate) {
+                        segment++;
+                        rotateRequested = false;
+                    }
+                    lock.notifyAll();
+                }
+                if (stop) {
+                    channel.close();
+                    return;
+                }
+            } catch (IOException e) {
+                log.error("Write-ahead log failed: {}", e.getMessage());
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            spare = batch;
+        }
+    }
+
+    // Write out everything appended, force it to disk and stop the flusher
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+
+    private FileChannel open(long number) throws IOException {
+        return FileChannel.open(path(directory, number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static Path path(Path directory, long number) {
+        return directory.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX));
+    }
+
+    // Numbers of the segments in the directory, ascending
+    public static List<Long> segments(Path directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return numbers;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    public interface Replay {
+        void insert(String key, String value);
+
+        void delete(String key);
+
+        void deleteRange(Range range);
+
+        void put(String key, String value);
+    }
+
+    /**
+     * Apply the records of the segments numbered from 'first' on, in order. A torn or corrupt record ends the
+     * replay: the segment is cut off before it and later segments are ignored. Returns the records applied.
+     */
+    public static long replay(Path directory, long first, Replay target) throws IOException {
+        long records = 0;
+        for (long number : segments(directory)) {
+            if (number < first) continue;
+            Path file = path(directory, number);
+            long valid = 0;
+            boolean torn = false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                while (true) {
+                    byte[] body = readRecord(in);
+                    if (body == null) break;
+                    if (body.length == 0) {
+                        torn = true;
+                        break;
+                    }
+                    apply(body, target);
+                    valid += HEADER_BYTES + body.length;
+                    records++;
+                }
+            }
+            if (torn) {
+                log.warn("Write-ahead log {} ends with a torn record, cut at byte {}", file.getFileName(), valid);
+                try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    truncate.truncate(valid);
+                }
+                return records;
+            }
+        }
+        return records;
+    }
+
+    // The next record's body, null at a clean end, empty if the record is torn or corrupt
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return null;
+        try {
+            int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+            int checksum = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES) return new byte[0];
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            return ((int) crc.getValue() == checksum) ? body : new byte[0];
+        } catch (EOFException e) {
+            return new byte[0];
+        }
+    }
+
+    private static void apply(byte[] body, Replay target) {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        switch (in.get()) {
+            case INSERT:
+                String key = readString(in);
+                target.insert(key, readString(in));
+                break;
+            case DELETE:
+                target.delete(readString(in));
+                break;
+            case DELETE_RANGE:
+                target.deleteRange(new Range(in.getLong(), in.getLong()));
+                break;
+            case PUT:
+                String putKey = readString(in);
+                target.put(putKey, readString(in));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown write-ahead log record " + body[0]);
+        }
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String readString(InputStream in) throws IOException {
+        DataInputStream data = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(in);
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
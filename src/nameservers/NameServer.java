@@ -1,333 +1,614 @@
 package nameservers;
 
+import common.BatchRouter;
+import common.BloomKeyValueStore;
+import common.CacheInvalidator;
+import common.ConnectionPool;
+import common.KeyHandoff;
+import common.KeyHash;
 import common.Range;
 import common.KeyTransferService;
 import common.KeyValueStore;
-import common.NameServerFunctions;
+import common.Log;
+import common.Message;
+import common.MessageHandler;
+import common.NioServer;
 import common.NodeInfo;
+import common.NodeStats;
+import common.ReadCache;
+import common.RemoteFilters;
+import common.Replicator;
+import common.RingSnapshot;
+import common.ServerEngine;
+import common.ServerSession;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static common.NameServerFunctions.*;
 
-public class NameServer {
-    private int id;
+/**
+ * A name server owning one slice of the ring per virtual node token: its id, plus vnodes - 1 tokens hashed
+ * from the id (see KeyHash.vnodeTokens). It keeps the bootstrap's ring snapshot to decide which keys it owns
+ * and sends requests for other keys straight to their owner. On a bounded-load ring the snapshot's placement
+ * may give this node ranges of other nodes' tokens and the reverse, so ownership goes by address: the
+ * entries with the address the ring lists for this node's id are this node's.
+ * With a replication factor above 1 the node also keeps copies of the ranges of the nodes before it, serves
+ * reads for them, and applies the writes their owners copy to it (see Replicator).
+ * An optional read cache keeps the values of lookups forwarded to other nodes; the nodes that served them
+ * invalidate them on writes (see CacheInvalidator).
+ * Every request's latency, each forward and the keys of every transfer are recorded in the node's NodeStats,
+ * answered to STATS.
+ */
+public class NameServer implements MessageHandler {
+    private static final int RING_REFRESH_SECONDS = 30;
+    private static final int FORWARD_ATTEMPTS = 3;
+    private static final Log serverLog = Log.get("server");
+    private static final Log requestLog = Log.get("request");
+    private static final Log transferLog = Log.get("transfer");
+    private static final Log ringLog = Log.get("ring");
+
+    private long id;                            // Unsigned ring token, also the first virtual node token
+    private long[] tokens;                      // Virtual node tokens, id first
     private int port;
     private String bootstrapIP;
     private int bootstrapPort;
     private boolean isJoined = false;
     private KeyTransferService keyTransferService;
     private KeyValueStore keyValueStore;
+    private ConnectionPool connectionPool;
+    private ServerEngine serverEngine;
     private NodeInfo nodeInfo;
+    private BatchRouter batchRouter;
+    private KeyHandoff keyHandoff;
+    private Replicator replicator;
+    private ReadCache readCache;                // Null without a cache
+    private CacheInvalidator cacheInvalidator;
+    private BloomKeyValueStore bloomStore;      // Null if the store keeps no Bloom filter
+    private RemoteFilters remoteFilters;
+    private final NodeStats stats = new NodeStats();
+    private volatile RingSnapshot ring;         // Null until joined
+    private volatile NodeInfo self;             // This node's entry in the ring, for its address; null until joined
+    private volatile boolean entering = false;  // Joined, but the keys of this node's slices are not all pulled yet
+    private volatile RingSnapshot entryHandoff; // The ring without this node while entering, naming the previous owners
+    private final Map<String, NodeInfo> exitHandoffs = new ConcurrentHashMap<>();  // Leaving nodes pushing keys here
+    private final ScheduledExecutorService ringMaintainer = Executors.newSingleThreadScheduledExecutor();
+
+    public NameServer(long id, int vnodes, int port, String bootstrapIP, int bootstrapPort,
+                      KeyValueStore keyValueStore, KeyTransferService keyTransferService,
+                      ConnectionPool connectionPool, ServerEngine serverEngine) {
+        this(id, vnodes, port, bootstrapIP, bootstrapPort, keyValueStore, keyTransferService, connectionPool,
+                serverEngine, null);
+    }
 
-    public NameServer(int id, int port, String bootstrapIP, int bootstrapPort,
-                      KeyValueStore keyValueStore, KeyTransferService keyTransferService) {
+    public NameServer(long id, int vnodes, int port, String bootstrapIP, int bootstrapPort,
+                      KeyValueStore keyValueStore, KeyTransferService keyTransferService,
+                      ConnectionPool connectionPool, ServerEngine serverEngine, ReadCache readCache) {
         this.id = id;
+        this.tokens = KeyHash.vnodeTokens(id, vnodes);
         this.port = port;
         this.bootstrapIP = bootstrapIP;
         this.bootstrapPort = bootstrapPort;
         this.keyValueStore = keyValueStore;
         this.keyTransferService = keyTransferService;
+        this.connectionPool = connectionPool;
+        this.serverEngine = serverEngine;
         nodeInfo = new NodeInfo(id, "self", port);
+        this.readCache = readCache;
+        cacheInvalidator = new CacheInvalidator(connectionPool, id, port);
+        if (keyValueStore instanceof BloomKeyValueStore) {     // Nodes holding copies of the filter hear of new keys
+            bloomStore = (BloomKeyValueStore) keyValueStore;
+            bloomStore.setNewBitsListener(cacheInvalidator::added);
+        }
+        remoteFilters = new RemoteFilters(connectionPool, id, port);
+        replicator = new Replicator(keyValueStore, connectionPool, id, port);
+        batchRouter = new BatchRouter(keyValueStore, connectionPool, id, port, this::ownsToken, this::batchNextHop,
+                (function, keys, values) -> {
+                    String[] results = replicator.writeOwned(ring, self, function, keys, values);
+                    cacheInvalidator.written(keys);
+                    if (function == MINSERT) cacheInvalidator.awaitAdded(keys);
+                    return results;
+                });
+        keyHandoff = new KeyHandoff(keyTransferService, connectionPool, id, port);
     }
 
     public void startServer() {
-        ExecutorService threadPool = Executors.newCachedThreadPool();
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("NameServer listening on port " + port);
+        // Periodically refresh the ring so joins and exits elsewhere are picked up before a request trips on them
+        ringMaintainer.scheduleWithFixedDelay(this::refreshRing,
+                RING_REFRESH_SECONDS, RING_REFRESH_SECONDS, TimeUnit.SECONDS);
+        if (serverEngine == ServerEngine.NIO) {
+            startNioServer();
+            return;
+        }
+
+        ExecutorService threadPool = serverEngine.newConnectionExecutor();  // Platform or virtual thread per connection
+        try (ServerSocket serverSocket = new ServerSocket(port, ServerEngine.ACCEPT_BACKLOG)) {
+            serverLog.info("NameServer listening on port {}", port);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Received connection from " + clientSocket.getInetAddress().getHostAddress());
-                threadPool.execute(() -> handleIncomingRequest(clientSocket));  // Spawn a thread in a pool
+                requestLog.info("Received connection from {}", clientSocket.getInetAddress().getHostAddress());
+                threadPool.execute(() -> handleIncomingRequest(clientSocket, threadPool));  // Spawn a thread in a pool
             }
         } catch (IOException e) {
-            System.out.println("Error in NameServer server: " + e.getMessage());
+            serverLog.error("Error in NameServer server: {}", e.getMessage());
             System.exit(-1);
         }
     }
 
-    private void handleIncomingRequest(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-            String message = in.readLine();
-            if (message != null) {
-                // NameServerFunctionsEnum + " " + id + " " + port;
-                String[] tokens = message.split("\\s+");
-                String command = tokens[0].toUpperCase();
-                int clientNodeId = Integer.parseInt(tokens[1]);
-                int clientPort = Integer.parseInt(tokens[2]);
-                String clientIp = clientSocket.getInetAddress().getHostAddress();
-
-                switch (NameServerFunctions.valueOf(command)) {
-                    case SEND_KEYS:
-                        System.out.println("Processing SEND_KEYS for node " + clientNodeId);
-                        Range range = sendKeys(out, clientNodeId);
-
-                        message = in.readLine();
-                        if (message.equals("RECEIVED_OK")){
-                            deleteKeys(range);
-                        }
-
-                        nodeInfo.setPredecessor(new NodeInfo(clientNodeId, clientIp, clientPort));    // set new predecessor
-                        break;
-                    case RECEIVE_KEYS:
-                        System.out.println("Receiving keys from predecessor node");
-                        if (tokens.length < 6) {
-                            System.out.println("Invalid Request");
-                            break;
-                        }
-                        out.println("SEND_OK");
-
-                        int clientPredecessorId = Integer.parseInt(tokens[3]);
-                        String clientPredecessorIp = tokens[4];
-                        int clientPredecessorPort = Integer.parseInt(tokens[5]);
-
-                        receiveKeys(in);
-                        out.println("RECEIVED_OK");
-
-                        nodeInfo.setPredecessor(
-                                new NodeInfo(clientPredecessorId, clientPredecessorIp, clientPredecessorPort)
-                        ); // set new predecessor
-                        break;
-                    case UPDATE_SUCCESSOR:
-                        if (tokens.length == 3)
-                            // When node enters and sends a update successor request
-                            nodeInfo.setSuccessor(new NodeInfo(clientNodeId, clientIp, clientPort));      // set new successor
-                        else {
-                            // When a node exists it sends its successors IP which becomes 'this' successor IP
-                            String successorIp = tokens[3];
-                            nodeInfo.setSuccessor(new NodeInfo(clientNodeId, successorIp, clientPort));
-                        }
-                        break;
-                    case LOOKUP:
-                        int key = Integer.parseInt(tokens[3]);
-                        System.out.println("Received Lookup request for key: " + key);
-                        String value  = keyValueStore.lookup(key);      // check if this name server has it
-                        if (value != null) {
-                            System.out.println("Key " + key + " found");
-                            out.println(value);                         // If found return key
-                            break;
-                        }
-                        System.out.println("Key " + key + " not found -> forwarding");
-                        value = forwardToSuccessor(LOOKUP, Integer.toString(key));
-                        out.println(value);                             // return any value successors found
-                        break;
-                    case INSERT:
-                        key = Integer.parseInt(tokens[3]);
-                        value = tokens[4];
-                        System.out.println("Received Insert Request for Key: " + key + " with Value: " + value);
-                        range = getSendRange(id);
-                        if (range.getStart() <= key && key <= range.getEnd()) {
-                            int result = keyValueStore.insert(key, value);
-                            if(result == 0) {
-                                out.println("Insertion successful for key " + key);
-                            } else {
-                                out.println("Key " + key + " already exists.");
-                            }
-                        }
-                        else {
-                            System.out.println("Key " + key + " not found -> forwarding");
-                            String response = forwardToSuccessor(INSERT, key + " " + value);
-                            out.println(response);
-                        }
-                        break;
-                    case DELETE:
-                        key = Integer.parseInt(tokens[3]);
-                        System.out.println("Received delete request for key: " + key);
-                        int result = keyValueStore.delete(key);      // check if this name server has it
-                        if (result == 0) {
-                            System.out.println("Key " + key + " found");
-                            out.println("Key " + key + " deleted");                         // If found return key
-                            break;
-                        }
-                        System.out.println("Key " + key + " not found -> forwarding");
-                        value = forwardToSuccessor(DELETE, Integer.toString(key));
-                        out.println(value);                             // return any value successors found
-                        break;
-                    default: break;
-                }
-            }
+    private void startNioServer() {
+        try {
+            serverLog.info("NameServer listening on port {} (NIO engine)", port);
+            new NioServer(port, this).start();
+        } catch (IOException e) {
+            serverLog.error("Error in NameServer server: {}", e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    private void handleIncomingRequest(Socket clientSocket, ExecutorService threadPool) {
+        try {
+            // Serve every request sent on this connection; pipelined binary requests run on the same pool
+            ServerSession.serve(clientSocket, this, threadPool);
         } catch (IllegalArgumentException e) {
-            System.out.println("Invalid Request from incoming request " + e.getMessage());
+            requestLog.warn("Invalid Request from incoming request {}", e.getMessage());
+        } catch (SocketTimeoutException e) {
+            // Peer kept the connection idle past the timeout, nothing to report
         } catch (IOException e) {
-            System.out.println("Error handling incoming request: " + e.getMessage());
+            requestLog.warn("Error handling incoming request: {}", e.getMessage());
         } finally {
             try { clientSocket.close(); } catch (Exception ignored) { }
         }
     }
 
     /**
-     * Send keys to successor when this node leaves.
-     * Initiated by this node. Send a RECEIVE_KEYS request.
+     * Key transfers, the only requests that read further lines from 'in'. Shared by all server engines.
+     */
+    @Override
+    public void transfer(Message request, String clientIp, BufferedReader in, PrintWriter out) throws IOException {
+        long clientNodeId = request.getNodeId();
+
+        switch (request.getFunction()) {
+            case SEND_KEYS:
+                transferLog.info("Processing SEND_KEYS for node {}", Long.toUnsignedString(clientNodeId));
+                // The joining node is in the ring already, so its slices stop being ours; keys still here are
+                // found by the local lookup until the transfer completes
+                refreshRing();
+                // An optional token resumes an interrupted transfer after the last key the client acknowledged
+                List<Range> slices = sendKeys(in, out, request);
+
+                String message = in.readLine();
+                if ("RECEIVED_OK".equals(message)){
+                    replicator.deleteUnreplicated(ring, self, slices);     // Copies this node still keeps stay
+                }
+                break;
+            case RECEIVE_KEYS:
+                transferLog.info("Receiving keys from node {}", Long.toUnsignedString(clientNodeId));
+                String sender = clientIp + ":" + request.getPort();
+                NodeInfo leaving = new NodeInfo(clientNodeId, clientIp, request.getPort());
+                exitHandoffs.put(sender, leaving);      // Asked for the keys it has not handed over yet
+                try {
+                    out.println("SEND_OK");
+                    receiveKeys(in, out, new KeyTransferService.Progress());
+                    out.println("RECEIVED_OK");
+                    refreshRing();              // The leaving node's slices are ours once its keys are here
+                } finally {
+                    exitHandoffs.remove(sender, leaving);
+                }
+                break;
+            default: break;
+        }
+    }
+
+    /**
+     * Answer one request and record how long it took. Shared by all server engines and both wire formats.
+     */
+    @Override
+    public Message handle(Message request, String clientIp) {
+        long start = System.nanoTime();
+        Message reply = serve(request, clientIp);
+        stats.recordRequest(request, System.nanoTime() - start);
+        if (reply.isNotOwner()) stats.recordNotOwner();
+        return reply;
+    }
+
+    private Message serve(Message request, String clientIp) {
+        switch (request.getFunction()) {
+            case FIND_SUCCESSOR:
+                RingSnapshot current = ring;
+                return (current == null) ? request.reply(null) : request.reply(null, current.ownerOf(request.getToken()));
+            case LOOKUP:
+                String key = request.getKey();
+                requestLog.info("Received Lookup request for key: {}", key);
+                if (request.getQuorum() > 1 && holdsToken(KeyHash.token(key))) {
+                    return replicator.lookup(request, ring, self);     // Newest of the first R replicas to answer
+                }
+                cacheInvalidator.registerReader(key, clientIp, request.getPort());   // Before the read it may cache
+                String value  = keyValueStore.lookup(key);      // check if this name server has it
+                if (value != null) {
+                    requestLog.info("Key {} found", key);
+                    return request.reply(value);                // If found return key
+                }
+                if (holdsToken(KeyHash.token(key))) {
+                    value = lookupHandoff(request);     // Possibly not handed over yet
+                    if (value != null) return request.reply(value);
+                    requestLog.info("Key {} not found in held range", key);
+                    return request.reply(null);
+                }
+                if (request.getEpoch() != 0) return request.notOwnerReply();   // Client's ring snapshot is stale
+                return request.reply(lookupRemote(request));
+            case INSERT:
+                key = request.getKey();
+                value = request.getValueString();
+                requestLog.info("Received Insert Request for Key: {} with Value: {}", key, value);
+                if (ownsToken(KeyHash.token(key))) {
+                    int result = replicator.insert(ring, self, key, value, request.getQuorum());
+                    if (result != -1) {
+                        cacheInvalidator.written(key);
+                        cacheInvalidator.awaitAdded(key);       // In every copy of the filter before it is answered
+                    }
+                    if(result == 0) {
+                        return request.reply("Insertion successful for key " + key);
+                    } else if (result == -2) {
+                        return request.reply("Key " + key + " inserted, but not on enough replicas");
+                    } else {
+                        return request.reply("Key " + key + " already exists.");
+                    }
+                }
+                if (request.getEpoch() != 0) return request.notOwnerReply();   // Client's ring snapshot is stale
+                requestLog.info("Key {} not found -> forwarding", key);
+                return request.reply(forwardToOwner(request));
+            case DELETE:
+                key = request.getKey();
+                requestLog.info("Received delete request for key: {}", key);
+                if (ownsToken(KeyHash.token(key))) {
+                    // Replicas may hold it even if this node did not
+                    int result = replicator.delete(ring, self, key, request.getQuorum());
+                    cacheInvalidator.written(key);
+                    if (result == 0) {
+                        requestLog.info("Key {} found", key);
+                        return request.reply("Key " + key + " deleted");    // If found return key
+                    }
+                    if (result == -2) return request.reply("Key " + key + " deleted, but not on enough replicas");
+                    requestLog.info("Key {} not found in owned range", key);
+                    return request.reply(null);
+                }
+                // A copy or leftover deleted here; the owner deletes it for good and tells the other replicas
+                if (keyValueStore.delete(key) == 0) cacheInvalidator.written(key);
+                if (request.getEpoch() != 0) return request.notOwnerReply();   // Client's ring snapshot is stale
+                current = ring;                         // Copies may outlive the owner's, which deletes them too
+                if (current != null && current.getReplicas() == 1 && !ownerMightHold(key)) return request.reply(null);
+                requestLog.info("Key {} not found -> forwarding", key);
+                return request.reply(forwardToOwner(request));    // return any value the owner found
+            case MGET:
+            case MINSERT:
+            case MDELETE:
+                requestLog.info("Received {} for {} keys", request.getFunction(), request.getBatchKeys().length);
+                Message result = batchRouter.execute(request);  // Owned keys locally, the rest per next hop in parallel
+                if (request.getFunction() == MINSERT) addForwardedInserts(request.getBatchKeys());
+                return result;
+            case REPLICATE:
+                Message applied = replicator.apply(request);    // Writes an owner copies to this replica
+                cacheInvalidator.written(request.getBatchKeys());
+                return applied;
+            case FILTER:
+                if (request.hasKey() || request.isBatch()) {    // A node whose filter this node copied added keys
+                    remoteFilters.added(clientIp, request.getPort(),
+                            request.hasKey() ? new String[] {request.getKey()} : request.getBatchKeys());
+                    return request.reply(null);
+                }
+                if (bloomStore == null) return request.reply(null);
+                cacheInvalidator.registerFilterReader(clientIp, request.getPort());   // Before the bits are read
+                return request.bytesReply(bloomStore.toBloomFilter().toBytes());
+            case INVALIDATE:
+                if (readCache == null) return request.reply(null);
+                if (request.hasKey()) readCache.invalidate(request.getKey());
+                else readCache.clear();
+                return request.reply("OK");
+            case REPLICA_READ:
+                return replicator.readLocal(request);   // One answer of a quorum read
+            case STATS:
+                return request.reply(statsReport());
+            default:
+                return request.reply(null);
+        }
+    }
+
+    /**
+     * Hand every slice of this node to its new owner when this node leaves.
+     * Called after the bootstrap removed the node, so a fresh ring snapshot names the new owners:
+     * the slices go to many peers, one transfer per peer, instead of all of them to one successor.
+     * With replication every range this node held, as owner or copy, goes to the replicas that gain it.
      */
     public void sendKeysOnExit() {
-        NodeInfo successor = nodeInfo.getSuccessor();
-        if (successor == null) {
-            System.out.println("No successor available for sending key.");
+        RingSnapshot before = ring;
+        if (before == null || !refreshRing()) {
+            transferLog.warn("No ring snapshot available for sending keys.");
             return;
         }
+        RingSnapshot after = ring;
+
+        KeyHandoff.Plan plan = new KeyHandoff.Plan();
+        for (int i = 0; i < before.size(); i++) {
+            NodeInfo[] holders = before.replicasAt(i);
+            if (!Replicator.holds(holders, self)) continue;
+            after.split(before.rangeOf(i), (owner, slice) -> {
+                for (NodeInfo target : after.replicasOf(slice.getEnd())) {
+                    // Still ours if the bootstrap has not removed us yet
+                    if (!isSelf(target) && !Replicator.holds(holders, target)) plan.add(target, slice);
+                }
+            });
+        }
+        transferLog.info("Handing {} slices to {} nodes", plan.sliceCount(), plan.peerCount());
+        plan.forEach(keyHandoff::push);
+    }
 
-        System.out.println("Initiating key sending to successor: " + successor);
-        try (Socket socket = new Socket(successor.getIp(), successor.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())))
-        {
-            int predId = nodeInfo.getPredecessor().getId();
-            String predIp;
-            if (predId == 0) predIp = bootstrapIP;
-            else predIp = nodeInfo.getPredecessor().getIp();
-            int predPort = nodeInfo.getPredecessor().getPort();
-
-            String transferRequest = RECEIVE_KEYS + " " + id + " " + port + " " +
-                    predId + " " + predIp + " " + predPort;
-            out.println(transferRequest);
-            System.out.println("Sent key sending request: " + transferRequest);
-
-            String message = in.readLine();
-            if (!message.equals("SEND_OK")) {
-                System.out.println("Server not ready to receive keys");
+    /**
+     * Function triggered when 'this node' enters the network and pulls its slices from their previous owners.
+     * The previous owners are those of the same ring without this node, so on a plain ring the slice ending at
+     * each of this node's tokens comes from the owner of the next token that is not ours. Slices are grouped
+     * per previous owner, with one SEND_KEYS transfer per owner. With replication the ranges this node keeps
+     * copies of are pulled from their owners too.
+     */
+    public void receiveKeysOnEntry() {
+        try {
+            RingSnapshot current = ring;
+            NodeInfo me = self;
+            if (current == null || me == null) {
+                transferLog.warn("No ring snapshot available for key receiving.");
                 return;
             }
-            System.out.println("Sending keys...");
-
-            sendKeys(out, id);
 
-            message = in.readLine();
-            if (message.equals("RECEIVED_OK"))
-                System.out.println("Successfully sent all keys");
-            else System.out.println("Failed to send keys");
-        } catch(Exception e) {
-            System.out.println("Error during sending key: " + e.getMessage());
+            RingSnapshot before = current.without(me);
+            KeyHandoff.Plan plan = new KeyHandoff.Plan();
+            for (int i = 0; i < current.size() && before.size() > 0; i++) {
+                if (Replicator.holds(current.replicasAt(i), me)) before.split(current.rangeOf(i), plan::add);
+            }
+            transferLog.info("Pulling {} slices from {} nodes", plan.sliceCount(), plan.peerCount());
+            plan.forEach(keyHandoff::pull);
+        } finally {
+            entering = false;
+            entryHandoff = null;
         }
     }
 
     /**
-     * Function triggered when 'this node' enters the network and wants to receive keys from successor.
-     * Sends a SEND_KEYS request.
+     * Helper method to stream the slices a joining node asked for on 'in' / 'out', or those after the
+     * request's token when resuming. Returns every slice so the caller can delete them once the peer confirms.
      */
-    public void receiveKeysOnEntry() {
-        NodeInfo successor = nodeInfo.getSuccessor();
-        if (successor == null) {
-            System.out.println("No successor available for key receiving.");
-            return;
+    private List<Range> sendKeys(BufferedReader in, PrintWriter out, Message request) throws IOException {
+        List<Range> slices = KeyTransferService.slices(request.getTokens());
+        List<Range> remaining = request.hasToken() ? KeyTransferService.remainingAfter(slices, request.getToken()) : slices;
+        transferLog.info("Sending keys in {} of {} slices", remaining.size(), slices.size());
+        keyTransferService.sendKeyValueRanges(in, out, remaining, new KeyTransferService.Progress());
+        return slices;
+    }
+
+    /**
+     * Helper method to receive keys using a 'BufferedReader in' source and store in this node
+     * Receives the slices of a leaving node, or those 'this node' pulls from a previous owner when it enters.
+     */
+    private void receiveKeys(BufferedReader in, PrintWriter out, KeyTransferService.Progress progress) throws IOException {
+        long before = progress.getTransferred();
+        keyTransferService.receiveKeyValueRange(in, out, progress);
+        transferLog.info("Received {} keys", progress.getTransferred() - before);
+    }
+
+    /**
+     * A key this node holds but does not have, while keys are handed to it: on entry, until its slices are
+     * pulled, ask their previous owner, and while a leaving node pushes its keys here, ask that node. Both keep
+     * the keys until this node confirmed storing them, so if they no longer have it, it is here now.
+     * Asked with an epoch, so a node that does not hold the key answers not-owner instead of forwarding back.
+     */
+    private String lookupHandoff(Message request) {
+        RingSnapshot before = entryHandoff;
+        if (before == null && exitHandoffs.isEmpty()) return null;
+        String key = request.getKey();
+        List<NodeInfo> sources = new ArrayList<>(exitHandoffs.values());
+        if (before != null) sources.add(before.ownerOf(KeyHash.token(key)));
+        int epoch = ring.getEpoch();
+        for (NodeInfo source : sources) {
+            try {
+                Message reply = connectionPool.request(source, request.from(id, senderPort(request)).withEpoch(epoch));
+                if (!reply.isNotOwner() && reply.getValueString() != null) return reply.getValueString();
+            } catch (IOException e) {
+                requestLog.warn("Error asking {} for a key handed over: {}", source, e.getMessage());
+            }
         }
+        return keyValueStore.lookup(key);
+    }
 
-        System.out.println("Initiating key retrieval from successor: " + successor);
-        try (Socket socket = new Socket(successor.getIp(), successor.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())))
-        {
-            String transferRequest = SEND_KEYS + " " + id + " " + port;
-            out.println(transferRequest);
-            System.out.println("Sent key retrieval request: " + transferRequest);
-
-            receiveKeys(in);
-            out.println("RECEIVED_OK");
-        } catch(Exception e) {
-            System.out.println("Error during key reception: " + e.getMessage());
+    /**
+     * A lookup of a key held elsewhere: from the read cache if it has the key, else from the owner. Only an
+     * answer the owner of the current snapshot gave at the first attempt is cached; a not-owner answer or a
+     * failure goes through forwardToOwner's refresh and retries uncached.
+     */
+    private String lookupRemote(Message request) {
+        String key = request.getKey();
+        if (request.getQuorum() <= 1 && !ownerMightHold(key)) return null;
+        RingSnapshot current = ring;
+        if (readCache != null && current != null && request.getQuorum() <= 1) {
+            int epoch = current.getEpoch();
+            String value = readCache.get(key, epoch);
+            if (value != null) {
+                requestLog.info("Key {} found in the read cache", key);
+                return value;
+            }
+            long ticket = readCache.ticket();
+            NodeInfo owner = current.ownerOf(KeyHash.token(key));
+            if (!isSelf(owner)) {
+                requestLog.info("Key {} not cached -> forwarding", key);
+                long start = System.nanoTime();
+                try {
+                    Message reply = connectionPool.request(owner, request.from(id, port).withEpoch(epoch));
+                    stats.recordForward(System.nanoTime() - start);
+                    if (!reply.isNotOwner()) {
+                        stats.recordHops(1);
+                        readCache.put(key, reply.getValueString(), epoch, ticket);
+                        return reply.getValueString();
+                    }
+                    refreshRing();
+                } catch (IOException e) {
+                    stats.recordForward(System.nanoTime() - start);
+                    requestLog.warn("Error forwarding lookup: {}", e.getMessage());
+                }
+                return forwardToOwner(request, 1);
+            }
         }
+        requestLog.info("Key {} not found -> forwarding", key);
+        return forwardToOwner(request, 0);
     }
 
     /**
-     * Helper method to send keys to a 'PrintWrite out' source for 'this' nameservers
-     * Send all the keys possessed by this server (start -> nodeId)
+     * False if the owner's Bloom filter shows it does not have the key, so a lookup (or, without replicas, a
+     * delete) of it is a miss without asking the owner.
      */
-    private Range sendKeys(PrintWriter out, int endKey) {
-        Range range = getSendRange(endKey);
-        System.out.println("Sending keys in range: " + range.getStart() + " to " + endKey);
-        keyTransferService.sendKeyValueRange(out, range);
-        return range;
+    private boolean ownerMightHold(String key) {
+        RingSnapshot current = ring;
+        if (current == null) return true;
+        NodeInfo owner = current.ownerOf(KeyHash.token(key));
+        if (isSelf(owner) || remoteFilters.mightHold(owner, key, current.getEpoch())) return true;
+        requestLog.info("Key {} not in the owner's Bloom filter", key);
+        return false;
+    }
+
+    // Keys of a batch insert sent on to other owners, so this node's copies of their filters have them
+    private void addForwardedInserts(String[] keys) {
+        RingSnapshot current = ring;
+        if (current == null) return;
+        for (String key : keys) {
+            NodeInfo owner = current.ownerOf(KeyHash.token(key));
+            if (!isSelf(owner)) remoteFilters.added(owner, key);
+        }
     }
 
     /**
-     * Helper method to receive keys using a 'BufferedReader in' source and store in this node
-     * Receives all keys when a predecessor leaves and hands over keys or
-     * When 'this node' enters the network and receives successor's keyspace (start -> this.nodeId)
+     * Send a request for a key this node does not own straight to the owner named by the ring snapshot.
+     * The request carries the snapshot's epoch, so a node that no longer owns the key answers not-owner
+     * instead of forwarding it again; the snapshot is then refreshed and the request retried.
+     * The forwards it took, after those the caller made already, are recorded as the request's hops.
+     * A forward blocks the thread serving the request, which under the VIRTUAL engine is already a virtual
+     * thread (one per connection, and one per pipelined binary request), so it only parks that thread.
      */
-    private void receiveKeys(BufferedReader in) {
+    private String forwardToOwner(Message received) {
+        return forwardToOwner(received, 0);
+    }
+
+    private String forwardToOwner(Message received, int forwards) {
+        long token = KeyHash.token(received.getKey());
+        String failure = null;
         try {
-            String received = in.readLine();
-            String[] lines = received.split("%0A");
-            for (String line : lines) {
-                if (line.trim().isEmpty()) continue;
-                if (line.equals("FIN"))
-                    break;  // Receive key-value pairs until we encounter a termination marker ("FIN").
-
-                String[] parts = line.split(":");
-                if (parts.length < 2) {
-                    System.out.println("Invalid key-value pair: " + line);
-                    continue;
+            for (int attempt = 1; attempt <= FORWARD_ATTEMPTS; attempt++) {
+                RingSnapshot current = ring;
+                if (current == null) {
+                    requestLog.warn("Forwarding aborted: not joined to a ring");
+                    return null;
                 }
-
+                NodeInfo owner = current.ownerOf(token);
+                if (isSelf(owner)) return serve(received, "self").getValueString();     // Ours since a refresh
+                forwards++;
+                long start = System.nanoTime();
                 try {
-                    int key = Integer.parseInt(parts[0].trim());
-                    String value = parts[1].trim();
-                    keyValueStore.insert(key, value);       // Insert the key-value pair into the local store
-                    System.out.println("Received key " + key + " with value " + value);
-                } catch (NumberFormatException e) {
-                    System.out.println("Invalid key format in line: " + line);
+                    Message reply = connectionPool.request(owner, received.from(id, senderPort(received)).withEpoch(current.getEpoch()));
+                    if (!reply.isNotOwner()) {
+                        if (received.getFunction() == INSERT) remoteFilters.added(owner, received.getKey());
+                        return reply.getValueString();
+                    }
+                    failure = null;
+                } catch (IOException e) {
+                    failure = "Error forwarding lookup: " + e.getMessage();
+                } finally {
+                    stats.recordForward(System.nanoTime() - start);
                 }
+                ringLog.info("Node {} did not answer for epoch {} -> refreshing the ring",
+                        Long.toUnsignedString(owner.getId()), current.getEpoch());
+                refreshRing();
             }
-        } catch (IOException e) {
-            System.out.println("Error receiving keys due to I/O Exception: " + e.getMessage());
+            return failure;
+        } finally {
+            stats.recordHops(forwards);
         }
     }
 
-    private void deleteKeys(Range range) {
-        for (int key = range.getStart(); key <= range.getEnd(); key ++)
-            keyValueStore.delete(key);
+    // The port a forwarded request gives: the owner of a looked-up key registers it for invalidations, so a
+    // lookup names this node only if it has a read cache
+    private int senderPort(Message request) {
+        return (request.getFunction() == LOOKUP && readCache == null) ? 0 : port;
+    }
+
+    // Batches go straight to each key's owner as well; they carry no epoch, so a stale owner forwards them on
+    private NodeInfo batchNextHop(long token) {
+        RingSnapshot current = ring;
+        return (current == null) ? null : current.ownerOf(token);
     }
 
     /**
-     * Ask predecessor to set 'this node' as successor
-     * @param predecessorNode: The predecessor Node of class NodeInfo
+     * Fetch the bootstrap's ring snapshot and derive this node's neighbours from it.
+     * Called on joining and leaving, on every transfer this node takes part in (the only events that change
+     * its own slices), when a forwarded request finds the snapshot stale, and periodically.
+     * Returns false if the bootstrap could not be reached; the previous snapshot is kept then.
      */
-    public void announceEntryToPredecessor(NodeInfo predecessorNode) {
-        try (Socket socket = new Socket(predecessorNode.getIp(), predecessorNode.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true))
-        {
-            System.out.println("Announcing entry to predecessor node");
-            String request = UPDATE_SUCCESSOR + " " + id + " " + port;
-            out.println(request);
-            System.out.println("Announce success");
-        } catch(Exception e) {
-            System.out.println("Error during announcing entry to predecessor key: " + e.getMessage());
+    public boolean refreshRing() {
+        if (!isJoined) return false;
+        try {
+            Message reply = connectionPool.request(bootstrapIP, bootstrapPort, Message.request(RING, id, port));
+            installRing(RingSnapshot.fromReply(reply, bootstrapIP, bootstrapPort, ring));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            ringLog.warn("Ring refresh from bootstrap failed: {}", e.getMessage());
+            return false;
         }
     }
 
-    public void announceExitToPredecessor(NodeInfo predecessorNode, NodeInfo successorNode) {
-        try (Socket socket = new Socket(predecessorNode.getIp(), predecessorNode.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true))
-        {
-            System.out.println("Announcing exit to predecessor node");
-            String request = UPDATE_SUCCESSOR + " " + successorNode.getId() + " " + successorNode.getPort() + " " + successorNode.getIp() ;
-            out.println(request);
-            System.out.println("Announce success");
-        } catch(Exception e) {
-            System.out.println("Error during announcing entry to predecessor key: " + e.getMessage());
-        }
+    /**
+     * Use the snapshot unless a newer one is installed already. Also used directly for rings assembled by hand.
+     */
+    public synchronized void installRing(RingSnapshot snapshot) {
+        if (ring != null && ring.getEpoch() > snapshot.getEpoch()) return;       // A newer one won the race
+        if (snapshot == ring) return;                   // Unchanged since the last refresh
+        NodeInfo member = snapshot.getMember(id);
+        if (member != null) self = member;         // Kept after leaving, to hand the old slices over
+        if (entering && member != null) entryHandoff = snapshot.without(member);
+        RingSnapshot previous = ring;
+        ring = snapshot;
+        if (previous != null && member != null) replicator.dropStaleCopies(previous, snapshot, member);
+        int index = snapshot.indexOf(id);
+        nodeInfo.setPredecessor(snapshot.get((index + snapshot.size() - 1) % snapshot.size()));
+        nodeInfo.setSuccessor(snapshot.get((index + 1) % snapshot.size()));
     }
 
-    private String forwardToSuccessor(NameServerFunctions nsf, String message) {
-        NodeInfo successor = nodeInfo.getSuccessor();
-        if (successor == null || successor.getId() == 0) {
-            System.out.println("Forwarding aborted: No successor present or successor is Bootstrap Node");
-            return null;
-        }
-        try (Socket socket = new Socket(successor.getIp(), successor.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())))
-        {
-            String request = nsf + " " + id + " " + port + " " + message;
-            out.println(request);
-            return in.readLine();
-        } catch (IOException e) {
-            return "Error forwarding lookup: " + e.getMessage();
+    // The STATS report: this node's requests, forwards and transfers
+    public String statsReport() {
+        return stats.report(keyTransferService);
+    }
+
+    /**
+     * The FINGERS command: the node that finger i of a Chord table would point at, the owner of id + 2^i,
+     * read from the ring snapshot. Requests do not route by these; they go to the owner in one hop.
+     */
+    public String fingersReport() {
+        RingSnapshot current = ring;
+        if (current == null) return "Not joined to a ring";
+        StringBuilder report = new StringBuilder("Finger table for node " + Long.toUnsignedString(id) + ":");
+        for (int i = 0; i < Long.SIZE; i++) {
+            long start = id + (1L << i);            // (id + 2^i) mod 2^64, which long overflow gives for free
+            report.append("\n  start ").append(Long.toUnsignedString(start)).append(" -> ")
+                    .append(Long.toUnsignedString(current.ownerOf(start).getId()));
         }
+        return report.toString();
+    }
+
+    public ReadCache getReadCache() {
+        return readCache;
     }
 
     public NodeInfo getNodeInfo() {
@@ -338,15 +619,37 @@ public class NameServer {
         isJoined = true;
     }
 
+    // Joined, with the keys of this node's slices still to pull: until receiveKeysOnEntry is done, a lookup
+    // that misses in them asks their previous owner as well
+    public void markAsEntering() {
+        entering = true;
+        isJoined = true;
+    }
+
     public boolean isJoined() {
         return isJoined;
     }
 
-    private Range getSendRange(int endKey) {
-        NodeInfo predecessor = nodeInfo.getPredecessor();
-        if (predecessor != null) {
-            return new Range(predecessor.getId() + 1, endKey);
-        }
-        return new Range(0, endKey);
+    public long[] getTokens() {
+        return tokens.clone();
+    }
+
+    // True if the token falls in one of this node's slices, according to the current ring snapshot
+    private boolean ownsToken(long token) {
+        RingSnapshot current = ring;
+        return current != null && isSelf(current.ownerOf(token));
+    }
+
+    // True if this node stores the token's keys, as owner or copy
+    private boolean holdsToken(long token) {
+        RingSnapshot current = ring;
+        NodeInfo me = self;
+        return current != null && me != null && current.isReplica(me, token);
+    }
+
+    // True if the ring entry is one of this node's
+    private boolean isSelf(NodeInfo entry) {
+        NodeInfo me = self;
+        return me != null && RingSnapshot.sameNode(me, entry);
     }
 }
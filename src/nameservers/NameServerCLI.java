@@ -1,15 +1,14 @@
 package nameservers;
 
+import common.ConnectionPool;
 import common.KeyTransferService;
 import common.KeyValueStore;
+import common.Message;
 import common.NameServerFunctions;
 import common.NodeInfo;
-import nameservers.namserverUtil.ResponseParser;
+import common.ReadCache;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.IOException;
 import java.util.Scanner;
 
 import static common.NameServerFunctions.ENTER;
@@ -19,20 +18,23 @@ public class NameServerCLI {
     private NameServer nameServer;
     private String bootstrapIP;
     private int bootstrapPort;
-    private int id;
+    private long id;
     private int port;
     private KeyValueStore keyValueStore;
     private KeyTransferService keyTransferService;
+    private ConnectionPool connectionPool;
 
-    public NameServerCLI(int id, int port, String bootstrapIP,
+    public NameServerCLI(long id, int port, String bootstrapIP,
                          int bootstrapPort, KeyValueStore keyValueStore,
-                         KeyTransferService keyTransferService, NameServer nameServer) {
+                         KeyTransferService keyTransferService, ConnectionPool connectionPool,
+                         NameServer nameServer) {
         this.id = id;
         this.port = port;
         this.bootstrapIP = bootstrapIP;
         this.bootstrapPort = bootstrapPort;
         this.keyValueStore = keyValueStore;
         this.keyTransferService = keyTransferService;
+        this.connectionPool = connectionPool;
         this.nameServer = nameServer;
     }
 
@@ -41,32 +43,21 @@ public class NameServerCLI {
             System.out.println("Already joined the network.");
             return false;
         }
-        try (Socket socket = new Socket(bootstrapIP, bootstrapPort)) {
-            socket.setSoTimeout(5000); // Set a timeout of 5 seconds for reading response
-            try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())))
-            {
-                String joinMessage = ENTER + " " + id + " " + port;
-                out.println(joinMessage);
-                System.out.println("Sent join request: " + joinMessage);
+        try {
+            Message joinMessage = Message.request(ENTER, id, port);
+            long[] tokens = nameServer.getTokens();
+            System.out.println("Sending join request: " + joinMessage + " with " + tokens.length + " virtual node tokens");
+            joinMessage = joinMessage.withTokens(tokens);
+            // Wait at most 5 seconds for the bootstrap response
+            Message response = connectionPool.request(bootstrapIP, bootstrapPort, joinMessage, 5000);
+            System.out.println("Bootstrap response: " + response);     // Receive successor and predecessor
 
-                String response = in.readLine();        // Receive successor and predecessor
-                System.out.println("Bootstrap response: " + response);
+            NodeInfo[] neighbors = response.getNodes();
+            if (neighbors.length != 2) throw new IllegalArgumentException("Join refused: " + response.getValueString());
 
-                NodeInfo[] neighbors = ResponseParser.parseBootstrapResponse(response);
-                for (int i = 0; i <= 1 ; i++) {
-                    // if neighbor is bootstrap node
-                    if (neighbors[i].getIp().equals("N/A")) {
-                        neighbors[i].setIp(bootstrapIP);
-                        neighbors[i].setPort(bootstrapPort);
-                    }
-                }
-
-                NodeInfo nodeInfo = nameServer.getNodeInfo();
-                nodeInfo.setPredecessor(neighbors[0]);
-                nodeInfo.setSuccessor(neighbors[1]);
-                nameServer.markAsJoined();
-            }
+            // Neighbours, fingers and the slices to pull all follow from the ring snapshot that now includes us
+            nameServer.markAsEntering();
+            if (!nameServer.refreshRing()) throw new IOException("could not fetch the ring snapshot");
         } catch (java.net.SocketTimeoutException ste) {
             System.out.println("Timed out waiting for bootstrap response.");
             return false;
@@ -82,22 +73,13 @@ public class NameServerCLI {
             System.out.println("Not currently joined the network. No keys to transfer");
             return false;
         }
-        try(Socket socket = new Socket(bootstrapIP, bootstrapPort)) {
-            socket.setSoTimeout(5000);  // Set a timeout of 5 seconds for reading response
-            try(PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())))
-            {
-                String exitMessage = EXIT + " " + id + " " + port;
-                out.println(exitMessage);
-                System.out.println("Sent exit request: " + exitMessage);
-
-                String response = in.readLine();
-                System.out.println("Bootstrap response: " + response);
-                return response.equals(EXIT + " OK");
-            } catch(Exception e) {
-                System.out.println("Error exiting network: " + e.getMessage());
-                return false;
-            }
+        try {
+            Message exitMessage = Message.request(EXIT, id, port);
+            System.out.println("Sending exit request: " + exitMessage);
+            // Wait at most 5 seconds for the bootstrap response
+            Message response = connectionPool.request(bootstrapIP, bootstrapPort, exitMessage, 5000);
+            System.out.println("Bootstrap response: " + response);
+            return (EXIT + " OK").equals(response.getValueString());
         } catch (java.net.SocketTimeoutException ste) {
             System.out.println("Timed out waiting for bootstrap response.");
             return false;
@@ -109,7 +91,7 @@ public class NameServerCLI {
 
     public void startCLI() {
         Scanner scanner = new Scanner(System.in);
-        System.out.println("NameServer CLI started. Available commands: enter, exit");
+        System.out.println("NameServer CLI started. Available commands: enter, exit, print, neighbor, fingers, cache, stats");
         while (true) {
             System.out.print("NS> ");
             String input = scanner.nextLine().trim().toUpperCase();
@@ -118,16 +100,11 @@ public class NameServerCLI {
                     case ENTER:
                         if(enterNetwork()){
                             nameServer.receiveKeysOnEntry();
-                            nameServer.announceEntryToPredecessor(nameServer.getNodeInfo().getPredecessor());
                         }
                         break;
                     case EXIT:
                         if (exitNetwork()){
                             nameServer.sendKeysOnExit();
-                            nameServer.announceExitToPredecessor(
-                                    nameServer.getNodeInfo().getPredecessor(),
-                                    nameServer.getNodeInfo().getSuccessor()
-                            );
                             System.out.println("Exiting NameServer CLI.");
                             System.exit(0);
                         }
@@ -138,6 +115,17 @@ public class NameServerCLI {
                     case NEIGHBOR:
                         System.out.println("Predecessor :" + nameServer.getNodeInfo().getPredecessor());
                         System.out.println("Successor :" + nameServer.getNodeInfo().getSuccessor());
+                        break;
+                    case FINGERS:
+                        System.out.println(nameServer.fingersReport());
+                        break;
+                    case CACHE:
+                        ReadCache readCache = nameServer.getReadCache();
+                        System.out.println((readCache == null) ? "No read cache" : readCache.stats());
+                        break;
+                    case STATS:
+                        System.out.println(nameServer.statsReport());
+                        break;
                     default: break;
                 }
             } catch (IllegalArgumentException e) {
@@ -1,16 +1,25 @@
 package nameservers;
 
+import common.BloomKeyValueStore;
+import common.ConcurrentTokenKeyValueStore;
+import common.ConnectionPool;
+import common.DurableKeyValueStore;
+import common.FsyncPolicy;
 import common.KeyTransferService;
 import common.KeyValueStore;
+import common.OffHeapKeyValueStore;
+import common.ReadCache;
+import common.ServerEngine;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
 
 public class NameServerManager {
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java NameServerManager.java <nsConfigFile>");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java NameServerManager.java <nsConfigFile> [threaded|virtual|nio]");
             return;
         }
 
@@ -20,27 +29,57 @@ public class NameServerManager {
             String idLine = br.readLine();
             String portLine = br.readLine();
             String bootstrapLine = br.readLine();
+            String vnodesLine = br.readLine();                      // Optional number of virtual nodes
+            String weightLine = br.readLine();                      // Optional capacity weight
+            String dataLine = br.readLine();                        // Optional "<dataDir> [always|interval|never]"
+            String storeLine = br.readLine();                       // Optional store engine, heap or offheap
+            String cacheLine = br.readLine();                       // Optional "<cacheEntries> [lru|tiny-lfu]"
 
-            int nodeId = Integer.parseInt(idLine.trim());
+            long nodeId = Long.parseUnsignedLong(idLine.trim());     // Ring token, 0 - 2^64-1
             int localPort = Integer.parseInt(portLine.trim());
             String[] bootstrapInfo = bootstrapLine.trim().split("\\s+");
             String bootstrapIP = bootstrapInfo[0];
             int bootstrapPort = Integer.parseInt(bootstrapInfo[1]);
+            int vnodes = (vnodesLine == null || vnodesLine.isBlank()) ? 1 : Integer.parseInt(vnodesLine.trim());
+            if (vnodes < 1) throw new IllegalArgumentException("vnodes must be at least 1");
+            // A machine with twice the capacity takes twice the tokens, and so about twice the keys
+            double weight = (weightLine == null || weightLine.isBlank()) ? 1 : Double.parseDouble(weightLine.trim());
+            if (!(weight > 0)) throw new IllegalArgumentException("weight must be positive");
+            int tokens = (int) Math.max(1, Math.round(vnodes * weight));
 
-            KeyValueStore keyValueStore = new KeyValueStore();
+            String store = (storeLine == null || storeLine.isBlank()) ? "heap" : storeLine.trim().toLowerCase();
+            if (!store.equals("heap") && !store.equals("offheap")) throw new IllegalArgumentException("Unknown store " + store);
+            KeyValueStore keyValueStore = store.equals("offheap")  // Off-heap keeps values in memory-mapped segment files
+                    ? new OffHeapKeyValueStore() : new ConcurrentTokenKeyValueStore();
+            if (dataLine != null && !dataLine.isBlank()) {         // Log writes and recover the keys on restart
+                String[] dataInfo = dataLine.trim().split("\\s+");
+                FsyncPolicy fsync = (dataInfo.length > 1) ? FsyncPolicy.of(dataInfo[1]) : FsyncPolicy.ALWAYS;
+                keyValueStore = new DurableKeyValueStore(keyValueStore, Path.of(dataInfo[0]), fsync);
+            }
+            keyValueStore = new BloomKeyValueStore(keyValueStore);    // Misses answered from a filter of the keys
             KeyTransferService keyTransferService = new KeyTransferService(keyValueStore);
+            ConnectionPool connectionPool = new ConnectionPool();  // Shared by every outbound call of this node
+            ServerEngine serverEngine = (args.length == 2)         // Optional engine switch, thread per connection by default
+                    ? ServerEngine.valueOf(args[1].toUpperCase()) : ServerEngine.THREADED;
 
-            NameServer nameServer = new NameServer(nodeId, localPort, bootstrapIP,
-                    bootstrapPort, keyValueStore, keyTransferService);
+            ReadCache readCache = null;                             // Caches values fetched from other nodes
+            if (cacheLine != null && !cacheLine.isBlank()) {
+                String[] cacheInfo = cacheLine.trim().split("\\s+");
+                readCache = new ReadCache(Integer.parseInt(cacheInfo[0]),
+                        (cacheInfo.length > 1) ? ReadCache.Eviction.of(cacheInfo[1]) : ReadCache.Eviction.TINY_LFU);
+            }
+
+            NameServer nameServer = new NameServer(nodeId, tokens, localPort, bootstrapIP,
+                    bootstrapPort, keyValueStore, keyTransferService, connectionPool, serverEngine, readCache);
             new Thread(nameServer::startServer).start();
 
             NameServerCLI cli = new NameServerCLI(nodeId, localPort, bootstrapIP,
-                    bootstrapPort, keyValueStore, keyTransferService, nameServer);
+                    bootstrapPort, keyValueStore, keyTransferService, connectionPool, nameServer);
             new Thread(cli::startCLI).start();
 
         } catch (IOException e) {
             System.out.println("Error reading config file: " + e.getMessage());
-        } catch (NumberFormatException e) {
+        } catch (IllegalArgumentException e) {
             System.out.println("Invalid configuration format: " + e.getMessage());
         }
     }